@@ -1,17 +1,27 @@
 package com.codecademy.eventhub;
 
+import com.google.common.base.Function;
 import com.google.common.collect.ArrayTable;
 import com.google.common.collect.ContiguousSet;
 import com.google.common.collect.DiscreteDomain;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Range;
 import com.google.common.collect.Sets;
 import com.google.common.collect.Table;
+import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.codecademy.eventhub.base.Manifest;
+import com.codecademy.eventhub.base.ScanContext;
 import com.codecademy.eventhub.index.DatedEventIndex;
 import com.codecademy.eventhub.index.EventIndex;
+import com.codecademy.eventhub.index.EventQuery;
+import com.codecademy.eventhub.index.EventRetention;
 import com.codecademy.eventhub.index.PropertiesIndex;
 import com.codecademy.eventhub.index.ShardedEventIndex;
 import com.codecademy.eventhub.index.UserEventIndex;
+import com.codecademy.eventhub.index.UserQuery;
 import com.codecademy.eventhub.list.DummyIdList;
 import com.codecademy.eventhub.list.IdList;
 import com.codecademy.eventhub.list.MemIdList;
@@ -29,19 +39,54 @@ import org.joda.time.format.DateTimeFormatter;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 // TODO: query language
 // TODO: integrate com.codahale.metrics
 // TODO: refactor to have IdManager & Id class
 // TODO: consider column oriented storage
 // TODO: separate cache for previously computed result? same binary or redis?
-// TODO: move synchronization responsibility to low level
 // TODO: compression of DmaIdList
-// TODO: native byte order for performance
+/**
+ * Writes, i.e. adding events and adding, updating or aliasing users, are serialized by a writer
+ * lock, while queries take no lock: they run concurrently with each other and with the writes.
+ *
+ * The writer publishes committed high-water marks, the number of events and users whose every
+ * index has been updated, through volatile fields. A query reads them once when it starts and
+ * ignores the ids at or above them, so that it sees a consistent snapshot of the indexes and
+ * returns the same results however the writes interleave with it.
+ *
+ * Every NUM_EVENTS_PER_CHECKPOINT events, and on close, the writer appends the number of
+ * committed events to a checkpoint manifest. As the indexes ignore the events they already have,
+ * a crash is recovered on startup by replaying the events stored since the last checkpoint, which
+ * the indexes may have been partially updated with.
+ *
+ * The event types configured with a retention get their events expired every
+ * EXPIRY_INTERVAL_HOURS, by the date they were added on, relative to the latest date events were
+ * added on. The expired events are hidden from the queries right away, and deleted from the event
+ * storage on the next run, see ShardedEventIndex. As the queries take no lock, that is only safe
+ * as long as every query finishes within EXPIRY_INTERVAL_HOURS of when it started.
+ */
 public class EventHub implements Closeable {
+  public static final int NO_MORE_USERS = -1;
+  private static final Logger LOGGER = Logger.getLogger(EventHub.class.getName());
   private static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormat.forPattern("yyyyMMdd");
+  private static final int NUM_EVENTS_PER_CHECKPOINT = 10000;
+  // the expired events are deleted a whole interval after being hidden, which no query may outlast
+  private static final int EXPIRY_INTERVAL_HOURS = 6;
 
   private final String directory;
   private final ShardedEventIndex shardedEventIndex;
@@ -50,10 +95,21 @@ public class EventHub implements Closeable {
   private final UserEventIndex userEventIndex;
   private final EventStorage eventStorage;
   private final UserStorage userStorage;
+  private final EventRetention eventRetention;
+  private final ExecutorService userScanExecutor;
+  private final ScheduledExecutorService expiryExecutor;
+  private final int numUserScanThreads;
+  private final int numUsersPerScanChunk;
+  private final Object writeLock;
+  private final Manifest checkpointManifest;
+  private final AtomicLong numFailedExpiryRuns;
+  private volatile long numCommittedEvents;
+  private volatile int numCommittedUsers;
 
   public EventHub(String directory, ShardedEventIndex shardedEventIndex,
       DatedEventIndex datedEventIndex, PropertiesIndex propertiesIndex,
-      UserEventIndex userEventIndex, EventStorage eventStorage, UserStorage userStorage) {
+      UserEventIndex userEventIndex, EventStorage eventStorage, UserStorage userStorage,
+      int numUserScanThreads, int numUsersPerScanChunk) {
     this.directory = directory;
     this.shardedEventIndex = shardedEventIndex;
     this.datedEventIndex = datedEventIndex;
@@ -61,20 +117,77 @@ public class EventHub implements Closeable {
     this.userEventIndex = userEventIndex;
     this.eventStorage = eventStorage;
     this.userStorage = userStorage;
+    this.eventRetention = shardedEventIndex.getEventRetention();
+    this.userScanExecutor = Executors.newFixedThreadPool(numUserScanThreads,
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("user-scan-%d").build());
+    this.numUserScanThreads = numUserScanThreads;
+    this.numUsersPerScanChunk = numUsersPerScanChunk;
+    this.writeLock = new Object();
+    this.numFailedExpiryRuns = new AtomicLong();
+    propertiesIndex.recoverUserUpdate(new Function<Integer, User>() {
+      @Override
+      public User apply(Integer userId) {
+        return EventHub.this.userStorage.getUser(userId);
+      }
+    });
+    // the users added before their properties were indexed
+    for (int userId = propertiesIndex.getNumIndexedUsers(); userId < userStorage.getNumRecords();
+         userId++) {
+      propertiesIndex.addUser(userId, null, userStorage.getUser(userId));
+    }
+    this.checkpointManifest = Manifest.open(directory + "/checkpoint.manifest");
+    replayEvents();
+    // the events added before their properties were declared as indexed
+    shardedEventIndex.backfillPostings(new Function<Long, Event>() {
+      @Override
+      public Event apply(Long eventId) {
+        return EventHub.this.eventStorage.getEvent(eventId);
+      }
+    });
+    this.numCommittedEvents = eventStorage.getNumRecords();
+    this.numCommittedUsers = userStorage.getNumRecords();
+    this.expiryExecutor = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("event-expiry-%d").build());
+    if (eventRetention.hasRetention()) {
+      expiryExecutor.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          String currentDate = EventHub.this.datedEventIndex.getCurrentDate();
+          try {
+            if (!currentDate.isEmpty()) {
+              expireEvents(currentDate);
+            }
+          } catch (RuntimeException e) {
+            numFailedExpiryRuns.incrementAndGet();
+            LOGGER.log(Level.SEVERE, "failed to expire the events as of " + currentDate, e);
+          }
+        }
+      }, EXPIRY_INTERVAL_HOURS, EXPIRY_INTERVAL_HOURS, TimeUnit.HOURS);
+    }
   }
 
   public int[][] getRetentionTable(String startDateString,
       String endDateString, int numDaysPerCohort, int numColumns, String rowEventType,
       String columnEventType, Filter rowEventFilter, Filter columnEventFilter) {
+    try (ScanContext ignored = ScanContext.begin()) {
+      return getRetentionTableInScan(startDateString, endDateString, numDaysPerCohort, numColumns,
+          rowEventType, columnEventType, rowEventFilter, columnEventFilter);
+    }
+  }
+
+  private int[][] getRetentionTableInScan(String startDateString,
+      String endDateString, int numDaysPerCohort, int numColumns, String rowEventType,
+      String columnEventType, Filter rowEventFilter, Filter columnEventFilter) {
     DateTime startDate = DATE_TIME_FORMATTER.parseDateTime(startDateString);
     DateTime endDate = DATE_TIME_FORMATTER.parseDateTime(endDateString);
     int numRows = (Days.daysBetween(startDate, endDate).getDays() + 1) / numDaysPerCohort;
+    long maxEventId = numCommittedEvents;
 
     List<Set<Integer>> rowIdSets = getUserIdsSets(rowEventType, startDate, rowEventFilter,
-        numDaysPerCohort, numRows);
+        numDaysPerCohort, numRows, maxEventId);
     List<Set<Integer>> columnIdSets = getUserIdsSets(columnEventType, startDate, columnEventFilter,
         numDaysPerCohort,
-        numColumns + numRows);
+        numColumns + numRows, maxEventId);
 
     Table<Integer, Integer, Integer> retentionTable = ArrayTable.create(
         ContiguousSet.create(Range.closedOpen(0, numRows), DiscreteDomain.integers()),
@@ -105,17 +218,30 @@ public class EventHub implements Closeable {
     return result;
   }
 
-  public synchronized int[] getFunnelCounts(String startDate, String endDate, String[] funnelStepsEventTypes,
+  public int[] getFunnelCounts(String startDate, String endDate, String[] funnelStepsEventTypes,
       int numDaysToCompleteFunnel, List<Filter> eventFilters, Filter userFilter) {
+    try (ScanContext ignored = ScanContext.begin()) {
+      return getFunnelCountsInScan(startDate, endDate, funnelStepsEventTypes,
+          numDaysToCompleteFunnel, eventFilters, userFilter);
+    }
+  }
+
+  private int[] getFunnelCountsInScan(String startDate, String endDate,
+      String[] funnelStepsEventTypes, int numDaysToCompleteFunnel, List<Filter> eventFilters,
+      Filter userFilter) {
+    long maxEventId = numCommittedEvents;
     IdList firstStepEventIdList = new MemIdList(new long[10000], 0);
     int[] funnelStepsEventTypeIds = getEventTypeIds(funnelStepsEventTypes);
 
     List<Integer> userIdsList = Lists.newArrayList();
     Set<Integer> userIdsSet = Sets.newHashSet();
-    EventIndex.Callback aggregateUserIdsCallback = new AggregateUserIds(eventStorage, userStorage,
-        firstStepEventIdList, eventFilters.get(0), userFilter, userIdsList, userIdsSet);
-    shardedEventIndex.enumerateEventIds(funnelStepsEventTypes[0], startDate, endDate,
-        aggregateUserIdsCallback);
+    UserQuery userQuery = new UserQuery(userFilter, propertiesIndex, userStorage);
+    EventQuery firstStepQuery = new EventQuery(funnelStepsEventTypes[0], eventFilters.get(0),
+        shardedEventIndex);
+    EventIndex.Callback aggregateUserIdsCallback = new AggregateUserIds(eventStorage,
+        firstStepEventIdList, firstStepQuery.getRemainingFilter(), userQuery, maxEventId,
+        userIdsList, userIdsSet);
+    firstStepQuery.enumerateEventIds(startDate, endDate, aggregateUserIdsCallback);
     int[] numFunnelStepsMatched = new int[funnelStepsEventTypes.length];
     IdList.Iterator firstStepEventIdIterator = firstStepEventIdList.iterator();
     if (funnelStepsEventTypes.length == 1) {
@@ -125,10 +251,11 @@ public class EventHub implements Closeable {
     } else {
       for (int userId : userIdsList) {
         long firstStepEventId = firstStepEventIdIterator.next();
-        long maxLastStepEventId = datedEventIndex.findFirstEventIdOnDate(firstStepEventId, numDaysToCompleteFunnel);
+        long maxLastStepEventId = Math.min(maxEventId,
+            datedEventIndex.findFirstEventIdOnDate(firstStepEventId, numDaysToCompleteFunnel));
         CountMatchedFunnelSteps countMatchedFunnelSteps = new CountMatchedFunnelSteps(
-            eventStorage, userStorage, funnelStepsEventTypeIds, 1 /* first step already matched*/,
-            maxLastStepEventId, eventFilters, userFilter);
+            eventStorage, eventRetention, funnelStepsEventTypeIds,
+            1 /* first step already matched*/, maxLastStepEventId, eventFilters, userQuery);
         userEventIndex.enumerateEventIds(userId, userEventIndex.getEventOffset(userId, firstStepEventId),
             Integer.MAX_VALUE, countMatchedFunnelSteps);
         for (int i = 0; i < countMatchedFunnelSteps.getNumMatchedSteps(); i++) {
@@ -139,20 +266,27 @@ public class EventHub implements Closeable {
     return numFunnelStepsMatched;
   }
 
-  public synchronized void aliasUser(String fromExternalUserId, String toExternalUserId) {
-    userStorage.ensureUser(toExternalUserId);
-    int id = userStorage.getId(toExternalUserId);
-    if (id == UserStorage.USER_NOT_FOUND) {
-      throw new IllegalArgumentException(String .format("User: %s does not exist!!!", toExternalUserId));
+  public void aliasUser(String fromExternalUserId, String toExternalUserId) {
+    synchronized (writeLock) {
+      ensureUser(toExternalUserId);
+      int id = userStorage.getId(toExternalUserId);
+      if (id == UserStorage.USER_NOT_FOUND) {
+        throw new IllegalArgumentException(String .format("User: %s does not exist!!!", toExternalUserId));
+      }
+      userStorage.alias(fromExternalUserId, id);
     }
-    userStorage.alias(fromExternalUserId, id);
   }
 
-  public synchronized int addOrUpdateUser(User user) {
-    userStorage.ensureUser(user.getExternalId());
-    int userId = userStorage.updateUser(user);
-    propertiesIndex.addUser(user);
-    return userId;
+  public int addOrUpdateUser(User user) {
+    synchronized (writeLock) {
+      int userId = ensureUser(user.getExternalId());
+      User oldUser = userStorage.getUser(userId);
+      // the postings first, so that an update interrupted by a crash is rolled back on startup
+      propertiesIndex.updateUser(userId, oldUser, user);
+      userStorage.updateUser(user);
+      propertiesIndex.commitUserUpdate();
+      return userId;
+    }
   }
 
   public User getUser(int userId) {
@@ -163,59 +297,181 @@ public class EventHub implements Closeable {
     return eventStorage.getEvent(eventId);
   }
 
-  public synchronized long addEvent(Event event) {
-    // ensure the given event type has an id associated
-    int eventTypeId = shardedEventIndex.ensureEventType(event.getEventType());
-    // ensure the given user has an id associated
-    int userId = userStorage.ensureUser(event.getExternalUserId());
-
-    long eventId = eventStorage.addEvent(event, userId, eventTypeId);
-    String date = event.getDate();
-    datedEventIndex.addEvent(eventId, date);
-    shardedEventIndex.addEvent(eventId, event.getEventType(), date);
-    userEventIndex.addEvent(userId, eventId);
-    propertiesIndex.addEvent(event);
-    return eventId;
+  public long addEvent(Event event) {
+    synchronized (writeLock) {
+      // ensure the given event type has an id associated
+      int eventTypeId = shardedEventIndex.ensureEventType(event.getEventType());
+      // ensure the given user has an id associated
+      int userId = ensureUser(event.getExternalUserId());
+
+      long eventId = eventStorage.addEvent(event, userId, eventTypeId);
+      indexEvent(eventId, userId, event);
+      numCommittedEvents = eventId + 1;
+      if (numCommittedEvents % NUM_EVENTS_PER_CHECKPOINT == 0) {
+        checkpointManifest.append(Longs.toByteArray(numCommittedEvents));
+      }
+      return eventId;
+    }
   }
 
   public List<String> getEventTypes() {
     return shardedEventIndex.getEventTypes();
   }
 
+  /**
+   * Expires the events of the types with a retention which were added more than their number of
+   * retention days before the given date, and deletes the events expired by the former run.
+   */
+  public void expireEvents(String date) {
+    DateTime dateTime = DATE_TIME_FORMATTER.parseDateTime(date);
+    List<String> expiringEventTypes = Lists.newArrayList();
+    synchronized (writeLock) {
+      // so that no expired event, which may be deleted, is ever replayed
+      checkpointManifest.append(Longs.toByteArray(numCommittedEvents));
+      for (String eventType : shardedEventIndex.getEventTypes()) {
+        Integer retentionDays = eventRetention.getRetentionDays(eventType);
+        if (retentionDays == null) {
+          continue;
+        }
+        String firstRetainedDate = DATE_TIME_FORMATTER.print(dateTime.minusDays(retentionDays));
+        long firstRetainedEventId = Math.min(numCommittedEvents,
+            datedEventIndex.findFirstEventId(firstRetainedDate));
+        shardedEventIndex.expireEvents(eventType, firstRetainedDate, Math.max(firstRetainedEventId,
+            eventRetention.getFirstRetainedEventId(shardedEventIndex.getEventTypeId(eventType))));
+        expiringEventTypes.add(eventType);
+      }
+    }
+    for (String eventType : expiringEventTypes) {
+      shardedEventIndex.deleteExpiredEvents(eventType, new EventIndex.ExpiredCallback() {
+        @Override
+        public void onExpiredEventIds(IdList.Iterator eventIds) {
+          eventStorage.deleteEvents(eventIds);
+        }
+      });
+    }
+  }
+
   public List<Event> getUserEvents(String externalUserId, int offset, int numRecords) {
-    List<Event> events = Lists.newArrayList();
-    int userId = userStorage.getId(externalUserId);
-    userEventIndex.enumerateEventIds(userId, offset, numRecords,
-        new CollectEvents(events, eventStorage));
+    final List<Event> events = Lists.newArrayList();
+    getUserEvents(externalUserId, offset, numRecords, new EventCallback() {
+      @Override
+      public void onEvent(Event event) {
+        events.add(event);
+      }
+    });
     return events;
   }
 
+  /**
+   * Hands the events of the given user to the callback as they are read, in the order they were
+   * added. The offset counts from the first event some type still retains, so that the offsets
+   * shift as events expire, e.g. between the pages of a paginated read.
+   */
+  public void getUserEvents(String externalUserId, int offset, int numRecords,
+      final EventCallback callback) {
+    final long maxEventId = numCommittedEvents;
+    int userId = userStorage.getId(externalUserId);
+    if (userId == UserStorage.USER_NOT_FOUND || userId >= numCommittedUsers) {
+      return;
+    }
+    if (eventRetention.hasRetention()) {
+      // the offset counts from the first event some type still retains
+      long minFirstRetainedEventId = eventRetention.getMinFirstRetainedEventId(
+          shardedEventIndex.getEventTypes().size());
+      if (minFirstRetainedEventId > 0) {
+        offset += userEventIndex.getEventOffset(userId, minFirstRetainedEventId);
+      }
+    }
+    userEventIndex.enumerateEventIds(userId, offset, numRecords, new UserEventIndex.Callback() {
+      @Override
+      public boolean shouldContinueOnEventId(long eventId) {
+        if (eventId >= maxEventId) {
+          return false;
+        }
+        if (eventRetention.hasRetention() &&
+            eventRetention.isExpired(eventId, eventStorage.getEventTypeId(eventId))) {
+          return true;
+        }
+        callback.onEvent(eventStorage.getEvent(eventId));
+        return true;
+      }
+    });
+  }
+
   @Override
   public void close() throws IOException {
     //noinspection ResultOfMethodCallIgnored
     new File(directory).mkdirs();
+    userScanExecutor.shutdown();
+    expiryExecutor.shutdown();
+    try {
+      // a run in progress may still be deleting events
+      expiryExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
     eventStorage.close();
     userStorage.close();
     shardedEventIndex.close();
     propertiesIndex.close();
     datedEventIndex.close();
     userEventIndex.close();
+    checkpointManifest.append(Longs.toByteArray(numCommittedEvents));
+    checkpointManifest.close();
   }
 
   public String getVarz() {
     return String.format(
         "current date: %s\n" +
+        "num committed events: %d\n" +
+        "num committed users: %d\n" +
+        "num failed expiry runs: %d\n" +
         "Event Storage:\n==============\n%s\n\n" +
         "User Storage:\n==============\n%s\n\n" +
         "Event Index:\n==============\n%s\n\n" +
         "User Event Index:\n==============\n%s",
         datedEventIndex.getCurrentDate(),
+        numCommittedEvents,
+        numCommittedUsers,
+        numFailedExpiryRuns.get(),
         eventStorage.getVarz(1),
         userStorage.getVarz(1),
         shardedEventIndex.getVarz(1),
         userEventIndex.getVarz(1));
   }
 
+  private void indexEvent(long eventId, int userId, Event event) {
+    datedEventIndex.addEvent(eventId, event.getDate());
+    shardedEventIndex.addEvent(eventId, event);
+    userEventIndex.addEvent(userId, eventId);
+    propertiesIndex.addEvent(event);
+  }
+
+  /**
+   * Indexes the events stored since the last checkpoint again, and compacts the checkpoints. With
+   * no checkpoint, i.e. a directory of a former version, the indexes are taken as up to date.
+   */
+  private void replayEvents() {
+    long numEvents = eventStorage.getNumRecords();
+    List<byte[]> checkpoints = checkpointManifest.getRecords();
+    long checkpoint = checkpoints.isEmpty() ?
+        numEvents : Longs.fromByteArray(checkpoints.get(checkpoints.size() - 1));
+    for (long eventId = Math.min(checkpoint, numEvents); eventId < numEvents; eventId++) {
+      indexEvent(eventId, eventStorage.getUserId(eventId), eventStorage.getEvent(eventId));
+    }
+    checkpointManifest.rewrite(ImmutableList.of(Longs.toByteArray(numEvents)));
+  }
+
+  private int ensureUser(String externalUserId) {
+    int userId = userStorage.getId(externalUserId);
+    if (userId == UserStorage.USER_NOT_FOUND) {
+      userId = userStorage.ensureUser(externalUserId);
+      propertiesIndex.addUser(userId, null, userStorage.getUser(userId));
+      numCommittedUsers = userId + 1;
+    }
+    return userId;
+  }
+
   private int[] getEventTypeIds(String[] eventTypes) {
     int[] eventTypeIds = new int[eventTypes.length];
     for (int i = 0; i < eventTypeIds.length; i++) {
@@ -225,17 +481,19 @@ public class EventHub implements Closeable {
   }
 
   private List<Set<Integer>> getUserIdsSets(String groupByEventType, DateTime startDate,
-      Filter eventFilter, int numDaysPerCohort, int numCohorts) {
+      Filter eventFilter, int numDaysPerCohort, int numCohorts, long maxEventId) {
     List<Set<Integer>> rows = Lists.newArrayListWithCapacity(numCohorts);
+    EventQuery eventQuery = new EventQuery(groupByEventType, eventFilter, shardedEventIndex);
     for (int i = 0; i < numCohorts; i++) {
       DateTime currentStartDate = startDate.plusDays(i * numDaysPerCohort);
       DateTime currentEndDate = startDate.plusDays((i + 1) * numDaysPerCohort);
       List<Integer> userIdsList = Lists.newArrayList();
       Set<Integer> userIdsSet = Sets.newHashSet();
-      EventIndex.Callback aggregateUserIdsCallback = new AggregateUserIds(eventStorage, userStorage,
-          new DummyIdList(), eventFilter, TrueFilter.INSTANCE, userIdsList, userIdsSet);
-      shardedEventIndex.enumerateEventIds(
-          groupByEventType,
+      EventIndex.Callback aggregateUserIdsCallback = new AggregateUserIds(eventStorage,
+          new DummyIdList(), eventQuery.getRemainingFilter(),
+          new UserQuery(TrueFilter.INSTANCE, propertiesIndex, userStorage), maxEventId,
+          userIdsList, userIdsSet);
+      eventQuery.enumerateEventIds(
           currentStartDate.toString(DATE_TIME_FORMATTER),
           currentEndDate.toString(DATE_TIME_FORMATTER),
           aggregateUserIdsCallback);
@@ -261,38 +519,136 @@ public class EventHub implements Closeable {
   }
 
   public List<User> findUsers(Filter filter) {
-    List<User> users = Lists.newArrayList();
-    for (int userId = 0; userId < userStorage.getNumRecords(); userId++) {
-      if (filter.accept(userStorage.getFilterVisitor(userId))) {
-        users.add(getUser(userId));
+    final List<User> users = Lists.newArrayList();
+    findUsers(filter, 0, Integer.MAX_VALUE, new UserCallback() {
+      @Override
+      public void onUser(User user) {
+        users.add(user);
       }
-    }
+    });
     return users;
   }
 
+  /**
+   * Hands the users from fromUserId on which match the filter to the callback, in user id order,
+   * up to limit of them. The users are scanned in chunks of numUsersPerScanChunk by the scan
+   * threads, a few chunks ahead of the callback. Returns the user id to resume from for the next
+   * page, or NO_MORE_USERS once all the users have been scanned.
+   */
+  public int findUsers(Filter filter, int fromUserId, int limit, UserCallback callback) {
+    UserQuery userQuery = new UserQuery(filter, propertiesIndex, userStorage);
+    int numUsers = numCommittedUsers;
+    int nextChunkStart = fromUserId;
+    int numMatches = 0;
+    Deque<Future<MatchingUsers>> pendingChunks = new ArrayDeque<>();
+    try {
+      while (true) {
+        while (pendingChunks.size() < 2 * numUserScanThreads && nextChunkStart < numUsers) {
+          int chunkEnd = (int) Math.min((long) nextChunkStart + numUsersPerScanChunk, numUsers);
+          pendingChunks.add(userScanExecutor.submit(
+              new ScanUsers(userStorage, userQuery, nextChunkStart, chunkEnd)));
+          nextChunkStart = chunkEnd;
+        }
+        Future<MatchingUsers> pendingChunk = pendingChunks.poll();
+        if (pendingChunk == null) {
+          return NO_MORE_USERS;
+        }
+        MatchingUsers matchingUsers = Futures.getUnchecked(pendingChunk);
+        for (int i = 0; i < matchingUsers.users.size(); i++) {
+          if (numMatches == limit) {
+            return matchingUsers.userIds.get(i);
+          }
+          callback.onUser(matchingUsers.users.get(i));
+          numMatches++;
+        }
+        if (numMatches == limit) {
+          return matchingUsers.toUserId < numUsers ? matchingUsers.toUserId : NO_MORE_USERS;
+        }
+      }
+    } finally {
+      // without interrupting, as an interrupt closes the file channels being read
+      for (Future<MatchingUsers> pendingChunk : pendingChunks) {
+        pendingChunk.cancel(false);
+      }
+    }
+  }
+
+  public interface UserCallback {
+    void onUser(User user);
+  }
+
+  public interface EventCallback {
+    void onEvent(Event event);
+  }
+
+  private static class MatchingUsers {
+    private final int toUserId;
+    private final List<Integer> userIds;
+    private final List<User> users;
+
+    public MatchingUsers(int toUserId) {
+      this.toUserId = toUserId;
+      this.userIds = Lists.newArrayList();
+      this.users = Lists.newArrayList();
+    }
+  }
+
+  private static class ScanUsers implements Callable<MatchingUsers> {
+    private final UserStorage userStorage;
+    private final UserQuery userQuery;
+    private final int fromUserId;
+    private final int toUserId;
+
+    public ScanUsers(UserStorage userStorage, UserQuery userQuery, int fromUserId, int toUserId) {
+      this.userStorage = userStorage;
+      this.userQuery = userQuery;
+      this.fromUserId = fromUserId;
+      this.toUserId = toUserId;
+    }
+
+    @Override
+    public MatchingUsers call() {
+      MatchingUsers matchingUsers = new MatchingUsers(toUserId);
+      try (ScanContext ignored = ScanContext.begin()) {
+        BitSet candidates = userQuery.getCandidates(fromUserId, toUserId);
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+          int userId = fromUserId + i;
+          if (userQuery.acceptCandidate(userId)) {
+            matchingUsers.userIds.add(userId);
+            matchingUsers.users.add(userStorage.getUser(userId));
+          }
+        }
+      }
+      return matchingUsers;
+    }
+  }
+
   private static class AggregateUserIds implements EventIndex.Callback {
     private final EventStorage eventStorage;
-    private final UserStorage userStorage;
     private final IdList earliestEventIdList;
     private final Filter eventFilter;
-    private final Filter userFilter;
+    private final UserQuery userQuery;
+    private final long maxEventId;
     private final List<Integer> seenUserIdList;
     private final Set<Integer> seenUserIdSet;
 
-    public AggregateUserIds(EventStorage eventStorage, UserStorage userStorage,
-        IdList earliestEventIdList, Filter eventFilter, Filter userFilter,
-        List<Integer> seenUserIdList, Set<Integer> seenUserIdSet) {
+    public AggregateUserIds(EventStorage eventStorage, IdList earliestEventIdList,
+        Filter eventFilter, UserQuery userQuery, long maxEventId, List<Integer> seenUserIdList,
+        Set<Integer> seenUserIdSet) {
       this.eventStorage = eventStorage;
-      this.userStorage = userStorage;
       this.earliestEventIdList = earliestEventIdList;
       this.eventFilter = eventFilter;
-      this.userFilter = userFilter;
+      this.userQuery = userQuery;
+      this.maxEventId = maxEventId;
       this.seenUserIdList = seenUserIdList;
       this.seenUserIdSet = seenUserIdSet;
     }
 
     @Override
     public void onEventId(long eventId) {
+      if (eventId >= maxEventId) {
+        return;
+      }
       if (seenUserIdSet.contains(eventStorage.getUserId(eventId))) {
         return;
       }
@@ -301,7 +657,7 @@ public class EventHub implements Closeable {
         return;
       }
       int userId = eventStorage.getUserId(eventId);
-      if (!userFilter.accept(userStorage.getFilterVisitor(userId))) {
+      if (!userQuery.accept(userId)) {
         return;
       }
       // TODO: consider other higher performing Set implementation
@@ -315,23 +671,23 @@ public class EventHub implements Closeable {
 
   private static class CountMatchedFunnelSteps implements UserEventIndex.Callback {
     private final EventStorage eventStorage;
-    private final UserStorage userStorage;
+    private final EventRetention eventRetention;
     private final int[] funnelStepsEventTypeIds;
     private int numMatchedSteps;
     private final List<Filter> eventFilters;
-    private final Filter userFilter;
+    private final UserQuery userQuery;
     private final long maxEventId;
 
-    public CountMatchedFunnelSteps(EventStorage eventStorage, UserStorage userStorage,
-        int[] funnelStepsEventTypeIds, int numMatchedSteps, long maxEventId, List<Filter> eventFilters,
-        Filter userFilter) {
+    public CountMatchedFunnelSteps(EventStorage eventStorage, EventRetention eventRetention,
+        int[] funnelStepsEventTypeIds, int numMatchedSteps, long maxEventId,
+        List<Filter> eventFilters, UserQuery userQuery) {
       this.eventStorage = eventStorage;
-      this.userStorage = userStorage;
+      this.eventRetention = eventRetention;
       this.funnelStepsEventTypeIds = funnelStepsEventTypeIds;
       this.numMatchedSteps = numMatchedSteps;
       this.maxEventId = maxEventId;
       this.eventFilters = eventFilters;
-      this.userFilter = userFilter;
+      this.userQuery = userQuery;
     }
 
     @Override
@@ -343,13 +699,16 @@ public class EventHub implements Closeable {
       if (eventTypeId != funnelStepsEventTypeIds[numMatchedSteps]) {
         return true;
       }
+      if (eventRetention.isExpired(eventId, eventTypeId)) {
+        return true;
+      }
 
       if (!eventFilters.get(numMatchedSteps).accept(eventStorage.getFilterVisitor(eventId))) {
         return true;
       }
       // TODO: user ctriteria filter should be at higher level
       int userId = eventStorage.getUserId(eventId);
-      if (!userFilter.accept(userStorage.getFilterVisitor(userId))) {
+      if (!userQuery.accept(userId)) {
         return true;
       }
       numMatchedSteps++;
@@ -360,25 +719,4 @@ public class EventHub implements Closeable {
       return numMatchedSteps;
     }
   }
-
-  private static class CollectEvents implements UserEventIndex.Callback, EventIndex.Callback {
-    private final List<Event> events;
-    private final EventStorage eventStorage;
-
-    private CollectEvents(List<Event> events, EventStorage eventStorage) {
-      this.events = events;
-      this.eventStorage = eventStorage;
-    }
-
-    @Override
-    public boolean shouldContinueOnEventId(long eventId) {
-      events.add(eventStorage.getEvent(eventId));
-      return true;
-    }
-
-    @Override
-    public void onEventId(long eventId) {
-      events.add(eventStorage.getEvent(eventId));
-    }
-  }
 }
@@ -35,8 +35,10 @@ public class EventHubModule extends AbstractModule {
       PropertiesIndex propertiesIndex,
       UserEventIndex userEventIndex,
       BloomFilteredEventStorage eventStorage,
-      BloomFilteredUserStorage userStorage) {
+      BloomFilteredUserStorage userStorage,
+      @Named("eventhub.findusers.numThreads") int numUserScanThreads,
+      @Named("eventhub.findusers.numUsersPerChunk") int numUsersPerScanChunk) {
     return new EventHub(directory, shardedEventIndex, datedEventIndex, propertiesIndex,
-        userEventIndex, eventStorage, userStorage);
+        userEventIndex, eventStorage, userStorage, numUserScanThreads, numUsersPerScanChunk);
   }
 }
@@ -0,0 +1,47 @@
+package com.codecademy.eventhub.base;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * Serializes the bitmap of a chunk of CHUNK_SIZE consecutive ids, as the sorted list of its ids,
+ * two bytes each, while it holds fewer than MAX_SPARSE_CARDINALITY of them, and as the plain
+ * bitmap otherwise, like the containers of a roaring bitmap. Either way, an encoded chunk is at
+ * most 8KB.
+ */
+public class BitmapCodec {
+  public static final int CHUNK_SIZE = 1 << 16;
+  private static final int MAX_SPARSE_CARDINALITY = CHUNK_SIZE / 16;
+  private static final byte SPARSE = 0;
+  private static final byte DENSE = 1;
+
+  private BitmapCodec() {}
+
+  public static byte[] encode(BitSet bitmap) {
+    int cardinality = bitmap.cardinality();
+    if (cardinality < MAX_SPARSE_CARDINALITY) {
+      ByteBuffer buffer = ByteBuffer.allocate(1 + 2 * cardinality).put(SPARSE);
+      for (int i = bitmap.nextSetBit(0); i >= 0; i = bitmap.nextSetBit(i + 1)) {
+        buffer.putShort((short) i);
+      }
+      return buffer.array();
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(1 + CHUNK_SIZE / 8).put(DENSE);
+    for (long word : bitmap.toLongArray()) {
+      buffer.putLong(word);
+    }
+    return buffer.array();
+  }
+
+  public static BitSet decode(byte[] bytes) {
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    if (buffer.get() == SPARSE) {
+      BitSet bitmap = new BitSet(CHUNK_SIZE);
+      while (buffer.hasRemaining()) {
+        bitmap.set(buffer.getShort() & 0xffff);
+      }
+      return bitmap;
+    }
+    return BitSet.valueOf(buffer.asLongBuffer());
+  }
+}
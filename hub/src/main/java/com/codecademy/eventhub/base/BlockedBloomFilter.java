@@ -0,0 +1,94 @@
+package com.codecademy.eventhub.base;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A blocked bloom filter: every (key, value) sets its numHashes bits within a single block of at
+ * most 64 bytes, i.e. a cache line, picked by the high bits of one 64-bit hash, while the probes
+ * within the block are derived from its low bits by double hashing. The step between the probes
+ * is forced odd, i.e. coprime with the power of two block size, so that numHashes probes hit
+ * numHashes distinct bits whatever the hash.
+ *
+ * The filters are plain byte arrays, so that lookups can be evaluated directly on the mapped
+ * buffers of a DmaList without allocating anything.
+ */
+public class BlockedBloomFilter {
+  private static final int MAX_BLOCK_SIZE_IN_BITS = 512;
+
+  private final int numHashes;
+  private final int sizeInBytes;
+  private final int blockSizeInBits;
+  private final int numBlocks;
+
+  public BlockedBloomFilter(int numHashes, int sizeInBytes) {
+    if (Integer.bitCount(sizeInBytes) != 1) {
+      throw new IllegalArgumentException("bloom filter size must be a power of two: " + sizeInBytes);
+    }
+    this.numHashes = numHashes;
+    this.sizeInBytes = sizeInBytes;
+    this.blockSizeInBits = Math.min(MAX_BLOCK_SIZE_IN_BITS, sizeInBytes * 8);
+    this.numBlocks = sizeInBytes * 8 / blockSizeInBits;
+  }
+
+  public int getSizeInBytes() {
+    return sizeInBytes;
+  }
+
+  public void add(byte[] filter, long hash) {
+    int blockOffset = getBlockOffset(hash);
+    int hash1 = (int) hash;
+    int hash2 = (int) (hash >>> 32) | 1;
+    for (int i = 0; i < numHashes; i++) {
+      int bit = blockOffset + ((hash1 + i * hash2) & (blockSizeInBits - 1));
+      filter[bit >>> 3] |= 1 << (bit & 7);
+    }
+  }
+
+  public boolean isPresent(ByteBuffer buffer, int offset, long hash) {
+    int blockOffset = getBlockOffset(hash);
+    int hash1 = (int) hash;
+    int hash2 = (int) (hash >>> 32) | 1;
+    for (int i = 0; i < numHashes; i++) {
+      int bit = blockOffset + ((hash1 + i * hash2) & (blockSizeInBits - 1));
+      if ((buffer.get(offset + (bit >>> 3)) & (1 << (bit & 7))) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public Schema getSchema() {
+    return new Schema(sizeInBytes);
+  }
+
+  private int getBlockOffset(long hash) {
+    return ((int) (hash >>> 48) & (numBlocks - 1)) * blockSizeInBits;
+  }
+
+  public static long hash(String key, String value) {
+    return HashUtil.hash(key, value);
+  }
+
+  public static class Schema implements com.codecademy.eventhub.base.Schema<byte[]> {
+    private final int sizeInBytes;
+
+    public Schema(int sizeInBytes) {
+      this.sizeInBytes = sizeInBytes;
+    }
+
+    @Override
+    public int getObjectSize() {
+      return sizeInBytes;
+    }
+
+    @Override
+    public byte[] toBytes(byte[] filter) {
+      return filter;
+    }
+
+    @Override
+    public byte[] fromBytes(byte[] bytes) {
+      return bytes;
+    }
+  }
+}
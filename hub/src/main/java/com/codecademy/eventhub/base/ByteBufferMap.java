@@ -6,7 +6,7 @@ import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.TreeMap;
 
-public class ByteBufferMap {
+public class ByteBufferMap implements KeyValueMap {
   private static final int META_DATA_SIZE_IN_BYTES = 4; /* bytes */
   private static final int RECORD_SIZE_IN_BYTES = Integer.SIZE / 8; /* bytes */
   private final ByteBuffer byteBuffer;
@@ -15,6 +15,7 @@ public class ByteBufferMap {
     this.byteBuffer = byteBuffer;
   }
 
+  @Override
   public String get(String key) {
     ByteBuffer currentBuffer = byteBuffer.duplicate();
     currentBuffer.position(0);
@@ -22,6 +23,7 @@ public class ByteBufferMap {
     return get(key, 0, numProperties, numProperties);
   }
 
+  @Override
   public void enumerate(KeyValueCallback callback) {
     ByteBuffer currentBuffer = byteBuffer.duplicate();
     currentBuffer.position(0);
@@ -36,6 +38,7 @@ public class ByteBufferMap {
     }
   }
 
+  @Override
   public ByteBuffer toByteBuffer() {
     ByteBuffer buffer = byteBuffer.duplicate();
     buffer.position(0);
@@ -75,7 +78,7 @@ public class ByteBufferMap {
     }
   }
 
-  private int calculateByteOffset(int recordOffset) {
+  private static int calculateByteOffset(int recordOffset) {
     return META_DATA_SIZE_IN_BYTES + recordOffset * RECORD_SIZE_IN_BYTES;
   }
 
@@ -107,6 +110,33 @@ public class ByteBufferMap {
     return new String(keyBytes);
   }
 
+  /**
+   * Checks that the pointers of a map which comes from the outside, e.g. over the network, stay
+   * within the buffer and are in order, so that reading it can't go astray. The keys are expected
+   * to be sorted, as build lays them out, for get to find them.
+   */
+  public static boolean isWellFormed(ByteBuffer byteBuffer) {
+    int size = byteBuffer.remaining();
+    if (size < META_DATA_SIZE_IN_BYTES) {
+      return false;
+    }
+    int start = byteBuffer.position();
+    int numProperties = byteBuffer.getInt(start);
+    long pointersEnd = META_DATA_SIZE_IN_BYTES + 2L * numProperties * RECORD_SIZE_IN_BYTES;
+    if (numProperties < 0 || pointersEnd > size) {
+      return false;
+    }
+    int previousOffset = (int) pointersEnd;
+    for (int i = 0; i < 2 * numProperties; i++) {
+      int offset = byteBuffer.getInt(start + calculateByteOffset(i));
+      if (offset < previousOffset || offset > size) {
+        return false;
+      }
+      previousOffset = offset;
+    }
+    return true;
+  }
+
   public static ByteBufferMap build(Map<String, String> fromMap) {
     TreeMap<String, String> sortedProperties = Maps.newTreeMap();
     sortedProperties.putAll(fromMap);
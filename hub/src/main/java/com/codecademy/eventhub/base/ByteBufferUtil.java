@@ -21,9 +21,11 @@ public class ByteBufferUtil {
     int oldPosition = buffer.position();
     try (RandomAccessFile raf = new RandomAccessFile(filename, "rw")) {
       raf.setLength(newSize);
-      buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
-      buffer.position(oldPosition);
-      return buffer;
+      MappedByteBuffer newBuffer = raf.getChannel().map(
+          FileChannel.MapMode.READ_WRITE, 0, raf.length());
+      newBuffer.order(buffer.order());
+      newBuffer.position(oldPosition);
+      return newBuffer;
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
@@ -44,4 +46,32 @@ public class ByteBufferUtil {
       return binarySearchOffset(buffer, startOffset, offset, id, recordSize);
     }
   }
+
+  public static void putVarInt(ByteBuffer buffer, int value) {
+    while ((value & ~0x7F) != 0) {
+      buffer.put((byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    buffer.put((byte) value);
+  }
+
+  public static int getVarInt(ByteBuffer buffer) {
+    int value = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte b = buffer.get();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+  }
+
+  public static int getVarIntSize(int value) {
+    int size = 1;
+    while ((value & ~0x7F) != 0) {
+      value >>>= 7;
+      size++;
+    }
+    return size;
+  }
 }
@@ -0,0 +1,77 @@
+package com.codecademy.eventhub.base;
+
+import com.google.common.primitives.Ints;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The header of the mapped files whose numbers are laid out in the byte order it records, e.g.
+ * the native order, which spares a byte swap on every get on x86. It takes SIZE bytes, laid out
+ * as (int MAGIC, int version << 8 | order), always big-endian.
+ *
+ * MAGIC is negative, which tells a file with a header from a file of a former version, starting
+ * with a count instead, whose numbers are big-endian.
+ */
+public class ByteOrderHeader {
+  public static final int SIZE = 8;
+  private static final int VERSION = 1;
+  private static final int MAGIC = 0xEB0DE4D1;
+  private static final int BIG_ENDIAN = 0;
+  private static final int LITTLE_ENDIAN = 1;
+
+  public static boolean isPresent(ByteBuffer buffer, int position) {
+    return getInt(buffer, position) == MAGIC;
+  }
+
+  /**
+   * The byte order of the file with the given header, or BIG_ENDIAN if it has none.
+   */
+  public static ByteOrder read(ByteBuffer buffer, int position) {
+    if (!isPresent(buffer, position)) {
+      return ByteOrder.BIG_ENDIAN;
+    }
+    int versionAndOrder = getInt(buffer, position + 4);
+    if (versionAndOrder >>> 8 > VERSION) {
+      throw new IllegalStateException(String.format(
+          "unsupported version %d of the byte order header", versionAndOrder >>> 8));
+    }
+    return (versionAndOrder & 0xFF) == LITTLE_ENDIAN ?
+        ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+  }
+
+  public static void write(ByteBuffer buffer, int position, ByteOrder byteOrder) {
+    int order = byteOrder == ByteOrder.LITTLE_ENDIAN ? LITTLE_ENDIAN : BIG_ENDIAN;
+    putInt(buffer, position, MAGIC);
+    putInt(buffer, position + 4, VERSION << 8 | order);
+  }
+
+  /**
+   * Parses "native", "big_endian" or "little_endian".
+   */
+  public static ByteOrder parse(String byteOrder) {
+    switch (byteOrder.trim().toLowerCase()) {
+      case "native":
+        return ByteOrder.nativeOrder();
+      case "big_endian":
+        return ByteOrder.BIG_ENDIAN;
+      case "little_endian":
+        return ByteOrder.LITTLE_ENDIAN;
+      default:
+        throw new IllegalArgumentException(
+            "expecting native, big_endian or little_endian but got " + byteOrder);
+    }
+  }
+
+  private static int getInt(ByteBuffer buffer, int position) {
+    return Ints.fromBytes(buffer.get(position), buffer.get(position + 1),
+        buffer.get(position + 2), buffer.get(position + 3));
+  }
+
+  private static void putInt(ByteBuffer buffer, int position, int value) {
+    byte[] bytes = Ints.toByteArray(value);
+    for (int i = 0; i < bytes.length; i++) {
+      buffer.put(position + i, bytes[i]);
+    }
+  }
+}
@@ -1,15 +1,23 @@
 package com.codecademy.eventhub.base;
 
 import com.google.common.collect.Lists;
+import com.google.common.primitives.Bytes;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
 import org.iq80.leveldb.DBIterator;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.Map;
 
 import static org.fusesource.leveldbjni.JniDBFactory.asString;
 import static org.fusesource.leveldbjni.JniDBFactory.bytes;
 
 public class DB {
+  public static final String FORMAT_VERSION_KEY = "__eventtracker__format_version";
+  private static final int NUM_DELETES_PER_BATCH = 1000;
+
   private final org.iq80.leveldb.DB db;
 
   public DB(org.iq80.leveldb.DB db) {
@@ -32,12 +40,117 @@ public class DB {
     }
   }
 
+  /**
+   * The keys starting with the given prefix, followed by a big-endian long, in ascending order as
+   * long as the longs are non negative since LevelDB compares keys bytewise.
+   */
+  public List<Long> findLongsByPrefix(String prefix) {
+    byte[] prefixBytes = bytes(prefix);
+    try (DBIterator iterator = db.iterator()) {
+      List<Long> values = Lists.newArrayList();
+      for (iterator.seek(prefixBytes); iterator.hasNext(); iterator.next()) {
+        byte[] key = iterator.peekNext().getKey();
+        if (!startsWith(key, prefixBytes)) {
+          break;
+        }
+        values.add(ByteBuffer.wrap(key, prefixBytes.length, Longs.BYTES).getLong());
+      }
+      return values;
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Deletes the keys starting with the given prefix, followed by a big-endian long below the given
+   * one, in batches. Returns the number of keys deleted.
+   */
+  public long deleteLongKeysByPrefix(String prefix, long maxSuffix) {
+    byte[] prefixBytes = bytes(prefix);
+    try (DBIterator iterator = db.iterator()) {
+      long numDeletes = 0;
+      org.iq80.leveldb.WriteBatch writeBatch = db.createWriteBatch();
+      for (iterator.seek(prefixBytes); iterator.hasNext(); iterator.next()) {
+        byte[] key = iterator.peekNext().getKey();
+        if (!startsWith(key, prefixBytes)) {
+          break;
+        }
+        if (ByteBuffer.wrap(key, key.length - Longs.BYTES, Longs.BYTES).getLong() < maxSuffix) {
+          writeBatch.delete(key);
+          if (++numDeletes % NUM_DELETES_PER_BATCH == 0) {
+            db.write(writeBatch);
+            writeBatch.close();
+            writeBatch = db.createWriteBatch();
+          }
+        }
+      }
+      db.write(writeBatch);
+      writeBatch.close();
+      return numDeletes;
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public void enumerateInts(IntValueCallback callback) {
+    try (DBIterator iterator = db.iterator()) {
+      for (iterator.seekToFirst(); iterator.hasNext(); iterator.next()) {
+        Map.Entry<byte[], byte[]> entry = iterator.peekNext();
+        callback.callback(asString(entry.getKey()), Ints.fromByteArray(entry.getValue()));
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
   public void put(String key, String value) {
     db.put(bytes(key), bytes(value));
   }
 
-  public void put(String key, int value) {
-    db.put(bytes(key), bytes(String.valueOf(value)));
+  public void putInt(String key, int value) {
+    db.put(bytes(key), Ints.toByteArray(value));
+  }
+
+  public void putLongKey(String prefix, long suffix, String value) {
+    db.put(Bytes.concat(bytes(prefix), Longs.toByteArray(suffix)), bytes(value));
+  }
+
+  public byte[] getIntKey(String prefix, int suffix) {
+    return db.get(Bytes.concat(bytes(prefix), Ints.toByteArray(suffix)));
+  }
+
+  public byte[] getBytes(String key) {
+    return db.get(bytes(key));
+  }
+
+  public Integer getInt(String key) {
+    byte[] bytes = db.get(bytes(key));
+    //noinspection ReturnOfNull
+    return (bytes == null ? null : Ints.fromByteArray(bytes));
+  }
+
+  public boolean isEmpty() {
+    try (DBIterator iterator = db.iterator()) {
+      iterator.seekToFirst();
+      return !iterator.hasNext();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Tags an empty db with the given format version, or makes sure the db is already at that
+   * version, so that a db written in an older format isn't misread.
+   */
+  public void ensureFormatVersion(int formatVersion, String migrationJob) {
+    Integer currentFormatVersion = getInt(FORMAT_VERSION_KEY);
+    if (currentFormatVersion == null && isEmpty()) {
+      putInt(FORMAT_VERSION_KEY, formatVersion);
+    } else if (currentFormatVersion == null || currentFormatVersion != formatVersion) {
+      throw new IllegalStateException(String.format(
+          "db is at format version %d instead of %d, it needs to be migrated with %s",
+          currentFormatVersion == null ? 0 : currentFormatVersion, formatVersion, migrationJob));
+    }
   }
 
   public String get(String key) {
@@ -57,6 +170,22 @@ public class DB {
     db.write(origWriteBatch);
   }
 
+  private static boolean startsWith(byte[] bytes, byte[] prefix) {
+    if (bytes.length < prefix.length) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length; i++) {
+      if (bytes[i] != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public interface IntValueCallback {
+    public void callback(String key, int value);
+  }
+
   public interface AtomicWrite {
     public void write(WriteBatch writeBatch);
   }
@@ -71,5 +200,21 @@ public class DB {
     public void put(String key, byte[] value) {
       writeBatch.put(bytes(key), value);
     }
+
+    public void delete(String key) {
+      writeBatch.delete(bytes(key));
+    }
+
+    public void putIntKey(String prefix, int suffix, byte[] value) {
+      writeBatch.put(Bytes.concat(bytes(prefix), Ints.toByteArray(suffix)), value);
+    }
+
+    public void putLongKey(String prefix, long suffix, byte[] value) {
+      writeBatch.put(Bytes.concat(bytes(prefix), Longs.toByteArray(suffix)), value);
+    }
+
+    public void deleteIntKey(String prefix, int suffix) {
+      writeBatch.delete(Bytes.concat(bytes(prefix), Ints.toByteArray(suffix)));
+    }
   }
 }
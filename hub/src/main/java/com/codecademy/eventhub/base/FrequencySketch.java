@@ -0,0 +1,105 @@
+package com.codecademy.eventhub.base;
+
+/**
+ * TinyLFU's approximate access frequency: a count-min sketch of four 4-bit counters per key,
+ * sixteen of them packed in a long, fronted by a doorkeeper bloom filter which absorbs the
+ * first access of every key so that one-hit wonders don't take any counter. Every
+ * 10 * expectedNumKeys increments, the counters are halved and the doorkeeper cleared, so that
+ * the frequencies follow a changing workload.
+ */
+public class FrequencySketch {
+  private static final long[] SEEDS = new long[] {
+      0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+  private static final long RESET_MASK = 0x7777777777777777L;
+
+  private final long[] table;
+  private final int tableMask;
+  private final long[] doorkeeper;
+  private final int doorkeeperMask;
+  private final int sampleSize;
+  private int size;
+
+  public FrequencySketch(int expectedNumKeys) {
+    int tableSize = ceilingPowerOfTwo(Math.max(16, expectedNumKeys / 4));
+    this.table = new long[tableSize];
+    this.tableMask = tableSize - 1;
+    // 8 bits per key
+    int doorkeeperSize = ceilingPowerOfTwo(Math.max(16, expectedNumKeys / 8));
+    this.doorkeeper = new long[doorkeeperSize];
+    this.doorkeeperMask = (doorkeeperSize << 6) - 1;
+    this.sampleSize = 10 * Math.max(16, expectedNumKeys);
+  }
+
+  public int frequency(long hash) {
+    int frequency = Integer.MAX_VALUE;
+    for (int i = 0; i < SEEDS.length; i++) {
+      frequency = Math.min(frequency, getCounter(rehash(hash, i)));
+    }
+    return frequency + (isInDoorkeeper(hash) ? 1 : 0);
+  }
+
+  public void increment(long hash) {
+    if (!isInDoorkeeper(hash)) {
+      putInDoorkeeper(hash);
+      return;
+    }
+    // conservative update, only the smallest counters are incremented
+    int frequency = Integer.MAX_VALUE;
+    for (int i = 0; i < SEEDS.length; i++) {
+      frequency = Math.min(frequency, getCounter(rehash(hash, i)));
+    }
+    if (frequency == 15) {
+      return;
+    }
+    for (int i = 0; i < SEEDS.length; i++) {
+      long h = rehash(hash, i);
+      if (getCounter(h) == frequency) {
+        table[(int) h & tableMask] += 1L << getCounterOffset(h);
+      }
+    }
+    if (++size == sampleSize) {
+      reset();
+    }
+  }
+
+  private void reset() {
+    for (int i = 0; i < table.length; i++) {
+      table[i] = (table[i] >>> 1) & RESET_MASK;
+    }
+    for (int i = 0; i < doorkeeper.length; i++) {
+      doorkeeper[i] = 0;
+    }
+    size /= 2;
+  }
+
+  private int getCounter(long h) {
+    return (int) ((table[(int) h & tableMask] >>> getCounterOffset(h)) & 0xfL);
+  }
+
+  private static int getCounterOffset(long h) {
+    return (int) (h >>> 60) << 2;
+  }
+
+  private boolean isInDoorkeeper(long hash) {
+    int bit1 = (int) hash & doorkeeperMask;
+    int bit2 = (int) (hash >>> 32) & doorkeeperMask;
+    return (doorkeeper[bit1 >>> 6] & (1L << bit1)) != 0
+        && (doorkeeper[bit2 >>> 6] & (1L << bit2)) != 0;
+  }
+
+  private void putInDoorkeeper(long hash) {
+    int bit1 = (int) hash & doorkeeperMask;
+    int bit2 = (int) (hash >>> 32) & doorkeeperMask;
+    doorkeeper[bit1 >>> 6] |= 1L << bit1;
+    doorkeeper[bit2 >>> 6] |= 1L << bit2;
+  }
+
+  private static int ceilingPowerOfTwo(int x) {
+    return Integer.highestOneBit(x - 1) << 1;
+  }
+
+  private static long rehash(long hash, int i) {
+    long h = (hash + SEEDS[i]) * SEEDS[i];
+    return h ^ (h >>> 29);
+  }
+}
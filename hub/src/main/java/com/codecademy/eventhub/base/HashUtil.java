@@ -0,0 +1,47 @@
+package com.codecademy.eventhub.base;
+
+/**
+ * 64-bit hashes of strings which don't allocate: FNV-1a over the chars, followed by the murmur3
+ * finalizer so that all the bits of the hash are usable.
+ */
+public class HashUtil {
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  public static long hash(String s) {
+    return hash(s, FNV_OFFSET_BASIS);
+  }
+
+  /**
+   * Different seeds give different hashes, e.g. to tell apart the strings the first hash
+   * doesn't.
+   */
+  public static long hash(String s, long seed) {
+    return mix(update(seed, s));
+  }
+
+  /**
+   * The hash of a (key, value) pair, the length of the key tells ("ab", "c") from ("a", "bc").
+   */
+  public static long hash(String key, String value) {
+    long hash = update(FNV_OFFSET_BASIS, key);
+    hash = (hash ^ key.length()) * FNV_PRIME;
+    return mix(update(hash, value));
+  }
+
+  public static long mix(long hash) {
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  private static long update(long hash, String s) {
+    for (int i = 0; i < s.length(); i++) {
+      hash = (hash ^ s.charAt(i)) * FNV_PRIME;
+    }
+    return hash;
+  }
+}
@@ -0,0 +1,115 @@
+package com.codecademy.eventhub.base;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A compact alternative to ByteBufferMap which replaces the keys with ids from a KeyDictionary.
+ * Layout: FORMAT_VERSION (1 byte), numProperties (varint), then for each property, in ascending
+ * key id order, keyId (varint), valueLength (varint) and the utf-8 value.
+ *
+ * The leading byte of a ByteBufferMap is the most significant byte of its numProperties, which is
+ * always 0, hence isInterned() tells the two layouts apart.
+ */
+public class InternedByteBufferMap implements KeyValueMap {
+  private static final byte FORMAT_VERSION = 1;
+
+  private final KeyDictionary keyDictionary;
+  private final ByteBuffer byteBuffer;
+
+  public InternedByteBufferMap(KeyDictionary keyDictionary, ByteBuffer byteBuffer) {
+    this.keyDictionary = keyDictionary;
+    this.byteBuffer = byteBuffer;
+  }
+
+  @Override
+  public String get(String key) {
+    int targetKeyId = keyDictionary.getId(key);
+    if (targetKeyId == KeyDictionary.KEY_NOT_FOUND) {
+      //noinspection ReturnOfNull
+      return null;
+    }
+    ByteBuffer currentBuffer = byteBuffer.duplicate();
+    currentBuffer.position(1);
+    int numProperties = ByteBufferUtil.getVarInt(currentBuffer);
+    for (int i = 0; i < numProperties; i++) {
+      int keyId = ByteBufferUtil.getVarInt(currentBuffer);
+      int valueLength = ByteBufferUtil.getVarInt(currentBuffer);
+      if (keyId == targetKeyId) {
+        return getString(currentBuffer, valueLength);
+      } else if (keyId > targetKeyId) {
+        break;
+      }
+      currentBuffer.position(currentBuffer.position() + valueLength);
+    }
+    //noinspection ReturnOfNull
+    return null;
+  }
+
+  @Override
+  public void enumerate(KeyValueCallback callback) {
+    ByteBuffer currentBuffer = byteBuffer.duplicate();
+    currentBuffer.position(1);
+    int numProperties = ByteBufferUtil.getVarInt(currentBuffer);
+    for (int i = 0; i < numProperties; i++) {
+      String key = keyDictionary.getKey(ByteBufferUtil.getVarInt(currentBuffer));
+      int valueLength = ByteBufferUtil.getVarInt(currentBuffer);
+      callback.callback(key, getString(currentBuffer, valueLength));
+    }
+  }
+
+  public KeyDictionary getKeyDictionary() {
+    return keyDictionary;
+  }
+
+  @Override
+  public ByteBuffer toByteBuffer() {
+    ByteBuffer buffer = byteBuffer.duplicate();
+    buffer.position(0);
+    return buffer;
+  }
+
+  private static String getString(ByteBuffer buffer, int length) {
+    if (buffer.hasArray()) {
+      String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+          Charsets.UTF_8);
+      buffer.position(buffer.position() + length);
+      return value;
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, Charsets.UTF_8);
+  }
+
+  public static boolean isInterned(ByteBuffer byteBuffer) {
+    return byteBuffer.get(0) == FORMAT_VERSION;
+  }
+
+  public static InternedByteBufferMap build(Map<String, String> fromMap,
+      KeyDictionary keyDictionary) {
+    TreeMap<Integer, byte[]> sortedProperties = Maps.newTreeMap();
+    int sizeInBytes = 1 + ByteBufferUtil.getVarIntSize(fromMap.size());
+    for (Map.Entry<String, String> entry : fromMap.entrySet()) {
+      int keyId = keyDictionary.ensureId(entry.getKey());
+      byte[] value = entry.getValue().getBytes(Charsets.UTF_8);
+      sortedProperties.put(keyId, value);
+      sizeInBytes += ByteBufferUtil.getVarIntSize(keyId)
+          + ByteBufferUtil.getVarIntSize(value.length) + value.length;
+    }
+
+    ByteBuffer byteBuffer = ByteBuffer.allocate(sizeInBytes);
+    byteBuffer.put(FORMAT_VERSION);
+    ByteBufferUtil.putVarInt(byteBuffer, sortedProperties.size());
+    for (Map.Entry<Integer, byte[]> entry : sortedProperties.entrySet()) {
+      ByteBufferUtil.putVarInt(byteBuffer, entry.getKey());
+      ByteBufferUtil.putVarInt(byteBuffer, entry.getValue().length);
+      byteBuffer.put(entry.getValue());
+    }
+    byteBuffer.flip();
+    return new InternedByteBufferMap(keyDictionary, byteBuffer);
+  }
+}
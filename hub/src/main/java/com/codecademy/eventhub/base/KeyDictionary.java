@@ -0,0 +1,140 @@
+package com.codecademy.eventhub.base;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Interns strings into small integer ids. Every assignment is appended to a log file, as
+ * (int id, int length, utf-8 bytes), and forced to disk before the id is handed out, so the
+ * records referring to an id never outlive the id itself. Reads are lock free.
+ */
+public class KeyDictionary implements Closeable {
+  public static final int KEY_NOT_FOUND = -1;
+  private static final int RECORD_HEADER_SIZE = 8; // id + length
+
+  private final String filename;
+  private final FileChannel channel;
+  private final ConcurrentMap<String, Integer> ids;
+  private volatile String[] keys;
+  private int nextId;
+
+  private KeyDictionary(String filename, FileChannel channel, ConcurrentMap<String, Integer> ids,
+      String[] keys, int nextId) {
+    this.filename = filename;
+    this.channel = channel;
+    this.ids = ids;
+    this.keys = keys;
+    this.nextId = nextId;
+  }
+
+  public int getId(String key) {
+    Integer id = ids.get(key);
+    return id == null ? KEY_NOT_FOUND : id;
+  }
+
+  public String getKey(int id) {
+    String[] keys = this.keys;
+    return id < keys.length ? keys[id] : null;
+  }
+
+  public synchronized int ensureId(String key) {
+    Integer id = ids.get(key);
+    if (id != null) {
+      return id;
+    }
+    int newId = nextId;
+    put(newId, key);
+    return newId;
+  }
+
+  public synchronized void put(int id, String key) {
+    if (key.equals(getKey(id))) {
+      return;
+    }
+    byte[] bytes = key.getBytes(Charsets.UTF_8);
+    ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + bytes.length);
+    record.putInt(id).putInt(bytes.length).put(bytes).flip();
+    try {
+      while (record.hasRemaining()) {
+        channel.write(record);
+      }
+      channel.force(false);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    assign(id, key);
+  }
+
+  public int size() {
+    return ids.size();
+  }
+
+  public String getVarz(int indentation) {
+    String indent  = new String(new char[indentation]).replace('\0', ' ');
+    return String.format(
+        indent + "filename: %s\n" +
+        indent + "num keys: %d",
+        filename, size());
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  private void assign(int id, String key) {
+    String[] keys = this.keys;
+    if (id >= keys.length) {
+      keys = Arrays.copyOf(keys, Math.max(id + 1, 2 * keys.length));
+    }
+    String previousKey = keys[id];
+    if (previousKey != null) {
+      ids.remove(previousKey, id);
+    }
+    keys[id] = key;
+    ids.put(key, id);
+    this.keys = keys;
+    nextId = Math.max(nextId, id + 1);
+  }
+
+  public static KeyDictionary build(String filename) {
+    //noinspection ResultOfMethodCallIgnored
+    new File(filename).getParentFile().mkdirs();
+    try {
+      FileChannel channel = new RandomAccessFile(filename, "rw").getChannel();
+      KeyDictionary keyDictionary = new KeyDictionary(filename, channel,
+          Maps.<String, Integer>newConcurrentMap(), new String[16], 0);
+      ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+      long position = 0;
+      long size = channel.size();
+      while (position + RECORD_HEADER_SIZE <= size) {
+        header.clear();
+        channel.read(header, position);
+        int id = header.getInt(0);
+        int length = header.getInt(4);
+        if (id < 0 || length < 0 || position + RECORD_HEADER_SIZE + length > size) {
+          break;
+        }
+        ByteBuffer bytes = ByteBuffer.allocate(length);
+        channel.read(bytes, position + RECORD_HEADER_SIZE);
+        keyDictionary.assign(id, new String(bytes.array(), Charsets.UTF_8));
+        position += RECORD_HEADER_SIZE + length;
+      }
+      // drop the partially written record, if any, left behind by a crash
+      channel.truncate(position);
+      channel.position(position);
+      return keyDictionary;
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
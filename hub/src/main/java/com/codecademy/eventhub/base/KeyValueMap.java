@@ -0,0 +1,9 @@
+package com.codecademy.eventhub.base;
+
+import java.nio.ByteBuffer;
+
+public interface KeyValueMap {
+  String get(String key);
+  void enumerate(KeyValueCallback callback);
+  ByteBuffer toByteBuffer();
+}
@@ -0,0 +1,150 @@
+package com.codecademy.eventhub.base;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of small records, each laid out as (int length, int crc32, byte[length]),
+ * for state which has to survive a crash, like the ids of the event types.
+ *
+ * Every append is synced before it returns. A record torn by a crash fails its checksum, and the
+ * log is truncated to the records before it on open. The log is compacted by rewriting it to a
+ * new file which is then renamed over it, so that either the old or the new records are found.
+ */
+public class Manifest implements Closeable {
+  private static final int HEADER_SIZE = 8;
+
+  private final String filename;
+  private final List<byte[]> records;
+  private RandomAccessFile file;
+
+  private Manifest(String filename, List<byte[]> records, RandomAccessFile file) {
+    this.filename = filename;
+    this.records = records;
+    this.file = file;
+  }
+
+  public String getFilename() {
+    return filename;
+  }
+
+  /**
+   * The records found on open, in the order they were appended.
+   */
+  public List<byte[]> getRecords() {
+    return records;
+  }
+
+  public synchronized void append(byte[] record) {
+    try {
+      FileChannel channel = file.getChannel();
+      write(channel, record, channel.size());
+      channel.force(false);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Replaces all the records with the given ones.
+   */
+  public synchronized void rewrite(List<byte[]> newRecords) {
+    String newFilename = filename + ".new";
+    try {
+      try (RandomAccessFile newFile = new RandomAccessFile(newFilename, "rw")) {
+        newFile.setLength(0);
+        FileChannel channel = newFile.getChannel();
+        for (byte[] record : newRecords) {
+          write(channel, record, channel.size());
+        }
+        channel.force(true);
+      }
+      file.close();
+      Files.move(new File(newFilename).toPath(), new File(filename).toPath(),
+          StandardCopyOption.ATOMIC_MOVE);
+      file = new RandomAccessFile(filename, "rw");
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    file.close();
+  }
+
+  public static Manifest open(String filename) {
+    //noinspection ResultOfMethodCallIgnored
+    new File(filename).getAbsoluteFile().getParentFile().mkdirs();
+    try {
+      RandomAccessFile file = new RandomAccessFile(filename, "rw");
+      FileChannel channel = file.getChannel();
+      List<byte[]> records = Lists.newArrayList();
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      long position = 0;
+      long size = channel.size();
+      while (position + HEADER_SIZE <= size) {
+        header.clear();
+        read(channel, header, position);
+        int length = header.getInt(0);
+        if (length < 0 || position + HEADER_SIZE + length > size) {
+          break;
+        }
+        ByteBuffer record = ByteBuffer.allocate(length);
+        read(channel, record, position + HEADER_SIZE);
+        if (header.getInt(4) != checksum(record.array())) {
+          break;
+        }
+        records.add(record.array());
+        position += HEADER_SIZE + length;
+      }
+      if (position < size) {
+        channel.truncate(position);
+        channel.force(true);
+      }
+      return new Manifest(filename, ImmutableList.copyOf(records), file);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static void write(FileChannel channel, byte[] record, long position)
+      throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + record.length);
+    buffer.putInt(record.length);
+    buffer.putInt(checksum(record));
+    buffer.put(record);
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
+    }
+  }
+
+  private static void read(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      int numBytes = channel.read(buffer, position);
+      if (numBytes < 0) {
+        throw new IOException("unexpected end of " + channel);
+      }
+      position += numBytes;
+    }
+  }
+
+  private static int checksum(byte[] record) {
+    CRC32 crc32 = new CRC32();
+    crc32.update(record);
+    return (int) crc32.getValue();
+  }
+}
@@ -0,0 +1,251 @@
+package com.codecademy.eventhub.base;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A memory mapped open addressing hash table, with linear probing, from a 96-bit key given as
+ * (long hash, int fingerprint) to a non negative int. Slots are laid out as (long hash,
+ * int fingerprint, int value + 1), a zero value marking an empty slot, in page files of at most
+ * MAX_SLOTS_PER_PAGE slots named after the capacity of the table.
+ *
+ * The table doubles once it is 70% full: the new pages are filled and forced before the header,
+ * (long capacity, long size, long highWaterMark), points to them, so a crash leaves either table
+ * behind. Entries can't be removed. The high-water mark is left to the caller, e.g. to tell how far
+ * the entries go, and is reset along with them.
+ *
+ * A single writer is assumed. The writer bumps the volatile size after every put, which the
+ * readers read first, so that they see the slots it wrote.
+ */
+public class MappedHashIndex implements Closeable {
+  public static final int NOT_FOUND = -1;
+  private static final int SLOT_SIZE = 16; // hash + fingerprint + value
+  private static final int MAX_SLOTS_PER_PAGE = 1 << 22;
+  private static final long MIN_CAPACITY = 1024;
+  private static final double MAX_LOAD_FACTOR = 0.7;
+  private static final int HEADER_SIZE = 24;
+
+  private final String directory;
+  private final MappedByteBuffer headerBuffer;
+  private volatile Table table;
+  private volatile long size;
+
+  private MappedHashIndex(String directory, MappedByteBuffer headerBuffer, Table table,
+      long size) {
+    this.directory = directory;
+    this.headerBuffer = headerBuffer;
+    this.table = table;
+    this.size = size;
+  }
+
+  public int get(long hash, int fingerprint) {
+    if (size == 0) {
+      return NOT_FOUND;
+    }
+    Table table = this.table;
+    for (long slot = hash & table.mask; ; slot = (slot + 1) & table.mask) {
+      MappedByteBuffer page = table.getPage(slot);
+      int offset = table.getOffset(slot);
+      int value = page.getInt(offset + 12) - 1;
+      if (value == NOT_FOUND) {
+        return NOT_FOUND;
+      }
+      if (page.getLong(offset) == hash && page.getInt(offset + 8) == fingerprint) {
+        return value;
+      }
+    }
+  }
+
+  public void put(long hash, int fingerprint, int value) {
+    if (size + 1 > MAX_LOAD_FACTOR * table.capacity) {
+      resize(2 * table.capacity);
+    }
+    if (table.put(hash, fingerprint, value)) {
+      headerBuffer.putLong(8, size + 1);
+      size = size + 1;
+    } else {
+      // a volatile write nonetheless, for the readers to see the new value
+      size = size;
+    }
+  }
+
+  public long size() {
+    return size;
+  }
+
+  public long getCapacity() {
+    return table.capacity;
+  }
+
+  public long getHighWaterMark() {
+    return headerBuffer.getLong(16);
+  }
+
+  public void setHighWaterMark(long highWaterMark) {
+    headerBuffer.putLong(16, highWaterMark);
+  }
+
+  /**
+   * Drops all the entries, e.g. before rebuilding the table from somewhere else.
+   */
+  public void clear() {
+    Table table = Table.create(directory, MIN_CAPACITY);
+    headerBuffer.putLong(0, table.capacity);
+    headerBuffer.putLong(8, 0);
+    headerBuffer.putLong(16, 0);
+    headerBuffer.force();
+    this.size = 0;
+    this.table = table;
+    deleteStalePages(directory, table.capacity);
+  }
+
+  public String getVarz(int indentation) {
+    String indent  = new String(new char[indentation]).replace('\0', ' ');
+    return String.format(
+        indent + "directory: %s\n" +
+        indent + "size: %d\n" +
+        indent + "capacity: %d",
+        directory, size, table.capacity);
+  }
+
+  @Override
+  public void close() {
+    table.force();
+    headerBuffer.force();
+  }
+
+  private void resize(long newCapacity) {
+    Table oldTable = this.table;
+    Table newTable = Table.create(directory, newCapacity);
+    for (long slot = 0; slot < oldTable.capacity; slot++) {
+      MappedByteBuffer page = oldTable.getPage(slot);
+      int offset = oldTable.getOffset(slot);
+      int value = page.getInt(offset + 12) - 1;
+      if (value != NOT_FOUND) {
+        newTable.put(page.getLong(offset), page.getInt(offset + 8), value);
+      }
+    }
+    newTable.force();
+    headerBuffer.putLong(0, newCapacity);
+    headerBuffer.force();
+    this.table = newTable;
+    deleteStalePages(directory, newCapacity);
+  }
+
+  public static MappedHashIndex build(String directory) {
+    //noinspection ResultOfMethodCallIgnored
+    new File(directory).mkdirs();
+    try (RandomAccessFile raf = new RandomAccessFile(new File(directory + "/header.mem"), "rw")) {
+      MappedByteBuffer headerBuffer = raf.getChannel().map(
+          FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+      long capacity = headerBuffer.getLong(0);
+      long size = headerBuffer.getLong(8);
+      if (capacity == 0) {
+        capacity = MIN_CAPACITY;
+        headerBuffer.putLong(0, capacity);
+        deleteStalePages(directory, 0);
+      } else {
+        deleteStalePages(directory, capacity);
+      }
+      return new MappedHashIndex(directory, headerBuffer, Table.open(directory, capacity), size);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static void deleteStalePages(String directory, long capacity) {
+    String prefix = String.format("table_%d_", capacity);
+    File[] files = new File(directory).listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      if (file.getName().startsWith("table_") && !file.getName().startsWith(prefix)) {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+      }
+    }
+  }
+
+  private static class Table {
+    private final long capacity;
+    private final long mask;
+    private final int slotsPerPageShift;
+    private final MappedByteBuffer[] pages;
+
+    private Table(long capacity, MappedByteBuffer[] pages) {
+      this.capacity = capacity;
+      this.mask = capacity - 1;
+      this.slotsPerPageShift = Long.numberOfTrailingZeros(Math.min(capacity, MAX_SLOTS_PER_PAGE));
+      this.pages = pages;
+    }
+
+    private MappedByteBuffer getPage(long slot) {
+      return pages[(int) (slot >>> slotsPerPageShift)];
+    }
+
+    private int getOffset(long slot) {
+      return (int) (slot & ((1 << slotsPerPageShift) - 1)) * SLOT_SIZE;
+    }
+
+    /**
+     * Returns whether the key is new.
+     */
+    private boolean put(long hash, int fingerprint, int value) {
+      for (long slot = hash & mask; ; slot = (slot + 1) & mask) {
+        MappedByteBuffer page = getPage(slot);
+        int offset = getOffset(slot);
+        int currentValue = page.getInt(offset + 12) - 1;
+        if (currentValue == NOT_FOUND) {
+          page.putLong(offset, hash);
+          page.putInt(offset + 8, fingerprint);
+          page.putInt(offset + 12, value + 1);
+          return true;
+        }
+        if (page.getLong(offset) == hash && page.getInt(offset + 8) == fingerprint) {
+          page.putInt(offset + 12, value + 1);
+          return false;
+        }
+      }
+    }
+
+    private void force() {
+      for (MappedByteBuffer page : pages) {
+        page.force();
+      }
+    }
+
+    private static Table create(String directory, long capacity) {
+      // leftovers of a resize which didn't complete
+      int numPages = getNumPages(capacity);
+      for (int i = 0; i < numPages; i++) {
+        //noinspection ResultOfMethodCallIgnored
+        new File(getPageFilename(directory, capacity, i)).delete();
+      }
+      return open(directory, capacity);
+    }
+
+    private static Table open(String directory, long capacity) {
+      int numPages = getNumPages(capacity);
+      int pageSize = (int) Math.min(capacity, MAX_SLOTS_PER_PAGE) * SLOT_SIZE;
+      MappedByteBuffer[] pages = new MappedByteBuffer[numPages];
+      for (int i = 0; i < numPages; i++) {
+        pages[i] = ByteBufferUtil.createNewBuffer(getPageFilename(directory, capacity, i),
+            pageSize);
+      }
+      return new Table(capacity, pages);
+    }
+
+    private static int getNumPages(long capacity) {
+      return (int) Math.max(1, capacity / MAX_SLOTS_PER_PAGE);
+    }
+
+    private static String getPageFilename(String directory, long capacity, int page) {
+      return String.format("%s/table_%d_%d.mem", directory, capacity, page);
+    }
+  }
+}
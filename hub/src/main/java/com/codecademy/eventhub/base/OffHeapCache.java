@@ -0,0 +1,375 @@
+package com.codecademy.eventhub.base;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A cache of serialized records keyed by long which lives in direct memory and is bounded by
+ * bytes, so that its content costs neither old generation space nor GC time.
+ *
+ * The cache is split into segments, each guarded by its own lock. A segment appends entries,
+ * laid out as (int size, long key, byte flags, payload), to a ring buffer and evicts with CLOCK:
+ * when the tail entry has been read since it was written, it gets moved to the head once more
+ * instead of being dropped. Keys are located through an open addressing table of primitive
+ * arrays, which the GC doesn't need to trace.
+ *
+ * New keys are only admitted at the expense of the entry CLOCK would evict if they have been
+ * accessed more often (TinyLFU), which keeps a one-off scan from flushing the hot entries.
+ * getQuietly() neither counts towards the frequency of a key nor marks its entry as referenced.
+ *
+ * get() copies the payload out of the ring buffer since its space gets recycled by eviction.
+ */
+public class OffHeapCache {
+  private static final int MIN_SEGMENT_SIZE = 1024 * 1024;
+  private static final int MAX_SEGMENT_SIZE = 1024 * 1024 * 1024;
+  private static final int MAX_NUM_SEGMENTS = 16;
+  private static final int ESTIMATED_ENTRY_SIZE = 128;
+
+  private final long sizeInBytes;
+  private final Segment[] segments;
+  private final int segmentMask;
+
+  private OffHeapCache(long sizeInBytes, Segment[] segments) {
+    this.sizeInBytes = sizeInBytes;
+    this.segments = segments;
+    this.segmentMask = segments.length - 1;
+  }
+
+  public ByteBuffer get(long key) {
+    long hash = hash(key);
+    return segments[(int) (hash >>> 32) & segmentMask].get(key, hash, false);
+  }
+
+  public ByteBuffer getQuietly(long key) {
+    long hash = hash(key);
+    return segments[(int) (hash >>> 32) & segmentMask].get(key, hash, true);
+  }
+
+  public void put(long key, ByteBuffer value) {
+    long hash = hash(key);
+    segments[(int) (hash >>> 32) & segmentMask].put(key, hash, value);
+  }
+
+  public void invalidate(long key) {
+    long hash = hash(key);
+    segments[(int) (hash >>> 32) & segmentMask].invalidate(key, hash);
+  }
+
+  public void invalidateAll() {
+    for (Segment segment : segments) {
+      segment.invalidateAll();
+    }
+  }
+
+  public String getStats() {
+    long numEntries = 0, usedBytes = 0, hitCount = 0, missCount = 0, evictionCount = 0,
+        reinsertionCount = 0, rejectionCount = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        numEntries += segment.index.size;
+        usedBytes += segment.usedBytes;
+        hitCount += segment.hitCount;
+        missCount += segment.missCount;
+        evictionCount += segment.evictionCount;
+        reinsertionCount += segment.reinsertionCount;
+        rejectionCount += segment.rejectionCount;
+      }
+    }
+    return String.format("OffHeapCache{sizeInBytes=%d, numSegments=%d, numEntries=%d, " +
+        "usedBytes=%d, hitCount=%d, missCount=%d, evictionCount=%d, reinsertionCount=%d, " +
+        "rejectionCount=%d}",
+        sizeInBytes, segments.length, numEntries, usedBytes, hitCount, missCount, evictionCount,
+        reinsertionCount, rejectionCount);
+  }
+
+  public static OffHeapCache build(long sizeInBytes) {
+    int numSegments = 1;
+    while (numSegments < MAX_NUM_SEGMENTS && sizeInBytes / (2 * numSegments) >= MIN_SEGMENT_SIZE) {
+      numSegments *= 2;
+    }
+    while (sizeInBytes / numSegments > MAX_SEGMENT_SIZE) {
+      numSegments *= 2;
+    }
+    Segment[] segments = new Segment[numSegments];
+    for (int i = 0; i < numSegments; i++) {
+      segments[i] = new Segment((int) (sizeInBytes / numSegments));
+    }
+    return new OffHeapCache(sizeInBytes, segments);
+  }
+
+  private static long hash(long key) {
+    return HashUtil.mix(key);
+  }
+
+  private static class Segment {
+    private static final int HEADER_SIZE = 13; // size + key + flags
+    private static final byte FLAG_REFERENCED = 1;
+    private static final byte FLAG_DEAD = 2;
+    private static final int REJECTED = -1;
+    private static final int ALWAYS_ADMIT = Integer.MAX_VALUE;
+
+    private final ByteBuffer data;
+    private final int capacity;
+    private final Index index;
+    private final FrequencySketch frequencySketch;
+    private byte[] scratch;
+    private int head;
+    private int tail;
+    private int usedBytes;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+    private long reinsertionCount;
+    private long rejectionCount;
+
+    private Segment(int capacity) {
+      this.data = ByteBuffer.allocateDirect(capacity);
+      this.capacity = capacity;
+      this.index = new Index();
+      this.frequencySketch = new FrequencySketch(capacity / ESTIMATED_ENTRY_SIZE);
+      this.scratch = new byte[64];
+    }
+
+    private synchronized ByteBuffer get(long key, long hash, boolean quietly) {
+      if (!quietly) {
+        frequencySketch.increment(hash);
+      }
+      int position = index.get(key, hash);
+      if (position == Index.NOT_FOUND) {
+        missCount++;
+        //noinspection ReturnOfNull
+        return null;
+      }
+      hitCount++;
+      if (!quietly) {
+        data.put(position + 12, (byte) (data.get(position + 12) | FLAG_REFERENCED));
+      }
+      byte[] payload = new byte[data.getInt(position) - HEADER_SIZE];
+      ByteBuffer duplicate = data.duplicate();
+      duplicate.position(position + HEADER_SIZE);
+      duplicate.get(payload);
+      return ByteBuffer.wrap(payload);
+    }
+
+    private synchronized void put(long key, long hash, ByteBuffer value) {
+      int size = HEADER_SIZE + value.remaining();
+      int oldPosition = index.remove(key, hash);
+      if (oldPosition != Index.NOT_FOUND) {
+        data.put(oldPosition + 12, FLAG_DEAD);
+      }
+      if (size > capacity) {
+        return;
+      }
+      // updates of cached keys are always admitted
+      int position = allocate(size, oldPosition != Index.NOT_FOUND
+          ? ALWAYS_ADMIT : frequencySketch.frequency(hash));
+      if (position == REJECTED) {
+        rejectionCount++;
+        return;
+      }
+      data.putInt(position, size);
+      data.putLong(position + 4, key);
+      data.put(position + 12, (byte) 0);
+      ByteBuffer duplicate = data.duplicate();
+      duplicate.position(position + HEADER_SIZE);
+      duplicate.put(value.duplicate());
+      index.put(key, hash, position);
+    }
+
+    private synchronized void invalidate(long key, long hash) {
+      int position = index.remove(key, hash);
+      if (position != Index.NOT_FOUND) {
+        data.put(position + 12, FLAG_DEAD);
+      }
+    }
+
+    private synchronized void invalidateAll() {
+      index.clear();
+      head = tail = usedBytes = 0;
+    }
+
+    private int allocate(int size, int candidateFrequency) {
+      while (true) {
+        if (usedBytes == 0) {
+          head = tail = 0;
+        }
+        if (head >= tail && (usedBytes == 0 || head != tail)) {
+          // free space is [head, capacity) and [0, tail)
+          if (capacity - head >= size) {
+            return advanceHead(size);
+          }
+          // waste the end of the buffer and wrap around
+          if (capacity - head >= HEADER_SIZE) {
+            data.putInt(head, capacity - head);
+            data.put(head + 12, FLAG_DEAD);
+          }
+          usedBytes += capacity - head;
+          head = 0;
+        } else if (tail - head >= size) {
+          return advanceHead(size);
+        } else if (!evict(candidateFrequency)) {
+          return REJECTED;
+        }
+      }
+    }
+
+    private int advanceHead(int size) {
+      int position = head;
+      head += size;
+      if (head == capacity) {
+        head = 0;
+      }
+      usedBytes += size;
+      return position;
+    }
+
+    /**
+     * Returns false, evicting nothing, if the candidate isn't worth the entry at the tail.
+     */
+    private boolean evict(int candidateFrequency) {
+      if (capacity - tail < HEADER_SIZE) {
+        usedBytes -= capacity - tail;
+        tail = 0;
+        return true;
+      }
+      int position = tail;
+      int size = data.getInt(position);
+      long key = data.getLong(position + 4);
+      byte flags = data.get(position + 12);
+      long hash = hash(key);
+      if ((flags & (FLAG_DEAD | FLAG_REFERENCED)) == 0
+          && candidateFrequency <= frequencySketch.frequency(hash)) {
+        return false;
+      }
+      tail += size;
+      if (tail == capacity) {
+        tail = 0;
+      }
+      usedBytes -= size;
+      if ((flags & FLAG_DEAD) != 0) {
+        return true;
+      }
+
+      if ((flags & FLAG_REFERENCED) != 0 && fitsAtHead(size)) {
+        // second chance, the entry goes back to the head with its reference bit cleared
+        if (scratch.length < size) {
+          scratch = new byte[Math.max(size, 2 * scratch.length)];
+        }
+        ByteBuffer duplicate = data.duplicate();
+        duplicate.position(position);
+        duplicate.get(scratch, 0, size);
+        int newPosition = advanceHead(size);
+        duplicate.position(newPosition);
+        duplicate.put(scratch, 0, size);
+        data.put(newPosition + 12, (byte) 0);
+        index.put(key, hash, newPosition);
+        reinsertionCount++;
+      } else {
+        index.remove(key, hash);
+        evictionCount++;
+      }
+      return true;
+    }
+
+    private boolean fitsAtHead(int size) {
+      if (usedBytes == 0) {
+        head = tail = 0;
+        return true;
+      }
+      if (head >= tail) {
+        return capacity - head >= size;
+      }
+      return tail - head >= size;
+    }
+  }
+
+  /**
+   * Open addressing with linear probing and backward shift deletion.
+   */
+  private static class Index {
+    private static final int NOT_FOUND = -1;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private long[] keys;
+    private int[] positions;
+    private int mask;
+    private int size;
+
+    private Index() {
+      clear();
+    }
+
+    private int get(long key, long hash) {
+      for (int slot = (int) hash & mask; positions[slot] != NOT_FOUND; slot = (slot + 1) & mask) {
+        if (keys[slot] == key) {
+          return positions[slot];
+        }
+      }
+      return NOT_FOUND;
+    }
+
+    private void put(long key, long hash, int position) {
+      int slot = (int) hash & mask;
+      for (; positions[slot] != NOT_FOUND; slot = (slot + 1) & mask) {
+        if (keys[slot] == key) {
+          positions[slot] = position;
+          return;
+        }
+      }
+      keys[slot] = key;
+      positions[slot] = position;
+      if (++size > keys.length / 2) {
+        resize(2 * keys.length);
+      }
+    }
+
+    private int remove(long key, long hash) {
+      int slot = (int) hash & mask;
+      for (; positions[slot] != NOT_FOUND; slot = (slot + 1) & mask) {
+        if (keys[slot] == key) {
+          break;
+        }
+      }
+      int position = positions[slot];
+      if (position == NOT_FOUND) {
+        return NOT_FOUND;
+      }
+      size--;
+      // shift back the entries of the same probe sequence into the hole
+      int hole = slot;
+      for (slot = (slot + 1) & mask; positions[slot] != NOT_FOUND; slot = (slot + 1) & mask) {
+        int home = (int) hash(keys[slot]) & mask;
+        if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+          keys[hole] = keys[slot];
+          positions[hole] = positions[slot];
+          hole = slot;
+        }
+      }
+      positions[hole] = NOT_FOUND;
+      return position;
+    }
+
+    private void clear() {
+      keys = new long[INITIAL_CAPACITY];
+      positions = new int[INITIAL_CAPACITY];
+      Arrays.fill(positions, NOT_FOUND);
+      mask = INITIAL_CAPACITY - 1;
+      size = 0;
+    }
+
+    private void resize(int newCapacity) {
+      long[] oldKeys = keys;
+      int[] oldPositions = positions;
+      keys = new long[newCapacity];
+      positions = new int[newCapacity];
+      Arrays.fill(positions, NOT_FOUND);
+      mask = newCapacity - 1;
+      size = 0;
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldPositions[i] != NOT_FOUND) {
+          put(oldKeys[i], hash(oldKeys[i]), oldPositions[i]);
+        }
+      }
+    }
+  }
+}
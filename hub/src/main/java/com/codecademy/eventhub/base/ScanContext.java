@@ -0,0 +1,38 @@
+package com.codecademy.eventhub.base;
+
+import java.io.Closeable;
+
+/**
+ * Marks the reads made by the current thread, until closed, as part of a scan, e.g. an analytics
+ * query, so that the record caches serve them without admitting what they miss nor counting them
+ * towards the frequency of the records. Contexts can be nested.
+ *
+ *   try (ScanContext ignored = ScanContext.begin()) {
+ *     ...
+ *   }
+ */
+public class ScanContext implements Closeable {
+  private static final ThreadLocal<int[]> DEPTH = new ThreadLocal<int[]>() {
+    @Override
+    protected int[] initialValue() {
+      return new int[1];
+    }
+  };
+  private static final ScanContext INSTANCE = new ScanContext();
+
+  private ScanContext() {}
+
+  public static ScanContext begin() {
+    DEPTH.get()[0]++;
+    return INSTANCE;
+  }
+
+  public static boolean isScanning() {
+    return DEPTH.get()[0] > 0;
+  }
+
+  @Override
+  public void close() {
+    DEPTH.get()[0]--;
+  }
+}
@@ -1,7 +1,5 @@
 package com.codecademy.eventhub.index;
 
-import com.google.common.base.Function;
-import com.google.common.collect.Lists;
 import com.codecademy.eventhub.base.DB;
 import org.joda.time.DateTime;
 import org.joda.time.format.DateTimeFormat;
@@ -11,21 +9,26 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * DatedEventIndex is responsible for tracking the earliest event id for a given date.
  */
 public class DatedEventIndex implements Closeable {
   private static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormat.forPattern("yyyyMMdd");
+  private static final byte[] DUMMY = new byte[0];
   private static final String DATE_PREFIX = "d";
   private static final String ID_PREFIX = "i";
+  // event ids as 8-byte big-endian key suffixes
+  private static final int FORMAT_VERSION = 1;
+  private static final String MIGRATION_JOB = "com.codecademy.eventhub.jobs.MigrateToBinaryEncoding";
 
   private final DB db;
   // O(numDays)
   private final List<String> dates;
   // O(numDays)
   private final List<Long> earliestEventIds;
-  private String currentDate;
+  private volatile String currentDate;
 
   public DatedEventIndex(DB db, List<String> dates, List<Long> earliestEventIds,
       String currentDate) {
@@ -44,29 +47,48 @@ public class DatedEventIndex implements Closeable {
         startDateOffset = -startDateOffset - 2;
       }
     }
+    // dates are added ahead of their earliest event id, so it is there
     String dateOfEvent = dates.get(startDateOffset);
     String endDate = DATE_TIME_FORMATTER.print(
         DateTime.parse(dateOfEvent, DATE_TIME_FORMATTER).plusDays(numDaysAfter));
     int endDateOffset = Collections.binarySearch(dates, endDate);
     if (endDateOffset < 0) {
       endDateOffset = -endDateOffset - 1;
-      if (endDateOffset >= earliestEventIds.size()) {
-        return Long.MAX_VALUE;
-      }
+    }
+    if (endDateOffset >= earliestEventIds.size()) {
+      return Long.MAX_VALUE;
     }
     return earliestEventIds.get(endDateOffset);
   }
 
+  /**
+   * The earliest event id added on the given date or after it, or Long.MAX_VALUE if there is none.
+   */
+  public long findFirstEventId(String date) {
+    int offset = Collections.binarySearch(dates, date);
+    if (offset < 0) {
+      offset = -offset - 1;
+    }
+    return offset < earliestEventIds.size() ? earliestEventIds.get(offset) : Long.MAX_VALUE;
+  }
+
   public synchronized void addEvent(long eventId, String date) {
     if (currentDate != null && date.compareTo(currentDate) <= 0) {
       return;
     }
+    final String newDate = date;
+    final long earliestEventId = eventId;
+    // in one write, as the dates and the event ids are paired up by their order when loaded
+    db.put(new DB.AtomicWrite() {
+      @Override
+      public void write(DB.WriteBatch writeBatch) {
+        writeBatch.put(DATE_PREFIX + newDate, DUMMY);
+        writeBatch.putLongKey(ID_PREFIX, earliestEventId, DUMMY);
+      }
+    });
     currentDate = date;
     dates.add(date);
     earliestEventIds.add(eventId);
-
-    db.put(DATE_PREFIX + date, "");
-    db.put(ID_PREFIX + String.format("%020d", eventId), "");
   }
 
   public String getCurrentDate() {
@@ -79,15 +101,12 @@ public class DatedEventIndex implements Closeable {
   }
 
   public static DatedEventIndex create(DB db) {
+    db.ensureFormatVersion(FORMAT_VERSION, MIGRATION_JOB);
     List<String> dates = db.findByPrefix(DATE_PREFIX, DATE_PREFIX.length());
-    List<Long> earliestEventIds = Lists.newArrayList(
-        Lists.transform(db.findByPrefix(ID_PREFIX, ID_PREFIX.length()), new Function<String, Long>() {
-          @Override
-          public Long apply(String s) {
-            return Long.parseLong(s);
-          }
-        }));
-    return new DatedEventIndex(db, dates, earliestEventIds,
+    List<Long> earliestEventIds = db.findLongsByPrefix(ID_PREFIX);
+    // copy on write, as the queries binary search them while a new day is added
+    return new DatedEventIndex(db, new CopyOnWriteArrayList<>(dates),
+        new CopyOnWriteArrayList<>(earliestEventIds),
         dates.isEmpty() ? "" : dates.get(dates.size() - 1));
   }
 }
@@ -1,47 +1,219 @@
 package com.codecademy.eventhub.index;
 
+import com.codecademy.eventhub.list.ColdIdListSegment;
 import com.codecademy.eventhub.list.DmaIdList;
 import com.codecademy.eventhub.list.IdList;
+import com.codecademy.eventhub.list.IdListSegment;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.PatternFilenameFilter;
+import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
 import java.util.SortedMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.Lock;
 
+/**
+ * The dates of an event type are registered from the file names alone, and their IdLists are
+ * only mapped when they are first read or written, through an IdListCache shared by all the event
+ * types.
+ *
+ * Every date gets its own DmaIdList, until its month is closed, i.e. the event type has events on
+ * a later month. The closed months are compacted on startup into an IdListSegment per month, keyed
+ * by day. A late event on a compacted date goes to a new DmaIdList, which is read after the
+ * segment, as its ids are larger, and compacted into it on the next startup.
+ *
+ * The segments of the months which are at least coldSegmentAgeInMonths before the latest month are
+ * converted on startup to the ColdIdListSegment format, which isn't mapped. A late event on a cold
+ * month brings its segment back to the mapped format on the next startup, before it is converted
+ * again, and a mapped segment supersedes a cold one of the same month left over by a crash.
+ *
+ * The ids below the first retained id are expired: they are skipped by the queries, and the lists
+ * holding expired ids only are later moved aside by expire, then deleted by deleteExpired.
+ */
 public class EventIndex implements Closeable {
+  private static final int DATE_LENGTH = 8;
+  private static final int MONTH_LENGTH = 6;
+  private static final String SEGMENT_SUFFIX = ".seg";
+  private static final String COLD_SEGMENT_SUFFIX = ".cold";
+  private static final String EXPIRED_SUFFIX = ".expired";
+
   private final String directory;
-  private final DmaIdList.Factory dmaIdListFactor;
-  // from date string to IdList of eventId
-  private final SortedMap<String, IdList> eventIdListMap;
+  private final IdListCache idListCache;
+  // the dates having a DmaIdList, concurrent as new dates are added during queries
+  private final NavigableSet<String> dates;
+  // the dates in the monthly segments, which only change on startup and on expiry
+  private final NavigableSet<String> compactedDates;
+  // the months whose segment is cold
+  private final NavigableSet<String> coldMonths;
+  private volatile long firstRetainedEventId;
 
-  public EventIndex(String directory, DmaIdList.Factory dmaIdListFactor,
-      SortedMap<String, IdList> eventIdListMap) {
+  public EventIndex(String directory, IdListCache idListCache, NavigableSet<String> dates,
+      NavigableSet<String> compactedDates, NavigableSet<String> coldMonths) {
     this.directory = directory;
-    this.dmaIdListFactor = dmaIdListFactor;
-    this.eventIdListMap = eventIdListMap;
+    this.idListCache = idListCache;
+    this.dates = dates;
+    this.compactedDates = compactedDates;
+    this.coldMonths = coldMonths;
   }
 
   public void enumerateEventIds(String startDate, String endDate, Callback callback) {
-    for (IdList idList : eventIdListMap.subMap(startDate, endDate).values()) {
-      IdList.Iterator eventIdIterator = idList.iterator();
-      while (eventIdIterator.hasNext()) {
-        callback.onEventId(eventIdIterator.next());
+    for (String date : getDates(startDate, endDate)) {
+      if (compactedDates.contains(date)) {
+        enumerateEventIds(idListCache.getSegment(getSegmentFilename(date))
+            .iterator(Integer.parseInt(date)), callback);
+      }
+      if (dates.contains(date)) {
+        enumerateEventIds(idListCache.get(getEventIdListFilename(directory, date)).iterator(),
+            callback);
+      }
+    }
+  }
+
+  private void enumerateEventIds(IdList.Iterator eventIdIterator, Callback callback) {
+    long firstRetainedEventId = this.firstRetainedEventId;
+    while (eventIdIterator.hasNext()) {
+      long eventId = eventIdIterator.next();
+      if (eventId >= firstRetainedEventId) {
+        callback.onEventId(eventId);
       }
     }
   }
 
+  public Set<String> getDates(String startDate, String endDate) {
+    if (compactedDates.isEmpty()) {
+      return dates.subSet(startDate, endDate);
+    }
+    NavigableSet<String> allDates = new TreeSet<>(compactedDates.subSet(startDate, endDate));
+    allDates.addAll(dates.subSet(startDate, endDate));
+    return allDates;
+  }
+
+  /**
+   * Ignores an event which is already there, e.g. when it is replayed on recovery, as the events
+   * are added in id order.
+   */
   public void addEvent(long eventId, String date) {
-    IdList idList = eventIdListMap.get(date);
-    if (idList == null) {
-      idList = dmaIdListFactor.build(getEventIdListFilename(directory, date));
-      eventIdListMap.put(date, idList);
+    if (compactedDates.contains(date) && idListCache.getSegment(getSegmentFilename(date))
+        .getLastId(Integer.parseInt(date)) >= eventId) {
+      return;
+    }
+    // the file exists before its date is visible to the queries
+    idListCache.add(getEventIdListFilename(directory, date), eventId);
+    dates.add(date);
+  }
+
+  public void setFirstRetainedEventId(long firstRetainedEventId) {
+    this.firstRetainedEventId = firstRetainedEventId;
+  }
+
+  /**
+   * Moves aside the DmaIdLists and the segments which only hold expired ids. The writer has to be
+   * held off, as a late event may still be added on any date.
+   *
+   * The events on or after firstRetainedDate are all retained, so that only the lists of the
+   * earlier dates are checked, as a late event may have been added on them since. Their last ids
+   * are read from the files, which are neither mapped nor cached, so that a run doesn't evict the
+   * lists the queries and the writer use.
+   */
+  public void expire(String firstRetainedDate) {
+    long firstRetainedEventId = this.firstRetainedEventId;
+    for (String date : dates.headSet(firstRetainedDate)) {
+      String filename = getEventIdListFilename(directory, date);
+      if (DmaIdList.readLastId(filename) < firstRetainedEventId) {
+        dates.remove(date);
+        idListCache.invalidate(filename);
+        moveAside(filename);
+      }
+    }
+    Set<String> months = Sets.newTreeSet();
+    for (String date : compactedDates.headSet(firstRetainedDate)) {
+      months.add(date.substring(0, MONTH_LENGTH));
+    }
+    for (String month : months) {
+      String segmentFilename = getSegmentFilename(month);
+      if (readMaxId(segmentFilename) < firstRetainedEventId) {
+        compactedDates.removeAll(Lists.newArrayList(compactedDates.subSet(month, month + "99")));
+        idListCache.invalidate(segmentFilename);
+        moveAside(segmentFilename);
+        coldMonths.remove(month);
+      }
+    }
+  }
+
+  /**
+   * Hands the ids of the lists moved aside by expire over to the callback, list by list, and
+   * deletes the lists.
+   */
+  public void deleteExpired(ExpiredCallback callback) {
+    File[] files = new File(directory).listFiles(
+        new PatternFilenameFilter(".*\\" + EXPIRED_SUFFIX));
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      String filename = file.getPath();
+      boolean isSegment = !filename.endsWith(".ser" + EXPIRED_SUFFIX);
+      try (Closeable idList = idListCache.open(filename, isSegment)) {
+        callback.onExpiredEventIds(idList instanceof IdListSegment ?
+            ((IdListSegment) idList).iterator() : ((IdList) idList).iterator());
+        Files.delete(file.toPath());
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
     }
-    idList.add(eventId);
   }
 
   @Override
   public void close() throws IOException {
-    for (IdList idList : eventIdListMap.values()) {
-      idList.close();
+    for (String date : dates) {
+      idListCache.invalidate(getEventIdListFilename(directory, date));
+    }
+    Set<String> months = Sets.newHashSet();
+    for (String date : compactedDates) {
+      months.add(getSegmentFilename(date));
+    }
+    for (String segmentFilename : months) {
+      idListCache.invalidate(segmentFilename);
+    }
+  }
+
+  // the largest id of the given segment, the cold ones being read without the cache as well
+  private long readMaxId(String segmentFilename) {
+    if (!segmentFilename.endsWith(COLD_SEGMENT_SUFFIX)) {
+      return IdListSegment.readMaxId(segmentFilename);
+    }
+    IdListSegment segment = (IdListSegment) idListCache.open(segmentFilename, true);
+    try {
+      long maxId = -1;
+      for (int key : segment.getKeys()) {
+        maxId = Math.max(maxId, segment.getLastId(key));
+      }
+      return maxId;
+    } finally {
+      segment.close();
     }
   }
 
@@ -49,11 +221,394 @@ public class EventIndex implements Closeable {
     return String.format("%s/%s.ser", directory, date);
   }
 
+  // the segment of the month of the given date, in the format it is in
+  private String getSegmentFilename(String date) {
+    String month = date.substring(0, MONTH_LENGTH);
+    return coldMonths.contains(month) ?
+        getColdSegmentFilename(directory, month) : getSegmentFilename(directory, month);
+  }
+
+  private static String getSegmentFilename(String directory, String date) {
+    return String.format("%s/%s%s", directory, date.substring(0, MONTH_LENGTH), SEGMENT_SUFFIX);
+  }
+
+  private static String getColdSegmentFilename(String directory, String date) {
+    return String.format("%s/%s%s", directory, date.substring(0, MONTH_LENGTH),
+        COLD_SEGMENT_SUFFIX);
+  }
+
+  /**
+   * Registers the dates from the file names, compacts the closed months and converts the old
+   * segments to the cold format. A coldSegmentAgeInMonths of 0 keeps every segment mapped.
+   */
+  public static EventIndex create(String directory, IdListCache idListCache,
+      int coldSegmentAgeInMonths) {
+    NavigableSet<String> dates = new ConcurrentSkipListSet<>(
+        listFiles(directory, "[0-9]{8}\\.ser", DATE_LENGTH));
+    NavigableSet<String> months = new TreeSet<>(
+        listFiles(directory, "[0-9]{6}\\.seg", MONTH_LENGTH));
+    NavigableSet<String> coldMonths = new ConcurrentSkipListSet<>(
+        listFiles(directory, "[0-9]{6}\\.cold", MONTH_LENGTH));
+    for (String month : months) {
+      if (coldMonths.remove(month)) {
+        deleteSegment(idListCache, getColdSegmentFilename(directory, month));
+      }
+    }
+    String latestMonth = months.isEmpty() ? "" : months.last();
+    if (!coldMonths.isEmpty() && coldMonths.last().compareTo(latestMonth) > 0) {
+      latestMonth = coldMonths.last();
+    }
+    if (!dates.isEmpty() && dates.last().substring(0, MONTH_LENGTH).compareTo(latestMonth) > 0) {
+      latestMonth = dates.last().substring(0, MONTH_LENGTH);
+    }
+
+    SortedMap<String, List<String>> closedMonths = Maps.newTreeMap();
+    for (String date : dates.headSet(latestMonth)) {
+      String month = date.substring(0, MONTH_LENGTH);
+      if (!closedMonths.containsKey(month)) {
+        closedMonths.put(month, Lists.<String>newArrayList());
+      }
+      closedMonths.get(month).add(date);
+    }
+    for (Map.Entry<String, List<String>> entry : closedMonths.entrySet()) {
+      if (compact(directory, idListCache, entry.getKey(), entry.getValue())) {
+        dates.removeAll(entry.getValue());
+        months.add(entry.getKey());
+        coldMonths.remove(entry.getKey());
+      }
+    }
+
+    if (coldSegmentAgeInMonths > 0) {
+      for (String month : Lists.newArrayList(months)) {
+        if (getMonthIndex(latestMonth) - getMonthIndex(month) >= coldSegmentAgeInMonths) {
+          convertToCold(directory, idListCache, month);
+          months.remove(month);
+          coldMonths.add(month);
+        }
+      }
+    }
+
+    NavigableSet<String> compactedDates = new ConcurrentSkipListSet<>();
+    for (String month : months) {
+      for (int date : IdListSegment.readKeys(getSegmentFilename(directory, month))) {
+        compactedDates.add(String.valueOf(date));
+      }
+    }
+    for (String month : coldMonths) {
+      for (int date : ColdIdListSegment.readKeys(getColdSegmentFilename(directory, month))) {
+        compactedDates.add(String.valueOf(date));
+      }
+    }
+    return new EventIndex(directory, idListCache, dates, compactedDates, coldMonths);
+  }
+
+  /**
+   * Compacts the DmaIdLists of the given dates of a month, along with its segment if any, into a
+   * new segment. Returns false if the segment would be too large, leaving the lists as they are.
+   */
+  private static boolean compact(String directory, IdListCache idListCache, String month,
+      List<String> dates) {
+    String segmentFilename = getSegmentFilename(directory, month);
+    File segmentFile = new File(segmentFilename);
+    String coldSegmentFilename = getColdSegmentFilename(directory, month);
+    IdListSegment segment = null;
+    if (segmentFile.exists()) {
+      segment = IdListSegment.open(segmentFilename);
+    } else if (new File(coldSegmentFilename).exists()) {
+      segment = (IdListSegment) idListCache.open(coldSegmentFilename, true);
+    }
+    long size = segment == null ? 0 : (long) segment.getNumIds() * 8;
+    for (String date : dates) {
+      size += new File(getEventIdListFilename(directory, date)).length();
+    }
+    if (size > IdListSegment.MAX_SIZE) {
+      if (segment != null) {
+        segment.close();
+      }
+      return false;
+    }
+
+    NavigableSet<Integer> keys = new TreeSet<>();
+    if (segment != null) {
+      keys.addAll(Ints.asList(segment.getKeys()));
+    }
+    for (String date : dates) {
+      keys.add(Integer.parseInt(date));
+    }
+    List<IdList.Iterator> iterators = Lists.newArrayList();
+    for (int key : keys) {
+      String dateFilename = getEventIdListFilename(directory, String.valueOf(key));
+      // a list left over by a compaction interrupted after the rename is already in the segment
+      iterators.add(new CompactingIterator(
+          segment == null ? null : segment.iterator(key),
+          dates.contains(String.valueOf(key)) ? idListCache.get(dateFilename).iterator() : null,
+          segment == null ? -1 : segment.getLastId(key)));
+    }
+    String newSegmentFilename = segmentFilename + ".new";
+    IdListSegment.write(newSegmentFilename, Ints.toArray(keys), iterators,
+        idListCache.getByteOrder());
+    if (segment != null) {
+      segment.close();
+    }
+    try {
+      Files.move(new File(newSegmentFilename).toPath(), segmentFile.toPath(),
+          StandardCopyOption.ATOMIC_MOVE);
+      idListCache.invalidate(segmentFilename);
+      deleteSegment(idListCache, coldSegmentFilename);
+      for (String date : dates) {
+        String dateFilename = getEventIdListFilename(directory, date);
+        idListCache.invalidate(dateFilename);
+        Files.delete(new File(dateFilename).toPath());
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return true;
+  }
+
+  /**
+   * Writes the cold segment of the given month from its mapped one, which is then deleted.
+   */
+  private static void convertToCold(String directory, IdListCache idListCache, String month) {
+    String segmentFilename = getSegmentFilename(directory, month);
+    String coldSegmentFilename = getColdSegmentFilename(directory, month);
+    IdListSegment segment = IdListSegment.open(segmentFilename);
+    int[] keys = segment.getKeys();
+    List<IdList.Iterator> iterators = Lists.newArrayList();
+    for (int key : keys) {
+      iterators.add(segment.iterator(key));
+    }
+    String newColdSegmentFilename = coldSegmentFilename + ".new";
+    ColdIdListSegment.write(newColdSegmentFilename, keys, iterators);
+    try {
+      Files.move(new File(newColdSegmentFilename).toPath(), new File(coldSegmentFilename).toPath(),
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    deleteSegment(idListCache, segmentFilename);
+  }
+
+  private static void deleteSegment(IdListCache idListCache, String filename) {
+    idListCache.invalidate(filename);
+    try {
+      Files.deleteIfExists(new File(filename).toPath());
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static int getMonthIndex(String month) {
+    return Integer.parseInt(month.substring(0, 4)) * 12 + Integer.parseInt(month.substring(4));
+  }
+
+  private static void moveAside(String filename) {
+    try {
+      Files.move(new File(filename).toPath(), new File(filename + EXPIRED_SUFFIX).toPath(),
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static List<String> listFiles(String directory, String pattern, int nameLength) {
+    List<String> names = Lists.newArrayList();
+    File[] files = new File(directory).listFiles(new PatternFilenameFilter(pattern));
+    if (files != null) {
+      for (File file : files) {
+        names.add(file.getName().substring(0, nameLength));
+      }
+    }
+    return names;
+  }
+
   public interface Factory {
     EventIndex build(String eventType);
+    String getVarz(int indentation);
   }
 
   public interface Callback {
     void onEventId(long eventId);
   }
+
+  public interface ExpiredCallback {
+    void onExpiredEventIds(IdList.Iterator eventIds);
+  }
+
+  private static class CompactingIterator implements IdList.Iterator {
+    private final IdList.Iterator compacted;
+    private final IdList.Iterator appended;
+    private final long lastCompactedId;
+    private boolean hasNext;
+    private long next;
+
+    public CompactingIterator(IdList.Iterator compacted, IdList.Iterator appended,
+        long lastCompactedId) {
+      this.compacted = compacted;
+      this.appended = appended;
+      this.lastCompactedId = lastCompactedId;
+      advance();
+    }
+
+    @Override
+    public boolean hasNext() {
+      return hasNext;
+    }
+
+    @Override
+    public long next() {
+      long id = next;
+      advance();
+      return id;
+    }
+
+    private void advance() {
+      if (compacted != null && compacted.hasNext()) {
+        next = compacted.next();
+        hasNext = true;
+        return;
+      }
+      while (appended != null && appended.hasNext()) {
+        next = appended.next();
+        if (next > lastCompactedId) {
+          hasNext = true;
+          return;
+        }
+      }
+      hasNext = false;
+    }
+  }
+
+  /**
+   * Keeps the most recently used lists and segments mapped. A list or segment is opened by the
+   * first thread which misses it, while the others wait for that file only, and the appends and
+   * invalidations are serialized by file, so that loading a list never holds up ingestion.
+   *
+   * An evicted list is closed, but its mapping is released by the GC rather than unmapped right
+   * away, as a query may still be reading it; a cache much smaller than the number of lists the
+   * queries go through keeps more mappings around than maxSize. As long as an evicted DmaIdList is
+   * still referenced, e.g. by the writer appending to it, it is reused rather than mapped again,
+   * as a second mapping would start from the number of records in the header, which may not have
+   * been bumped yet, and its appends would overwrite the ids appended through the first one.
+   */
+  public static class IdListCache {
+    private static final int NUM_FILE_LOCKS = 64;
+
+    private final DmaIdList.Factory dmaIdListFactory;
+    private final ColdIdListSegment.BlockCache coldBlockCache;
+    // of the new lists and segments
+    private final ByteOrder byteOrder;
+    // from filename to its mapped IdList or IdListSegment
+    private final Cache<String, Closeable> idLists;
+    // the appends and invalidations by filename
+    private final Striped<Lock> fileLocks;
+    // from filename to the DmaIdList mapped for it, for as long as it is referenced
+    private final ConcurrentMap<String, DmaIdList> mappedIdLists;
+
+    public IdListCache(DmaIdList.Factory dmaIdListFactory,
+        ColdIdListSegment.BlockCache coldBlockCache, ByteOrder byteOrder, int maxSize) {
+      this.dmaIdListFactory = dmaIdListFactory;
+      this.coldBlockCache = coldBlockCache;
+      this.byteOrder = byteOrder;
+      dmaIdListFactory.setByteOrder(byteOrder);
+      this.idLists = CacheBuilder.newBuilder()
+          .maximumSize(maxSize)
+          .recordStats()
+          .removalListener(new RemovalListener<String, Closeable>() {
+            @Override
+            public void onRemoval(RemovalNotification<String, Closeable> notification) {
+              try {
+                notification.getValue().close();
+              } catch (IOException e) {
+                throw new RuntimeException(e);
+              }
+            }
+          })
+          .build();
+      this.fileLocks = Striped.lock(NUM_FILE_LOCKS);
+      this.mappedIdLists = new MapMaker().weakValues().makeMap();
+    }
+
+    public DmaIdList get(String filename) {
+      return (DmaIdList) get(filename, false);
+    }
+
+    public IdListSegment getSegment(String filename) {
+      return (IdListSegment) get(filename, true);
+    }
+
+    public void add(String filename, long id) {
+      Lock lock = fileLocks.get(filename);
+      lock.lock();
+      try {
+        DmaIdList idList = get(filename);
+        if (idList.getLastId() < id) {
+          idList.add(id);
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    public ByteOrder getByteOrder() {
+      return byteOrder;
+    }
+
+    public void invalidate(String filename) {
+      Lock lock = fileLocks.get(filename);
+      lock.lock();
+      try {
+        idLists.invalidate(filename);
+        // the file is about to be moved or deleted, and a new one would be mapped anew
+        mappedIdLists.remove(filename);
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Opens the given list or segment without caching it.
+     */
+    public Closeable open(String filename, boolean isSegment) {
+      if (!isSegment) {
+        return dmaIdListFactory.build(filename);
+      }
+      return filename.contains(COLD_SEGMENT_SUFFIX) ?
+          ColdIdListSegment.open(filename, coldBlockCache) : IdListSegment.open(filename);
+    }
+
+    public String getVarz(int indentation) {
+      String indent  = new String(new char[indentation]).replace('\0', ' ');
+      return String.format(
+          indent + "mapped id lists: %d\n" +
+          indent + "stats: %s\n" +
+          "%s",
+          idLists.size(), idLists.stats().toString(), coldBlockCache.getVarz(indentation));
+    }
+
+    private Closeable get(final String filename, final boolean isSegment) {
+      try {
+        return idLists.get(filename, new Callable<Closeable>() {
+          @Override
+          public Closeable call() {
+            return isSegment ? open(filename, true) : map(filename);
+          }
+        });
+      } catch (ExecutionException e) {
+        throw new RuntimeException(e.getCause());
+      } catch (UncheckedExecutionException e) {
+        throw (RuntimeException) e.getCause();
+      }
+    }
+
+    // only called by the loader of the cache, which loads a given filename once at a time
+    private DmaIdList map(String filename) {
+      DmaIdList idList = mappedIdLists.get(filename);
+      if (idList == null) {
+        idList = dmaIdListFactory.build(filename);
+        mappedIdLists.put(filename, idList);
+      }
+      return idList;
+    }
+  }
 }
@@ -0,0 +1,52 @@
+package com.codecademy.eventhub.index;
+
+import com.google.common.collect.Lists;
+import com.codecademy.eventhub.storage.filter.ExactMatch;
+import com.codecademy.eventhub.storage.filter.Filter;
+import com.codecademy.eventhub.storage.filter.TrueFilter;
+import com.codecademy.eventhub.storage.visitor.RequiredTermsVisitor;
+
+import java.util.List;
+
+/**
+ * Enumerates the events of a type which may match an event filter, by intersecting the postings
+ * of the ExactMatch terms of the filter on properties indexed for that type. What is left of the
+ * filter to evaluate on each event is given by getRemainingFilter().
+ */
+public class EventQuery {
+  private final String eventType;
+  private final Filter filter;
+  private final ShardedEventIndex shardedEventIndex;
+  private final List<ExactMatch> indexedTerms;
+  private final boolean isExact;
+
+  public EventQuery(String eventType, Filter filter, ShardedEventIndex shardedEventIndex) {
+    this.eventType = eventType;
+    this.filter = filter;
+    this.shardedEventIndex = shardedEventIndex;
+    RequiredTermsVisitor requiredTermsVisitor = new RequiredTermsVisitor();
+    filter.accept(requiredTermsVisitor);
+    this.indexedTerms = Lists.newArrayList();
+    boolean isExact = !requiredTermsVisitor.hasOtherTerms();
+    for (ExactMatch term : requiredTermsVisitor.getRequiredTerms()) {
+      if (shardedEventIndex.isIndexed(eventType, term.getKey())) {
+        indexedTerms.add(term);
+      } else {
+        isExact = false;
+      }
+    }
+    this.isExact = isExact;
+  }
+
+  public Filter getRemainingFilter() {
+    return isExact ? TrueFilter.INSTANCE : filter;
+  }
+
+  public void enumerateEventIds(String startDate, String endDate, EventIndex.Callback callback) {
+    if (indexedTerms.isEmpty()) {
+      shardedEventIndex.enumerateEventIds(eventType, startDate, endDate, callback);
+    } else {
+      shardedEventIndex.enumerateEventIds(eventType, startDate, endDate, indexedTerms, callback);
+    }
+  }
+}
@@ -0,0 +1,113 @@
+package com.codecademy.eventhub.index;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteArrayDataInput;
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+import com.codecademy.eventhub.base.Manifest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps, per event type, the number of days its events are retained for, and the id of its first
+ * retained event, below which its events are expired. As the ids follow the order the events were
+ * added in, events expire by the date they were added, rather than by their own date.
+ *
+ * The first retained ids are appended to a manifest, which lives outside of the indexes so that
+ * it survives their rebuild.
+ */
+public class EventRetention implements Closeable {
+  private final Manifest manifest;
+  // from eventType to its number of retention days, the event types not in there are kept
+  private final Map<String, Integer> retentionDaysMap;
+  // by event type id, copied on write
+  private volatile long[] firstRetainedEventIds;
+
+  public EventRetention(Manifest manifest, Map<String, Integer> retentionDaysMap,
+      long[] firstRetainedEventIds) {
+    this.manifest = manifest;
+    this.retentionDaysMap = retentionDaysMap;
+    this.firstRetainedEventIds = firstRetainedEventIds;
+  }
+
+  public boolean hasRetention() {
+    return !retentionDaysMap.isEmpty();
+  }
+
+  /**
+   * The number of days the events of the given type are retained for, or null if they are kept.
+   */
+  public Integer getRetentionDays(String eventType) {
+    return retentionDaysMap.get(eventType);
+  }
+
+  public long getFirstRetainedEventId(int eventTypeId) {
+    long[] firstRetainedEventIds = this.firstRetainedEventIds;
+    return eventTypeId < firstRetainedEventIds.length ? firstRetainedEventIds[eventTypeId] : 0;
+  }
+
+  /**
+   * The smallest first retained id, i.e. the events below it are expired whatever their type.
+   */
+  public long getMinFirstRetainedEventId(int numEventTypes) {
+    long minFirstRetainedEventId = Long.MAX_VALUE;
+    for (int eventTypeId = 0; eventTypeId < numEventTypes; eventTypeId++) {
+      minFirstRetainedEventId = Math.min(minFirstRetainedEventId,
+          getFirstRetainedEventId(eventTypeId));
+    }
+    return numEventTypes == 0 ? 0 : minFirstRetainedEventId;
+  }
+
+  public boolean isExpired(long eventId, int eventTypeId) {
+    return eventId < getFirstRetainedEventId(eventTypeId);
+  }
+
+  public synchronized void setFirstRetainedEventId(int eventTypeId, long firstRetainedEventId) {
+    manifest.append(toManifestRecord(eventTypeId, firstRetainedEventId));
+    long[] firstRetainedEventIds = this.firstRetainedEventIds;
+    if (eventTypeId >= firstRetainedEventIds.length) {
+      firstRetainedEventIds = Arrays.copyOf(firstRetainedEventIds, eventTypeId + 1);
+    } else {
+      firstRetainedEventIds = firstRetainedEventIds.clone();
+    }
+    firstRetainedEventIds[eventTypeId] = firstRetainedEventId;
+    this.firstRetainedEventIds = firstRetainedEventIds;
+  }
+
+  @Override
+  public void close() throws IOException {
+    manifest.close();
+  }
+
+  public static EventRetention create(String filename, Map<String, Integer> retentionDaysMap) {
+    Manifest manifest = Manifest.open(filename);
+    long[] firstRetainedEventIds = new long[0];
+    for (byte[] record : manifest.getRecords()) {
+      ByteArrayDataInput in = ByteStreams.newDataInput(record);
+      int eventTypeId = in.readInt();
+      if (eventTypeId >= firstRetainedEventIds.length) {
+        firstRetainedEventIds = Arrays.copyOf(firstRetainedEventIds, eventTypeId + 1);
+      }
+      firstRetainedEventIds[eventTypeId] = in.readLong();
+    }
+    if (manifest.getRecords().size() > firstRetainedEventIds.length) {
+      List<byte[]> records = Lists.newArrayList();
+      for (int eventTypeId = 0; eventTypeId < firstRetainedEventIds.length; eventTypeId++) {
+        records.add(toManifestRecord(eventTypeId, firstRetainedEventIds[eventTypeId]));
+      }
+      manifest.rewrite(records);
+    }
+    return new EventRetention(manifest, retentionDaysMap, firstRetainedEventIds);
+  }
+
+  private static byte[] toManifestRecord(int eventTypeId, long firstRetainedEventId) {
+    ByteArrayDataOutput out = ByteStreams.newDataOutput();
+    out.writeInt(eventTypeId);
+    out.writeLong(firstRetainedEventId);
+    return out.toByteArray();
+  }
+}
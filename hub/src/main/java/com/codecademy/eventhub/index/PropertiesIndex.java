@@ -1,7 +1,11 @@
 package com.codecademy.eventhub.index;
 
+import com.google.common.base.Function;
 import com.google.common.base.Joiner;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.primitives.Ints;
+import com.codecademy.eventhub.base.BitmapCodec;
 import com.codecademy.eventhub.base.DB;
 import com.codecademy.eventhub.base.KeyValueCallback;
 import com.codecademy.eventhub.model.Event;
@@ -9,18 +13,35 @@ import com.codecademy.eventhub.model.User;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+/**
+ * Besides the property keys and values seen so far, indexes the users having each (key, value)
+ * user property, external_user_id included, as bitmaps of user ids split in chunks of
+ * BitmapCodec.CHUNK_SIZE users, one LevelDB record per chunk.
+ *
+ * An update of a user is indexed before the user is stored, along with a record of the update
+ * which is only removed once the user is stored, so that the postings of an update interrupted
+ * by a crash are rolled back to the stored user on startup by recoverUserUpdate().
+ */
 public class PropertiesIndex implements Closeable {
   private static final Set<String> KEYS_IGNORED = Sets.newHashSet("", "date",
       "external_user_id", "event_type");
   private static final byte[] DUMMY = new byte[0];
+  private static final String NUM_INDEXED_USERS_KEY = "__USER_POSTINGS_NUM_USERS";
+  private static final String PENDING_USER_KEY = "__USER_POSTINGS_PENDING_USER";
 
   private final DB db;
+  private volatile int numIndexedUsers;
 
   public PropertiesIndex(DB db) {
     this.db = db;
+    Integer numIndexedUsers = db.getInt(NUM_INDEXED_USERS_KEY);
+    this.numIndexedUsers = numIndexedUsers == null ? 0 : numIndexedUsers;
   }
 
   public void addEvent(final Event event) {
@@ -42,22 +63,113 @@ public class PropertiesIndex implements Closeable {
     });
   }
 
-  public void addUser(final User user) {
+  /**
+   * Indexes the properties of the given user, oldUser being what the user was before the update,
+   * or null for a new user.
+   */
+  public void addUser(int userId, User oldUser, User user) {
+    addUser(userId, oldUser, user, false);
+  }
+
+  /**
+   * Indexes the update of the given user before it is stored, to be followed by commitUserUpdate()
+   * once it is.
+   */
+  public void updateUser(int userId, User oldUser, User user) {
+    addUser(userId, oldUser, user, true);
+  }
+
+  public void commitUserUpdate() {
+    db.put(new DB.AtomicWrite() {
+      @Override
+      public void write(DB.WriteBatch writeBatch) {
+        writeBatch.delete(PENDING_USER_KEY);
+      }
+    });
+  }
+
+  /**
+   * Indexes the user of an update which was interrupted before it was committed as it has been
+   * stored, given the stored user by user id.
+   */
+  public void recoverUserUpdate(Function<Integer, User> getUser) {
+    byte[] bytes = db.getBytes(PENDING_USER_KEY);
+    if (bytes == null) {
+      return;
+    }
+    ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+    int userId = byteBuffer.getInt();
+    User indexedUser = User.fromByteBuffer(byteBuffer.slice());
+    addUser(userId, indexedUser, getUser.apply(userId), false);
+    commitUserUpdate();
+  }
+
+  private void addUser(final int userId, User oldUser, final User user,
+      final boolean isPending) {
+    final Map<String, String> oldProperties = toMap(oldUser);
+    final Map<String, String> properties = toMap(user);
     db.put(new DB.AtomicWrite() {
       @Override
       public void write(final DB.WriteBatch writeBatch) {
-        user.enumerate(new KeyValueCallback() {
-          @Override
-          public void callback(String key, String value) {
-            if (KEYS_IGNORED.contains(key)) {
-              return;
-            }
-            writeBatch.put(getKeyPrefixForUser() + key, DUMMY);
-            writeBatch.put(getKeyPrefixForUserAndKey(key) + value, DUMMY);
+        for (Map.Entry<String, String> entry : oldProperties.entrySet()) {
+          if (!entry.getValue().equals(properties.get(entry.getKey()))) {
+            updatePostings(writeBatch, entry.getKey(), entry.getValue(), userId, false);
           }
-        });
+        }
+        for (Map.Entry<String, String> entry : properties.entrySet()) {
+          String key = entry.getKey();
+          String value = entry.getValue();
+          if (!value.equals(oldProperties.get(key))) {
+            updatePostings(writeBatch, key, value, userId, true);
+          }
+          if (KEYS_IGNORED.contains(key)) {
+            continue;
+          }
+          writeBatch.put(getKeyPrefixForUser() + key, DUMMY);
+          writeBatch.put(getKeyPrefixForUserAndKey(key) + value, DUMMY);
+        }
+        if (userId >= numIndexedUsers) {
+          writeBatch.put(NUM_INDEXED_USERS_KEY, Ints.toByteArray(userId + 1));
+        }
+        if (isPending) {
+          ByteBuffer userBytes = user.toByteBuffer();
+          writeBatch.put(PENDING_USER_KEY, ByteBuffer.allocate(4 + userBytes.remaining())
+              .putInt(userId).put(userBytes.duplicate()).array());
+        }
       }
     });
+    numIndexedUsers = Math.max(numIndexedUsers, userId + 1);
+  }
+
+  /**
+   * The users whose properties have been indexed are those below the returned user id.
+   */
+  public int getNumIndexedUsers() {
+    return numIndexedUsers;
+  }
+
+  /**
+   * Returns the users in [fromUserId, toUserId), relative to fromUserId, which have the given
+   * property.
+   */
+  public BitSet getUsers(String key, String value, int fromUserId, int toUserId) {
+    String postingsKey = getKeyPrefixForUserPostings(key, value);
+    BitSet users = new BitSet(toUserId - fromUserId);
+    for (int chunk = fromUserId / BitmapCodec.CHUNK_SIZE;
+         chunk <= (toUserId - 1) / BitmapCodec.CHUNK_SIZE; chunk++) {
+      byte[] bytes = db.getIntKey(postingsKey, chunk);
+      if (bytes == null) {
+        continue;
+      }
+      BitSet chunkUsers = BitmapCodec.decode(bytes);
+      int chunkStart = chunk * BitmapCodec.CHUNK_SIZE;
+      int from = Math.max(fromUserId - chunkStart, 0);
+      int to = toUserId - chunkStart;
+      for (int i = chunkUsers.nextSetBit(from); i >= 0 && i < to; i = chunkUsers.nextSetBit(i + 1)) {
+        users.set(chunkStart + i - fromUserId);
+      }
+    }
+    return users;
   }
 
   public List<String> getEventKeys(String eventType) {
@@ -85,6 +197,38 @@ public class PropertiesIndex implements Closeable {
     db.close();
   }
 
+  private void updatePostings(DB.WriteBatch writeBatch, String key, String value, int userId,
+      boolean hasProperty) {
+    String postingsKey = getKeyPrefixForUserPostings(key, value);
+    int chunk = userId / BitmapCodec.CHUNK_SIZE;
+    byte[] bytes = db.getIntKey(postingsKey, chunk);
+    BitSet chunkUsers = bytes == null ? new BitSet(BitmapCodec.CHUNK_SIZE) : BitmapCodec.decode(bytes);
+    chunkUsers.set(userId % BitmapCodec.CHUNK_SIZE, hasProperty);
+    if (chunkUsers.isEmpty()) {
+      writeBatch.deleteIntKey(postingsKey, chunk);
+    } else {
+      writeBatch.putIntKey(postingsKey, chunk, BitmapCodec.encode(chunkUsers));
+    }
+  }
+
+  private static Map<String, String> toMap(User user) {
+    final Map<String, String> properties = Maps.newHashMap();
+    if (user != null) {
+      user.enumerate(new KeyValueCallback() {
+        @Override
+        public void callback(String key, String value) {
+          properties.put(key, value);
+        }
+      });
+    }
+    return properties;
+  }
+
+  // the length of the key keeps (key, value) pairs apart, e.g. ("ab", "c") from ("a", "bc")
+  private String getKeyPrefixForUserPostings(String key, String value) {
+    return Joiner.on("@@").join("__USER_POSTINGS", key.length(), key + value);
+  }
+
   private String getKeyPrefixForUser() {
     return "__USER_KEY@@__KEY";
   }
@@ -1,33 +1,70 @@
 package com.codecademy.eventhub.index;
 
+import com.google.common.base.Function;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Ordering;
-import com.google.common.io.Files;
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Longs;
+import com.codecademy.eventhub.base.DB;
+import com.codecademy.eventhub.base.Manifest;
+import com.codecademy.eventhub.model.Event;
+import com.codecademy.eventhub.storage.filter.ExactMatch;
 
 import java.io.Closeable;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * ShardedEventIndex is responsible for managing individual EventIndex sharded by event type.
+ *
+ * The event properties declared as indexed for an event type also get per day postings, from
+ * each of their values to the ids of the events having it, kept in LevelDB as one key per event.
+ *
+ * The id of a new event type is appended to a Manifest before the event type becomes visible.
+ *
+ * The events of a type with a retention expire in two steps: expireEvents hides the events below
+ * the new first retained id from the queries, and moves aside the lists which only hold events
+ * hidden by the former call, which no query can still be reading. deleteExpiredEvents then hands
+ * the ids of these lists over, for their events to be deleted from the storage, and deletes the
+ * postings of the events hidden by the former call as well.
  */
 public class ShardedEventIndex implements Closeable {
-  private final String filename;
+  private static final byte[] DUMMY = new byte[0];
+  private static final String MIN_DATE = "00000000";
+  private static final String MAX_DATE = "99999999";
+
+  private final Manifest eventTypeManifest;
   private final EventIndex.Factory eventIndexFactory;
-  // O(numEventTypes), from eventType to its index
+  // O(numEventTypes), from eventType to its index, concurrent as new types are added during queries
   private final Map<String, EventIndex> eventIndexMap;
-  // O(numEventTypes)
+  // O(numEventTypes), concurrent as well
   private final Map<String, Integer> eventTypeIdMap;
+  private final DB postingsDb;
+  // from eventType to its indexed property keys
+  private final Map<String, Set<String>> indexedKeysMap;
+  private final EventRetention eventRetention;
+  // from eventType to the first retained id before its latest expiry, the postings below which
+  // no query reads anymore
+  private final Map<String, Long> hiddenEventIdsMap;
 
-  public ShardedEventIndex(String filename, EventIndex.Factory eventIndexFactory,
-      Map<String, EventIndex> eventIndexMap, Map<String, Integer> eventTypeIdMap) {
-    this.filename = filename;
+  public ShardedEventIndex(Manifest eventTypeManifest, EventIndex.Factory eventIndexFactory,
+      Map<String, EventIndex> eventIndexMap, Map<String, Integer> eventTypeIdMap,
+      DB postingsDb, Map<String, Set<String>> indexedKeysMap, EventRetention eventRetention) {
+    this.eventTypeManifest = eventTypeManifest;
     this.eventIndexFactory = eventIndexFactory;
     this.eventIndexMap = eventIndexMap;
     this.eventTypeIdMap = eventTypeIdMap;
+    this.postingsDb = postingsDb;
+    this.indexedKeysMap = indexedKeysMap;
+    this.eventRetention = eventRetention;
+    this.hiddenEventIdsMap = Maps.newConcurrentMap();
   }
 
   public void enumerateEventIds(String eventType, String startDate, String endDate,
@@ -40,18 +77,122 @@ public class ShardedEventIndex implements Closeable {
       return eventTypeIdMap.get(eventType);
     }
     synchronized (this) {
+      Integer existingEventTypeId = eventTypeIdMap.get(eventType);
+      if (existingEventTypeId != null) {
+        return existingEventTypeId;
+      }
       int eventTypeId = eventIndexMap.size();
-      eventTypeIdMap.put(eventType, eventTypeId);
+      eventTypeManifest.append(toManifestRecord(eventType, eventTypeId));
+      // the index goes first, as the readers look the event type up by id before its index
       eventIndexMap.put(eventType, eventIndexFactory.build(eventType));
-      persistEventTypeIdMap();
+      eventTypeIdMap.put(eventType, eventTypeId);
       return eventTypeId;
     }
   }
 
+  /**
+   * Enumerates the events of the given type within the dates which have all the given
+   * properties, whose keys have to be indexed for that event type.
+   */
+  public void enumerateEventIds(String eventType, String startDate, String endDate,
+      List<ExactMatch> properties, EventIndex.Callback callback) {
+    int eventTypeId = getEventTypeId(eventType);
+    long firstRetainedEventId = eventRetention.getFirstRetainedEventId(eventTypeId);
+    for (String date : eventIndexMap.get(eventType).getDates(startDate, endDate)) {
+      long[] eventIds = null;
+      for (ExactMatch property : properties) {
+        List<Long> postings = postingsDb.findLongsByPrefix(getPostingsKeyPrefix(eventTypeId,
+            property.getKey(), property.getValue(), date));
+        eventIds = eventIds == null ? Longs.toArray(postings) : intersect(eventIds, postings);
+      }
+      if (eventIds == null) {
+        continue;
+      }
+      for (long eventId : eventIds) {
+        if (eventId >= firstRetainedEventId) {
+          callback.onEventId(eventId);
+        }
+      }
+    }
+  }
+
+  public boolean isIndexed(String eventType, String key) {
+    return getIndexedKeys(eventType).contains(key);
+  }
+
   public synchronized void addEvent(long eventId, String eventType, String date) {
     eventIndexMap.get(eventType).addEvent(eventId, date);
   }
 
+  public synchronized void addEvent(long eventId, Event event) {
+    addEvent(eventId, event.getEventType(), event.getDate());
+    addPostings(eventId, event, getIndexedKeys(event.getEventType()));
+  }
+
+  /**
+   * Builds the postings of the properties declared as indexed since the events of their type
+   * were added.
+   */
+  public synchronized void backfillPostings(Function<Long, Event> eventLoader) {
+    for (Map.Entry<String, Set<String>> entry : indexedKeysMap.entrySet()) {
+      String eventType = entry.getKey();
+      if (!eventTypeIdMap.containsKey(eventType)) {
+        continue;
+      }
+      int eventTypeId = getEventTypeId(eventType);
+      List<String> keysToBackfill = Lists.newArrayList();
+      for (String key : entry.getValue()) {
+        if (postingsDb.get(getBackfilledKey(eventTypeId, key)) == null) {
+          keysToBackfill.add(key);
+        }
+      }
+      if (keysToBackfill.isEmpty()) {
+        continue;
+      }
+      BackfillPostings backfillPostings = new BackfillPostings(eventLoader, keysToBackfill);
+      eventIndexMap.get(eventType).enumerateEventIds(MIN_DATE, MAX_DATE, backfillPostings);
+      for (String key : keysToBackfill) {
+        postingsDb.put(getBackfilledKey(eventTypeId, key), "");
+      }
+    }
+  }
+
+  /**
+   * Expires the events of the given type below the given id, which all the events on or after
+   * firstRetainedDate are above. The writer has to be held off.
+   */
+  public synchronized void expireEvents(String eventType, String firstRetainedDate,
+      long firstRetainedEventId) {
+    int eventTypeId = getEventTypeId(eventType);
+    EventIndex eventIndex = eventIndexMap.get(eventType);
+    eventIndex.expire(firstRetainedDate);
+    hiddenEventIdsMap.put(eventType, eventRetention.getFirstRetainedEventId(eventTypeId));
+    eventRetention.setFirstRetainedEventId(eventTypeId, firstRetainedEventId);
+    eventIndex.setFirstRetainedEventId(firstRetainedEventId);
+  }
+
+  /**
+   * Hands the ids of the lists moved aside by expireEvents over to the callback, and deletes the
+   * postings of the events hidden by the expiry before it. As the date of a posting comes after
+   * its value in its key, the expired dates aren't a range of keys, and every posting of the
+   * indexed properties of the event type is gone through.
+   */
+  public void deleteExpiredEvents(String eventType, EventIndex.ExpiredCallback callback) {
+    eventIndexMap.get(eventType).deleteExpired(callback);
+    Long hiddenEventId = hiddenEventIdsMap.get(eventType);
+    if (hiddenEventId == null || hiddenEventId == 0) {
+      return;
+    }
+    int eventTypeId = getEventTypeId(eventType);
+    for (String key : getIndexedKeys(eventType)) {
+      postingsDb.deleteLongKeysByPrefix(getPostingsKeyPrefix(eventTypeId, key), hiddenEventId);
+    }
+  }
+
+  public EventRetention getEventRetention() {
+    return eventRetention;
+  }
+
   public List<String> getEventTypes() {
     return Ordering.from(String.CASE_INSENSITIVE_ORDER).sortedCopy(eventTypeIdMap.keySet());
   }
@@ -65,25 +206,95 @@ public class ShardedEventIndex implements Closeable {
     for (String eventType : eventIndexMap.keySet()) {
       eventIndexMap.get(eventType).close();
     }
-    persistEventTypeIdMap();
+    eventTypeManifest.close();
+    eventRetention.close();
+    postingsDb.close();
   }
 
   public String getVarz(int indentation) {
     String indent  = new String(new char[indentation]).replace('\0', ' ');
-    return String.format(indent + "filename: %s", filename);
+    return String.format(
+        indent + "filename: %s\n" +
+        indent + "indexed properties: %s\n" +
+        indent + "event indexes:\n%s",
+        eventTypeManifest.getFilename(), indexedKeysMap, eventIndexFactory.getVarz(indentation + 1));
+  }
+
+  private Set<String> getIndexedKeys(String eventType) {
+    Set<String> indexedKeys = indexedKeysMap.get(eventType);
+    return indexedKeys == null ? Collections.<String>emptySet() : indexedKeys;
+  }
+
+  private void addPostings(final long eventId, final Event event, final Iterable<String> keys) {
+    final int eventTypeId = getEventTypeId(event.getEventType());
+    postingsDb.put(new DB.AtomicWrite() {
+      @Override
+      public void write(DB.WriteBatch writeBatch) {
+        for (String key : keys) {
+          String value = event.get(key);
+          if (value != null) {
+            writeBatch.putLongKey(
+                getPostingsKeyPrefix(eventTypeId, key, value, event.getDate()), eventId, DUMMY);
+          }
+        }
+      }
+    });
+  }
+
+  // the lengths keep (key, value) pairs apart, e.g. ("ab", "c") from ("a", "bc")
+  private static String getPostingsKeyPrefix(int eventTypeId, String key, String value,
+      String date) {
+    return Joiner.on("@@").join(eventTypeId, key.length(), key + value.length(), value + date);
   }
 
-  private void persistEventTypeIdMap() {
-    //noinspection ResultOfMethodCallIgnored
-    new File(filename).getParentFile().mkdirs();
-    String newFilename = filename + ".new";
-    try {
-      try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(newFilename))) {
-        oos.writeObject(eventTypeIdMap);
+  // of all the values of the given key
+  private static String getPostingsKeyPrefix(int eventTypeId, String key) {
+    return Joiner.on("@@").join(eventTypeId, key.length(), key);
+  }
+
+  private static String getBackfilledKey(int eventTypeId, String key) {
+    return Joiner.on("@@").join("__BACKFILLED", eventTypeId, key);
+  }
+
+  private static long[] intersect(long[] eventIds, List<Long> postings) {
+    long[] intersection = new long[Math.min(eventIds.length, postings.size())];
+    int size = 0;
+    int i = 0;
+    int j = 0;
+    while (i < eventIds.length && j < postings.size()) {
+      long posting = postings.get(j);
+      if (eventIds[i] < posting) {
+        i++;
+      } else if (eventIds[i] > posting) {
+        j++;
+      } else {
+        intersection[size++] = posting;
+        i++;
+        j++;
       }
-      Files.move(new File(newFilename), new File(filename));
-    } catch (IOException e) {
-      throw new RuntimeException(e);
     }
+    return Arrays.copyOf(intersection, size);
+  }
+
+  private class BackfillPostings implements EventIndex.Callback {
+    private final Function<Long, Event> eventLoader;
+    private final List<String> keys;
+
+    public BackfillPostings(Function<Long, Event> eventLoader, List<String> keys) {
+      this.eventLoader = eventLoader;
+      this.keys = keys;
+    }
+
+    @Override
+    public void onEventId(long eventId) {
+      addPostings(eventId, eventLoader.apply(eventId), keys);
+    }
+  }
+
+  public static byte[] toManifestRecord(String eventType, int eventTypeId) {
+    ByteArrayDataOutput out = ByteStreams.newDataOutput();
+    out.writeInt(eventTypeId);
+    out.writeUTF(eventType);
+    return out.toByteArray();
   }
 }
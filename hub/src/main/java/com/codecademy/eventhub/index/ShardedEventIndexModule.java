@@ -1,21 +1,30 @@
 package com.codecademy.eventhub.index;
 
+import com.google.common.base.Splitter;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.io.PatternFilenameFilter;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteArrayDataInput;
+import com.google.common.io.ByteStreams;
 import com.google.inject.AbstractModule;
 import com.google.inject.Provides;
+import com.codecademy.eventhub.base.ByteOrderHeader;
+import com.codecademy.eventhub.base.DB;
+import com.codecademy.eventhub.base.Manifest;
+import com.codecademy.eventhub.list.ColdIdListSegment;
 import com.codecademy.eventhub.list.DmaIdList;
-import com.codecademy.eventhub.list.IdList;
+import org.fusesource.leveldbjni.JniDBFactory;
+import org.iq80.leveldb.Options;
 
 import javax.inject.Named;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
+import java.nio.file.Files;
 import java.util.List;
 import java.util.Map;
-import java.util.SortedMap;
+import java.util.Set;
 
 public class ShardedEventIndexModule extends AbstractModule {
   @Override
@@ -32,7 +41,7 @@ public class ShardedEventIndexModule extends AbstractModule {
   @Named("eventhub.shardedeventindex.filename")
   public String getEventIndexFile(
       @Named("eventhub.shardedeventindex.directory") String eventIndexDirectory) {
-    return eventIndexDirectory + "/event_index.ser";
+    return eventIndexDirectory + "/event_types.manifest";
   }
 
   @Provides
@@ -46,53 +55,132 @@ public class ShardedEventIndexModule extends AbstractModule {
   public EventIndex.Factory getEventIndexFactory(
       final @Named("eventhub.shardedeventindex.directory") String shardedEventIndexDirectory,
       final @Named("eventhub.eventindex.initialNumEventIdsPerDay") int initialNumEventIdsPerDay,
+      final @Named("eventhub.eventindex.idListCacheSize") int idListCacheSize,
+      final @Named("eventhub.eventindex.coldSegmentAgeInMonths") int coldSegmentAgeInMonths,
+      final @Named("eventhub.eventindex.coldBlockCacheSizeInBytes") long coldBlockCacheSizeInBytes,
+      final @Named("eventhub.byteOrder") String byteOrder,
       final DmaIdList.Factory dmaIdListFactory) {
     dmaIdListFactory.setDefaultCapacity(initialNumEventIdsPerDay);
+    final EventIndex.IdListCache idListCache = new EventIndex.IdListCache(dmaIdListFactory,
+        new ColdIdListSegment.BlockCache(coldBlockCacheSizeInBytes),
+        ByteOrderHeader.parse(byteOrder), idListCacheSize);
     return new EventIndex.Factory() {
       @Override
       public EventIndex build(String eventType) {
-        String eventIndexDirectory =
-            String.format("%s/%s/", shardedEventIndexDirectory, eventType);
+        return EventIndex.create(String.format("%s/%s/", shardedEventIndexDirectory, eventType),
+            idListCache, coldSegmentAgeInMonths);
+      }
 
-        List<String> dates = Lists.newArrayList();
-        File[] files = new File(eventIndexDirectory).listFiles(new PatternFilenameFilter("[0-9]{8}\\.ser"));
-        if (files != null) {
-          for (File file : files){
-            dates.add(file.getName().substring(0, 8));
-          }
-        }
-        SortedMap<String, IdList> eventIdListMap = Maps.newTreeMap();
-        for (String date : dates) {
-          eventIdListMap.put(date, dmaIdListFactory.build(
-              EventIndex.getEventIdListFilename(
-                  eventIndexDirectory, date)));
-        }
-        return new EventIndex(eventIndexDirectory,
-            dmaIdListFactory, eventIdListMap);
+      @Override
+      public String getVarz(int indentation) {
+        return idListCache.getVarz(indentation);
       }
     };
   }
 
+  /**
+   * Parses "eventType1:key1,key2;eventType2:key1" into the indexed property keys per event type.
+   */
+  @Provides
+  @Named("eventhub.shardedeventindex.indexedProperties")
+  public Map<String, Set<String>> getIndexedProperties(
+      @Named("eventhub.shardedeventindex.indexedProperties") String indexedProperties) {
+    Map<String, Set<String>> indexedKeysMap = Maps.newHashMap();
+    for (String eventTypeKeys : Splitter.on(';').omitEmptyStrings().trimResults()
+        .split(indexedProperties)) {
+      int separator = eventTypeKeys.lastIndexOf(':');
+      if (separator < 0) {
+        throw new IllegalArgumentException("expecting eventType:key1,key2 but got " + eventTypeKeys);
+      }
+      indexedKeysMap.put(eventTypeKeys.substring(0, separator), Sets.newHashSet(
+          Splitter.on(',').omitEmptyStrings().trimResults()
+              .split(eventTypeKeys.substring(separator + 1))));
+    }
+    return indexedKeysMap;
+  }
+
+  /**
+   * Parses "eventType1:days;eventType2:days" into the number of days the events of each type are
+   * retained for, the other event types being kept.
+   */
+  @Provides
+  @Named("eventhub.retention.days")
+  public Map<String, Integer> getRetentionDays(
+      @Named("eventhub.retention.days") String retentionDays) {
+    Map<String, Integer> retentionDaysMap = Maps.newHashMap();
+    for (String eventTypeDays : Splitter.on(';').omitEmptyStrings().trimResults()
+        .split(retentionDays)) {
+      int separator = eventTypeDays.lastIndexOf(':');
+      if (separator < 0) {
+        throw new IllegalArgumentException("expecting eventType:days but got " + eventTypeDays);
+      }
+      retentionDaysMap.put(eventTypeDays.substring(0, separator),
+          Integer.parseInt(eventTypeDays.substring(separator + 1).trim()));
+    }
+    return retentionDaysMap;
+  }
+
+  // outside of the event index directory, as it outlives a rebuild of the indexes
+  @Provides
+  public EventRetention getEventRetention(
+      @Named("eventhub.directory") String eventHubDirectory,
+      @Named("eventhub.retention.days") Map<String, Integer> retentionDaysMap) {
+    return EventRetention.create(eventHubDirectory + "/retention.manifest", retentionDaysMap);
+  }
+
   @Provides
   public ShardedEventIndex getShardedEventIndex(
+      @Named("eventhub.shardedeventindex.directory") String eventIndexDirectory,
       @Named("eventhub.shardedeventindex.filename") String eventIndexFilename,
-      EventIndex.Factory individualEventIndexFactory) {
-    File file = new File(eventIndexFilename);
-    if (file.exists()) {
-      try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file))) {
-        @SuppressWarnings("unchecked")
-        Map<String, Integer> eventTypeIdMap = (Map<String, Integer>) ois.readObject();
-        Map<String, EventIndex> eventIndexMap = Maps.newHashMap();
-        for (String eventType : eventTypeIdMap.keySet()) {
-          eventIndexMap.put(eventType, individualEventIndexFactory.build(eventType));
-        }
-        return new ShardedEventIndex(eventIndexFilename, individualEventIndexFactory, eventIndexMap,
-            eventTypeIdMap);
-      } catch (IOException | ClassNotFoundException e) {
-        throw new RuntimeException(e);
+      @Named("eventhub.shardedeventindex.indexedProperties") Map<String, Set<String>> indexedKeysMap,
+      EventIndex.Factory individualEventIndexFactory,
+      EventRetention eventRetention) throws IOException {
+    //noinspection ResultOfMethodCallIgnored
+    new File(eventIndexDirectory).mkdirs();
+    Options options = new Options();
+    options.createIfMissing(true);
+    DB postingsDb = new DB(JniDBFactory.factory.open(
+        new File(eventIndexDirectory + "/event_property_postings.db"), options));
+    Manifest eventTypeManifest = Manifest.open(eventIndexFilename);
+    Map<String, Integer> eventTypeIdMap = Maps.newConcurrentMap();
+    for (byte[] record : eventTypeManifest.getRecords()) {
+      ByteArrayDataInput in = ByteStreams.newDataInput(record);
+      int eventTypeId = in.readInt();
+      eventTypeIdMap.put(in.readUTF(), eventTypeId);
+    }
+    File legacyFile = new File(eventIndexDirectory + "/event_index.ser");
+    if (legacyFile.exists()) {
+      if (eventTypeIdMap.isEmpty()) {
+        migrateEventTypeIdMap(legacyFile, eventTypeManifest, eventTypeIdMap);
+      }
+      Files.delete(legacyFile.toPath());
+    }
+    Map<String, EventIndex> eventIndexMap = Maps.newConcurrentMap();
+    for (Map.Entry<String, Integer> entry : eventTypeIdMap.entrySet()) {
+      EventIndex eventIndex = individualEventIndexFactory.build(entry.getKey());
+      eventIndex.setFirstRetainedEventId(eventRetention.getFirstRetainedEventId(entry.getValue()));
+      eventIndexMap.put(entry.getKey(), eventIndex);
+    }
+    return new ShardedEventIndex(eventTypeManifest, individualEventIndexFactory, eventIndexMap,
+        eventTypeIdMap, postingsDb, indexedKeysMap, eventRetention);
+  }
+
+  /**
+   * Moves the event type ids from the Java serialized map of the former versions to the manifest.
+   */
+  private static void migrateEventTypeIdMap(File legacyFile, Manifest eventTypeManifest,
+      Map<String, Integer> eventTypeIdMap) {
+    try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(legacyFile))) {
+      @SuppressWarnings("unchecked")
+      Map<String, Integer> legacyEventTypeIdMap = (Map<String, Integer>) ois.readObject();
+      List<byte[]> records = Lists.newArrayList();
+      for (Map.Entry<String, Integer> entry : legacyEventTypeIdMap.entrySet()) {
+        records.add(ShardedEventIndex.toManifestRecord(entry.getKey(), entry.getValue()));
       }
+      eventTypeManifest.rewrite(records);
+      eventTypeIdMap.putAll(legacyEventTypeIdMap);
+    } catch (IOException | ClassNotFoundException e) {
+      throw new RuntimeException(e);
     }
-    return new ShardedEventIndex(eventIndexFilename, individualEventIndexFactory,
-        Maps.<String,EventIndex>newHashMap(), Maps.<String, Integer>newHashMap());
   }
 }
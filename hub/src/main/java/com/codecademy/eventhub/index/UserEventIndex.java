@@ -1,38 +1,53 @@
 package com.codecademy.eventhub.index;
 
 import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.primitives.Longs;
 import com.codecademy.eventhub.base.ByteBufferUtil;
+import com.codecademy.eventhub.base.ByteOrderHeader;
+import com.codecademy.eventhub.base.Manifest;
 import com.codecademy.eventhub.list.DmaList;
 
 import java.io.Closeable;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * UserEventIndex is responsible for indexing events sharded by users.
+ *
+ * Index entries are read without locking, under a seqlock striped by user id: the writer makes
+ * the version of the stripe odd while it rewrites an entry, and the readers retry a read which
+ * overlapped with a write. As the blocks are written before the version is bumped back, a reader
+ * sees every record up to the number of records of the entry it read.
+ *
+ * Writers have to be serialized per stripe, which the writer lock of EventHub does. The events
+ * of users in different stripes can be added concurrently, e.g. to rebuild the index in parallel.
  */
 public class UserEventIndex implements Closeable {
   public static final int POINTER_SIZE = 8; // 8 bytes
   public static final int ID_SIZE = 8; // 8 bytes
+  private static final int NUM_VERSION_STRIPES = 1024;
 
   private final DmaList<IndexEntry> index;
   private final IndexEntry.Factory indexEntryFactory;
   private final Block.Factory blockFactory;
+  private final AtomicLongArray versions;
 
   public UserEventIndex(DmaList<IndexEntry> index,
       IndexEntry.Factory indexEntryFactory, Block.Factory blockFactory) {
     this.index = index;
     this.indexEntryFactory = indexEntryFactory;
     this.blockFactory = blockFactory;
+    this.versions = new AtomicLongArray(NUM_VERSION_STRIPES);
   }
 
   public int getEventOffset(int userId, long eventId) {
-    IndexEntry indexEntry = index.get(userId);
+    IndexEntry indexEntry = getIndexEntry(userId);
     if (eventId <= indexEntry.getMinId()) {
       return 0;
     }
@@ -64,7 +79,7 @@ public class UserEventIndex implements Closeable {
 
   public void enumerateEventIds(int userId, int recordOffset, int maxRecords,
       UserEventIndex.Callback callback) {
-    IndexEntry indexEntry = index.get(userId);
+    IndexEntry indexEntry = getIndexEntry(userId);
     maxRecords = Math.min(maxRecords, indexEntry.getNumRecords() - recordOffset);
     if (maxRecords <= 0) {
       return;
@@ -88,7 +103,17 @@ public class UserEventIndex implements Closeable {
     }
   }
 
-  public synchronized void addEvent(int userId, long eventId) {
+  public void addEvent(int userId, long eventId) {
+    int stripe = getStripe(userId);
+    versions.incrementAndGet(stripe);
+    try {
+      addEventInStripe(userId, eventId);
+    } finally {
+      versions.incrementAndGet(stripe);
+    }
+  }
+
+  private void addEventInStripe(int userId, long eventId) {
     IndexEntry indexEntry;
     long maxId = index.getMaxId();
     if (userId > maxId) {
@@ -109,16 +134,23 @@ public class UserEventIndex implements Closeable {
       } else {
         int numRecordsPerBlock = blockFactory.getNumRecordsPerBlock();
         int blockOffset = numRecords / numRecordsPerBlock;
+        Block lastBlock = findBlock(indexEntry, (numRecords - 1) / numRecordsPerBlock);
+        // the event was added before a crash, and is replayed on recovery
+        if (lastBlock.getRecord((numRecords - 1) % numRecordsPerBlock) >= eventId) {
+          return;
+        }
         if (numRecords % numRecordsPerBlock == 0) { // need a new block
           Block block = blockFactory.build(blockOffset, eventId);
-          Block prevBlock = findBlock(indexEntry, blockOffset - 1);
-          block.getMetaData().setPrevBlockPointer(prevBlock.getMetaData().getPointer());
-          prevBlock.getMetaData().setNextBlockPointer(block.getMetaData().getPointer());
+          block.getMetaData().setPrevBlockPointer(lastBlock.getMetaData().getPointer());
+          lastBlock.getMetaData().setNextBlockPointer(block.getMetaData().getPointer());
 
           indexEntry.shiftBlock(block);
         } else {
-          Block block = findBlock(indexEntry, blockOffset);
-          block.add(eventId);
+          // drops a record added to the block before a crash, but not to the index entry
+          if (lastBlock.getMetaData().getNumRecords() != numRecords % numRecordsPerBlock) {
+            lastBlock.getMetaData().setNumRecords(numRecords % numRecordsPerBlock);
+          }
+          lastBlock.add(eventId);
         }
       }
     }
@@ -143,6 +175,24 @@ public class UserEventIndex implements Closeable {
     );
   }
 
+  public static int getStripe(int userId) {
+    return userId & (NUM_VERSION_STRIPES - 1);
+  }
+
+  private IndexEntry getIndexEntry(int userId) {
+    int stripe = getStripe(userId);
+    while (true) {
+      long version = versions.get(stripe);
+      if ((version & 1) == 0) {
+        IndexEntry indexEntry = index.get(userId);
+        if (versions.get(stripe) == version) {
+          return indexEntry;
+        }
+      }
+      Thread.yield();
+    }
+  }
+
   private Block findBlock(IndexEntry indexEntry, int blockOffset) {
     int numPointersPerIndexEntry = indexEntryFactory.getNumPointers();
     int numRecords = indexEntry.getNumRecords();
@@ -169,8 +219,10 @@ public class UserEventIndex implements Closeable {
     }
 
     public void add(long record) {
-      int recordOffset = metaData.getNumRecordsAndIncrement();
+      // the record goes first, for the readers binary searching up to the number of records
+      int recordOffset = metaData.getNumRecords();
       byteBuffer.putLong(recordOffset * ID_SIZE, record);
+      metaData.setNumRecords(recordOffset + 1);
     }
 
     public long getRecord(int offsetInCurrentBlock) {
@@ -210,12 +262,6 @@ public class UserEventIndex implements Closeable {
         byteBuffer.putInt(4, numRecords);
       }
 
-      public synchronized int getNumRecordsAndIncrement() {
-        int numRecords = getNumRecords();
-        byteBuffer.putInt(4, numRecords + 1);
-        return numRecords;
-      }
-
       public long getPointer() {
         return byteBuffer.getLong(8);
       }
@@ -249,20 +295,28 @@ public class UserEventIndex implements Closeable {
       }
     }
 
+    /**
+     * Before it builds a block in a new block file, the factory appends the end of that file to
+     * its manifest, so that a restart after a crash builds its blocks past the ones which may be
+     * in use, rather than over them. The exact pointer is only recorded on close.
+     */
     public static class Factory implements Closeable {
-      private final String filename;
+      private final Manifest manifest;
       private final int numBlocksPerFile;
       private long currentPointer;
+      // the blocks up to this pointer may be in use after a crash
+      private long reservedPointer;
       private final LoadingCache<Integer, MappedByteBuffer> buffers;
       private final int numRecordsPerBlock;
 
-      public Factory(String filename, LoadingCache<Integer, MappedByteBuffer> buffers,
+      public Factory(Manifest manifest, LoadingCache<Integer, MappedByteBuffer> buffers,
           int numRecordsPerBlock, int numBlocksPerFile, long currentPointer) {
-        this.filename = filename;
+        this.manifest = manifest;
         this.buffers = buffers;
         this.numRecordsPerBlock = numRecordsPerBlock;
         this.numBlocksPerFile = numBlocksPerFile;
         this.currentPointer = currentPointer;
+        this.reservedPointer = currentPointer;
       }
 
       public int getNumRecordsPerBlock() {
@@ -273,28 +327,24 @@ public class UserEventIndex implements Closeable {
         final int fileSize = numBlocksPerFile * (
             numRecordsPerBlock * UserEventIndex.ID_SIZE + UserEventIndex.Block.MetaData.SIZE);
         MappedByteBuffer byteBuffer = buffers.getUnchecked((int) (pointer / fileSize));
-        ByteBuffer metaDataByteBuffer = byteBuffer.duplicate();
-        metaDataByteBuffer.position((int) (pointer % fileSize));
-        metaDataByteBuffer = metaDataByteBuffer.slice();
-        ByteBuffer blockByteBuffer = byteBuffer.duplicate();
-        blockByteBuffer.position((int) (pointer % fileSize) + Block.MetaData.SIZE);
-        blockByteBuffer = blockByteBuffer.slice();
-        return new Block(new Block.MetaData(metaDataByteBuffer), blockByteBuffer);
+        return new Block(new Block.MetaData(slice(byteBuffer, (int) (pointer % fileSize))),
+            slice(byteBuffer, (int) (pointer % fileSize) + Block.MetaData.SIZE));
       }
 
       public synchronized Block build(int blockOffset, long id) {
         final int fileSize = numBlocksPerFile * (
             numRecordsPerBlock * UserEventIndex.ID_SIZE + UserEventIndex.Block.MetaData.SIZE);
         long pointer = currentPointer;
+        if (pointer >= reservedPointer) {
+          reservedPointer = (pointer / fileSize + 1) * fileSize;
+          manifest.append(Longs.toByteArray(reservedPointer));
+        }
         MappedByteBuffer byteBuffer = buffers.getUnchecked((int) (pointer / fileSize));
         int blockSize = numRecordsPerBlock * ID_SIZE + MetaData.SIZE;
         currentPointer += blockSize;
-        ByteBuffer metaDataByteBuffer = byteBuffer.duplicate();
-        metaDataByteBuffer.position((int) (pointer % fileSize));
-        metaDataByteBuffer = metaDataByteBuffer.slice();
-        ByteBuffer blockByteBuffer = byteBuffer.duplicate();
-        blockByteBuffer.position((int) (pointer % fileSize) + Block.MetaData.SIZE);
-        blockByteBuffer = blockByteBuffer.slice();
+        ByteBuffer metaDataByteBuffer = slice(byteBuffer, (int) (pointer % fileSize));
+        ByteBuffer blockByteBuffer = slice(
+            byteBuffer, (int) (pointer % fileSize) + Block.MetaData.SIZE);
 
         Block.MetaData metaData = new Block.MetaData(metaDataByteBuffer);
         metaData.setBlockOffset(blockOffset);
@@ -307,14 +357,38 @@ public class UserEventIndex implements Closeable {
         return block;
       }
 
-      @Override
-      public void close() throws IOException {
-        //noinspection ResultOfMethodCallIgnored
-        new File(filename).getParentFile().mkdirs();
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(filename))) {
-          oos.writeLong(currentPointer);
+      /**
+       * Maps the given block file, whose byte order is recorded in a ByteOrderHeader after its
+       * blocks, as the pointers run across the files. A new file is created in the given byte
+       * order. The files of a former version have no header, and are big-endian.
+       */
+      public static MappedByteBuffer openFile(String filename, int fileSize, ByteOrder byteOrder) {
+        long length = new File(filename).length();
+        if (length == fileSize) {
+          return ByteBufferUtil.createNewBuffer(filename, fileSize);
+        }
+        MappedByteBuffer buffer = ByteBufferUtil.createNewBuffer(
+            filename, fileSize + ByteOrderHeader.SIZE);
+        if (length == 0) {
+          ByteOrderHeader.write(buffer, fileSize, byteOrder);
+          buffer.force();
         }
+        buffer.order(ByteOrderHeader.read(buffer, fileSize));
+        return buffer;
+      }
+
+      // neither duplicate nor slice keeps the byte order
+      private static ByteBuffer slice(ByteBuffer byteBuffer, int position) {
+        ByteBuffer duplicate = byteBuffer.duplicate();
+        duplicate.position(position);
+        return duplicate.slice().order(byteBuffer.order());
+      }
+
+      @Override
+      public synchronized void close() throws IOException {
         buffers.invalidateAll();
+        manifest.rewrite(ImmutableList.of(Longs.toByteArray(currentPointer)));
+        manifest.close();
       }
     }
   }
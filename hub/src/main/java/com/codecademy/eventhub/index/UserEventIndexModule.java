@@ -5,9 +5,12 @@ import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.google.common.cache.RemovalListener;
 import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.ImmutableList;
+import com.google.common.primitives.Longs;
 import com.google.inject.AbstractModule;
 import com.google.inject.Provides;
-import com.codecademy.eventhub.base.ByteBufferUtil;
+import com.codecademy.eventhub.base.ByteOrderHeader;
+import com.codecademy.eventhub.base.Manifest;
 import com.codecademy.eventhub.list.DmaList;
 
 import javax.inject.Named;
@@ -15,7 +18,9 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
+import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
+import java.util.List;
 
 public class UserEventIndexModule extends AbstractModule {
   @Override
@@ -48,7 +53,9 @@ public class UserEventIndexModule extends AbstractModule {
       final @Named("eventhub.usereventindex.directory") String directory,
       @Named("eventhub.usereventindex.blockCacheSize") int blockCacheSize,
       @Named("eventhub.usereventindex.numRecordsPerBlock") int numRecordsPerBlock,
-      @Named("eventhub.usereventindex.numBlocksPerFile") int numBlocksPerFile) {
+      @Named("eventhub.usereventindex.numBlocksPerFile") int numBlocksPerFile,
+      @Named("eventhub.byteOrder") String byteOrder) {
+    final ByteOrder newFileByteOrder = ByteOrderHeader.parse(byteOrder);
     final int fileSize = numBlocksPerFile * (
         numRecordsPerBlock * UserEventIndex.ID_SIZE + UserEventIndex.Block.MetaData.SIZE);
     LoadingCache<Integer, MappedByteBuffer> buffers = CacheBuilder.newBuilder()
@@ -65,24 +72,33 @@ public class UserEventIndexModule extends AbstractModule {
         .build(new CacheLoader<Integer, MappedByteBuffer>() {
           @Override
           public MappedByteBuffer load(Integer key) throws Exception {
-            return ByteBufferUtil.createNewBuffer(
-                String.format("%s/block_%d.mem", directory, key), fileSize);
+            return UserEventIndex.Block.Factory.openFile(
+                String.format("%s/block_%d.mem", directory, key), fileSize, newFileByteOrder);
           }
         });
 
-    String filename = directory + "block_factory.ser";
-    File file = new File(filename);
-    if (file.exists()) {
-      try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file))) {
-        long currentPointer = ois.readLong();
-        return new UserEventIndex.Block.Factory(filename, buffers, numRecordsPerBlock,
-            numBlocksPerFile, currentPointer);
-      } catch (IOException e) {
-        throw new RuntimeException(e);
+    Manifest manifest = Manifest.open(directory + "block_factory.manifest");
+    List<byte[]> records = manifest.getRecords();
+    long currentPointer = 0;
+    if (!records.isEmpty()) {
+      currentPointer = Longs.fromByteArray(records.get(records.size() - 1));
+    } else {
+      File legacyFile = new File(directory + "block_factory.ser");
+      if (legacyFile.exists()) {
+        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(legacyFile))) {
+          currentPointer = ois.readLong();
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
       }
     }
-    return new UserEventIndex.Block.Factory(filename, buffers, numRecordsPerBlock,
-        numBlocksPerFile, 0);
+    if (records.size() != 1) {
+      manifest.rewrite(ImmutableList.of(Longs.toByteArray(currentPointer)));
+    }
+    //noinspection ResultOfMethodCallIgnored
+    new File(directory + "block_factory.ser").delete();
+    return new UserEventIndex.Block.Factory(manifest, buffers, numRecordsPerBlock,
+        numBlocksPerFile, currentPointer);
   }
 
   @Provides
@@ -0,0 +1,94 @@
+package com.codecademy.eventhub.index;
+
+import com.google.common.collect.Maps;
+import com.codecademy.eventhub.base.BitmapCodec;
+import com.codecademy.eventhub.storage.UserStorage;
+import com.codecademy.eventhub.storage.filter.ExactMatch;
+import com.codecademy.eventhub.storage.filter.Filter;
+import com.codecademy.eventhub.storage.visitor.RequiredTermsVisitor;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evaluates a user filter against the user postings of the PropertiesIndex: the candidates are
+ * the users having all the ExactMatch terms of the filter, and the filter itself is only
+ * evaluated on the user record when it has other terms, or for users not indexed yet, whose
+ * candidates the UserStorage narrows down instead.
+ */
+public class UserQuery {
+  private final Filter filter;
+  private final PropertiesIndex propertiesIndex;
+  private final UserStorage userStorage;
+  private final List<ExactMatch> requiredTerms;
+  private final boolean isExact;
+  // for accept(), which looks users up in no particular order
+  private final Map<Integer, BitSet> candidatesByChunk;
+
+  public UserQuery(Filter filter, PropertiesIndex propertiesIndex, UserStorage userStorage) {
+    this.filter = filter;
+    this.propertiesIndex = propertiesIndex;
+    this.userStorage = userStorage;
+    RequiredTermsVisitor requiredTermsVisitor = new RequiredTermsVisitor();
+    filter.accept(requiredTermsVisitor);
+    this.requiredTerms = requiredTermsVisitor.getRequiredTerms();
+    this.isExact = !requiredTermsVisitor.hasOtherTerms();
+    this.candidatesByChunk = Maps.newHashMap();
+  }
+
+  /**
+   * Returns the users in [fromUserId, toUserId), relative to fromUserId, which may match the
+   * filter, to be confirmed with acceptCandidate().
+   */
+  public BitSet getCandidates(int fromUserId, int toUserId) {
+    BitSet candidates = new BitSet(toUserId - fromUserId);
+    candidates.set(0, toUserId - fromUserId);
+    int toIndexedUserId = Math.max(fromUserId,
+        Math.min(toUserId, propertiesIndex.getNumIndexedUsers()));
+    for (ExactMatch term : requiredTerms) {
+      if (candidates.isEmpty()) {
+        break;
+      }
+      BitSet users = propertiesIndex.getUsers(term.getKey(), term.getValue(), fromUserId,
+          toIndexedUserId);
+      users.set(toIndexedUserId - fromUserId, toUserId - fromUserId);
+      candidates.and(users);
+    }
+    if (toIndexedUserId < toUserId && !requiredTerms.isEmpty()) {
+      // the users not indexed yet fall back on the user storage, e.g. its bloom filters
+      BitSet users = userStorage.getCandidates(toIndexedUserId, toUserId, requiredTerms);
+      for (int i = toIndexedUserId - fromUserId; i < toUserId - fromUserId; i++) {
+        if (!users.get(i - (toIndexedUserId - fromUserId))) {
+          candidates.clear(i);
+        }
+      }
+    }
+    return candidates;
+  }
+
+  public boolean acceptCandidate(int userId) {
+    if (isExact && userId < propertiesIndex.getNumIndexedUsers()) {
+      return true;
+    }
+    return filter.accept(userStorage.getFilterVisitor(userId));
+  }
+
+  /**
+   * Whether the given user matches the filter, looking the postings up a chunk at a time. Not
+   * thread safe.
+   */
+  public boolean accept(int userId) {
+    if (requiredTerms.isEmpty()) {
+      return acceptCandidate(userId);
+    }
+    int chunk = userId / BitmapCodec.CHUNK_SIZE;
+    BitSet candidates = candidatesByChunk.get(chunk);
+    if (candidates == null) {
+      candidates = getCandidates(chunk * BitmapCodec.CHUNK_SIZE,
+          (int) Math.min((long) (chunk + 1) * BitmapCodec.CHUNK_SIZE, Integer.MAX_VALUE));
+      candidatesByChunk.put(chunk, candidates);
+    }
+    return candidates.get(userId % BitmapCodec.CHUNK_SIZE) && acceptCandidate(userId);
+  }
+}
@@ -0,0 +1,112 @@
+package com.codecademy.eventhub.jobs;
+
+import com.codecademy.eventhub.EventHub;
+import com.codecademy.eventhub.EventHubModule;
+import com.codecademy.eventhub.index.DatedEventIndexModule;
+import com.codecademy.eventhub.index.PropertiesIndexModule;
+import com.codecademy.eventhub.index.ShardedEventIndexModule;
+import com.codecademy.eventhub.index.UserEventIndexModule;
+import com.codecademy.eventhub.list.DmaIdListModule;
+import com.codecademy.eventhub.model.Event;
+import com.codecademy.eventhub.storage.EventStorageModule;
+import com.codecademy.eventhub.storage.UserStorageModule;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Imports events from a file of JSON lines, one object of properties per event with at least
+ * event_type, external_user_id and date, sorted by date, e.g. to backfill history.
+ *
+ * The events are added in a single pass through the very same EventHub as the server, so that
+ * every index ends up as if they had been tracked and the directory can be served as it is. It
+ * saves the http requests and the synced write per event: the journals are synced by write batch,
+ * the log of the compressed event storage by block, and everything on close. The events have to
+ * be from the last date of the directory on, as the dated index only moves forward.
+ *
+ * As the mapped metadata and indexes may reach the disk before the events they point at, an
+ * import which doesn't complete, e.g. killed or crashed, leaves a directory which can't be
+ * trusted: it has to be restored from a backup taken before the import.
+ *
+ * Usage: BulkImport eventHubDirectory eventsFile
+ */
+public class BulkImport {
+  private static final int PROGRESS_INTERVAL = 1000000;
+
+  public static void main(String[] args) throws Exception {
+    Properties properties = new Properties();
+    properties.load(EventHub.class.getClassLoader().getResourceAsStream("hub.properties"));
+    properties.putAll(System.getProperties());
+    properties.put("eventhub.directory", args[0]);
+    long numEvents = run(properties, args[1]);
+    System.out.println(String.format("imported %d events into %s", numEvents, args[0]));
+  }
+
+  static long run(Properties properties, String eventsFilename) throws IOException {
+    properties.put("eventhub.journaleventstorage.syncWrites", "false");
+    properties.put("eventhub.journaluserstorage.syncWrites", "false");
+    properties.put("eventhub.compressedeventstorage.syncWrites", "false");
+    try (EventHub eventHub = createInjector(properties).getInstance(EventHub.class);
+         BufferedReader reader = Files.newReader(new File(eventsFilename), Charsets.UTF_8)) {
+      return importEvents(eventHub, reader);
+    }
+  }
+
+  static Injector createInjector(Properties properties) {
+    return Guice.createInjector(
+        new DmaIdListModule(),
+        new DatedEventIndexModule(),
+        new ShardedEventIndexModule(),
+        new PropertiesIndexModule(),
+        new UserEventIndexModule(),
+        new EventStorageModule(),
+        new UserStorageModule(),
+        new EventHubModule(properties));
+  }
+
+  static long importEvents(EventHub eventHub, BufferedReader reader) throws IOException {
+    Gson gson = new Gson();
+    Type propertiesType = new TypeToken<Map<String, String>>() {}.getType();
+    String previousDate = "";
+    long numEvents = 0;
+    long startTime = System.currentTimeMillis();
+    int lineNumber = 0;
+    for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+      lineNumber++;
+      if (line.trim().isEmpty()) {
+        continue;
+      }
+      Map<String, String> properties = gson.fromJson(line, propertiesType);
+      String eventType = properties.get(Event.EVENT_TYPE);
+      String externalUserId = properties.get("external_user_id");
+      String date = properties.get("date");
+      if (eventType == null || externalUserId == null || date == null) {
+        throw new IllegalArgumentException(String.format(
+            "line %d: event_type, external_user_id and date are required", lineNumber));
+      }
+      if (date.compareTo(previousDate) < 0) {
+        throw new IllegalArgumentException(String.format(
+            "line %d: events have to be sorted by date, but %s comes after %s",
+            lineNumber, date, previousDate));
+      }
+      previousDate = date;
+      eventHub.addEvent(new Event.Builder(eventType, externalUserId, date, properties).build());
+      if (++numEvents % PROGRESS_INTERVAL == 0) {
+        long elapsedMs = Math.max(1, System.currentTimeMillis() - startTime);
+        System.out.println(String.format("%d events, %d events/min, at %s",
+            numEvents, numEvents * 60000 / elapsedMs, date));
+      }
+    }
+    return numEvents;
+  }
+}
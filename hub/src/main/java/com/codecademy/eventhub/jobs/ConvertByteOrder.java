@@ -0,0 +1,165 @@
+package com.codecademy.eventhub.jobs;
+
+import com.codecademy.eventhub.EventHub;
+import com.codecademy.eventhub.base.ByteOrderHeader;
+import com.codecademy.eventhub.index.UserEventIndex;
+import com.codecademy.eventhub.list.DmaIdList;
+import com.codecademy.eventhub.list.IdList;
+import com.codecademy.eventhub.list.IdListSegment;
+import com.google.common.collect.Lists;
+import com.google.common.io.PatternFilenameFilter;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.name.Names;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Rewrites the per day id lists, the id list segments and the user event block files of a stopped
+ * event hub in the byte order of eventhub.byteOrder, e.g. the big-endian files of a former version
+ * in the native order. A file is written next to the original, synced, and then moved in its
+ * place, so that an interrupted run is recovered by running it again. The files which already are
+ * in that byte order are left alone.
+ *
+ * The cold segments are varint encoded, and the records of the other mapped files, e.g. the index
+ * entries of the UserEventIndex, are encoded by their Schema, so neither depends on the byte order.
+ *
+ * Usage: ConvertByteOrder eventHubDirectory
+ */
+public class ConvertByteOrder {
+  private static final FilenameFilter ID_LIST_FILTER = new PatternFilenameFilter("\\d{8}\\.ser");
+  private static final FilenameFilter SEGMENT_FILTER = new PatternFilenameFilter("\\d{6}\\.seg");
+  private static final FilenameFilter BLOCK_FILTER = new PatternFilenameFilter("block_\\d+\\.mem");
+  private static final String NEW_SUFFIX = ".new";
+
+  public static void main(String[] args) throws Exception {
+    Properties properties = new Properties();
+    properties.load(EventHub.class.getClassLoader().getResourceAsStream("hub.properties"));
+    properties.putAll(System.getProperties());
+    properties.put("eventhub.directory", args[0]);
+    int numFiles = run(properties);
+    System.out.println(String.format("converted %d files in %s", numFiles, args[0]));
+  }
+
+  static int run(Properties properties) throws IOException {
+    ByteOrder byteOrder = ByteOrderHeader.parse(properties.getProperty("eventhub.byteOrder"));
+    Injector injector = BulkImport.createInjector(properties);
+    DmaIdList.Factory dmaIdListFactory = injector.getInstance(DmaIdList.Factory.class);
+    dmaIdListFactory.setDefaultCapacity(Integer.parseInt(
+        properties.getProperty("eventhub.eventindex.initialNumEventIdsPerDay")));
+    dmaIdListFactory.setByteOrder(byteOrder);
+
+    int numFiles = 0;
+    File[] eventIndexDirectories = new File(injector.getInstance(Key.get(String.class,
+        Names.named("eventhub.shardedeventindex.directory")))).listFiles();
+    for (File directory : eventIndexDirectories == null ? new File[0] : eventIndexDirectories) {
+      for (File file : listFiles(directory, ID_LIST_FILTER)) {
+        if (getByteOrder(file, 0) != byteOrder) {
+          convertIdList(dmaIdListFactory, file.getPath());
+          numFiles++;
+        }
+      }
+      for (File file : listFiles(directory, SEGMENT_FILTER)) {
+        if (getByteOrder(file, 0) != byteOrder) {
+          convertSegment(file.getPath(), byteOrder);
+          numFiles++;
+        }
+      }
+    }
+
+    int numRecordsPerBlock = Integer.parseInt(
+        properties.getProperty("eventhub.usereventindex.numRecordsPerBlock"));
+    int blockSize =
+        numRecordsPerBlock * UserEventIndex.ID_SIZE + UserEventIndex.Block.MetaData.SIZE;
+    int fileSize = Integer.parseInt(
+        properties.getProperty("eventhub.usereventindex.numBlocksPerFile")) * blockSize;
+    File userEventIndexDirectory = new File(injector.getInstance(Key.get(String.class,
+        Names.named("eventhub.usereventindex.directory"))));
+    for (File file : listFiles(userEventIndexDirectory, BLOCK_FILTER)) {
+      if (getByteOrder(file, fileSize) != byteOrder) {
+        convertBlockFile(file.getPath(), fileSize, blockSize, byteOrder);
+        numFiles++;
+      }
+    }
+    return numFiles;
+  }
+
+  private static void convertIdList(DmaIdList.Factory dmaIdListFactory, String filename)
+      throws IOException {
+    String newFilename = filename + NEW_SUFFIX;
+    Files.deleteIfExists(new File(newFilename).toPath());
+    DmaIdList newIdList = dmaIdListFactory.build(newFilename);
+    IdList.Iterator iterator = dmaIdListFactory.build(filename).iterator();
+    while (iterator.hasNext()) {
+      newIdList.add(iterator.next());
+    }
+    newIdList.close();
+    moveInPlace(newFilename, filename);
+  }
+
+  private static void convertSegment(String filename, ByteOrder byteOrder) throws IOException {
+    IdListSegment segment = IdListSegment.open(filename);
+    int[] keys = segment.getKeys();
+    List<IdList.Iterator> iterators = Lists.newArrayList();
+    for (int key : keys) {
+      iterators.add(segment.iterator(key));
+    }
+    String newFilename = filename + NEW_SUFFIX;
+    IdListSegment.write(newFilename, keys, iterators, byteOrder);
+    moveInPlace(newFilename, filename);
+  }
+
+  private static void convertBlockFile(String filename, int fileSize, int blockSize,
+      ByteOrder byteOrder) throws IOException {
+    String newFilename = filename + NEW_SUFFIX;
+    Files.deleteIfExists(new File(newFilename).toPath());
+    MappedByteBuffer buffer = UserEventIndex.Block.Factory.openFile(filename, fileSize, byteOrder);
+    MappedByteBuffer newBuffer = UserEventIndex.Block.Factory.openFile(
+        newFilename, fileSize, byteOrder);
+    for (int pointer = 0; pointer < fileSize; pointer += blockSize) {
+      // the block offset and the number of records of the MetaData are ints, the rest are longs
+      newBuffer.putInt(pointer, buffer.getInt(pointer));
+      newBuffer.putInt(pointer + 4, buffer.getInt(pointer + 4));
+      for (int offset = 8; offset < blockSize; offset += 8) {
+        newBuffer.putLong(pointer + offset, buffer.getLong(pointer + offset));
+      }
+    }
+    newBuffer.force();
+    moveInPlace(newFilename, filename);
+  }
+
+  /**
+   * The byte order of the given file, from its ByteOrderHeader at the given position if any.
+   */
+  private static ByteOrder getByteOrder(File file, long position) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      if (raf.length() < position + ByteOrderHeader.SIZE) {
+        return ByteOrder.BIG_ENDIAN;
+      }
+      byte[] header = new byte[ByteOrderHeader.SIZE];
+      raf.seek(position);
+      raf.readFully(header);
+      return ByteOrderHeader.read(ByteBuffer.wrap(header), 0);
+    }
+  }
+
+  private static void moveInPlace(String newFilename, String filename) throws IOException {
+    Files.move(new File(newFilename).toPath(), new File(filename).toPath(),
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static File[] listFiles(File directory, FilenameFilter filter) {
+    File[] files = directory.listFiles(filter);
+    return files == null ? new File[0] : files;
+  }
+}
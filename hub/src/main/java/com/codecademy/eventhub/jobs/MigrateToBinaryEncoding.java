@@ -0,0 +1,111 @@
+package com.codecademy.eventhub.jobs;
+
+import com.google.common.primitives.Bytes;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+import org.fusesource.leveldbjni.JniDBFactory;
+import org.iq80.leveldb.DB;
+import org.iq80.leveldb.DBIterator;
+import org.iq80.leveldb.Options;
+import org.iq80.leveldb.WriteBatch;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.fusesource.leveldbjni.JniDBFactory.asString;
+import static org.fusesource.leveldbjni.JniDBFactory.bytes;
+
+/**
+ * Rewrites the ids of the IdMap from decimal strings to 4-byte big-endian ints and the event ids
+ * in the keys of the DatedEventIndex from "%020d" to 8-byte big-endian longs, then tags both dbs
+ * with format version 1. Dbs which already are at format version 1 are left alone.
+ *
+ * The IdMap is rewritten in batches, each of which records the last key it converted, so that a
+ * run which didn't complete is resumed from that key by running it again.
+ *
+ * Usage: MigrateToBinaryEncoding eventHubDirectory
+ */
+public class MigrateToBinaryEncoding {
+  private static final String FORMAT_VERSION_KEY =
+      com.codecademy.eventhub.base.DB.FORMAT_VERSION_KEY;
+  private static final int FORMAT_VERSION = 1;
+  private static final int BATCH_SIZE = 10000;
+  static final String LAST_CONVERTED_KEY = "__eventtracker__last_converted_key";
+
+  public static void main(String[] args) throws Exception {
+    String eventHubDirectory = args[0];
+    migrateIdMap(eventHubDirectory + "/user_storage/id_map.db");
+    migrateDatedEventIndex(eventHubDirectory + "/dated_event_index.db");
+  }
+
+  static void migrateIdMap(String filename) throws IOException {
+    if (!new File(filename).exists()) {
+      return;
+    }
+    try (DB db = JniDBFactory.factory.open(new File(filename), new Options())) {
+      if (db.get(bytes(FORMAT_VERSION_KEY)) != null) {
+        return;
+      }
+      // the keys up to this one were converted by a run which didn't complete
+      byte[] lastConvertedKey = db.get(bytes(LAST_CONVERTED_KEY));
+      WriteBatch batch = db.createWriteBatch();
+      int batchSize = 0;
+      try (DBIterator iterator = db.iterator()) {
+        if (lastConvertedKey == null) {
+          iterator.seekToFirst();
+        } else {
+          iterator.seek(lastConvertedKey);
+        }
+        for (; iterator.hasNext(); iterator.next()) {
+          Map.Entry<byte[], byte[]> entry = iterator.peekNext();
+          if (Arrays.equals(entry.getKey(), lastConvertedKey)
+              || asString(entry.getKey()).equals(LAST_CONVERTED_KEY)) {
+            continue;
+          }
+          int id = Integer.parseInt(asString(entry.getValue()));
+          batch.put(entry.getKey(), Ints.toByteArray(id));
+          if (++batchSize == BATCH_SIZE) {
+            batch.put(bytes(LAST_CONVERTED_KEY), entry.getKey());
+            db.write(batch);
+            batch.close();
+            batch = db.createWriteBatch();
+            batchSize = 0;
+          }
+        }
+      }
+      batch.delete(bytes(LAST_CONVERTED_KEY));
+      batch.put(bytes(FORMAT_VERSION_KEY), Ints.toByteArray(FORMAT_VERSION));
+      db.write(batch);
+      batch.close();
+    }
+  }
+
+  static void migrateDatedEventIndex(String filename) throws IOException {
+    if (!new File(filename).exists()) {
+      return;
+    }
+    try (DB db = JniDBFactory.factory.open(new File(filename), new Options())) {
+      if (db.get(bytes(FORMAT_VERSION_KEY)) != null) {
+        return;
+      }
+      try (WriteBatch batch = db.createWriteBatch()) {
+        // one key per day
+        try (DBIterator iterator = db.iterator()) {
+          for (iterator.seek(bytes("i")); iterator.hasNext(); iterator.next()) {
+            String key = asString(iterator.peekNext().getKey());
+            if (!key.startsWith("i")) {
+              break;
+            }
+            long eventId = Long.parseLong(key.substring(1));
+            batch.delete(bytes(key));
+            batch.put(Bytes.concat(bytes("i"), Longs.toByteArray(eventId)), bytes(""));
+          }
+        }
+        batch.put(bytes(FORMAT_VERSION_KEY), Ints.toByteArray(FORMAT_VERSION));
+        db.write(batch);
+      }
+    }
+  }
+}
@@ -0,0 +1,235 @@
+package com.codecademy.eventhub.jobs;
+
+import com.codecademy.eventhub.EventHub;
+import com.codecademy.eventhub.index.EventIndex;
+import com.codecademy.eventhub.index.EventRetention;
+import com.codecademy.eventhub.index.ShardedEventIndex;
+import com.codecademy.eventhub.index.UserEventIndex;
+import com.codecademy.eventhub.model.Event;
+import com.codecademy.eventhub.storage.EventStorage;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.name.Names;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Rebuilds the ShardedEventIndex and the UserEventIndex of a stopped event hub from its event
+ * storage, e.g. after they got corrupted, or with new properties like numRecordsPerBlock.
+ *
+ * The events are scanned in event id order by numThreads partitions of the event types, which
+ * read the events of their types for the dates, and by numThreads partitions of the users, which
+ * only read the event metadata, all at once on 2 * numThreads threads. The new indexes are written under rebuild/ and then moved in
+ * place of the current ones, directory by directory. As the indexes derive from the event storage
+ * alone, an interrupted run is recovered by running it again.
+ *
+ * The expired events are left out, and their event types are registered from the event
+ * dictionary, without reading the events. The postings of the indexed properties are built on the
+ * next startup.
+ *
+ * Usage: RebuildIndexes eventHubDirectory [numThreads]
+ */
+public class RebuildIndexes {
+  private static final String REBUILD_DIRECTORY = "rebuild";
+  private static final String[] INDEX_DIRECTORIES = { "event_index", "user_event_index" };
+
+  public static void main(String[] args) throws Exception {
+    Properties properties = new Properties();
+    properties.load(EventHub.class.getClassLoader().getResourceAsStream("hub.properties"));
+    properties.putAll(System.getProperties());
+    properties.put("eventhub.directory", args[0]);
+    int numThreads = args.length > 1 ?
+        Integer.parseInt(args[1]) : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    long numEvents = run(properties, numThreads);
+    System.out.println(String.format("rebuilt the indexes of %d events in %s", numEvents, args[0]));
+  }
+
+  static long run(Properties properties, int numThreads) throws Exception {
+    String directory = properties.getProperty("eventhub.directory");
+    File rebuildDirectory = new File(directory, REBUILD_DIRECTORY);
+    deleteRecursively(rebuildDirectory);
+    Properties rebuildProperties = new Properties();
+    rebuildProperties.putAll(properties);
+    rebuildProperties.put("eventhub.directory", rebuildDirectory.getCanonicalPath());
+
+    Injector injector = BulkImport.createInjector(properties);
+    EventStorage eventStorage = injector.getInstance(
+        Key.get(EventStorage.class, Names.named("eventhub.eventstorage")));
+    EventRetention eventRetention = injector.getInstance(EventRetention.class);
+    Injector rebuildInjector = BulkImport.createInjector(rebuildProperties);
+    long numEvents = eventStorage.getNumRecords();
+    try {
+      EventIndex.Factory eventIndexFactory = rebuildInjector.getInstance(EventIndex.Factory.class);
+      UserEventIndex userEventIndex = rebuildInjector.getInstance(UserEventIndex.class);
+      ExecutorService executor = Executors.newFixedThreadPool(2 * numThreads,
+          new ThreadFactoryBuilder().setDaemon(true).setNameFormat("rebuild-indexes-%d").build());
+      List<Future<Map<Integer, String>>> eventTypePartitions = Lists.newArrayList();
+      List<Future<?>> userPartitions = Lists.newArrayList();
+      for (int i = 0; i < numThreads; i++) {
+        eventTypePartitions.add(executor.submit(
+            new IndexEventTypes(eventStorage, eventRetention, eventIndexFactory, numEvents, i,
+                numThreads)));
+        userPartitions.add(executor.submit(new IndexUsers(eventStorage, eventRetention,
+            userEventIndex, numEvents, i, numThreads)));
+      }
+      Map<Integer, String> eventTypes = Maps.newTreeMap();
+      try {
+        for (Future<Map<Integer, String>> future : eventTypePartitions) {
+          eventTypes.putAll(future.get());
+        }
+        for (Future<?> future : userPartitions) {
+          future.get();
+        }
+      } catch (ExecutionException e) {
+        throw new RuntimeException(e.getCause());
+      } finally {
+        executor.shutdownNow();
+      }
+      userEventIndex.close();
+
+      // registered in id order, so that every event type gets its id back
+      ShardedEventIndex shardedEventIndex = rebuildInjector.getInstance(ShardedEventIndex.class);
+      for (Map.Entry<Integer, String> entry : eventTypes.entrySet()) {
+        if (shardedEventIndex.ensureEventType(entry.getValue()) != entry.getKey()) {
+          throw new IllegalStateException("missing events of the event type before " +
+              entry.getValue());
+        }
+      }
+      shardedEventIndex.close();
+    } finally {
+      eventStorage.close();
+      eventRetention.close();
+    }
+
+    for (String indexDirectory : INDEX_DIRECTORIES) {
+      Path current = new File(directory, indexDirectory).toPath();
+      Path previous = new File(rebuildDirectory, indexDirectory + ".previous").toPath();
+      if (Files.exists(current)) {
+        Files.move(current, previous, StandardCopyOption.ATOMIC_MOVE);
+      }
+      Files.move(new File(rebuildDirectory, indexDirectory).toPath(), current,
+          StandardCopyOption.ATOMIC_MOVE);
+    }
+    deleteRecursively(rebuildDirectory);
+    return numEvents;
+  }
+
+  private static class IndexEventTypes implements Callable<Map<Integer, String>> {
+    private final EventStorage eventStorage;
+    private final EventRetention eventRetention;
+    private final EventIndex.Factory eventIndexFactory;
+    private final long numEvents;
+    private final int partition;
+    private final int numPartitions;
+
+    public IndexEventTypes(EventStorage eventStorage, EventRetention eventRetention,
+        EventIndex.Factory eventIndexFactory, long numEvents, int partition, int numPartitions) {
+      this.eventStorage = eventStorage;
+      this.eventRetention = eventRetention;
+      this.eventIndexFactory = eventIndexFactory;
+      this.numEvents = numEvents;
+      this.partition = partition;
+      this.numPartitions = numPartitions;
+    }
+
+    @Override
+    public Map<Integer, String> call() throws IOException {
+      Map<Integer, String> eventTypes = Maps.newHashMap();
+      Map<Integer, EventIndex> eventIndexMap = Maps.newHashMap();
+      for (long eventId = 0; eventId < numEvents; eventId++) {
+        int eventTypeId = eventStorage.getEventTypeId(eventId);
+        if (eventTypeId % numPartitions != partition) {
+          continue;
+        }
+        if (eventRetention.isExpired(eventId, eventTypeId)) {
+          if (!eventTypes.containsKey(eventTypeId)) {
+            eventTypes.put(eventTypeId,
+                eventStorage.getEventDictionary().getEventType(eventTypeId));
+          }
+          continue;
+        }
+        Event event = eventStorage.getEvent(eventId);
+        EventIndex eventIndex = eventIndexMap.get(eventTypeId);
+        if (eventIndex == null) {
+          eventIndex = eventIndexFactory.build(event.getEventType());
+          eventIndexMap.put(eventTypeId, eventIndex);
+          eventTypes.put(eventTypeId, event.getEventType());
+        }
+        eventIndex.addEvent(eventId, event.getDate());
+      }
+      for (EventIndex eventIndex : eventIndexMap.values()) {
+        eventIndex.close();
+      }
+      return eventTypes;
+    }
+  }
+
+  private static class IndexUsers implements Runnable {
+    private final EventStorage eventStorage;
+    private final EventRetention eventRetention;
+    private final UserEventIndex userEventIndex;
+    private final long numEvents;
+    private final int partition;
+    private final int numPartitions;
+
+    public IndexUsers(EventStorage eventStorage, EventRetention eventRetention,
+        UserEventIndex userEventIndex, long numEvents, int partition, int numPartitions) {
+      this.eventStorage = eventStorage;
+      this.eventRetention = eventRetention;
+      this.userEventIndex = userEventIndex;
+      this.numEvents = numEvents;
+      this.partition = partition;
+      this.numPartitions = numPartitions;
+    }
+
+    @Override
+    public void run() {
+      for (long eventId = 0; eventId < numEvents; eventId++) {
+        int userId = eventStorage.getUserId(eventId);
+        // by stripe, as the users of a stripe can't be indexed concurrently
+        if (UserEventIndex.getStripe(userId) % numPartitions == partition &&
+            !eventRetention.isExpired(eventId, eventStorage.getEventTypeId(eventId))) {
+          userEventIndex.addEvent(userId, eventId);
+        }
+      }
+    }
+  }
+
+  private static void deleteRecursively(File file) throws IOException {
+    if (!file.exists()) {
+      return;
+    }
+    Files.walkFileTree(file.toPath(), new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path path, BasicFileAttributes attributes)
+          throws IOException {
+        Files.delete(path);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path path, IOException e) throws IOException {
+        Files.delete(path);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+}
@@ -0,0 +1,347 @@
+package com.codecademy.eventhub.list;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.Lists;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The cold format of an IdListSegment, for the months which are rarely queried, so that they
+ * don't compete for the page cache with the recent ones, which stay mapped.
+ *
+ * The ids are split into blocks of NUM_IDS_PER_BLOCK, each laid out as its first id followed by
+ * the deltas between its consecutive ids, as zigzag varints since a block may span several lists.
+ * The blocks are followed by the index (int numLists, (int key, int endOffset) * numLists,
+ * int numBlocks, long blockEnd * numBlocks) and by the long offset of the index.
+ *
+ * A block is read with a positional read through the read-only channel the segment keeps open
+ * until it is closed, and kept decoded in a BlockCache shared by all the cold segments.
+ */
+public class ColdIdListSegment {
+  private static final int NUM_IDS_PER_BLOCK = 4096;
+  private static final int SIZE_OF_DATA = 8;
+
+  public static IdListSegment open(String filename, BlockCache blockCache) {
+    FileChannel channel = openChannel(filename);
+    try {
+      long indexOffset = read(channel, channel.size() - 8, 8).getLong();
+      ByteBuffer index = read(channel, indexOffset, (int) (channel.size() - 8 - indexOffset));
+      int numLists = index.getInt();
+      int[] keys = new int[numLists];
+      int[] endOffsets = new int[numLists];
+      for (int i = 0; i < numLists; i++) {
+        keys[i] = index.getInt();
+        endOffsets[i] = index.getInt();
+      }
+      long[] blockEnds = new long[index.getInt()];
+      for (int i = 0; i < blockEnds.length; i++) {
+        blockEnds[i] = index.getLong();
+      }
+      return new IdListSegment(keys, endOffsets,
+          new ColdIds(filename, channel, blockEnds, blockCache));
+    } catch (IOException e) {
+      try {
+        channel.close();
+      } catch (IOException closeException) {
+        e.addSuppressed(closeException);
+      }
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Writes the given lists, one per key, and syncs the file. The keys have to be sorted.
+   */
+  public static void write(String filename, int[] keys, List<IdList.Iterator> iterators) {
+    int[] endOffsets = new int[keys.length];
+    List<Long> blockEnds = Lists.newArrayList();
+    try (RandomAccessFile raf = new RandomAccessFile(new File(filename), "rw")) {
+      raf.setLength(0);
+      FileChannel channel = raf.getChannel();
+      ByteArrayOutputStream block = new ByteArrayOutputStream();
+      long position = 0;
+      int numIds = 0;
+      long previousId = 0;
+      for (int i = 0; i < keys.length; i++) {
+        IdList.Iterator iterator = iterators.get(i);
+        while (iterator.hasNext()) {
+          long id = iterator.next();
+          if (numIds % NUM_IDS_PER_BLOCK == 0) {
+            if (numIds > 0) {
+              position += write(channel, ByteBuffer.wrap(block.toByteArray()), position);
+              blockEnds.add(position);
+              block.reset();
+            }
+            previousId = 0;
+          }
+          writeVarLong(block, (id - previousId) << 1 ^ (id - previousId) >> 63);
+          previousId = id;
+          numIds++;
+        }
+        endOffsets[i] = numIds;
+      }
+      if (block.size() > 0) {
+        position += write(channel, ByteBuffer.wrap(block.toByteArray()), position);
+        blockEnds.add(position);
+      }
+
+      ByteBuffer index = ByteBuffer.allocate(4 + keys.length * 8 + 4 + blockEnds.size() * 8 + 8);
+      index.putInt(keys.length);
+      for (int i = 0; i < keys.length; i++) {
+        index.putInt(keys[i]);
+        index.putInt(endOffsets[i]);
+      }
+      index.putInt(blockEnds.size());
+      for (long blockEnd : blockEnds) {
+        index.putLong(blockEnd);
+      }
+      index.putLong(position);
+      index.flip();
+      write(channel, index, position);
+      channel.force(true);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Reads the keys from the index alone.
+   */
+  public static int[] readKeys(String filename) {
+    try (RandomAccessFile raf = new RandomAccessFile(new File(filename), "r")) {
+      FileChannel channel = raf.getChannel();
+      long indexOffset = read(channel, raf.length() - 8, 8).getLong();
+      int numLists = read(channel, indexOffset, 4).getInt();
+      ByteBuffer index = read(channel, indexOffset + 4, numLists * 8);
+      int[] keys = new int[numLists];
+      for (int i = 0; i < numLists; i++) {
+        keys[i] = index.getInt(i * 8);
+      }
+      return keys;
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static class ColdIds implements IdListSegment.Ids {
+    private final String filename;
+    private final long[] blockEnds;
+    private final BlockCache blockCache;
+    // the blocks are cached by segment id rather than by filename, which a rewrite reuses
+    private final long segmentId;
+    private volatile FileChannel channel;
+    private volatile boolean isClosed;
+
+    public ColdIds(String filename, FileChannel channel, long[] blockEnds, BlockCache blockCache) {
+      this.filename = filename;
+      this.channel = channel;
+      this.blockEnds = blockEnds;
+      this.blockCache = blockCache;
+      this.segmentId = blockCache.nextSegmentId();
+      this.isClosed = false;
+    }
+
+    @Override
+    public long get(int offset) {
+      return getBlock(offset / NUM_IDS_PER_BLOCK)[offset % NUM_IDS_PER_BLOCK];
+    }
+
+    @Override
+    public IdList.Iterator iterator(int start, int end) {
+      return new Iterator(this, start, end);
+    }
+
+    @Override
+    public synchronized void close() {
+      isClosed = true;
+      try {
+        channel.close();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    private long[] getBlock(final int blockId) {
+      return blockCache.get(segmentId, blockId, new Callable<long[]>() {
+        @Override
+        public long[] call() throws IOException {
+          return readBlock(blockId);
+        }
+      });
+    }
+
+    private long[] readBlock(int blockId) throws IOException {
+      long start = blockId == 0 ? 0 : blockEnds[blockId - 1];
+      ByteBuffer bytes = readBytes(start, (int) (blockEnds[blockId] - start));
+      long[] block = new long[NUM_IDS_PER_BLOCK];
+      int numIds = 0;
+      long id = 0;
+      while (bytes.hasRemaining()) {
+        long zigzag = readVarLong(bytes);
+        id += zigzag >>> 1 ^ -(zigzag & 1);
+        block[numIds++] = id;
+      }
+      return numIds == block.length ? block : Arrays.copyOf(block, numIds);
+    }
+
+    /**
+     * The channel is closed under a query still reading the segment when the segment is evicted,
+     * or when another reader is interrupted, in which case the file is opened for the read, and
+     * the channel reopened unless the segment was closed.
+     */
+    private ByteBuffer readBytes(long position, int length) throws IOException {
+      FileChannel channel = this.channel;
+      try {
+        return read(channel, position, length);
+      } catch (ClosedChannelException e) {
+        if (Thread.currentThread().isInterrupted()) {
+          throw e;
+        }
+        synchronized (this) {
+          if (!isClosed && this.channel == channel) {
+            this.channel = openChannel(filename);
+          }
+        }
+        try (FileChannel fileChannel = openChannel(filename)) {
+          return read(fileChannel, position, length);
+        }
+      }
+    }
+  }
+
+  private static class Iterator implements IdList.Iterator {
+    private final ColdIds ids;
+    private final int end;
+    private int offset;
+    private long[] block;
+
+    public Iterator(ColdIds ids, int start, int end) {
+      this.ids = ids;
+      this.end = end;
+      this.offset = start;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return offset < end;
+    }
+
+    @Override
+    public long next() {
+      int offsetInBlock = offset % NUM_IDS_PER_BLOCK;
+      if (block == null || offsetInBlock == 0) {
+        block = ids.getBlock(offset / NUM_IDS_PER_BLOCK);
+      }
+      offset++;
+      return block[offsetInBlock];
+    }
+  }
+
+  /**
+   * Keeps the most recently read blocks of all the cold segments decoded, up to maxSizeInBytes.
+   */
+  public static class BlockCache {
+    private final Cache<String, long[]> blocks;
+    private final AtomicLong numSegments;
+
+    public BlockCache(long maxSizeInBytes) {
+      this.numSegments = new AtomicLong();
+      this.blocks = CacheBuilder.newBuilder()
+          .maximumWeight(maxSizeInBytes)
+          .weigher(new Weigher<String, long[]>() {
+            @Override
+            public int weigh(String blockKey, long[] block) {
+              return block.length * SIZE_OF_DATA;
+            }
+          })
+          .recordStats()
+          // the maximum weight is split across the segments of the cache, which the few large
+          // blocks would fill unevenly
+          .concurrencyLevel(1)
+          .build();
+    }
+
+    public String getVarz(int indentation) {
+      String indent  = new String(new char[indentation]).replace('\0', ' ');
+      return String.format(
+          indent + "cached cold blocks: %d\n" +
+          indent + "cold block stats: %s",
+          blocks.size(), blocks.stats().toString());
+    }
+
+    private long nextSegmentId() {
+      return numSegments.getAndIncrement();
+    }
+
+    private long[] get(long segmentId, int blockId, Callable<long[]> loader) {
+      try {
+        return blocks.get(segmentId + "#" + blockId, loader);
+      } catch (ExecutionException e) {
+        throw new RuntimeException(e.getCause());
+      }
+    }
+  }
+
+  private static void writeVarLong(ByteArrayOutputStream out, long value) {
+    while ((value & ~0x7FL) != 0) {
+      out.write((int) (value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+
+  private static long readVarLong(ByteBuffer in) {
+    long value = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte b = in.get();
+      value |= (long) (b & 0x7F) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+  }
+
+  private static FileChannel openChannel(String filename) {
+    try {
+      return FileChannel.open(new File(filename).toPath(), StandardOpenOption.READ);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static int write(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    int numBytes = 0;
+    while (buffer.hasRemaining()) {
+      numBytes += channel.write(buffer, position + numBytes);
+    }
+    return numBytes;
+  }
+
+  private static ByteBuffer read(FileChannel channel, long position, int length)
+      throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining()) {
+      int numBytes = channel.read(buffer, position + buffer.position());
+      if (numBytes < 0) {
+        throw new IOException("unexpected end of " + channel);
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+}
@@ -0,0 +1,167 @@
+package com.codecademy.eventhub.list;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.codecademy.eventhub.base.ByteBufferUtil;
+import com.codecademy.eventhub.base.Schema;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A list of variable width records. The records are appended to mapped data files of
+ * dataFileSize bytes, which they never straddle, and located through a DmaList of
+ * (long offset, int length) pointers. Updating a record appends it again.
+ *
+ * The data is written first, then the end of the data, then the pointer, so that a crash leaves
+ * at worst some unreferenced bytes behind.
+ */
+public class DmaBlobList implements Closeable {
+  private static final int POINTER_SIZE = 12; // offset + length
+
+  private final String directory;
+  private final DmaList<long[]> pointerList;
+  private final MappedByteBuffer metaDataBuffer;
+  private final LoadingCache<Integer, MappedByteBuffer> dataBuffers;
+  private final int dataFileSize;
+  private long dataEnd;
+
+  public DmaBlobList(String directory, DmaList<long[]> pointerList,
+      MappedByteBuffer metaDataBuffer, LoadingCache<Integer, MappedByteBuffer> dataBuffers,
+      int dataFileSize, long dataEnd) {
+    this.directory = directory;
+    this.pointerList = pointerList;
+    this.metaDataBuffer = metaDataBuffer;
+    this.dataBuffers = dataBuffers;
+    this.dataFileSize = dataFileSize;
+    this.dataEnd = dataEnd;
+  }
+
+  public void update(long id, byte[] bytes) {
+    if (bytes.length > dataFileSize) {
+      throw new IllegalArgumentException(String.format(
+          "record of %d bytes doesn't fit in data files of %d bytes", bytes.length, dataFileSize));
+    }
+    if (dataEnd % dataFileSize + bytes.length > dataFileSize) {
+      dataEnd += dataFileSize - dataEnd % dataFileSize;
+    }
+    ByteBuffer duplicate = dataBuffers.getUnchecked((int) (dataEnd / dataFileSize)).duplicate();
+    duplicate.position((int) (dataEnd % dataFileSize));
+    duplicate.put(bytes);
+    long offset = dataEnd;
+    dataEnd += bytes.length;
+    metaDataBuffer.putLong(0, dataEnd);
+    pointerList.update(id, new long[] { offset, bytes.length });
+  }
+
+  public byte[] get(long id) {
+    byte[] bytes = new byte[getLength(id)];
+    ByteBuffer duplicate = getMappedBuffer(id).duplicate();
+    duplicate.position(getOffset(id));
+    duplicate.get(bytes);
+    return bytes;
+  }
+
+  /**
+   * The mapped buffer holding the record at getOffset(id), for reading it in place. The buffer
+   * is shared, hence only absolute gets are allowed on it.
+   */
+  public ByteBuffer getMappedBuffer(long id) {
+    return dataBuffers.getUnchecked((int) (getPointerOffset(id) / dataFileSize));
+  }
+
+  public int getOffset(long id) {
+    return (int) (getPointerOffset(id) % dataFileSize);
+  }
+
+  public int getLength(long id) {
+    return pointerList.getMappedBuffer(id).getInt(pointerList.getOffset(id) + 8);
+  }
+
+  public long getMaxId() {
+    return pointerList.getMaxId();
+  }
+
+  public String getVarz(int indentation) {
+    String indent  = new String(new char[indentation]).replace('\0', ' ');
+    return String.format(
+        indent + "directory: %s\n" +
+        indent + "data end: %d\n" +
+        indent + "data buffer: %s\n" +
+        indent + "pointers:\n%s",
+        directory, dataEnd, dataBuffers.stats().toString(),
+        pointerList.getVarz(indentation + 1));
+  }
+
+  @Override
+  public void close() {
+    dataBuffers.invalidateAll();
+    metaDataBuffer.force();
+    pointerList.close();
+  }
+
+  private long getPointerOffset(long id) {
+    return pointerList.getMappedBuffer(id).getLong(pointerList.getOffset(id));
+  }
+
+  public static DmaBlobList build(final String directory, int numPointersPerFile,
+      int pointerFileCacheSize, final int dataFileSize, int dataFileCacheSize) {
+    DmaList<long[]> pointerList = DmaList.build(new PointerSchema(), directory + "/pointers/",
+        numPointersPerFile, pointerFileCacheSize);
+    try (RandomAccessFile raf = new RandomAccessFile(new File(
+        String.format("%s/data_meta_data.mem", directory)), "rw")) {
+      MappedByteBuffer metaDataBuffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 8);
+      long dataEnd = metaDataBuffer.getLong(0);
+      LoadingCache<Integer, MappedByteBuffer> dataBuffers = CacheBuilder.newBuilder()
+          .maximumSize(dataFileCacheSize)
+          .recordStats()
+          .removalListener(new RemovalListener<Integer, MappedByteBuffer>() {
+            @Override
+            public void onRemoval(RemovalNotification<Integer, MappedByteBuffer> notification) {
+              MappedByteBuffer value = notification.getValue();
+              if (value != null) {
+                value.force();
+              }
+            }})
+          .build(new CacheLoader<Integer, MappedByteBuffer>() {
+            @Override
+            public MappedByteBuffer load(Integer key) throws Exception {
+              return ByteBufferUtil.createNewBuffer(
+                  String.format("%s/data_%d.mem", directory, key), dataFileSize);
+            }
+          });
+      return new DmaBlobList(directory, pointerList, metaDataBuffer, dataBuffers, dataFileSize,
+          dataEnd);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static class PointerSchema implements Schema<long[]> {
+    @Override
+    public int getObjectSize() {
+      return POINTER_SIZE;
+    }
+
+    @Override
+    public byte[] toBytes(long[] pointer) {
+      ByteBuffer byteBuffer = ByteBuffer.allocate(POINTER_SIZE);
+      byteBuffer.putLong(pointer[0]).putInt((int) pointer[1]);
+      return byteBuffer.array();
+    }
+
+    @Override
+    public long[] fromBytes(byte[] bytes) {
+      ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+      return new long[] { byteBuffer.getLong(), byteBuffer.getInt() };
+    }
+  }
+}
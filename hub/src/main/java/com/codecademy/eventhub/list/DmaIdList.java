@@ -1,29 +1,48 @@
 package com.codecademy.eventhub.list;
 
 import com.codecademy.eventhub.base.ByteBufferUtil;
+import com.codecademy.eventhub.base.ByteOrderHeader;
 
 import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 
 /**
- * Currently, it can contain up to MAX_NUM_RECORDS records. ((2^31 - 1) - 4) / 8, i.e. largest
+ * Currently, it can contain up to maxNumRecords records. ((2^31 - 1) - 16) / 8, i.e. largest
  * indexable address in (MappedByteBuffer - size of metadata) / size of a long typed id.
  * Since it's used in IndividualEventIndex and UserEventIndex, this implied that no single date
  * nor single user can have number of events exceeding this limit.
+ *
+ * A single writer is assumed. The writer bumps the volatile numRecords after writing the id, and
+ * the readers read numRecords before the buffer, so that they see every id up to numRecords.
+ *
+ * The file is laid out as (ByteOrderHeader, int numRecords, int padding, long id * capacity), in
+ * the byte order of its header, so that the ids are aligned. The files of a former version are
+ * laid out as (int numRecords, long id * capacity), in big-endian.
  */
 public class DmaIdList implements IdList, Closeable {
-  static final int META_DATA_SIZE = 4; // offset for numRecords
+  static final int META_DATA_SIZE = ByteOrderHeader.SIZE + 8;
+  static final int LEGACY_META_DATA_SIZE = 4;
   static final int SIZE_OF_DATA = 8; // each data is a long number
-  private static final int MAX_NUM_RECORDS = (Integer.MAX_VALUE - META_DATA_SIZE) / SIZE_OF_DATA;
 
   private final String filename;
-  private MappedByteBuffer buffer;
-  private int numRecords;
+  private final int numRecordsOffset;
+  private final int dataOffset;
+  private final int maxNumRecords;
+  private volatile MappedByteBuffer buffer;
+  private volatile int numRecords;
   private long capacity;
 
-  public DmaIdList(String filename, MappedByteBuffer buffer, int numRecords, int capacity) {
+  public DmaIdList(String filename, MappedByteBuffer buffer, boolean hasHeader, int numRecords,
+      int capacity) {
     this.filename = filename;
+    this.numRecordsOffset = hasHeader ? ByteOrderHeader.SIZE : 0;
+    this.dataOffset = hasHeader ? META_DATA_SIZE : LEGACY_META_DATA_SIZE;
+    this.maxNumRecords = (Integer.MAX_VALUE - dataOffset) / SIZE_OF_DATA;
     this.buffer = buffer;
     this.numRecords = numRecords;
     this.capacity = capacity;
@@ -31,58 +50,102 @@ public class DmaIdList implements IdList, Closeable {
 
   @Override
   public void add(long id) {
-    if (numRecords == MAX_NUM_RECORDS) {
+    if (numRecords == maxNumRecords) {
       throw new IllegalStateException(
           String.format("DmaIdList reaches its maximum number of records: %d", numRecords));
     }
     if (numRecords == capacity) {
       buffer = ByteBufferUtil.expandBuffer(filename, buffer,
-          META_DATA_SIZE + Math.min(MAX_NUM_RECORDS, 2 * capacity) * SIZE_OF_DATA);
+          dataOffset + Math.min(maxNumRecords, 2 * capacity) * SIZE_OF_DATA);
       capacity *= 2;
     }
-    buffer.putLong(id);
-    buffer.putInt(0, ++numRecords);
+    buffer.putLong(dataOffset + numRecords * SIZE_OF_DATA, id);
+    buffer.putInt(numRecordsOffset, numRecords + 1);
+    numRecords++;
+  }
+
+  /**
+   * The last id of the list, or -1 if it is empty.
+   */
+  public long getLastId() {
+    int numRecords = this.numRecords;
+    return numRecords == 0 ? -1 : buffer.getLong(dataOffset + (numRecords - 1) * SIZE_OF_DATA);
   }
 
   @Override
   public int getStartOffset(long eventId) {
+    int numRecords = this.numRecords;
     ByteBuffer duplicate = buffer.duplicate();
-    duplicate.position(META_DATA_SIZE);
-    duplicate = duplicate.slice();
+    duplicate.position(dataOffset);
+    // neither duplicate nor slice keeps the byte order
+    duplicate = duplicate.slice().order(buffer.order());
     return ByteBufferUtil.binarySearchOffset(duplicate, 0, numRecords, eventId, SIZE_OF_DATA);
   }
 
   @Override
   public Iterator subList(int startOffset, int maxRecords) {
+    int numRecords = this.numRecords;
     int endOffset = startOffset + maxRecords;
     endOffset = Math.min(endOffset < 0 ? Integer.MAX_VALUE : endOffset, numRecords);
-    return new Iterator(buffer, startOffset, endOffset);
+    return new Iterator(buffer, dataOffset, startOffset, endOffset);
   }
 
   @Override
   public Iterator iterator() {
-    return new Iterator(buffer, 0, numRecords);
+    int numRecords = this.numRecords;
+    return new Iterator(buffer, dataOffset, 0, numRecords);
   }
 
+  /**
+   * Only forces the buffer, as the readers may still be iterating over it. The mapping is
+   * released once the list is collected.
+   */
   @Override
   public void close() {
     buffer.force();
-    buffer = null;
+  }
+
+  /**
+   * The last id of the given list, or -1 if it is empty, read without mapping the file.
+   */
+  public static long readLastId(String filename) {
+    try (RandomAccessFile raf = new RandomAccessFile(new File(filename), "r")) {
+      // a legacy list of one record is shorter than the meta data of the current format
+      byte[] metaData = new byte[(int) Math.min(raf.length(), META_DATA_SIZE)];
+      raf.readFully(metaData);
+      ByteBuffer buffer = ByteBuffer.wrap(metaData);
+      boolean hasHeader = ByteOrderHeader.isPresent(buffer, 0);
+      buffer.order(ByteOrderHeader.read(buffer, 0));
+      int numRecords = buffer.getInt(hasHeader ? ByteOrderHeader.SIZE : 0);
+      if (numRecords == 0) {
+        return -1;
+      }
+      byte[] lastId = new byte[SIZE_OF_DATA];
+      raf.seek((hasHeader ? META_DATA_SIZE : LEGACY_META_DATA_SIZE) +
+          (numRecords - 1) * (long) SIZE_OF_DATA);
+      raf.readFully(lastId);
+      return ByteBuffer.wrap(lastId).order(buffer.order()).getLong();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
   }
 
   public interface Factory {
     DmaIdList build(String filename);
     void setDefaultCapacity(int defaultCapacity);
+    void setByteOrder(ByteOrder byteOrder);
   }
 
   public static class Iterator implements IdList.Iterator {
     private final MappedByteBuffer buffer;
+    private final int dataOffset;
     private final long start;
     private final long end;
     private long offset;
 
-    public Iterator(MappedByteBuffer buffer, long start, long end) {
+    public Iterator(MappedByteBuffer buffer, int dataOffset, long start, long end) {
       this.buffer = buffer;
+      this.dataOffset = dataOffset;
       this.start = start;
       this.end = end;
       this.offset = 0;
@@ -96,7 +159,7 @@ public class DmaIdList implements IdList, Closeable {
     @Override
     public long next() {
       long kthRecord = start + (offset++);
-      return buffer.getLong(META_DATA_SIZE + (int) kthRecord * SIZE_OF_DATA);
+      return buffer.getLong(dataOffset + (int) kthRecord * SIZE_OF_DATA);
     }
   }
 }
@@ -1,10 +1,12 @@
 package com.codecademy.eventhub.list;
 
+import com.codecademy.eventhub.base.ByteOrderHeader;
 import com.google.inject.AbstractModule;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 
@@ -16,9 +18,11 @@ public class DmaIdListModule extends AbstractModule {
 
   private static class DmaIdListFactory implements DmaIdList.Factory {
     private int defaultCapacity;
+    private ByteOrder byteOrder;
 
     private DmaIdListFactory() {
       this.defaultCapacity = 10;
+      this.byteOrder = ByteOrder.nativeOrder();
     }
 
     @Override
@@ -26,6 +30,14 @@ public class DmaIdListModule extends AbstractModule {
       this.defaultCapacity = defaultCapacity;
     }
 
+    /**
+     * The byte order of the new lists, the existing ones are read in the order of their header.
+     */
+    @Override
+    public void setByteOrder(ByteOrder byteOrder) {
+      this.byteOrder = byteOrder;
+    }
+
     @Override
     public DmaIdList build(String filename) {
       try {
@@ -37,15 +49,22 @@ public class DmaIdListModule extends AbstractModule {
           file.createNewFile();
           try (RandomAccessFile raf = new RandomAccessFile(new File(filename), "rw")) {
             raf.setLength(DmaIdList.META_DATA_SIZE + defaultCapacity * DmaIdList.SIZE_OF_DATA);
+            MappedByteBuffer buffer = raf.getChannel().map(
+                FileChannel.MapMode.READ_WRITE, 0, ByteOrderHeader.SIZE);
+            ByteOrderHeader.write(buffer, 0, byteOrder);
+            buffer.force();
           }
         }
         try (RandomAccessFile raf = new RandomAccessFile(new File(filename), "rw")) {
           FileChannel channel = raf.getChannel();
           MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
-          int numRecords = buffer.getInt();
-          int capacity = (int) (raf.length() - DmaIdList.META_DATA_SIZE) / DmaIdList.SIZE_OF_DATA;
-          buffer.position(DmaIdList.META_DATA_SIZE + numRecords * DmaIdList.SIZE_OF_DATA);
-          return new DmaIdList(filename, buffer, numRecords, capacity);
+          boolean hasHeader = ByteOrderHeader.isPresent(buffer, 0);
+          buffer.order(ByteOrderHeader.read(buffer, 0));
+          int metaDataSize = hasHeader ? DmaIdList.META_DATA_SIZE : DmaIdList.LEGACY_META_DATA_SIZE;
+          int numRecords = buffer.getInt(hasHeader ? ByteOrderHeader.SIZE : 0);
+          int capacity = (int) (raf.length() - metaDataSize) / DmaIdList.SIZE_OF_DATA;
+          buffer.position(metaDataSize + numRecords * DmaIdList.SIZE_OF_DATA);
+          return new DmaIdList(filename, buffer, hasHeader, numRecords, capacity);
         }
       } catch (IOException e) {
         throw new RuntimeException(e);
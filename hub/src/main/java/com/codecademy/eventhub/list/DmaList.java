@@ -26,7 +26,7 @@ public class DmaList<T> implements Closeable {
   private final MappedByteBuffer metaDataBuffer;
   // O(numFiles)
   private LoadingCache<Integer, MappedByteBuffer> buffers;
-  private long maxId;
+  private volatile long maxId;
   private int numRecordsPerFile;
 
   public DmaList(String directory, Schema<T> schema, MappedByteBuffer metaDataBuffer,
@@ -48,8 +48,14 @@ public class DmaList<T> implements Closeable {
   }
 
   public void update(long id, T t) {
-    if (id > maxId) {
-      maxId = id;
+    if (id >= maxId) {
+      // ids may be updated concurrently, as long as they are distinct
+      synchronized (this) {
+        if (id >= maxId) {
+          maxId = id + 1;
+          metaDataBuffer.putLong(0, maxId);
+        }
+      }
     }
     int currentBufferIndex = (int) (id / numRecordsPerFile);
     ByteBuffer duplicate = buffers.getUnchecked(currentBufferIndex).duplicate();
@@ -75,6 +81,18 @@ public class DmaList<T> implements Closeable {
     return bytes;
   }
 
+  /**
+   * The mapped buffer holding the kth record at getOffset(kthRecord), for reading it in place.
+   * The buffer is shared, hence only absolute gets are allowed on it.
+   */
+  public ByteBuffer getMappedBuffer(long kthRecord) {
+    return buffers.getUnchecked((int) (kthRecord / numRecordsPerFile));
+  }
+
+  public int getOffset(long kthRecord) {
+    return (int) (kthRecord % numRecordsPerFile) * schema.getObjectSize();
+  }
+
   public long getMaxId() {
     return maxId;
   }
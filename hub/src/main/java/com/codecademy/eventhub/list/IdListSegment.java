@@ -0,0 +1,278 @@
+package com.codecademy.eventhub.list;
+
+import com.codecademy.eventhub.base.ByteOrderHeader;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An immutable file of several sorted id lists, e.g. of the days of a month, laid out as
+ * (ByteOrderHeader, int numLists, (int key, int endOffset) * numLists, int padding,
+ * long id * numIds) in the byte order of its header, where the keys are sorted and the ids of a
+ * list run from the end offset of the list before it. The segments of a former version have
+ * neither the header nor the padding, and are big-endian.
+ *
+ * As for DmaIdList, the whole file has to fit in a MappedByteBuffer. The segments of the months
+ * which are rarely queried are rather kept in the ColdIdListSegment format, which reads the ids
+ * through the same class.
+ */
+public class IdListSegment implements Closeable {
+  public static final long MAX_SIZE = Integer.MAX_VALUE;
+  private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+  private static final int SIZE_OF_DATA = 8;
+
+  private final int[] keys;
+  private final int[] endOffsets;
+  private final Ids ids;
+
+  public IdListSegment(int[] keys, int[] endOffsets, Ids ids) {
+    this.keys = keys;
+    this.endOffsets = endOffsets;
+    this.ids = ids;
+  }
+
+  public int[] getKeys() {
+    return keys.clone();
+  }
+
+  public IdList.Iterator iterator(int key) {
+    int i = Arrays.binarySearch(keys, key);
+    if (i < 0) {
+      return ids.iterator(0, 0);
+    }
+    return ids.iterator(i == 0 ? 0 : endOffsets[i - 1], endOffsets[i]);
+  }
+
+  /**
+   * Iterates over the ids of all the lists, list after list.
+   */
+  public IdList.Iterator iterator() {
+    return ids.iterator(0, getNumIds());
+  }
+
+  /**
+   * The last id of the given list, or -1 if it is empty.
+   */
+  public long getLastId(int key) {
+    int i = Arrays.binarySearch(keys, key);
+    if (i < 0 || endOffsets[i] == (i == 0 ? 0 : endOffsets[i - 1])) {
+      return -1;
+    }
+    return ids.get(endOffsets[i] - 1);
+  }
+
+  public int getNumIds() {
+    return keys.length == 0 ? 0 : endOffsets[keys.length - 1];
+  }
+
+  @Override
+  public void close() {
+    ids.close();
+  }
+
+  /**
+   * Where the ids of the lists are read from, by their offset in the segment.
+   */
+  public interface Ids {
+    long get(int offset);
+    IdList.Iterator iterator(int start, int end);
+    void close();
+  }
+
+  private static class MappedIds implements Ids {
+    private final MappedByteBuffer buffer;
+    private final int dataOffset;
+
+    public MappedIds(MappedByteBuffer buffer, int dataOffset) {
+      this.buffer = buffer;
+      this.dataOffset = dataOffset;
+    }
+
+    @Override
+    public long get(int offset) {
+      return buffer.getLong(dataOffset + offset * SIZE_OF_DATA);
+    }
+
+    @Override
+    public IdList.Iterator iterator(int start, int end) {
+      return new Iterator(buffer, dataOffset, start, end);
+    }
+
+    @Override
+    public void close() {}
+  }
+
+  public static class Iterator implements IdList.Iterator {
+    private final ByteBuffer buffer;
+    private final int dataOffset;
+    private final int end;
+    private int offset;
+
+    public Iterator(ByteBuffer buffer, int dataOffset, int start, int end) {
+      this.buffer = buffer;
+      this.dataOffset = dataOffset;
+      this.end = end;
+      this.offset = start;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return offset < end;
+    }
+
+    @Override
+    public long next() {
+      return buffer.getLong(dataOffset + (offset++) * SIZE_OF_DATA);
+    }
+  }
+
+  public static IdListSegment open(String filename) {
+    try (RandomAccessFile raf = new RandomAccessFile(new File(filename), "r")) {
+      MappedByteBuffer buffer = raf.getChannel().map(
+          FileChannel.MapMode.READ_ONLY, 0, raf.length());
+      boolean hasHeader = ByteOrderHeader.isPresent(buffer, 0);
+      buffer.order(ByteOrderHeader.read(buffer, 0));
+      int headerSize = hasHeader ? ByteOrderHeader.SIZE : 0;
+      int numLists = buffer.getInt(headerSize);
+      int[] keys = new int[numLists];
+      int[] endOffsets = new int[numLists];
+      for (int i = 0; i < numLists; i++) {
+        keys[i] = buffer.getInt(headerSize + 4 + i * 8);
+        endOffsets[i] = buffer.getInt(headerSize + 8 + i * 8);
+      }
+      return new IdListSegment(keys, endOffsets,
+          new MappedIds(buffer, getDataOffset(numLists, hasHeader)));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Reads the keys from the header alone, without mapping the file.
+   */
+  public static int[] readKeys(String filename) {
+    try (RandomAccessFile raf = new RandomAccessFile(new File(filename), "r")) {
+      FileChannel channel = raf.getChannel();
+      ByteBuffer header = read(channel, 0, (int) Math.min(raf.length(), ByteOrderHeader.SIZE + 4));
+      boolean hasHeader = ByteOrderHeader.isPresent(header, 0);
+      ByteOrder byteOrder = ByteOrderHeader.read(header, 0);
+      int headerSize = hasHeader ? ByteOrderHeader.SIZE : 0;
+      int numLists = header.order(byteOrder).getInt(headerSize);
+      ByteBuffer index = read(channel, headerSize + 4, numLists * 8).order(byteOrder);
+      int[] keys = new int[numLists];
+      for (int i = 0; i < numLists; i++) {
+        keys[i] = index.getInt(i * 8);
+      }
+      return keys;
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * The largest last id of the lists, or -1 if they are empty, read without mapping the file.
+   */
+  public static long readMaxId(String filename) {
+    try (RandomAccessFile raf = new RandomAccessFile(new File(filename), "r")) {
+      FileChannel channel = raf.getChannel();
+      ByteBuffer header = read(channel, 0, (int) Math.min(raf.length(), ByteOrderHeader.SIZE + 4));
+      boolean hasHeader = ByteOrderHeader.isPresent(header, 0);
+      ByteOrder byteOrder = ByteOrderHeader.read(header, 0);
+      int headerSize = hasHeader ? ByteOrderHeader.SIZE : 0;
+      int numLists = header.order(byteOrder).getInt(headerSize);
+      ByteBuffer index = read(channel, headerSize + 4, numLists * 8).order(byteOrder);
+      int dataOffset = getDataOffset(numLists, hasHeader);
+      long maxId = -1;
+      int startOffset = 0;
+      for (int i = 0; i < numLists; i++) {
+        int endOffset = index.getInt(i * 8 + 4);
+        if (endOffset > startOffset) {
+          maxId = Math.max(maxId, read(channel, dataOffset + (endOffset - 1) * (long) SIZE_OF_DATA,
+              SIZE_OF_DATA).order(byteOrder).getLong());
+        }
+        startOffset = endOffset;
+      }
+      return maxId;
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Writes the given lists, one per key, in the given byte order and syncs the file. The keys have
+   * to be sorted.
+   */
+  public static void write(String filename, int[] keys, List<IdList.Iterator> iterators,
+      ByteOrder byteOrder) {
+    int[] endOffsets = new int[keys.length];
+    try (RandomAccessFile raf = new RandomAccessFile(new File(filename), "rw")) {
+      raf.setLength(0);
+      FileChannel channel = raf.getChannel();
+      ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE).order(byteOrder);
+      long position = getDataOffset(keys.length, true);
+      int numIds = 0;
+      for (int i = 0; i < keys.length; i++) {
+        IdList.Iterator iterator = iterators.get(i);
+        while (iterator.hasNext()) {
+          if (!buffer.hasRemaining()) {
+            position += write(channel, buffer, position);
+          }
+          buffer.putLong(iterator.next());
+          numIds++;
+        }
+        endOffsets[i] = numIds;
+      }
+      write(channel, buffer, position);
+
+      ByteBuffer header = ByteBuffer.allocate(getDataOffset(keys.length, true)).order(byteOrder);
+      ByteOrderHeader.write(header, 0, byteOrder);
+      header.position(ByteOrderHeader.SIZE);
+      header.putInt(keys.length);
+      for (int i = 0; i < keys.length; i++) {
+        header.putInt(keys[i]);
+        header.putInt(endOffsets[i]);
+      }
+      header.position(header.capacity());
+      write(channel, header, 0);
+      channel.force(true);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static int write(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    buffer.flip();
+    int numBytes = 0;
+    while (buffer.hasRemaining()) {
+      numBytes += channel.write(buffer, position + numBytes);
+    }
+    buffer.clear();
+    return numBytes;
+  }
+
+  private static ByteBuffer read(FileChannel channel, long position, int length)
+      throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("unexpected end of " + channel);
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  // the ids of the segments with a header are aligned on 8 bytes
+  private static int getDataOffset(int numLists, boolean hasHeader) {
+    return hasHeader ? ByteOrderHeader.SIZE + 8 + numLists * 8 : 4 + numLists * 8;
+  }
+}
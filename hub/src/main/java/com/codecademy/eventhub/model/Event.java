@@ -2,44 +2,100 @@ package com.codecademy.eventhub.model;
 
 import com.google.common.collect.Maps;
 import com.codecademy.eventhub.base.ByteBufferMap;
+import com.codecademy.eventhub.base.InternedByteBufferMap;
+import com.codecademy.eventhub.base.KeyDictionary;
 import com.codecademy.eventhub.base.KeyValueCallback;
+import com.codecademy.eventhub.base.KeyValueMap;
 
 import java.nio.ByteBuffer;
 import java.util.Map;
 
 public class Event {
-  private final ByteBufferMap byteBufferMap;
+  public static final String EVENT_TYPE = "event_type";
 
-  private Event(ByteBufferMap byteBufferMap) {
-    this.byteBufferMap = byteBufferMap;
+  // null when the event type is stored in keyValueMap itself
+  private final String eventType;
+  private final KeyValueMap keyValueMap;
+
+  private Event(String eventType, KeyValueMap keyValueMap) {
+    this.eventType = eventType;
+    this.keyValueMap = keyValueMap;
   }
 
   public String getEventType() {
-    return byteBufferMap.get("event_type");
+    return get(EVENT_TYPE);
   }
 
   public String getDate() {
-    return byteBufferMap.get("date");
+    return keyValueMap.get("date");
   }
 
   public String getExternalUserId() {
-    return byteBufferMap.get("external_user_id");
+    return keyValueMap.get("external_user_id");
   }
 
   public String get(String key) {
-    return byteBufferMap.get(key);
+    if (eventType != null && EVENT_TYPE.equals(key)) {
+      return eventType;
+    }
+    return keyValueMap.get(key);
   }
 
   public void enumerate(KeyValueCallback callback) {
-    byteBufferMap.enumerate(callback);
+    if (eventType != null) {
+      callback.callback(EVENT_TYPE, eventType);
+    }
+    keyValueMap.enumerate(callback);
   }
 
   public ByteBuffer toByteBuffer() {
-    return byteBufferMap.toByteBuffer();
+    if (eventType == null) {
+      return keyValueMap.toByteBuffer();
+    }
+    final Map<String, String> allProperties = Maps.newHashMap();
+    enumerate(new KeyValueCallback() {
+      @Override
+      public void callback(String key, String value) {
+        allProperties.put(key, value);
+      }
+    });
+    return ByteBufferMap.build(allProperties).toByteBuffer();
+  }
+
+  /**
+   * Serializes everything but the event type, which the caller is expected to store separately,
+   * with the keys interned in the given dictionary.
+   */
+  public ByteBuffer toInternedByteBuffer(KeyDictionary keyDictionary) {
+    if (isInterned(keyDictionary)) {
+      return keyValueMap.toByteBuffer();
+    }
+    final Map<String, String> properties = Maps.newHashMap();
+    keyValueMap.enumerate(new KeyValueCallback() {
+      @Override
+      public void callback(String key, String value) {
+        properties.put(key, value);
+      }
+    });
+    properties.remove(EVENT_TYPE);
+    return InternedByteBufferMap.build(properties, keyDictionary).toByteBuffer();
+  }
+
+  /**
+   * Whether the event was read with its keys interned in the given dictionary.
+   */
+  public boolean isInterned(KeyDictionary keyDictionary) {
+    return keyValueMap instanceof InternedByteBufferMap
+        && ((InternedByteBufferMap) keyValueMap).getKeyDictionary() == keyDictionary;
   }
 
   public static Event fromByteBuffer(ByteBuffer byteBuffer) {
-    return new Event(new ByteBufferMap(byteBuffer.duplicate()));
+    return new Event(null, new ByteBufferMap(byteBuffer.duplicate()));
+  }
+
+  public static Event fromInternedByteBuffer(String eventType, ByteBuffer byteBuffer,
+      KeyDictionary keyDictionary) {
+    return new Event(eventType, new InternedByteBufferMap(keyDictionary, byteBuffer.duplicate()));
   }
 
   @Override
@@ -72,10 +128,10 @@ public class Event {
     public Event build() {
       Map<String, String> allProperties = Maps.newHashMap();
       allProperties.putAll(properties);
-      allProperties.put("event_type", eventType);
+      allProperties.put(EVENT_TYPE, eventType);
       allProperties.put("date", date);
       allProperties.put("external_user_id", externalUserId);
-      return new Event(ByteBufferMap.build(allProperties));
+      return new Event(null, ByteBufferMap.build(allProperties));
     }
   }
 }
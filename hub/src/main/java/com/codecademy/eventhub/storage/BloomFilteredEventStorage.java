@@ -1,8 +1,9 @@
 package com.codecademy.eventhub.storage;
 
 import com.codecademy.eventhub.storage.filter.ExactMatch;
-import com.codecademy.eventhub.base.BloomFilter;
+import com.codecademy.eventhub.base.BlockedBloomFilter;
 import com.codecademy.eventhub.base.KeyValueCallback;
+import com.codecademy.eventhub.list.DmaBlobList;
 import com.codecademy.eventhub.list.DmaList;
 import com.codecademy.eventhub.model.Event;
 import com.codecademy.eventhub.storage.filter.Regex;
@@ -11,33 +12,64 @@ import com.codecademy.eventhub.storage.visitor.Visitor;
 
 import javax.inject.Provider;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * The bloom filter of an event is sized after the largest number of properties seen so far for
+ * its event type, at bitsPerProperty bits per property rounded up to a power of two, with the
+ * number of hashes which minimizes the false positive rate at that size. The filters are stored
+ * in a DmaBlobList, as (int eventTypeId, byte numHashes, filter).
+ */
 public class BloomFilteredEventStorage extends DelegateEventStorage {
-  private final DmaList<BloomFilter> bloomFilterDmaList;
-  private final Provider<BloomFilter> bloomFilterProvider;
-  private long numConditionCheck;
-  private long numBloomFilterRejection;
+  private static final int HEADER_SIZE = 5; // event type id + num hashes
+  private static final int MIN_BLOOM_FILTER_SIZE = 8;
+  private static final int MAX_NUM_HASHES = 16;
+  // the largest size whose number of bits fits in an int
+  private static final int MAX_LOG2_BLOOM_FILTER_SIZE = Integer.SIZE - 5;
 
-  public BloomFilteredEventStorage(EventStorage eventStorage,
-      DmaList<BloomFilter> bloomFilterDmaList, Provider<BloomFilter> bloomFilterProvider) {
+  private final DmaBlobList bloomFilterList;
+  private final DmaList<Integer> maxNumPropertiesList;
+  private final int bitsPerProperty;
+  private final int maxBloomFilterSize;
+  // indexed by log2(size in bytes) and number of hashes, all built upfront
+  private final BlockedBloomFilter[][] bloomFilters;
+  private volatile EventTypeStats[] eventTypeStats;
+  private final AtomicLong numConditionCheck;
+  private final AtomicLong numBloomFilterRejection;
+
+  public BloomFilteredEventStorage(EventStorage eventStorage, DmaBlobList bloomFilterList,
+      DmaList<Integer> maxNumPropertiesList, int bitsPerProperty, int maxBloomFilterSize) {
     super(eventStorage);
-    this.bloomFilterDmaList = bloomFilterDmaList;
-    this.bloomFilterProvider = bloomFilterProvider;
-    this.numConditionCheck = 0;
-    this.numBloomFilterRejection = 0;
+    this.bloomFilterList = bloomFilterList;
+    this.maxNumPropertiesList = maxNumPropertiesList;
+    this.bitsPerProperty = bitsPerProperty;
+    this.maxBloomFilterSize = maxBloomFilterSize;
+    this.bloomFilters = new BlockedBloomFilter[MAX_LOG2_BLOOM_FILTER_SIZE + 1][MAX_NUM_HASHES + 1];
+    for (int log2Size = 0; log2Size < bloomFilters.length; log2Size++) {
+      for (int numHashes = 1; numHashes <= MAX_NUM_HASHES; numHashes++) {
+        bloomFilters[log2Size][numHashes] = new BlockedBloomFilter(numHashes, 1 << log2Size);
+      }
+    }
+    this.eventTypeStats = new EventTypeStats[0];
+    this.numConditionCheck = new AtomicLong();
+    this.numBloomFilterRejection = new AtomicLong();
+    ensureEventTypeStats((int) maxNumPropertiesList.getMaxId() - 1);
+    for (int eventTypeId = 0; eventTypeId < maxNumPropertiesList.getMaxId(); eventTypeId++) {
+      eventTypeStats[eventTypeId].maxNumProperties = maxNumPropertiesList.get(eventTypeId);
+    }
+    // the filters of the events added before they were introduced, or lost in a crash
+    for (long eventId = bloomFilterList.getMaxId(); eventId < getNumRecords(); eventId++) {
+      addBloomFilter(eventId, getEvent(eventId), getEventTypeId(eventId));
+    }
   }
 
   @Override
   public long addEvent(Event event, int userId, int eventTypeId) {
-    final BloomFilter bloomFilter = bloomFilterProvider.get();
-    event.enumerate(new KeyValueCallback() {
-      @Override
-      public void callback(String key, String value) {
-        bloomFilter.add(getBloomFilterKey(key, value));
-      }
-    });
-    bloomFilterDmaList.add(bloomFilter);
-    return super.addEvent(event, userId, eventTypeId);
+    long eventId = super.addEvent(event, userId, eventTypeId);
+    addBloomFilter(eventId, event, eventTypeId);
+    return eventId;
   }
 
   @Override
@@ -45,10 +77,9 @@ public class BloomFilteredEventStorage extends DelegateEventStorage {
     return new DelayedVisitorProxy(new Provider<Visitor>() {
       @Override
       public Visitor get() {
-        final BloomFilter bloomFilter = bloomFilterDmaList.get(eventId);
         final Visitor visitorFromSuper = BloomFilteredEventStorage.super.getFilterVisitor(eventId);
-        numConditionCheck++;
-        return new BloomFilteredFilterVisitor(bloomFilter, visitorFromSuper);
+        numConditionCheck.incrementAndGet();
+        return new BloomFilteredFilterVisitor(eventId, visitorFromSuper);
       }
     });
   }
@@ -56,39 +87,131 @@ public class BloomFilteredEventStorage extends DelegateEventStorage {
   @Override
   public String getVarz(int indentation) {
     String indent  = new String(new char[indentation]).replace('\0', ' ');
+    StringBuilder eventTypeVarz = new StringBuilder();
+    EventTypeStats[] eventTypeStats = this.eventTypeStats;
+    for (int eventTypeId = 0; eventTypeId < eventTypeStats.length; eventTypeId++) {
+      EventTypeStats stats = eventTypeStats[eventTypeId];
+      if (stats.maxNumProperties == 0) {
+        continue;
+      }
+      long numBloomFilterCheck = stats.numBloomFilterCheck.get();
+      long numBloomFilterRejection = stats.numBloomFilterRejection.get();
+      int bloomFilterSize = getBloomFilterSize(stats.maxNumProperties);
+      eventTypeVarz.append(String.format(
+          "\n" + indent + " %s: max num properties: %d, bloomfilter size: %d, num hashes: %d, " +
+          "num check: %d, num rejection: %d (%.1f%%)",
+          getEventDictionary().getEventType(eventTypeId), stats.maxNumProperties,
+          bloomFilterSize, getNumHashes(bloomFilterSize, stats.maxNumProperties),
+          numBloomFilterCheck, numBloomFilterRejection,
+          numBloomFilterCheck == 0 ? 0.0 : 100.0 * numBloomFilterRejection / numBloomFilterCheck));
+    }
     return String.format(
         "%s\n\n" +
         indent + this.getClass().getName() + "\n" +
         indent + "==================\n" +
         indent + "num condition check: %d\n" +
-        indent + "num bloomfilter rejection: %d",
-        super.getVarz(indentation), numConditionCheck, numBloomFilterRejection);
+        indent + "num bloomfilter rejection: %d\n" +
+        indent + "per event type:%s\n" +
+        indent + "bloomfilters:\n%s",
+        super.getVarz(indentation), numConditionCheck.get(), numBloomFilterRejection.get(),
+        eventTypeVarz,
+        bloomFilterList.getVarz(indentation + 1));
   }
 
   @Override
   public void close() throws IOException {
-    bloomFilterDmaList.close();
+    bloomFilterList.close();
+    maxNumPropertiesList.close();
     super.close();
   }
 
-  private static String getBloomFilterKey(String key, String value) {
-    return key + value;
+  private void addBloomFilter(long eventId, Event event, int eventTypeId) {
+    final int[] numProperties = new int[1];
+    event.enumerate(new KeyValueCallback() {
+      @Override
+      public void callback(String key, String value) {
+        numProperties[0]++;
+      }
+    });
+    ensureEventTypeStats(eventTypeId);
+    EventTypeStats stats = eventTypeStats[eventTypeId];
+    if (numProperties[0] > stats.maxNumProperties) {
+      stats.maxNumProperties = numProperties[0];
+      maxNumPropertiesList.update(eventTypeId, numProperties[0]);
+    }
+
+    int bloomFilterSize = getBloomFilterSize(stats.maxNumProperties);
+    int numHashes = getNumHashes(bloomFilterSize, stats.maxNumProperties);
+    final BlockedBloomFilter bloomFilter = getBloomFilter(bloomFilterSize, numHashes);
+    final byte[] filter = new byte[bloomFilterSize];
+    event.enumerate(new KeyValueCallback() {
+      @Override
+      public void callback(String key, String value) {
+        bloomFilter.add(filter, BlockedBloomFilter.hash(key, value));
+      }
+    });
+    ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + bloomFilterSize);
+    record.putInt(eventTypeId).put((byte) numHashes).put(filter);
+    bloomFilterList.update(eventId, record.array());
+  }
+
+  private void ensureEventTypeStats(int eventTypeId) {
+    EventTypeStats[] eventTypeStats = this.eventTypeStats;
+    if (eventTypeId < eventTypeStats.length) {
+      return;
+    }
+    int oldLength = eventTypeStats.length;
+    eventTypeStats = Arrays.copyOf(eventTypeStats, eventTypeId + 1);
+    for (int i = oldLength; i < eventTypeStats.length; i++) {
+      eventTypeStats[i] = new EventTypeStats();
+    }
+    this.eventTypeStats = eventTypeStats;
+  }
+
+  private int getBloomFilterSize(int numProperties) {
+    int size = MIN_BLOOM_FILTER_SIZE;
+    while (size < maxBloomFilterSize && size * 8 < numProperties * bitsPerProperty) {
+      size *= 2;
+    }
+    return size;
+  }
+
+  private static int getNumHashes(int bloomFilterSize, int numProperties) {
+    int numHashes = (int) Math.round(Math.log(2) * bloomFilterSize * 8 / numProperties);
+    return Math.max(1, Math.min(MAX_NUM_HASHES, numHashes));
+  }
+
+  private BlockedBloomFilter getBloomFilter(int bloomFilterSize, int numHashes) {
+    return bloomFilters[Integer.numberOfTrailingZeros(bloomFilterSize)][numHashes];
+  }
+
+  private static class EventTypeStats {
+    private int maxNumProperties;
+    private final AtomicLong numBloomFilterCheck = new AtomicLong();
+    private final AtomicLong numBloomFilterRejection = new AtomicLong();
   }
 
   private class BloomFilteredFilterVisitor implements Visitor {
-    private final BloomFilter bloomFilter;
+    private final long eventId;
     private final Visitor visitor;
 
-    public BloomFilteredFilterVisitor(BloomFilter bloomFilter, Visitor visitor) {
-      this.bloomFilter = bloomFilter;
+    public BloomFilteredFilterVisitor(long eventId, Visitor visitor) {
+      this.eventId = eventId;
       this.visitor = visitor;
     }
 
     @Override
     public boolean visit(ExactMatch exactMatch) {
-      String bloomFilterKey = getBloomFilterKey(exactMatch.getKey(), exactMatch.getValue());
-      if (!bloomFilter.isPresent(bloomFilterKey)) {
-        numBloomFilterRejection++;
+      ByteBuffer buffer = bloomFilterList.getMappedBuffer(eventId);
+      int offset = bloomFilterList.getOffset(eventId);
+      EventTypeStats stats = eventTypeStats[buffer.getInt(offset)];
+      BlockedBloomFilter bloomFilter = getBloomFilter(
+          bloomFilterList.getLength(eventId) - HEADER_SIZE, buffer.get(offset + 4));
+      long hash = BlockedBloomFilter.hash(exactMatch.getKey(), exactMatch.getValue());
+      stats.numBloomFilterCheck.incrementAndGet();
+      if (!bloomFilter.isPresent(buffer, offset + HEADER_SIZE, hash)) {
+        stats.numBloomFilterRejection.incrementAndGet();
+        numBloomFilterRejection.incrementAndGet();
         return false;
       }
       return visitor.visit(exactMatch);
@@ -99,4 +222,21 @@ public class BloomFilteredEventStorage extends DelegateEventStorage {
       return visitor.visit(regex);
     }
   }
+
+  public static class MaxNumPropertiesSchema implements com.codecademy.eventhub.base.Schema<Integer> {
+    @Override
+    public int getObjectSize() {
+      return 4;
+    }
+
+    @Override
+    public byte[] toBytes(Integer maxNumProperties) {
+      return ByteBuffer.allocate(4).putInt(maxNumProperties).array();
+    }
+
+    @Override
+    public Integer fromBytes(byte[] bytes) {
+      return ByteBuffer.wrap(bytes).getInt();
+    }
+  }
 }
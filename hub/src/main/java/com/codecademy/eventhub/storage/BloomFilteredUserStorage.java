@@ -2,7 +2,7 @@ package com.codecademy.eventhub.storage;
 
 import com.google.common.collect.Maps;
 import com.codecademy.eventhub.storage.filter.ExactMatch;
-import com.codecademy.eventhub.base.BloomFilter;
+import com.codecademy.eventhub.base.BlockedBloomFilter;
 import com.codecademy.eventhub.base.KeyValueCallback;
 import com.codecademy.eventhub.list.DmaList;
 import com.codecademy.eventhub.model.User;
@@ -12,20 +12,28 @@ import com.codecademy.eventhub.storage.visitor.Visitor;
 
 import javax.inject.Provider;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class BloomFilteredUserStorage extends DelegateUserStorage {
-  private final DmaList<BloomFilter> bloomFilterDmaList;
-  private final Provider<BloomFilter> bloomFilterProvider;
-  private long numConditionCheck;
-  private long numBloomFilterRejection;
+  private final DmaList<byte[]> bloomFilterDmaList;
+  private final BlockedBloomFilter bloomFilter;
+  private final AtomicLong numConditionCheck;
+  private final AtomicLong numBloomFilterRejection;
 
   public BloomFilteredUserStorage(UserStorage userStorage,
-      DmaList<BloomFilter> bloomFilterDmaList, Provider<BloomFilter> bloomFilterProvider) {
+      DmaList<byte[]> bloomFilterDmaList, BlockedBloomFilter bloomFilter) {
     super(userStorage);
     this.bloomFilterDmaList = bloomFilterDmaList;
-    this.bloomFilterProvider = bloomFilterProvider;
-    this.numConditionCheck = 0;
-    this.numBloomFilterRejection = 0;
+    this.bloomFilter = bloomFilter;
+    this.numConditionCheck = new AtomicLong(0);
+    this.numBloomFilterRejection = new AtomicLong(0);
+    // the filters of the users added before they were introduced, or lost in a crash
+    for (int userId = (int) bloomFilterDmaList.getMaxId(); userId < getNumRecords(); userId++) {
+      bloomFilterDmaList.update(userId, buildBloomFilter(getUser(userId)));
+    }
   }
 
   @Override
@@ -35,29 +43,15 @@ public class BloomFilteredUserStorage extends DelegateUserStorage {
       return id;
     }
     id = super.ensureUser(externalUserId);
-    final BloomFilter bloomFilter = bloomFilterProvider.get();
     User user = new User.Builder(externalUserId, Maps.<String, String>newHashMap()).build();
-    user.enumerate(new KeyValueCallback() {
-      @Override
-      public void callback(String key, String value) {
-        bloomFilter.add(getBloomFilterKey(key, value));
-      }
-    });
-    bloomFilterDmaList.add(bloomFilter);
+    bloomFilterDmaList.update(id, buildBloomFilter(user));
     return id;
   }
 
   @Override
   public int updateUser(User user) {
     int id = getId(user.getExternalId());
-    final BloomFilter bloomFilter = bloomFilterProvider.get();
-    user.enumerate(new KeyValueCallback() {
-      @Override
-      public void callback(String key, String value) {
-        bloomFilter.add(getBloomFilterKey(key, value));
-      }
-    });
-    bloomFilterDmaList.update(id, bloomFilter);
+    bloomFilterDmaList.update(id, buildBloomFilter(user));
     return super.updateUser(user);
   }
 
@@ -66,14 +60,50 @@ public class BloomFilteredUserStorage extends DelegateUserStorage {
     return new DelayedVisitorProxy(new Provider<Visitor>() {
       @Override
       public Visitor get() {
-        final BloomFilter bloomFilter = bloomFilterDmaList.get(userId);
         final Visitor visitorFromSuper = BloomFilteredUserStorage.super.getFilterVisitor(userId);
-        numConditionCheck++;
-        return new BloomFilteredFilterVisitor(bloomFilter, visitorFromSuper);
+        numConditionCheck.incrementAndGet();
+        return new BloomFilteredFilterVisitor(userId, visitorFromSuper);
       }
     });
   }
 
+  /**
+   * Sweeps the bloom filters of the chunk in user id order, so that each mapped page of filters
+   * is looked up once rather than once per user.
+   */
+  @Override
+  public BitSet getCandidates(int fromUserId, int toUserId, List<ExactMatch> requiredTerms) {
+    BitSet candidates = super.getCandidates(fromUserId, toUserId, requiredTerms);
+    if (requiredTerms.isEmpty()) {
+      return candidates;
+    }
+    long[] hashes = new long[requiredTerms.size()];
+    for (int i = 0; i < hashes.length; i++) {
+      hashes[i] = BlockedBloomFilter.hash(requiredTerms.get(i).getKey(),
+          requiredTerms.get(i).getValue());
+    }
+    // the filter of a user being added may not be written yet
+    int toFilteredUserId = (int) Math.min(toUserId, bloomFilterDmaList.getMaxId());
+    int numRejections = 0;
+    ByteBuffer buffer = null;
+    for (int userId = fromUserId; userId < toFilteredUserId; userId++) {
+      int offset = bloomFilterDmaList.getOffset(userId);
+      if (buffer == null || offset == 0) {
+        buffer = bloomFilterDmaList.getMappedBuffer(userId);
+      }
+      for (long hash : hashes) {
+        if (!bloomFilter.isPresent(buffer, offset, hash)) {
+          candidates.clear(userId - fromUserId);
+          numRejections++;
+          break;
+        }
+      }
+    }
+    numConditionCheck.addAndGet(Math.max(toFilteredUserId - fromUserId, 0));
+    numBloomFilterRejection.addAndGet(numRejections);
+    return candidates;
+  }
+
   @Override
   public String getVarz(int indentation) {
     String indent  = new String(new char[indentation]).replace('\0', ' ');
@@ -83,7 +113,7 @@ public class BloomFilteredUserStorage extends DelegateUserStorage {
         indent + "==================\n" +
         indent + "num condition check: %d\n" +
         indent + "num bloomfilter rejection: %d",
-        super.getVarz(indentation), numConditionCheck, numBloomFilterRejection);
+        super.getVarz(indentation), numConditionCheck.get(), numBloomFilterRejection.get());
   }
 
   @Override
@@ -92,24 +122,32 @@ public class BloomFilteredUserStorage extends DelegateUserStorage {
     super.close();
   }
 
-  private static String getBloomFilterKey(String key, String value) {
-    return key + value;
+  private byte[] buildBloomFilter(User user) {
+    final byte[] filter = new byte[bloomFilter.getSizeInBytes()];
+    user.enumerate(new KeyValueCallback() {
+      @Override
+      public void callback(String key, String value) {
+        bloomFilter.add(filter, BlockedBloomFilter.hash(key, value));
+      }
+    });
+    return filter;
   }
 
   private class BloomFilteredFilterVisitor implements Visitor {
-    private final BloomFilter bloomFilter;
+    private final int userId;
     private final Visitor visitor;
 
-    public BloomFilteredFilterVisitor(BloomFilter bloomFilter, Visitor visitor) {
-      this.bloomFilter = bloomFilter;
+    public BloomFilteredFilterVisitor(int userId, Visitor visitor) {
+      this.userId = userId;
       this.visitor = visitor;
     }
 
     @Override
     public boolean visit(ExactMatch exactMatch) {
-      String bloomFilterKey = getBloomFilterKey(exactMatch.getKey(), exactMatch.getValue());
-      if (!bloomFilter.isPresent(bloomFilterKey)) {
-        numBloomFilterRejection++;
+      long hash = BlockedBloomFilter.hash(exactMatch.getKey(), exactMatch.getValue());
+      if (!bloomFilter.isPresent(bloomFilterDmaList.getMappedBuffer(userId),
+          bloomFilterDmaList.getOffset(userId), hash)) {
+        numBloomFilterRejection.incrementAndGet();
         return false;
       }
       return visitor.visit(exactMatch);
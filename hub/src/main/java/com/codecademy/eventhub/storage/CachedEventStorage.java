@@ -1,31 +1,46 @@
 package com.codecademy.eventhub.storage;
 
-import com.google.common.cache.Cache;
+import com.codecademy.eventhub.base.OffHeapCache;
+import com.codecademy.eventhub.base.ScanContext;
 import com.codecademy.eventhub.model.Event;
 
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
+import java.nio.ByteBuffer;
 
+/**
+ * Caches events serialized by the EventDictionary of the underlying storage, prefixed by their
+ * event type id, in an OffHeapCache. Reads made within a ScanContext don't populate the cache.
+ * Caching an event never writes to the dictionary, the events of the former format are cached in
+ * that format.
+ */
 public class CachedEventStorage extends DelegateEventStorage {
-  private final Cache<Long, Event> eventCache;
+  private final OffHeapCache eventCache;
 
-  public CachedEventStorage(EventStorage eventStorage, Cache<Long, Event> eventCache) {
+  public CachedEventStorage(EventStorage eventStorage, OffHeapCache eventCache) {
     super(eventStorage);
     this.eventCache = eventCache;
   }
 
   @Override
-  public Event getEvent(final long eventId) {
-    try {
-      return eventCache.get(eventId, new Callable<Event>() {
-        @Override
-        public Event call() {
-          return CachedEventStorage.super.getEvent(eventId);
-        }
-      });
-    } catch (ExecutionException e) {
-      throw new RuntimeException(e);
+  public Event getEvent(long eventId) {
+    EventDictionary eventDictionary = getEventDictionary();
+    boolean isScanning = ScanContext.isScanning();
+    ByteBuffer cachedEvent = isScanning ? eventCache.getQuietly(eventId) : eventCache.get(eventId);
+    if (cachedEvent != null) {
+      int eventTypeId = cachedEvent.getInt(0);
+      cachedEvent.position(4);
+      return eventDictionary.decode(cachedEvent.slice(), eventTypeId);
     }
+
+    Event event = super.getEvent(eventId);
+    if (isScanning) {
+      return event;
+    }
+    int eventTypeId = super.getEventTypeId(eventId);
+    ByteBuffer payload = eventDictionary.encodeWithoutInterning(event, eventTypeId);
+    ByteBuffer value = ByteBuffer.allocate(4 + payload.remaining());
+    value.putInt(eventTypeId).put(payload).flip();
+    eventCache.put(eventId, value);
+    return event;
   }
 
   @Override
@@ -36,6 +51,6 @@ public class CachedEventStorage extends DelegateEventStorage {
         indent + this.getClass().getName() + "\n" +
         indent + "==================\n" +
         indent + "eventCache: %s",
-        super.getVarz(indentation), eventCache.stats().toString());
+        super.getVarz(indentation), eventCache.getStats());
   }
 }
@@ -0,0 +1,477 @@
+package com.codecademy.eventhub.storage;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import com.codecademy.eventhub.list.DmaList;
+import com.codecademy.eventhub.list.IdList;
+import com.codecademy.eventhub.model.Event;
+import com.codecademy.eventhub.storage.visitor.DelayedVisitorProxy;
+import com.codecademy.eventhub.storage.visitor.EventFilterVisitor;
+import com.codecademy.eventhub.storage.visitor.Visitor;
+
+import javax.inject.Provider;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Groups consecutive events into blocks of roughly blockSize bytes which are deflated with a
+ * dictionary shared by all blocks, i.e. the tail of the first block, since the payloads of
+ * consecutive events repeat themselves a lot.
+ *
+ * Events of the block being filled are kept in memory and in an uncompressed log which is
+ * replayed at startup, fsynced per event unless syncWrites is off, e.g. for a bulk import, in
+ * which case it is only synced when a block is sealed and on close. A block is laid out as numEvents, the end offset of each event, then
+ * the events serialized by EventDictionary.
+ */
+public class CompressedEventStorage implements EventStorage {
+  private static final int MAX_DICTIONARY_SIZE = 32 * 1024; // deflate window size
+
+  private final String directory;
+  private final MetaData.Schema schema;
+  private final DmaList<MetaData> metaDataList;
+  private final DmaList<BlockPointer> blockPointerList;
+  private final FileChannel blockChannel;
+  private final FileChannel pendingLogChannel;
+  private final LoadingCache<Integer, ByteBuffer> blockCache;
+  private final EventDictionary eventDictionary;
+  private final Deflater deflater;
+  private final int blockSize;
+  private final boolean syncWrites;
+  private final Object pendingLock;
+  private List<ByteBuffer> pendingEvents;
+  private int pendingSizeInBytes;
+  private volatile byte[] compressionDictionary;
+  private volatile int numBlocks;
+  private long blockFileSize;
+  private long currentId;
+
+  private CompressedEventStorage(String directory, MetaData.Schema schema,
+      DmaList<MetaData> metaDataList, DmaList<BlockPointer> blockPointerList,
+      FileChannel blockChannel, FileChannel pendingLogChannel, long blockCacheSizeInBytes,
+      EventDictionary eventDictionary, int blockSize, boolean syncWrites,
+      List<ByteBuffer> pendingEvents, byte[] compressionDictionary, long blockFileSize) {
+    this.directory = directory;
+    this.schema = schema;
+    this.metaDataList = metaDataList;
+    this.blockPointerList = blockPointerList;
+    this.blockChannel = blockChannel;
+    this.pendingLogChannel = pendingLogChannel;
+    this.eventDictionary = eventDictionary;
+    this.deflater = new Deflater();
+    this.blockSize = blockSize;
+    this.syncWrites = syncWrites;
+    this.pendingLock = new Object();
+    this.pendingEvents = pendingEvents;
+    this.compressionDictionary = compressionDictionary;
+    this.numBlocks = (int) blockPointerList.getMaxId();
+    this.blockFileSize = blockFileSize;
+    this.currentId = metaDataList.getMaxId();
+    for (ByteBuffer pendingEvent : pendingEvents) {
+      pendingSizeInBytes += pendingEvent.remaining();
+    }
+    this.blockCache = CacheBuilder.newBuilder()
+        .maximumWeight(blockCacheSizeInBytes)
+        .weigher(new Weigher<Integer, ByteBuffer>() {
+          @Override
+          public int weigh(Integer blockId, ByteBuffer block) {
+            return block.capacity();
+          }
+        })
+        .recordStats()
+        .build(new CacheLoader<Integer, ByteBuffer>() {
+          @Override
+          public ByteBuffer load(Integer blockId) throws Exception {
+            return readBlock(blockId);
+          }
+        });
+  }
+
+  @Override
+  public synchronized long addEvent(Event event, int userId, int eventTypeId) {
+    ByteBuffer payload = eventDictionary.encode(event, eventTypeId);
+    try {
+      ByteBuffer record = ByteBuffer.allocate(4 + payload.remaining());
+      record.putInt(payload.remaining()).put(payload.duplicate()).flip();
+      while (record.hasRemaining()) {
+        pendingLogChannel.write(record);
+      }
+      if (syncWrites) {
+        pendingLogChannel.force(false);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+
+    long id = currentId++;
+    synchronized (pendingLock) {
+      metaDataList.add(new MetaData(userId, eventTypeId, numBlocks, pendingEvents.size()));
+      pendingEvents.add(payload);
+    }
+    pendingSizeInBytes += payload.remaining();
+    if (pendingSizeInBytes >= blockSize) {
+      sealPendingBlock();
+    }
+    return id;
+  }
+
+  @Override
+  public Event getEvent(long eventId) {
+    byte[] metaDataBytes = metaDataList.getBytes(eventId);
+    return eventDictionary.decode(
+        getPayload(schema.getBlockId(metaDataBytes), schema.getOffsetInBlock(metaDataBytes)),
+        schema.getEventTypeId(metaDataBytes));
+  }
+
+  @Override
+  public EventDictionary getEventDictionary() {
+    return eventDictionary;
+  }
+
+  @Override
+  public synchronized long getNumRecords() {
+    return currentId;
+  }
+
+  /**
+   * Keeps the events, as a block is shared by consecutive events of all the event types and
+   * rewriting it would move the events of every later block.
+   */
+  @Override
+  public void deleteEvents(IdList.Iterator eventIds) {}
+
+  @Override
+  public int getUserId(long eventId) {
+    return schema.getUserId(metaDataList.getBytes(eventId));
+  }
+
+  @Override
+  public int getEventTypeId(long eventId) {
+    return schema.getEventTypeId(metaDataList.getBytes(eventId));
+  }
+
+  @Override
+  public Visitor getFilterVisitor(final long eventId) {
+    return new DelayedVisitorProxy(new Provider<Visitor>() {
+      @Override
+      public Visitor get() {
+        Event event = getEvent(eventId);
+        return new EventFilterVisitor(event);
+      }
+    });
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    deflater.end();
+    blockCache.invalidateAll();
+    blockChannel.close();
+    pendingLogChannel.force(false);
+    pendingLogChannel.close();
+    metaDataList.close();
+    blockPointerList.close();
+    eventDictionary.close();
+  }
+
+  @Override
+  public String getVarz(int indentation) {
+    String indent  = new String(new char[indentation]).replace('\0', ' ');
+    return String.format(
+        indent + this.getClass().getName() + "\n" +
+        indent + "==================\n" +
+        indent + "directory: %s\n" +
+        indent + "current id: %d\n" +
+        indent + "num blocks: %d\n" +
+        indent + "block file size: %d\n" +
+        indent + "blockCache: %s\n" +
+        indent + "metaDataList:\n%s\n" +
+        indent + "blockPointerList:\n%s\n" +
+        indent + "eventDictionary:\n%s",
+        directory, currentId, numBlocks, blockFileSize, blockCache.stats().toString(),
+        metaDataList.getVarz(indentation + 1), blockPointerList.getVarz(indentation + 1),
+        eventDictionary.getVarz(indentation + 1));
+  }
+
+  private ByteBuffer getPayload(int blockId, int offsetInBlock) {
+    if (blockId >= numBlocks) {
+      synchronized (pendingLock) {
+        if (blockId >= numBlocks) {
+          return pendingEvents.get(offsetInBlock).duplicate();
+        }
+      }
+    }
+    ByteBuffer block = blockCache.getUnchecked(blockId).duplicate();
+    int numEvents = block.getInt(0);
+    int start = offsetInBlock == 0 ? 4 * (numEvents + 1) : block.getInt(4 * offsetInBlock);
+    int end = block.getInt(4 * (offsetInBlock + 1));
+    block.limit(end).position(start);
+    return block.slice();
+  }
+
+  private void sealPendingBlock() {
+    ByteBuffer block = ByteBuffer.allocate(4 * (pendingEvents.size() + 1) + pendingSizeInBytes);
+    block.putInt(pendingEvents.size());
+    int end = block.capacity() - pendingSizeInBytes;
+    for (ByteBuffer pendingEvent : pendingEvents) {
+      end += pendingEvent.remaining();
+      block.putInt(end);
+    }
+    for (ByteBuffer pendingEvent : pendingEvents) {
+      block.put(pendingEvent.duplicate());
+    }
+    byte[] bytes = block.array();
+
+    try {
+      if (compressionDictionary == null) {
+        byte[] dictionary = Arrays.copyOfRange(bytes,
+            Math.max(0, bytes.length - MAX_DICTIONARY_SIZE), bytes.length);
+        try (RandomAccessFile raf = new RandomAccessFile(
+            getCompressionDictionaryFilename(directory), "rw")) {
+          raf.write(dictionary);
+          raf.getFD().sync();
+        }
+        compressionDictionary = dictionary;
+      }
+
+      byte[] compressed = compress(bytes);
+      ByteBuffer compressedBuffer = ByteBuffer.wrap(compressed);
+      long position = blockFileSize;
+      while (compressedBuffer.hasRemaining()) {
+        position += blockChannel.write(compressedBuffer, position);
+      }
+      blockChannel.force(false);
+      blockPointerList.add(new BlockPointer(blockFileSize, compressed.length, bytes.length));
+      blockFileSize = position;
+      blockCache.put(numBlocks, block);
+
+      synchronized (pendingLock) {
+        numBlocks++;
+        pendingEvents = Lists.newArrayList();
+      }
+      pendingSizeInBytes = 0;
+      pendingLogChannel.truncate(0);
+      pendingLogChannel.force(false);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private byte[] compress(byte[] bytes) {
+    deflater.reset();
+    deflater.setDictionary(compressionDictionary);
+    deflater.setInput(bytes);
+    deflater.finish();
+    ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2);
+    byte[] buffer = new byte[8192];
+    while (!deflater.finished()) {
+      int length = deflater.deflate(buffer);
+      out.write(buffer, 0, length);
+    }
+    return out.toByteArray();
+  }
+
+  private ByteBuffer readBlock(int blockId) throws IOException {
+    BlockPointer blockPointer = blockPointerList.get(blockId);
+    ByteBuffer compressed = ByteBuffer.allocate(blockPointer.compressedSize);
+    long position = blockPointer.offset;
+    while (compressed.hasRemaining()) {
+      int length = blockChannel.read(compressed, position);
+      if (length < 0) {
+        throw new IOException(String.format("block %d is truncated", blockId));
+      }
+      position += length;
+    }
+
+    byte[] bytes = new byte[blockPointer.size];
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(compressed.array());
+      int length = 0;
+      while (!inflater.finished()) {
+        if (inflater.needsDictionary()) {
+          inflater.setDictionary(compressionDictionary);
+        } else if (inflater.needsInput()) {
+          throw new IOException(String.format("block %d is corrupted", blockId));
+        }
+        length += inflater.inflate(bytes, length, bytes.length - length);
+      }
+    } catch (DataFormatException e) {
+      throw new IOException(e);
+    } finally {
+      inflater.end();
+    }
+    return ByteBuffer.wrap(bytes);
+  }
+
+  private static String getCompressionDictionaryFilename(String directory) {
+    return directory + "/compression_dictionary.bin";
+  }
+
+  public static CompressedEventStorage build(String directory, EventDictionary eventDictionary,
+      int blockSize, long blockCacheSizeInBytes, int numMetaDataPerFile,
+      int metaDataFileCacheSize, boolean syncWrites) {
+    //noinspection ResultOfMethodCallIgnored
+    new File(directory).mkdirs();
+    MetaData.Schema schema = new MetaData.Schema();
+    DmaList<MetaData> metaDataList = DmaList.build(schema, directory + "/meta_data/",
+        numMetaDataPerFile, metaDataFileCacheSize);
+    DmaList<BlockPointer> blockPointerList = DmaList.build(new BlockPointer.Schema(),
+        directory + "/block_pointers/", numMetaDataPerFile, metaDataFileCacheSize);
+    try {
+      byte[] compressionDictionary = null;
+      File compressionDictionaryFile = new File(getCompressionDictionaryFilename(directory));
+      if (compressionDictionaryFile.exists()) {
+        compressionDictionary = Files.toByteArray(compressionDictionaryFile);
+      }
+
+      // anything after the last block pointer was written by a block which didn't get sealed
+      long numBlocks = blockPointerList.getMaxId();
+      long blockFileSize = 0;
+      if (numBlocks > 0) {
+        BlockPointer lastBlockPointer = blockPointerList.get(numBlocks - 1);
+        blockFileSize = lastBlockPointer.offset + lastBlockPointer.compressedSize;
+      }
+      FileChannel blockChannel = new RandomAccessFile(directory + "/blocks.bin", "rw")
+          .getChannel();
+      blockChannel.truncate(blockFileSize);
+
+      // the pending log may contain the events of the last sealed block or a trailing event
+      // which didn't make it to metaDataList
+      int numPendingEvents = 0;
+      for (long id = metaDataList.getMaxId() - 1; id >= 0; id--) {
+        if (schema.getBlockId(metaDataList.getBytes(id)) != numBlocks) {
+          break;
+        }
+        numPendingEvents++;
+      }
+      FileChannel pendingLogChannel = new RandomAccessFile(directory + "/pending_block.log", "rw")
+          .getChannel();
+      List<ByteBuffer> pendingEvents = Lists.newArrayList();
+      ByteBuffer header = ByteBuffer.allocate(4);
+      long position = 0;
+      while (pendingEvents.size() < numPendingEvents) {
+        header.clear();
+        if (pendingLogChannel.read(header, position) < 4) {
+          throw new IllegalStateException(String.format(
+              "%s/pending_block.log is missing events", directory));
+        }
+        ByteBuffer payload = ByteBuffer.allocate(header.getInt(0));
+        if (pendingLogChannel.read(payload, position + 4) < payload.capacity()) {
+          throw new IllegalStateException(String.format(
+              "%s/pending_block.log is missing events", directory));
+        }
+        payload.flip();
+        pendingEvents.add(payload);
+        position += 4 + payload.capacity();
+      }
+      pendingLogChannel.truncate(position);
+      pendingLogChannel.position(position);
+
+      return new CompressedEventStorage(directory, schema, metaDataList, blockPointerList,
+          blockChannel, pendingLogChannel, blockCacheSizeInBytes, eventDictionary, blockSize,
+          syncWrites, pendingEvents, compressionDictionary, blockFileSize);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public static class MetaData {
+    private final int userId;
+    private final int eventTypeId;
+    private final int blockId;
+    private final int offsetInBlock;
+
+    public MetaData(int userId, int eventTypeId, int blockId, int offsetInBlock) {
+      this.userId = userId;
+      this.eventTypeId = eventTypeId;
+      this.blockId = blockId;
+      this.offsetInBlock = offsetInBlock;
+    }
+
+    public static class Schema implements com.codecademy.eventhub.base.Schema<MetaData> {
+      @Override
+      public int getObjectSize() {
+        return 16; // userId + eventTypeId + blockId + offsetInBlock
+      }
+
+      @Override
+      public byte[] toBytes(MetaData metaData) {
+        ByteBuffer byteBuffer = ByteBuffer.allocate(getObjectSize());
+        byteBuffer.putInt(metaData.userId)
+            .putInt(metaData.eventTypeId)
+            .putInt(metaData.blockId)
+            .putInt(metaData.offsetInBlock);
+        return byteBuffer.array();
+      }
+
+      @Override
+      public MetaData fromBytes(byte[] bytes) {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+        return new MetaData(byteBuffer.getInt(), byteBuffer.getInt(), byteBuffer.getInt(),
+            byteBuffer.getInt());
+      }
+
+      public int getUserId(byte[] bytes) {
+        return ByteBuffer.wrap(bytes).getInt(0);
+      }
+
+      public int getEventTypeId(byte[] bytes) {
+        return ByteBuffer.wrap(bytes).getInt(4);
+      }
+
+      public int getBlockId(byte[] bytes) {
+        return ByteBuffer.wrap(bytes).getInt(8);
+      }
+
+      public int getOffsetInBlock(byte[] bytes) {
+        return ByteBuffer.wrap(bytes).getInt(12);
+      }
+    }
+  }
+
+  public static class BlockPointer {
+    private final long offset;
+    private final int compressedSize;
+    private final int size;
+
+    public BlockPointer(long offset, int compressedSize, int size) {
+      this.offset = offset;
+      this.compressedSize = compressedSize;
+      this.size = size;
+    }
+
+    public static class Schema implements com.codecademy.eventhub.base.Schema<BlockPointer> {
+      @Override
+      public int getObjectSize() {
+        return 16; // offset + compressedSize + size
+      }
+
+      @Override
+      public byte[] toBytes(BlockPointer blockPointer) {
+        ByteBuffer byteBuffer = ByteBuffer.allocate(getObjectSize());
+        byteBuffer.putLong(blockPointer.offset)
+            .putInt(blockPointer.compressedSize)
+            .putInt(blockPointer.size);
+        return byteBuffer.array();
+      }
+
+      @Override
+      public BlockPointer fromBytes(byte[] bytes) {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+        return new BlockPointer(byteBuffer.getLong(), byteBuffer.getInt(), byteBuffer.getInt());
+      }
+    }
+  }
+}
@@ -1,5 +1,6 @@
 package com.codecademy.eventhub.storage;
 
+import com.codecademy.eventhub.list.IdList;
 import com.codecademy.eventhub.model.Event;
 import com.codecademy.eventhub.storage.visitor.Visitor;
 
@@ -37,6 +38,21 @@ public class DelegateEventStorage implements EventStorage {
     return eventStorage.getFilterVisitor(eventId);
   }
 
+  @Override
+  public long getNumRecords() {
+    return eventStorage.getNumRecords();
+  }
+
+  @Override
+  public void deleteEvents(IdList.Iterator eventIds) {
+    eventStorage.deleteEvents(eventIds);
+  }
+
+  @Override
+  public EventDictionary getEventDictionary() {
+    return eventStorage.getEventDictionary();
+  }
+
   @Override
   public String getVarz(int indentation) {
     return eventStorage.getVarz(indentation);
@@ -1,9 +1,12 @@
 package com.codecademy.eventhub.storage;
 
 import com.codecademy.eventhub.model.User;
+import com.codecademy.eventhub.storage.filter.ExactMatch;
 import com.codecademy.eventhub.storage.visitor.Visitor;
 
 import java.io.IOException;
+import java.util.BitSet;
+import java.util.List;
 
 public class DelegateUserStorage implements UserStorage {
   private final UserStorage userStorage;
@@ -42,6 +45,11 @@ public class DelegateUserStorage implements UserStorage {
     return userStorage.getFilterVisitor(userId);
   }
 
+  @Override
+  public BitSet getCandidates(int fromUserId, int toUserId, List<ExactMatch> requiredTerms) {
+    return userStorage.getCandidates(fromUserId, toUserId, requiredTerms);
+  }
+
   @Override
   public void alias(String fromExternalUserId, int toUserId) {
     userStorage.alias(fromExternalUserId, toUserId);
@@ -0,0 +1,77 @@
+package com.codecademy.eventhub.storage;
+
+import com.codecademy.eventhub.base.InternedByteBufferMap;
+import com.codecademy.eventhub.base.KeyDictionary;
+import com.codecademy.eventhub.model.Event;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Serializes events with their property keys interned. The event type isn't part of the
+ * serialized event since the storage already keeps its id next to each record; it's resolved
+ * through eventTypeDictionary instead.
+ */
+public class EventDictionary implements Closeable {
+  private final KeyDictionary keyDictionary;
+  private final KeyDictionary eventTypeDictionary;
+
+  public EventDictionary(KeyDictionary keyDictionary, KeyDictionary eventTypeDictionary) {
+    this.keyDictionary = keyDictionary;
+    this.eventTypeDictionary = eventTypeDictionary;
+  }
+
+  public ByteBuffer encode(Event event, int eventTypeId) {
+    String eventType = event.getEventType();
+    if (!eventType.equals(eventTypeDictionary.getKey(eventTypeId))) {
+      eventTypeDictionary.put(eventTypeId, eventType);
+    }
+    return event.toInternedByteBuffer(keyDictionary);
+  }
+
+  /**
+   * Serializes the event for decode to read it back, without writing to the dictionaries, e.g. to
+   * cache the events on the read path. An event of the former format, whose keys were never
+   * interned, is kept in that format.
+   */
+  public ByteBuffer encodeWithoutInterning(Event event, int eventTypeId) {
+    if (event.isInterned(keyDictionary)
+        && event.getEventType().equals(eventTypeDictionary.getKey(eventTypeId))) {
+      return event.toInternedByteBuffer(keyDictionary);
+    }
+    return event.toByteBuffer();
+  }
+
+  public Event decode(ByteBuffer byteBuffer, int eventTypeId) {
+    if (!InternedByteBufferMap.isInterned(byteBuffer)) {
+      return Event.fromByteBuffer(byteBuffer);
+    }
+    return Event.fromInternedByteBuffer(eventTypeDictionary.getKey(eventTypeId), byteBuffer,
+        keyDictionary);
+  }
+
+  public String getEventType(int eventTypeId) {
+    return eventTypeDictionary.getKey(eventTypeId);
+  }
+
+  public String getVarz(int indentation) {
+    String indent  = new String(new char[indentation]).replace('\0', ' ');
+    return String.format(
+        indent + "keyDictionary:\n%s\n" +
+        indent + "eventTypeDictionary:\n%s",
+        keyDictionary.getVarz(indentation + 1), eventTypeDictionary.getVarz(indentation + 1));
+  }
+
+  @Override
+  public void close() throws IOException {
+    keyDictionary.close();
+    eventTypeDictionary.close();
+  }
+
+  public static EventDictionary build(String directory) {
+    return new EventDictionary(
+        KeyDictionary.build(directory + "/key_dictionary.log"),
+        KeyDictionary.build(directory + "/event_type_dictionary.log"));
+  }
+}
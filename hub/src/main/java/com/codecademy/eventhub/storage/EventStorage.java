@@ -1,5 +1,6 @@
 package com.codecademy.eventhub.storage;
 
+import com.codecademy.eventhub.list.IdList;
 import com.codecademy.eventhub.model.Event;
 import com.codecademy.eventhub.storage.visitor.Visitor;
 
@@ -11,5 +12,11 @@ public interface EventStorage extends Closeable {
   int getUserId(long eventId);
   int getEventTypeId(long eventId);
   Visitor getFilterVisitor(long eventId);
+  EventDictionary getEventDictionary();
+  long getNumRecords();
+  /**
+   * Frees the space of the given events, which are never read again. Their ids stay taken.
+   */
+  void deleteEvents(IdList.Iterator eventIds);
   String getVarz(int indentation);
 }
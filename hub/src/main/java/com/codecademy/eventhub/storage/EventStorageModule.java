@@ -1,12 +1,10 @@
 package com.codecademy.eventhub.storage;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
 import com.google.inject.AbstractModule;
 import com.google.inject.Provides;
-import com.codecademy.eventhub.base.BloomFilter;
+import com.codecademy.eventhub.base.OffHeapCache;
+import com.codecademy.eventhub.list.DmaBlobList;
 import com.codecademy.eventhub.list.DmaList;
-import com.codecademy.eventhub.model.Event;
 import org.fusesource.hawtjournal.api.Journal;
 
 import javax.inject.Named;
@@ -22,13 +20,6 @@ public class EventStorageModule extends AbstractModule {
     return directory + "/event_storage/";
   }
 
-  @Provides
-  public BloomFilter.Schema getBloomFilterSchema(
-      @Named("eventhub.bloomfilteredeventstorage.numHashes") int numHashes,
-      @Named("eventhub.bloomfilteredeventstorage.bloomFilterSize") int bloomFilterSize) {
-    return new BloomFilter.Schema(numHashes, bloomFilterSize);
-  }
-
   @Provides
   public DmaList<JournalEventStorage.MetaData> getJournalEventStorageMetaDataList(
       JournalEventStorage.MetaData.Schema schema,
@@ -49,55 +40,76 @@ public class EventStorageModule extends AbstractModule {
         journalFileSize, journalWriteBatchSize);
   }
 
+  @Provides
+  public EventDictionary getEventDictionary(
+      @Named("eventhub.eventstorage.directory") String eventStorageDirectory) {
+    return EventDictionary.build(eventStorageDirectory);
+  }
+
   @Provides
   public JournalEventStorage getJournalEventStorage(
       @Named("eventhub.journaleventstorage") Journal eventJournal,
-      DmaList<JournalEventStorage.MetaData> metaDataList) {
+      DmaList<JournalEventStorage.MetaData> metaDataList,
+      EventDictionary eventDictionary,
+      @Named("eventhub.journaleventstorage.syncWrites") boolean syncWrites) {
     JournalEventStorage.MetaData.Schema schema = new JournalEventStorage.MetaData.Schema();
     return new JournalEventStorage(
-        eventJournal, schema, metaDataList, metaDataList.getMaxId());
+        eventJournal, schema, metaDataList, eventDictionary, metaDataList.getMaxId(), syncWrites);
   }
 
   @Provides
-  public CachedEventStorage getCachedEventStorage(
-      JournalEventStorage journalEventStorage,
-      @Named("eventhub.cachedeventstorage.recordCacheSize") int recordCacheSize) {
-    Cache<Long, Event> eventCache = CacheBuilder.newBuilder()
-        .maximumSize(recordCacheSize)
-        .recordStats()
-        .build();
-
-    return new CachedEventStorage(journalEventStorage, eventCache);
+  public CompressedEventStorage getCompressedEventStorage(
+      @Named("eventhub.eventstorage.directory") String eventStorageDirectory,
+      EventDictionary eventDictionary,
+      @Named("eventhub.compressedeventstorage.blockSize") int blockSize,
+      @Named("eventhub.compressedeventstorage.blockCacheSizeInBytes") long blockCacheSizeInBytes,
+      @Named("eventhub.compressedeventstorage.numMetaDataPerFile") int numMetaDataPerFile,
+      @Named("eventhub.compressedeventstorage.metaDataFileCacheSize") int metaDataFileCacheSize,
+      @Named("eventhub.compressedeventstorage.syncWrites") boolean syncWrites) {
+    return CompressedEventStorage.build(eventStorageDirectory + "/compressed_event_storage/",
+        eventDictionary, blockSize, blockCacheSizeInBytes, numMetaDataPerFile,
+        metaDataFileCacheSize, syncWrites);
   }
 
   @Provides
-  @Named("eventhub.bloomfilteredeventstorage")
-  public DmaList<BloomFilter> getBloomFilterDmaList(
-      @Named("eventhub.eventstorage.directory") String eventStorageDirectory,
-      @Named("eventhub.bloomfilteredeventstorage.numHashes") int numHashes,
-      @Named("eventhub.bloomfilteredeventstorage.bloomFilterSize") int bloomFilterSize,
-      @Named("eventhub.bloomfilteredeventstorage.numMetaDataPerFile") int numMetaDataPerFile,
-      @Named("eventhub.bloomfilteredeventstorage.metaDataFileCacheSize") int metaDataFileCacheSize) {
-    return DmaList.build(new BloomFilter.Schema(numHashes, bloomFilterSize),
-        eventStorageDirectory + "/bloom_filtered_event_storage_meta_data/",
-        numMetaDataPerFile,
-        metaDataFileCacheSize);
+  @Named("eventhub.eventstorage")
+  public EventStorage getEventStorage(
+      @Named("eventhub.eventstorage.backend") String backend,
+      Provider<JournalEventStorage> journalEventStorageProvider,
+      Provider<CompressedEventStorage> compressedEventStorageProvider) {
+    switch (backend) {
+      case "journal":
+        return journalEventStorageProvider.get();
+      case "compressed":
+        return compressedEventStorageProvider.get();
+      default:
+        throw new IllegalArgumentException("unknown event storage backend: " + backend);
+    }
   }
 
   @Provides
-  @Named("eventhub.bloomfilteredeventstorage")
-  public BloomFilter getBloomFilter(
-      @Named("eventhub.bloomfilteredeventstorage.numHashes") int numHashes,
-      @Named("eventhub.bloomfilteredeventstorage.bloomFilterSize") int bloomFilterSize) {
-    return BloomFilter.build(numHashes, bloomFilterSize);
+  public CachedEventStorage getCachedEventStorage(
+      @Named("eventhub.eventstorage") EventStorage eventStorage,
+      @Named("eventhub.cachedeventstorage.cacheSizeInBytes") long cacheSizeInBytes) {
+    return new CachedEventStorage(eventStorage, OffHeapCache.build(cacheSizeInBytes));
   }
 
   @Provides
   public BloomFilteredEventStorage getBloomFilteredEventStorage(
       CachedEventStorage cachedEventStorage,
-      @Named("eventhub.bloomfilteredeventstorage") DmaList<BloomFilter> bloomFilterDmaList,
-      @Named("eventhub.bloomfilteredeventstorage") Provider<BloomFilter> bloomFilterProvider) {
-    return new BloomFilteredEventStorage(cachedEventStorage, bloomFilterDmaList,
-        bloomFilterProvider);
+      @Named("eventhub.eventstorage.directory") String eventStorageDirectory,
+      @Named("eventhub.bloomfilteredeventstorage.numMetaDataPerFile") int numMetaDataPerFile,
+      @Named("eventhub.bloomfilteredeventstorage.metaDataFileCacheSize") int metaDataFileCacheSize,
+      @Named("eventhub.bloomfilteredeventstorage.dataFileSize") int dataFileSize,
+      @Named("eventhub.bloomfilteredeventstorage.dataFileCacheSize") int dataFileCacheSize,
+      @Named("eventhub.bloomfilteredeventstorage.bitsPerProperty") int bitsPerProperty,
+      @Named("eventhub.bloomfilteredeventstorage.maxBloomFilterSize") int maxBloomFilterSize) {
+    DmaBlobList bloomFilterList = DmaBlobList.build(eventStorageDirectory + "/bloom_filters/",
+        numMetaDataPerFile, metaDataFileCacheSize, dataFileSize, dataFileCacheSize);
+    DmaList<Integer> maxNumPropertiesList = DmaList.build(
+        new BloomFilteredEventStorage.MaxNumPropertiesSchema(),
+        eventStorageDirectory + "/bloom_filter_max_num_properties/", 1024 * 1024, 1);
+    return new BloomFilteredEventStorage(cachedEventStorage, bloomFilterList,
+        maxNumPropertiesList, bitsPerProperty, maxBloomFilterSize);
   }
 }
@@ -1,53 +1,133 @@
 package com.codecademy.eventhub.storage;
 
 import com.codecademy.eventhub.base.DB;
+import com.codecademy.eventhub.base.HashUtil;
+import com.codecademy.eventhub.base.MappedHashIndex;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
-
+/**
+ * Maps external user ids to user ids through a MappedHashIndex keyed by two independent hashes of
+ * the external id, 96 bits in total, so that the lookups are answered by the index alone, without
+ * reading LevelDB, which remains the durable log of the mapping. The index doesn't keep the
+ * external ids, and trusts the hashes: with 96 bits, a collision among billions of users is far
+ * less likely than a corruption of the disk. The index is rebuilt from LevelDB when it is missing
+ * or behind.
+ *
+ * The next available id lives in a mapped file as well, and is logged to LevelDB every
+ * ID_LOG_INTERVAL ids, as a lower bound. The high-water mark of the index is past the largest id
+ * it holds, so that an index behind the next available id is told apart, whatever the number of
+ * aliases it holds.
+ */
 public class IdMap implements Closeable {
   private static final String ID_KEY = "__eventtracker__id";
+  private static final String INTERNAL_KEY_PREFIX = "__eventtracker__";
+  private static final long FINGERPRINT_SEED = 0x9ae16a3b2f90404fL;
+  private static final int ID_LOG_INTERVAL = 1024;
+  // ids as 4-byte big-endian values
+  private static final int FORMAT_VERSION = 1;
+  private static final String MIGRATION_JOB = "com.codecademy.eventhub.jobs.MigrateToBinaryEncoding";
 
   private final DB db;
+  private final MappedHashIndex index;
+  private final MappedByteBuffer idBuffer;
   private int nextAvailableId;
 
-  private IdMap(DB db, int nextAvailableId) {
+  private IdMap(DB db, MappedHashIndex index, MappedByteBuffer idBuffer, int nextAvailableId) {
     this.db = db;
+    this.index = index;
+    this.idBuffer = idBuffer;
     this.nextAvailableId = nextAvailableId;
   }
 
   public int incrementNextAvailableId() {
-    int availableId = nextAvailableId;
-    db.put(ID_KEY, "" + (++nextAvailableId));
+    int availableId = nextAvailableId++;
+    idBuffer.putInt(0, nextAvailableId);
+    if (nextAvailableId % ID_LOG_INTERVAL == 0) {
+      db.putInt(ID_KEY, nextAvailableId);
+    }
     return availableId;
   }
 
   public void put(String externalId, int id) {
-    db.put(externalId, id);
+    db.putInt(externalId, id);
+    index.put(HashUtil.hash(externalId), getFingerprint(externalId), id);
+    if (id >= index.getHighWaterMark()) {
+      index.setHighWaterMark(id + 1);
+    }
   }
 
   public Integer get(String externalUserId) {
-    String value = db.get(externalUserId);
-    if (value == null) {
-      //noinspection ReturnOfNull
-      return null;
-    }
-    return Integer.parseInt(value);
+    int id = index.get(HashUtil.hash(externalUserId), getFingerprint(externalUserId));
+    //noinspection ReturnOfNull
+    return id == MappedHashIndex.NOT_FOUND ? null : id;
   }
 
   public int getCurrentId() {
     return nextAvailableId;
   }
 
+  public String getVarz(int indentation) {
+    String indent  = new String(new char[indentation]).replace('\0', ' ');
+    return String.format(
+        indent + "next available id: %d\n" +
+        indent + "index:\n%s",
+        nextAvailableId, index.getVarz(indentation + 1));
+  }
+
   @Override
   public void close() throws IOException {
+    db.putInt(ID_KEY, nextAvailableId);
+    idBuffer.force();
+    index.close();
     db.close();
   }
 
-  public static IdMap create(DB db) {
-    String idString = db.get(ID_KEY);
-    int currentId = idString == null ? 0 : Integer.parseInt(idString);
-    return new IdMap(db, currentId);
+  static int getFingerprint(String externalId) {
+    return (int) HashUtil.hash(externalId, FINGERPRINT_SEED);
+  }
+
+  public static IdMap create(DB db, String directory) {
+    db.ensureFormatVersion(FORMAT_VERSION, MIGRATION_JOB);
+    MappedHashIndex index = MappedHashIndex.build(directory + "/index/");
+    try (RandomAccessFile raf = new RandomAccessFile(
+        new File(directory + "/next_available_id.mem"), "rw")) {
+      MappedByteBuffer idBuffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 4);
+      Integer loggedId = db.getInt(ID_KEY);
+      if (loggedId == null) {
+        loggedId = 0;
+      }
+      int nextAvailableId = idBuffer.getInt(0);
+      if (nextAvailableId < loggedId || index.getHighWaterMark() < nextAvailableId) {
+        nextAvailableId = rebuild(db, index, loggedId);
+        index.setHighWaterMark(nextAvailableId);
+        idBuffer.putInt(0, nextAvailableId);
+        idBuffer.force();
+      }
+      return new IdMap(db, index, idBuffer, nextAvailableId);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static int rebuild(DB db, final MappedHashIndex index, int loggedId) {
+    index.clear();
+    final int[] nextAvailableId = new int[] { loggedId };
+    db.enumerateInts(new DB.IntValueCallback() {
+      @Override
+      public void callback(String key, int id) {
+        if (key.startsWith(INTERNAL_KEY_PREFIX)) {
+          return;
+        }
+        index.put(HashUtil.hash(key), getFingerprint(key), id);
+        nextAvailableId[0] = Math.max(nextAvailableId[0], id + 1);
+      }
+    });
+    return nextAvailableId[0];
   }
 }
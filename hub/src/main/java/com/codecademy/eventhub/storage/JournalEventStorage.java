@@ -2,6 +2,7 @@ package com.codecademy.eventhub.storage;
 
 import com.google.common.io.ByteStreams;
 import com.codecademy.eventhub.list.DmaList;
+import com.codecademy.eventhub.list.IdList;
 import com.codecademy.eventhub.model.Event;
 import com.codecademy.eventhub.storage.visitor.DelayedVisitorProxy;
 import com.codecademy.eventhub.storage.visitor.EventFilterVisitor;
@@ -17,21 +18,28 @@ public class JournalEventStorage implements EventStorage {
   private final Journal eventJournal;
   private final MetaData.Schema schema;
   private final DmaList<MetaData> metaDataList;
+  private final EventDictionary eventDictionary;
+  // false leaves the journal to sync its write batches on its own, e.g. for bulk imports
+  private final boolean syncWrites;
   private long currentId;
 
   public JournalEventStorage(Journal eventJournal, MetaData.Schema schema,
-      DmaList<MetaData> metaDataList, long currentId) {
+      DmaList<MetaData> metaDataList, EventDictionary eventDictionary, long currentId,
+      boolean syncWrites) {
     this.eventJournal = eventJournal;
     this.schema = schema;
     this.metaDataList = metaDataList;
+    this.eventDictionary = eventDictionary;
     this.currentId = currentId;
+    this.syncWrites = syncWrites;
   }
 
   @Override
   public long addEvent(Event event, int userId, int eventTypeId) {
     try {
       long id = currentId++;
-      byte[] location = JournalUtil.locationToBytes(eventJournal.write(event.toByteBuffer(), true));
+      byte[] location = JournalUtil.locationToBytes(
+          eventJournal.write(eventDictionary.encode(event, eventTypeId), syncWrites));
       MetaData metaData = new MetaData(userId, eventTypeId,location);
       metaDataList.add(metaData);
       return id;
@@ -46,7 +54,7 @@ public class JournalEventStorage implements EventStorage {
       Location location = new Location();
       JournalEventStorage.MetaData metaData = metaDataList.get(eventId);
       location.readExternal(ByteStreams.newDataInput(metaData.getLocation()));
-      return Event.fromByteBuffer(eventJournal.read(location));
+      return eventDictionary.decode(eventJournal.read(location), metaData.getEventTypeId());
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
@@ -68,6 +76,35 @@ public class JournalEventStorage implements EventStorage {
     });
   }
 
+  @Override
+  public EventDictionary getEventDictionary() {
+    return eventDictionary;
+  }
+
+  @Override
+  public long getNumRecords() {
+    return currentId;
+  }
+
+  /**
+   * Marks the records of the events as deleted, and removes the journal files left with deleted
+   * records only.
+   */
+  @Override
+  public void deleteEvents(IdList.Iterator eventIds) {
+    try {
+      while (eventIds.hasNext()) {
+        Location location = new Location();
+        location.readExternal(ByteStreams.newDataInput(
+            metaDataList.get(eventIds.next()).getLocation()));
+        eventJournal.delete(location);
+      }
+      eventJournal.cleanup();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
   @Override
   public int getUserId(long eventId) {
     return schema.getUserId(metaDataList.getBytes(eventId));
@@ -77,6 +114,7 @@ public class JournalEventStorage implements EventStorage {
   public void close() throws IOException {
     eventJournal.close();
     metaDataList.close();
+    eventDictionary.close();
   }
 
   @Override
@@ -86,8 +124,10 @@ public class JournalEventStorage implements EventStorage {
         indent + this.getClass().getName() + "\n" +
         indent + "==================\n" +
         indent + "current id: %d\n" +
-        indent + "metaDataList:\n%s",
-        currentId, metaDataList.getVarz(indentation + 1));
+        indent + "metaDataList:\n%s\n" +
+        indent + "eventDictionary:\n%s",
+        currentId, metaDataList.getVarz(indentation + 1),
+        eventDictionary.getVarz(indentation + 1));
   }
 
   public static class MetaData {
@@ -101,6 +141,10 @@ public class JournalEventStorage implements EventStorage {
       this.location = location;
     }
 
+    public int getEventTypeId() {
+      return eventTypeId;
+    }
+
     public byte[] getLocation() {
       return location;
     }
@@ -4,6 +4,7 @@ import com.google.common.collect.Maps;
 import com.google.common.io.ByteStreams;
 import com.codecademy.eventhub.list.DmaList;
 import com.codecademy.eventhub.model.User;
+import com.codecademy.eventhub.storage.filter.ExactMatch;
 import com.codecademy.eventhub.storage.visitor.DelayedVisitorProxy;
 import com.codecademy.eventhub.storage.visitor.UserFilterVisitor;
 import com.codecademy.eventhub.storage.visitor.Visitor;
@@ -13,16 +14,21 @@ import org.fusesource.hawtjournal.api.Location;
 import javax.inject.Provider;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.List;
 
 public class JournalUserStorage implements UserStorage {
   private final Journal userJournal;
   private DmaList<MetaData> metaDataList;
   private final IdMap idMap;
+  private final boolean syncWrites;
 
-  public JournalUserStorage(Journal userJournal, DmaList<MetaData> metaDataList, IdMap idMap) {
+  public JournalUserStorage(Journal userJournal, DmaList<MetaData> metaDataList, IdMap idMap,
+      boolean syncWrites) {
     this.userJournal = userJournal;
     this.metaDataList = metaDataList;
     this.idMap = idMap;
+    this.syncWrites = syncWrites;
   }
 
   @Override
@@ -34,7 +40,7 @@ public class JournalUserStorage implements UserStorage {
     User user = new User.Builder(externalUserId, Maps.<String, String>newHashMap()).build();
     try {
       id = idMap.incrementNextAvailableId();
-      byte[] location = JournalUtil.locationToBytes(userJournal.write(user.toByteBuffer(), true));
+      byte[] location = JournalUtil.locationToBytes(userJournal.write(user.toByteBuffer(), syncWrites));
       MetaData metaData = new MetaData(location);
       metaDataList.add(metaData);
       idMap.put(externalUserId, id);
@@ -53,7 +59,7 @@ public class JournalUserStorage implements UserStorage {
   public synchronized int updateUser(User user) {
     int id = getId(user.getExternalId());
     try {
-      byte[] location = JournalUtil.locationToBytes(userJournal.write(user.toByteBuffer(), true));
+      byte[] location = JournalUtil.locationToBytes(userJournal.write(user.toByteBuffer(), syncWrites));
       MetaData metaData = new MetaData(location);
       metaDataList.update(id, metaData);
       return id;
@@ -91,6 +97,13 @@ public class JournalUserStorage implements UserStorage {
     });
   }
 
+  @Override
+  public BitSet getCandidates(int fromUserId, int toUserId, List<ExactMatch> requiredTerms) {
+    BitSet candidates = new BitSet(toUserId - fromUserId);
+    candidates.set(0, toUserId - fromUserId);
+    return candidates;
+  }
+
   @Override
   public void alias(String fromExternalUserId, int toUserId) {
     idMap.put(fromExternalUserId, toUserId);
@@ -110,8 +123,10 @@ public class JournalUserStorage implements UserStorage {
         indent + this.getClass().getName() + "\n" +
         indent + "==================\n" +
         indent + "current id: %d\n" +
+        indent + "idMap:\n%s\n" +
         indent + "metaDataList:\n%s",
         idMap.getCurrentId(),
+        idMap.getVarz(indentation + 1),
         metaDataList.getVarz(indentation + 1));
   }
 
@@ -1,9 +1,12 @@
 package com.codecademy.eventhub.storage;
 
 import com.codecademy.eventhub.model.User;
+import com.codecademy.eventhub.storage.filter.ExactMatch;
 import com.codecademy.eventhub.storage.visitor.Visitor;
 
 import java.io.Closeable;
+import java.util.BitSet;
+import java.util.List;
 
 public interface UserStorage extends Closeable {
   static final int USER_NOT_FOUND = -1;
@@ -13,6 +16,11 @@ public interface UserStorage extends Closeable {
   int getId(String externalUserId);
   User getUser(int userId);
   Visitor getFilterVisitor(int userId);
+  /**
+   * Returns the users in [fromUserId, toUserId), relative to fromUserId, which may have all the
+   * required terms. The filter still has to be evaluated on each of them.
+   */
+  BitSet getCandidates(int fromUserId, int toUserId, List<ExactMatch> requiredTerms);
   void alias(String fromExternalUserId, int toUserId);
   int getNumRecords();
   String getVarz(int indentation);
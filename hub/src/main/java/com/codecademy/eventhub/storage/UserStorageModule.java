@@ -1,19 +1,16 @@
 package com.codecademy.eventhub.storage;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
 import com.google.inject.AbstractModule;
 import com.google.inject.Provides;
-import com.codecademy.eventhub.base.BloomFilter;
+import com.codecademy.eventhub.base.BlockedBloomFilter;
 import com.codecademy.eventhub.base.DB;
+import com.codecademy.eventhub.base.OffHeapCache;
 import com.codecademy.eventhub.list.DmaList;
-import com.codecademy.eventhub.model.User;
 import org.fusesource.hawtjournal.api.Journal;
 import org.fusesource.leveldbjni.JniDBFactory;
 import org.iq80.leveldb.Options;
 
 import javax.inject.Named;
-import javax.inject.Provider;
 import java.io.File;
 import java.io.IOException;
 
@@ -54,58 +51,44 @@ public class UserStorageModule extends AbstractModule {
     new File(userStorageDirectory).mkdirs();
     Options options = new Options();
     options.createIfMissing(true);
-    return IdMap.create(new DB(JniDBFactory.factory.open(new File(filename), options)));
+    return IdMap.create(new DB(JniDBFactory.factory.open(new File(filename), options)),
+        userStorageDirectory + "/id_map/");
   }
 
   @Provides
   public JournalUserStorage getJournalUserStorage(
       final @Named("eventhub.journaluserstorage") Journal userJournal,
       final DmaList<JournalUserStorage.MetaData> metaDataList,
-      IdMap idMap) {
-    return new JournalUserStorage(userJournal, metaDataList, idMap);
+      IdMap idMap,
+      @Named("eventhub.journaluserstorage.syncWrites") boolean syncWrites) {
+    return new JournalUserStorage(userJournal, metaDataList, idMap, syncWrites);
   }
 
   @Provides
   public CachedUserStorage getCachedEventStorage(
       JournalUserStorage journalUserStorage,
-      @Named("eventhub.cacheduserstorage.recordCacheSize") int recordCacheSize) {
-    Cache<Integer, User> userCache = CacheBuilder.newBuilder()
-        .maximumSize(recordCacheSize)
-        .recordStats()
-        .build();
-
-    return new CachedUserStorage(journalUserStorage, userCache);
+      @Named("eventhub.cacheduserstorage.cacheSizeInBytes") long cacheSizeInBytes) {
+    return new CachedUserStorage(journalUserStorage, OffHeapCache.build(cacheSizeInBytes));
   }
 
   @Provides
   @Named("eventhub.bloomfiltereduserstorage")
-  public DmaList<BloomFilter> getBloomFilterDmaList(
-      @Named("eventhub.userstorage.directory") String userStorageDirectory,
-      @Named("eventhub.bloomfiltereduserstorage.numHashes") int numHashes,
-      @Named("eventhub.bloomfiltereduserstorage.bloomFilterSize") int bloomFilterSize,
-      @Named("eventhub.bloomfiltereduserstorage.numMetaDataPerFile") int numMetaDataPerFile,
-      @Named("eventhub.bloomfiltereduserstorage.metaDataFileCacheSize") int metaDataFileCacheSize) {
-    return DmaList.build(new BloomFilter.Schema(numHashes, bloomFilterSize),
-        userStorageDirectory + "/bloom_filtered_user_storage_meta_data/",
-        numMetaDataPerFile,
-        metaDataFileCacheSize);
-  }
-
-  @Provides
-  @Named("eventhub.bloomfiltereduserstorage")
-  public BloomFilter getBloomFilter(
+  public BlockedBloomFilter getBloomFilter(
       @Named("eventhub.bloomfiltereduserstorage.numHashes") int numHashes,
       @Named("eventhub.bloomfiltereduserstorage.bloomFilterSize") int bloomFilterSize) {
-    return BloomFilter.build(numHashes, bloomFilterSize);
+    return new BlockedBloomFilter(numHashes, bloomFilterSize);
   }
 
   @Provides
   public BloomFilteredUserStorage getBloomFilteredUserStorage(
-      @Named("eventhub.bloomfiltereduserstorage.numHashes") int numHashes,
-      @Named("eventhub.bloomfiltereduserstorage.bloomFilterSize") int bloomFilterSize,
-      @Named("eventhub.bloomfiltereduserstorage") DmaList<BloomFilter> bloomFilterDmaList,
-      @Named("eventhub.bloomfiltereduserstorage") Provider<BloomFilter> bloomFilterProvider,
+      @Named("eventhub.bloomfiltereduserstorage") BlockedBloomFilter bloomFilter,
+      @Named("eventhub.userstorage.directory") String userStorageDirectory,
+      @Named("eventhub.bloomfiltereduserstorage.numMetaDataPerFile") int numMetaDataPerFile,
+      @Named("eventhub.bloomfiltereduserstorage.metaDataFileCacheSize") int metaDataFileCacheSize,
       CachedUserStorage cachedUserStorage) {
-    return new BloomFilteredUserStorage(cachedUserStorage, bloomFilterDmaList, bloomFilterProvider);
+    DmaList<byte[]> bloomFilterDmaList = DmaList.build(bloomFilter.getSchema(),
+        userStorageDirectory + "/blocked_bloom_filters/", numMetaDataPerFile,
+        metaDataFileCacheSize);
+    return new BloomFilteredUserStorage(cachedUserStorage, bloomFilterDmaList, bloomFilter);
   }
 }
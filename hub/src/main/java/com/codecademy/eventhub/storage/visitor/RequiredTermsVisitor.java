@@ -0,0 +1,42 @@
+package com.codecademy.eventhub.storage.visitor;
+
+import com.google.common.collect.Lists;
+import com.codecademy.eventhub.storage.filter.ExactMatch;
+import com.codecademy.eventhub.storage.filter.Regex;
+
+import java.util.List;
+
+/**
+ * Collects the ExactMatch terms of a filter. Filters only combine terms with And, so every one
+ * of them has to hold for a record to be accepted, and a filter without any other term is
+ * equivalent to its ExactMatch terms.
+ */
+public class RequiredTermsVisitor implements Visitor {
+  private final List<ExactMatch> requiredTerms;
+  private boolean hasOtherTerms;
+
+  public RequiredTermsVisitor() {
+    this.requiredTerms = Lists.newArrayList();
+    this.hasOtherTerms = false;
+  }
+
+  @Override
+  public boolean visit(ExactMatch exactMatch) {
+    requiredTerms.add(exactMatch);
+    return true;
+  }
+
+  @Override
+  public boolean visit(Regex regex) {
+    hasOtherTerms = true;
+    return true;
+  }
+
+  public List<ExactMatch> getRequiredTerms() {
+    return requiredTerms;
+  }
+
+  public boolean hasOtherTerms() {
+    return hasOtherTerms;
+  }
+}
@@ -0,0 +1,64 @@
+package com.codecademy.eventhub.base;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class BlockedBloomFilterTest {
+  @Test
+  public void testAll() throws Exception {
+    BlockedBloomFilter bloomFilter = new BlockedBloomFilter(5, 256);
+    byte[] filter = new byte[bloomFilter.getSizeInBytes()];
+    int numKeys = 100;
+    for (int i = 0; i < numKeys; i++) {
+      bloomFilter.add(filter, BlockedBloomFilter.hash("key" + i, "value" + i));
+    }
+
+    // evaluated in place, behind some other record
+    ByteBuffer buffer = ByteBuffer.allocate(3 * bloomFilter.getSizeInBytes());
+    buffer.position(bloomFilter.getSizeInBytes());
+    buffer.put(filter);
+    int offset = bloomFilter.getSizeInBytes();
+    for (int i = 0; i < numKeys; i++) {
+      Assert.assertTrue(bloomFilter.isPresent(buffer, offset,
+          BlockedBloomFilter.hash("key" + i, "value" + i)));
+    }
+    int numFalsePositives = 0;
+    for (int i = 0; i < 10000; i++) {
+      if (bloomFilter.isPresent(buffer, offset, BlockedBloomFilter.hash("key" + i, "other" + i))) {
+        numFalsePositives++;
+      }
+    }
+    // 20 bits per key
+    Assert.assertTrue("false positives: " + numFalsePositives, numFalsePositives < 200);
+  }
+
+  @Test
+  public void testZeroSecondHash() throws Exception {
+    BlockedBloomFilter bloomFilter = new BlockedBloomFilter(5, 256);
+    byte[] filter = new byte[bloomFilter.getSizeInBytes()];
+    long hash = 0x12345678L;
+    bloomFilter.add(filter, hash);
+    int numBits = 0;
+    for (byte b : filter) {
+      numBits += Integer.bitCount(b & 0xFF);
+    }
+    // rather than the same bit five times
+    Assert.assertEquals(5, numBits);
+    Assert.assertTrue(bloomFilter.isPresent(ByteBuffer.wrap(filter), 0, hash));
+    Assert.assertFalse(bloomFilter.isPresent(ByteBuffer.wrap(filter), 0, hash + 1));
+  }
+
+  @Test
+  public void testHash() throws Exception {
+    Assert.assertEquals(BlockedBloomFilter.hash("foo", "bar"), BlockedBloomFilter.hash("foo", "bar"));
+    Assert.assertNotEquals(BlockedBloomFilter.hash("foo", "bar"), BlockedBloomFilter.hash("fo", "obar"));
+    Assert.assertNotEquals(BlockedBloomFilter.hash("foo", "bar"), BlockedBloomFilter.hash("bar", "foo"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSizeNotPowerOfTwo() throws Exception {
+    new BlockedBloomFilter(5, 24);
+  }
+}
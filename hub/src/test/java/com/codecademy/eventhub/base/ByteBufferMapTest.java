@@ -4,6 +4,7 @@ import com.google.common.collect.Maps;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
 import java.util.Map;
 
 public class ByteBufferMapTest {
@@ -34,6 +35,30 @@ public class ByteBufferMapTest {
     callback.verify(3);
   }
 
+  @Test
+  public void testIsWellFormed() throws Exception {
+    Map<String, String> properties = Maps.newHashMap();
+    properties.put("a", "b");
+    properties.put("hello", "world");
+    ByteBuffer byteBuffer = ByteBufferMap.build(properties).toByteBuffer();
+    Assert.assertTrue(ByteBufferMap.isWellFormed(byteBuffer));
+    Assert.assertTrue(ByteBufferMap.isWellFormed(
+        ByteBufferMap.build(Maps.<String, String>newHashMap()).toByteBuffer()));
+
+    Assert.assertFalse(ByteBufferMap.isWellFormed(ByteBuffer.allocate(3)));
+    ByteBuffer tooManyProperties = ByteBuffer.wrap(byteBuffer.array().clone());
+    tooManyProperties.putInt(0, 1000);
+    Assert.assertFalse(ByteBufferMap.isWellFormed(tooManyProperties));
+    Assert.assertFalse(ByteBufferMap.isWellFormed(ByteBuffer.allocate(4).putInt(0, -1)));
+
+    ByteBuffer pointerOutOfBounds = ByteBuffer.wrap(byteBuffer.array().clone());
+    pointerOutOfBounds.putInt(4, 1 << 20);
+    Assert.assertFalse(ByteBufferMap.isWellFormed(pointerOutOfBounds));
+    ByteBuffer pointersOutOfOrder = ByteBuffer.wrap(byteBuffer.array().clone());
+    pointersOutOfOrder.putInt(8, pointersOutOfOrder.getInt(4) - 1);
+    Assert.assertFalse(ByteBufferMap.isWellFormed(pointersOutOfOrder));
+  }
+
   private static class MyCallback implements KeyValueCallback {
     private final String[] expectedKeys;
     private final String[] expectedValues;
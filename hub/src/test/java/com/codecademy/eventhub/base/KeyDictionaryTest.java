@@ -0,0 +1,49 @@
+package com.codecademy.eventhub.base;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.RandomAccessFile;
+
+public class KeyDictionaryTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testAll() throws Exception {
+    String filename = folder.newFolder("junit-test").getCanonicalPath() + "/dictionary.log";
+    KeyDictionary keyDictionary = KeyDictionary.build(filename);
+    Assert.assertEquals(0, keyDictionary.ensureId("foo"));
+    Assert.assertEquals(1, keyDictionary.ensureId("bar"));
+    Assert.assertEquals(0, keyDictionary.ensureId("foo"));
+    keyDictionary.put(10, "baz");
+    Assert.assertEquals(11, keyDictionary.ensureId("hello"));
+    Assert.assertEquals(KeyDictionary.KEY_NOT_FOUND, keyDictionary.getId("key_not_exists"));
+    Assert.assertNull(keyDictionary.getKey(5));
+    Assert.assertNull(keyDictionary.getKey(100));
+    keyDictionary.close();
+
+    // simulate a record torn by a crash
+    try (RandomAccessFile raf = new RandomAccessFile(filename, "rw")) {
+      raf.seek(raf.length());
+      raf.writeInt(12);
+      raf.writeInt(100);
+      raf.write(new byte[] { 'x' });
+    }
+
+    keyDictionary = KeyDictionary.build(filename);
+    Assert.assertEquals(4, keyDictionary.size());
+    Assert.assertEquals(0, keyDictionary.getId("foo"));
+    Assert.assertEquals(1, keyDictionary.getId("bar"));
+    Assert.assertEquals("baz", keyDictionary.getKey(10));
+    Assert.assertEquals("hello", keyDictionary.getKey(11));
+    Assert.assertEquals(12, keyDictionary.ensureId("world"));
+    keyDictionary.close();
+
+    keyDictionary = KeyDictionary.build(filename);
+    Assert.assertEquals("world", keyDictionary.getKey(12));
+    keyDictionary.close();
+  }
+}
@@ -0,0 +1,61 @@
+package com.codecademy.eventhub.base;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.primitives.Ints;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.RandomAccessFile;
+import java.util.List;
+
+public class ManifestTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testAll() throws Exception {
+    String filename = folder.newFolder("junit-test").getCanonicalPath() + "/test.manifest";
+    Manifest manifest = Manifest.open(filename);
+    Assert.assertTrue(manifest.getRecords().isEmpty());
+    for (int i = 0; i < 3; i++) {
+      manifest.append(Ints.toByteArray(i));
+    }
+    manifest.append(new byte[0]);
+    manifest.close();
+
+    // simulate a record torn by a crash
+    try (RandomAccessFile raf = new RandomAccessFile(filename, "rw")) {
+      raf.seek(raf.length());
+      raf.writeInt(4);
+      raf.writeInt(100);
+      raf.write(new byte[] { 0, 0, 0, 3 });
+    }
+    long size = new RandomAccessFile(filename, "r").length();
+
+    manifest = Manifest.open(filename);
+    verify(manifest.getRecords(), 0, 1, 2);
+    Assert.assertEquals(0, manifest.getRecords().get(3).length);
+    Assert.assertEquals(size - 12, new RandomAccessFile(filename, "r").length());
+    manifest.append(Ints.toByteArray(3));
+    manifest.close();
+
+    manifest = Manifest.open(filename);
+    Assert.assertEquals(5, manifest.getRecords().size());
+    Assert.assertEquals(3, Ints.fromByteArray(manifest.getRecords().get(4)));
+    manifest.rewrite(ImmutableList.of(Ints.toByteArray(4)));
+    manifest.append(Ints.toByteArray(5));
+    manifest.close();
+
+    manifest = Manifest.open(filename);
+    verify(manifest.getRecords(), 4, 5);
+    manifest.close();
+  }
+
+  private static void verify(List<byte[]> records, int... expected) {
+    for (int i = 0; i < expected.length; i++) {
+      Assert.assertEquals(expected[i], Ints.fromByteArray(records.get(i)));
+    }
+  }
+}
@@ -0,0 +1,50 @@
+package com.codecademy.eventhub.base;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MappedHashIndexTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testAll() throws Exception {
+    String directory = folder.newFolder().getCanonicalPath();
+    MappedHashIndex index = MappedHashIndex.build(directory);
+    int numEntries = 10000;
+    for (int i = 0; i < numEntries / 2; i++) {
+      index.put(HashUtil.hash("key" + i), i, i);
+    }
+    index.close();
+
+    // reopened, then grown past the initial capacity
+    index = MappedHashIndex.build(directory);
+    Assert.assertEquals(numEntries / 2, index.size());
+    for (int i = numEntries / 2; i < numEntries; i++) {
+      index.put(HashUtil.hash("key" + i), i, i);
+    }
+    Assert.assertEquals(numEntries, index.size());
+    Assert.assertTrue(index.getCapacity() > numEntries);
+    for (int i = 0; i < numEntries; i++) {
+      Assert.assertEquals(i, index.get(HashUtil.hash("key" + i), i));
+      // same hash, different fingerprint
+      Assert.assertEquals(MappedHashIndex.NOT_FOUND, index.get(HashUtil.hash("key" + i), -i - 1));
+    }
+    Assert.assertEquals(MappedHashIndex.NOT_FOUND, index.get(HashUtil.hash("foo"), 0));
+
+    index.put(HashUtil.hash("key1"), 1, 42);
+    Assert.assertEquals(42, index.get(HashUtil.hash("key1"), 1));
+    Assert.assertEquals(numEntries, index.size());
+    index.close();
+
+    index = MappedHashIndex.build(directory);
+    Assert.assertEquals(42, index.get(HashUtil.hash("key1"), 1));
+    Assert.assertEquals(numEntries - 1, index.get(HashUtil.hash("key" + (numEntries - 1)), numEntries - 1));
+    index.clear();
+    Assert.assertEquals(0, index.size());
+    Assert.assertEquals(MappedHashIndex.NOT_FOUND, index.get(HashUtil.hash("key1"), 1));
+    index.close();
+  }
+}
@@ -0,0 +1,121 @@
+package com.codecademy.eventhub.base;
+
+import com.google.common.collect.Maps;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Random;
+
+public class OffHeapCacheTest {
+  @Test
+  public void testAll() throws Exception {
+    OffHeapCache cache = OffHeapCache.build(1024);
+    cache.put(1, toByteBuffer("foo"));
+    cache.put(2, toByteBuffer("bar"));
+    Assert.assertEquals("foo", toString(cache.get(1)));
+    Assert.assertEquals("bar", toString(cache.get(2)));
+    Assert.assertNull(cache.get(3));
+
+    cache.put(1, toByteBuffer("hello"));
+    Assert.assertEquals("hello", toString(cache.get(1)));
+    cache.invalidate(1);
+    Assert.assertNull(cache.get(1));
+
+    // larger than the cache itself
+    cache.put(4, ByteBuffer.allocate(2048));
+    Assert.assertNull(cache.get(4));
+    cache.invalidateAll();
+    Assert.assertNull(cache.get(2));
+  }
+
+  @Test
+  public void testEviction() throws Exception {
+    // 13 bytes of header + 87 bytes of payload, i.e. ten entries at most
+    OffHeapCache cache = OffHeapCache.build(1000);
+    for (int i = 0; i < 10; i++) {
+      cache.put(i, ByteBuffer.allocate(87));
+    }
+    // entry 0 keeps being read so it gets a second chance every time it reaches the tail
+    Assert.assertNotNull(cache.get(0));
+    for (int i = 10; i < 20; i++) {
+      // a miss followed by a put, like the record caches do
+      Assert.assertNull(cache.get(i));
+      cache.put(i, ByteBuffer.allocate(87));
+      cache.get(0);
+    }
+    Assert.assertNotNull(cache.get(0));
+    Assert.assertNull(cache.get(1));
+    Assert.assertNotNull(cache.get(18));
+    // once only entries seen as often as it are left to evict, the candidate is turned down
+    Assert.assertNull(cache.getQuietly(19));
+  }
+
+  @Test
+  public void testScanResistance() throws Exception {
+    OffHeapCache cache = OffHeapCache.build(1000);
+    for (int i = 0; i < 5; i++) {
+      for (int j = 0; j < 4; j++) {
+        if (cache.get(i) == null) {
+          cache.put(i, ByteBuffer.allocate(87));
+        }
+      }
+    }
+    // a scan a hundred times the size of the cache, while the hot keys keep being read
+    for (int i = 100; i < 1100; i++) {
+      Assert.assertNull(cache.get(i));
+      cache.put(i, ByteBuffer.allocate(87));
+      if (i % 10 == 0) {
+        Assert.assertNotNull(cache.get((i / 10) % 5));
+      }
+    }
+    for (int i = 0; i < 5; i++) {
+      Assert.assertNotNull(cache.getQuietly(i));
+    }
+
+    // quiet reads neither count nor get admitted by the caller
+    for (int i = 2000; i < 3000; i++) {
+      Assert.assertNull(cache.getQuietly(i));
+    }
+    for (int i = 0; i < 5; i++) {
+      Assert.assertNotNull(cache.getQuietly(i));
+    }
+  }
+
+  @Test
+  public void testRandom() throws Exception {
+    Random random = new Random(0);
+    OffHeapCache cache = OffHeapCache.build(4096);
+    Map<Long, String> expected = Maps.newHashMap();
+    for (int i = 0; i < 100000; i++) {
+      long key = random.nextInt(200);
+      switch (random.nextInt(4)) {
+        case 0:
+          String value = "value" + i + new String(new char[random.nextInt(100)]);
+          cache.put(key, toByteBuffer(value));
+          expected.put(key, value);
+          break;
+        case 1:
+          cache.invalidate(key);
+          expected.remove(key);
+          break;
+        default:
+          ByteBuffer actual = cache.get(key);
+          if (actual != null) {
+            Assert.assertEquals(expected.get(key), toString(actual));
+          }
+      }
+    }
+  }
+
+  private static ByteBuffer toByteBuffer(String value) {
+    return ByteBuffer.wrap(value.getBytes());
+  }
+
+  private static String toString(ByteBuffer byteBuffer) {
+    byte[] bytes = new byte[byteBuffer.remaining()];
+    byteBuffer.duplicate().get(bytes);
+    return new String(bytes);
+  }
+}
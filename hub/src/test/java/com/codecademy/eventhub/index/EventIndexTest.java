@@ -0,0 +1,68 @@
+package com.codecademy.eventhub.index;
+
+import com.codecademy.eventhub.integration.GuiceTestCase;
+import com.codecademy.eventhub.list.ColdIdListSegment;
+import com.codecademy.eventhub.list.DmaIdList;
+import com.codecademy.eventhub.list.DmaIdListModule;
+import com.codecademy.eventhub.list.IdList;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteOrder;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class EventIndexTest extends GuiceTestCase {
+  @Test
+  public void testAppendsUnderEviction() throws Exception {
+    final int NUM_FILES = 4;
+    final int NUM_IDS = 20000;
+    final String directory = getTempDirectory();
+    DmaIdList.Factory dmaIdListFactory = createInjectorFor(new Properties(), new DmaIdListModule())
+        .getInstance(DmaIdList.Factory.class);
+    dmaIdListFactory.setDefaultCapacity(2);
+    // a cache of one list, which the queries keep evicting under the writer
+    final EventIndex.IdListCache idListCache = new EventIndex.IdListCache(dmaIdListFactory,
+        new ColdIdListSegment.BlockCache(1024), ByteOrder.nativeOrder(), 1);
+    final AtomicBoolean isDone = new AtomicBoolean(false);
+    Thread[] queries = new Thread[3];
+    for (int i = 0; i < queries.length; i++) {
+      final Random random = new Random(i);
+      queries[i] = new Thread() {
+        @Override
+        public void run() {
+          while (!isDone.get()) {
+            IdList.Iterator iterator = idListCache.get(
+                getFilename(directory, random.nextInt(NUM_FILES))).iterator();
+            while (iterator.hasNext()) {
+              iterator.next();
+            }
+          }
+        }
+      };
+      queries[i].start();
+    }
+    for (int id = 0; id < NUM_IDS; id++) {
+      idListCache.add(getFilename(directory, id % NUM_FILES), id);
+    }
+    isDone.set(true);
+    for (Thread query : queries) {
+      query.join();
+    }
+
+    for (int i = 0; i < NUM_FILES; i++) {
+      idListCache.invalidate(getFilename(directory, i));
+      IdList.Iterator iterator = dmaIdListFactory.build(getFilename(directory, i)).iterator();
+      for (int id = i; id < NUM_IDS; id += NUM_FILES) {
+        Assert.assertTrue(iterator.hasNext());
+        Assert.assertEquals(id, iterator.next());
+      }
+      Assert.assertFalse(iterator.hasNext());
+    }
+  }
+
+  private static String getFilename(String directory, int i) {
+    return EventIndex.getEventIdListFilename(directory, String.valueOf(20130101 + i));
+  }
+}
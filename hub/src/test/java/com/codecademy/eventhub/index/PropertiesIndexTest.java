@@ -1,5 +1,6 @@
 package com.codecademy.eventhub.index;
 
+import com.google.common.base.Function;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.inject.Injector;
@@ -10,6 +11,7 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import javax.inject.Provider;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Properties;
 
@@ -33,8 +35,8 @@ public class PropertiesIndexTest extends GuiceTestCase {
     for (Event event : events) {
       propertiesIndex.addEvent(event);
     }
-    propertiesIndex.addUser(new User.Builder("user_id1", ImmutableMap.of("foo1", "bar1")).build());
-    propertiesIndex.addUser(new User.Builder("user_id2", ImmutableMap.of("foo1", "bar2", "foo2", "bar3")).build());
+    propertiesIndex.addUser(0, null, new User.Builder("user_id1", ImmutableMap.of("foo1", "bar1")).build());
+    propertiesIndex.addUser(1, null, new User.Builder("user_id2", ImmutableMap.of("foo1", "bar2", "foo2", "bar3")).build());
 
     Assert.assertEquals(Lists.newArrayList("experiment", "hello", "treatment"), propertiesIndex.getEventKeys("signup"));
     Assert.assertEquals(Lists.newArrayList("foo1"), propertiesIndex.getEventValues("signup", "experiment", ""));
@@ -69,6 +71,74 @@ public class PropertiesIndexTest extends GuiceTestCase {
     Assert.assertEquals(Lists.newArrayList("bar3"), propertiesIndex.getUserValues("foo2", ""));
   }
 
+  @Test
+  public void testUserPostings() throws Exception {
+    Provider<PropertiesIndex> propertiesIndexProvider = getPropertiesIndexProvider();
+    PropertiesIndex propertiesIndex = propertiesIndexProvider.get();
+
+    // spans two chunks, with a dense and a sparse one
+    final int NUM_USERS = 70000;
+    for (int userId = 0; userId < NUM_USERS; userId++) {
+      propertiesIndex.addUser(userId, null, new User.Builder(String.valueOf(userId),
+          ImmutableMap.of("mod3", String.valueOf(userId % 3))).build());
+    }
+    Assert.assertEquals(NUM_USERS, propertiesIndex.getNumIndexedUsers());
+    BitSet users = propertiesIndex.getUsers("mod3", "1", 65530, 65540);
+    Assert.assertEquals(BitSet.valueOf(new long[] { 0x249 }), users); // 65530, 65533, 65536, 65539
+    Assert.assertEquals(NUM_USERS / 3, propertiesIndex.getUsers("mod3", "1", 0, NUM_USERS).cardinality());
+    Assert.assertEquals(BitSet.valueOf(new long[] { 1 }),
+        propertiesIndex.getUsers("external_user_id", "66000", 66000, 66001));
+
+    User oldUser = new User.Builder("65536", ImmutableMap.of("mod3", "1")).build();
+    propertiesIndex.addUser(65536, oldUser,
+        new User.Builder("65536", ImmutableMap.of("foo", "bar")).build());
+    Assert.assertEquals(BitSet.valueOf(new long[] { 0x209 }),
+        propertiesIndex.getUsers("mod3", "1", 65530, 65540));
+    Assert.assertEquals(BitSet.valueOf(new long[] { 0x40 }),
+        propertiesIndex.getUsers("foo", "bar", 65530, 65540));
+    propertiesIndex.close();
+
+    propertiesIndex = propertiesIndexProvider.get();
+    Assert.assertEquals(NUM_USERS, propertiesIndex.getNumIndexedUsers());
+    Assert.assertEquals(BitSet.valueOf(new long[] { 0x209 }),
+        propertiesIndex.getUsers("mod3", "1", 65530, 65540));
+    Assert.assertTrue(propertiesIndex.getUsers("mod", "31", 0, NUM_USERS).isEmpty());
+    propertiesIndex.close();
+  }
+
+  @Test
+  public void testRecoverUserUpdate() throws Exception {
+    Provider<PropertiesIndex> propertiesIndexProvider = getPropertiesIndexProvider();
+    PropertiesIndex propertiesIndex = propertiesIndexProvider.get();
+    final User storedUser = new User.Builder("foo", ImmutableMap.of("plan", "free")).build();
+    propertiesIndex.addUser(0, null, storedUser);
+    // the update is indexed, but the process stops before the user is stored
+    propertiesIndex.updateUser(0, storedUser,
+        new User.Builder("foo", ImmutableMap.of("plan", "paid")).build());
+    Assert.assertEquals(BitSet.valueOf(new long[] { 1 }), propertiesIndex.getUsers("plan", "paid", 0, 1));
+    propertiesIndex.close();
+
+    propertiesIndex = propertiesIndexProvider.get();
+    Function<Integer, User> getUser = new Function<Integer, User>() {
+      @Override
+      public User apply(Integer userId) {
+        return storedUser;
+      }
+    };
+    propertiesIndex.recoverUserUpdate(getUser);
+    Assert.assertTrue(propertiesIndex.getUsers("plan", "paid", 0, 1).isEmpty());
+    Assert.assertEquals(BitSet.valueOf(new long[] { 1 }), propertiesIndex.getUsers("plan", "free", 0, 1));
+
+    // a committed update is left alone
+    User paidUser = new User.Builder("foo", ImmutableMap.of("plan", "paid")).build();
+    propertiesIndex.updateUser(0, storedUser, paidUser);
+    propertiesIndex.commitUserUpdate();
+    propertiesIndex.recoverUserUpdate(getUser);
+    Assert.assertEquals(BitSet.valueOf(new long[] { 1 }), propertiesIndex.getUsers("plan", "paid", 0, 1));
+    Assert.assertTrue(propertiesIndex.getUsers("plan", "free", 0, 1).isEmpty());
+    propertiesIndex.close();
+  }
+
   private Provider<PropertiesIndex> getPropertiesIndexProvider() {
     Properties prop = new Properties();
     prop.put("eventhub.directory", getTempDirectory());
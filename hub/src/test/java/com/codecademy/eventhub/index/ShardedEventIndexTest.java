@@ -1,12 +1,25 @@
 package com.codecademy.eventhub.index;
 
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
 import com.google.inject.Injector;
+import com.codecademy.eventhub.base.DB;
 import com.codecademy.eventhub.integration.GuiceTestCase;
 import com.codecademy.eventhub.list.DmaIdListModule;
+import com.codecademy.eventhub.list.IdList;
+import com.codecademy.eventhub.model.Event;
+import com.codecademy.eventhub.storage.filter.ExactMatch;
+import org.fusesource.leveldbjni.JniDBFactory;
+import org.iq80.leveldb.Options;
 import org.junit.Assert;
 import org.junit.Test;
 
 import javax.inject.Provider;
+import java.io.File;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 public class ShardedEventIndexTest extends GuiceTestCase {
@@ -64,10 +77,243 @@ public class ShardedEventIndexTest extends GuiceTestCase {
     callback.verify();
   }
 
+  @Test
+  public void testIndexedProperties() throws Exception {
+    String directory = getTempDirectory();
+    Provider<ShardedEventIndex> shardedEventIndexProvider =
+        getShardedEventIndexProvider(directory, "a:experiment");
+
+    ShardedEventIndex shardedEventIndex = shardedEventIndexProvider.get();
+    String[] dates = new String[] { "20130101", "20130102", "20130103" };
+    final List<Event> events = Lists.newArrayList(
+        newEvent("a", dates[0], ImmutableMap.of("experiment", "x", "treatment", "1")),
+        newEvent("a", dates[0], ImmutableMap.of("experiment", "y", "treatment", "1")),
+        newEvent("b", dates[0], ImmutableMap.of("experiment", "x", "treatment", "1")),
+        newEvent("a", dates[1], ImmutableMap.of("experiment", "x", "treatment", "2")),
+        newEvent("a", dates[2], ImmutableMap.of("experiment", "x", "treatment", "1")));
+    for (int eventId = 0; eventId < events.size(); eventId++) {
+      shardedEventIndex.ensureEventType(events.get(eventId).getEventType());
+      shardedEventIndex.addEvent(eventId, events.get(eventId));
+    }
+    Assert.assertTrue(shardedEventIndex.isIndexed("a", "experiment"));
+    Assert.assertFalse(shardedEventIndex.isIndexed("a", "treatment"));
+    Assert.assertFalse(shardedEventIndex.isIndexed("b", "experiment"));
+
+    IdVerificationCallback callback = new IdVerificationCallback(new int[] { 0, 3 });
+    shardedEventIndex.enumerateEventIds("a", dates[0], dates[2],
+        Lists.newArrayList(new ExactMatch("experiment", "x")), callback);
+    callback.verify();
+    shardedEventIndex.close();
+
+    // declaring treatment as indexed backfills its postings
+    shardedEventIndex = getShardedEventIndexProvider(directory, "a:experiment,treatment").get();
+    shardedEventIndex.backfillPostings(new Function<Long, Event>() {
+      @Override
+      public Event apply(Long eventId) {
+        return events.get(eventId.intValue());
+      }
+    });
+    callback = new IdVerificationCallback(new int[] { 0, 4 });
+    shardedEventIndex.enumerateEventIds("a", dates[0], "20140101", Lists.newArrayList(
+        new ExactMatch("experiment", "x"), new ExactMatch("treatment", "1")), callback);
+    callback.verify();
+    callback = new IdVerificationCallback(new int[] {});
+    shardedEventIndex.enumerateEventIds("a", dates[0], "20140101", Lists.newArrayList(
+        new ExactMatch("experiment", "y"), new ExactMatch("treatment", "2")), callback);
+    callback.verify();
+    shardedEventIndex.close();
+  }
+
+  @Test
+  public void testIdListsAreMappedLazily() throws Exception {
+    Provider<ShardedEventIndex> shardedEventIndexProvider = getShardedEventIndexProvider();
+
+    ShardedEventIndex shardedEventIndex = shardedEventIndexProvider.get();
+    String[] dates = new String[] { "20130101", "20130102", "20130103" };
+    shardedEventIndex.ensureEventType("a");
+    for (int i = 0; i < 9; i++) {
+      shardedEventIndex.addEvent(i, "a", dates[i / 3]);
+    }
+    shardedEventIndex.close();
+
+    shardedEventIndex = shardedEventIndexProvider.get();
+    Assert.assertTrue(shardedEventIndex.getVarz(0).contains("mapped id lists: 0\n"));
+    // a cache of one list, evicted on every date
+    IdVerificationCallback callback =
+        new IdVerificationCallback(new int[] { 0, 1, 2, 3, 4, 5, 6, 7, 8 });
+    shardedEventIndex.enumerateEventIds("a", dates[0], "20140101", callback);
+    callback.verify();
+    Assert.assertTrue(shardedEventIndex.getVarz(0).contains("mapped id lists: 1\n"));
+    shardedEventIndex.addEvent(9, "a", dates[0]);
+    shardedEventIndex.addEvent(10, "a", dates[2]);
+    callback = new IdVerificationCallback(new int[] { 0, 1, 2, 9, 3, 4, 5, 6, 7, 8, 10 });
+    shardedEventIndex.enumerateEventIds("a", dates[0], "20140101", callback);
+    callback.verify();
+    shardedEventIndex.close();
+  }
+
+  @Test
+  public void testClosedMonthsAreCompacted() throws Exception {
+    String directory = getTempDirectory();
+    Provider<ShardedEventIndex> shardedEventIndexProvider =
+        getShardedEventIndexProvider(directory, "");
+
+    ShardedEventIndex shardedEventIndex = shardedEventIndexProvider.get();
+    String[] dates = new String[] { "20130101", "20130115", "20130131", "20130201" };
+    shardedEventIndex.ensureEventType("a");
+    for (int i = 0; i < 8; i++) {
+      shardedEventIndex.addEvent(i, "a", dates[i / 2]);
+    }
+    shardedEventIndex.close();
+
+    // january is closed
+    shardedEventIndex = shardedEventIndexProvider.get();
+    File eventIndexDirectory = new File(directory, "event_index/a");
+    Assert.assertTrue(new File(eventIndexDirectory, "201301.seg").exists());
+    Assert.assertFalse(new File(eventIndexDirectory, "20130101.ser").exists());
+    Assert.assertTrue(new File(eventIndexDirectory, "20130201.ser").exists());
+    IdVerificationCallback callback = new IdVerificationCallback(new int[] { 2, 3, 4, 5, 6, 7 });
+    shardedEventIndex.enumerateEventIds("a", dates[1], "20140101", callback);
+    callback.verify();
+    // a late event on a compacted date
+    shardedEventIndex.addEvent(8, "a", dates[1]);
+    callback = new IdVerificationCallback(new int[] { 0, 1, 2, 3, 8, 4, 5 });
+    shardedEventIndex.enumerateEventIds("a", dates[0], dates[3], callback);
+    callback.verify();
+    shardedEventIndex.close();
+    File lateIdList = new File(eventIndexDirectory, "20130115.ser");
+    File copy = new File(directory, "20130115.ser");
+    Files.copy(lateIdList, copy);
+
+    shardedEventIndex = shardedEventIndexProvider.get();
+    Assert.assertFalse(lateIdList.exists());
+    callback = new IdVerificationCallback(new int[] { 0, 1, 2, 3, 8, 4, 5, 6, 7 });
+    shardedEventIndex.enumerateEventIds("a", dates[0], "20140101", callback);
+    callback.verify();
+    shardedEventIndex.close();
+
+    // as if the compaction was interrupted before the compacted list was deleted
+    Files.copy(copy, lateIdList);
+    shardedEventIndex = shardedEventIndexProvider.get();
+    callback = new IdVerificationCallback(new int[] { 0, 1, 2, 3, 8, 4, 5, 6, 7 });
+    shardedEventIndex.enumerateEventIds("a", dates[0], "20140101", callback);
+    callback.verify();
+    shardedEventIndex.close();
+  }
+
+  @Test
+  public void testOldMonthsAreCold() throws Exception {
+    String directory = getTempDirectory();
+    Provider<ShardedEventIndex> shardedEventIndexProvider =
+        getShardedEventIndexProvider(directory, "", "2");
+
+    ShardedEventIndex shardedEventIndex = shardedEventIndexProvider.get();
+    String[] dates = new String[] { "20130101", "20130115", "20130201", "20130301", "20130401" };
+    shardedEventIndex.ensureEventType("a");
+    for (int i = 0; i < 10; i++) {
+      shardedEventIndex.addEvent(i, "a", dates[i / 2]);
+    }
+    shardedEventIndex.close();
+
+    // january and february are two months or more before april
+    shardedEventIndex = shardedEventIndexProvider.get();
+    File eventIndexDirectory = new File(directory, "event_index/a");
+    Assert.assertTrue(new File(eventIndexDirectory, "201301.cold").exists());
+    Assert.assertFalse(new File(eventIndexDirectory, "201301.seg").exists());
+    Assert.assertTrue(new File(eventIndexDirectory, "201302.cold").exists());
+    Assert.assertTrue(new File(eventIndexDirectory, "201303.seg").exists());
+    IdVerificationCallback callback =
+        new IdVerificationCallback(new int[] { 2, 3, 4, 5, 6, 7, 8, 9 });
+    shardedEventIndex.enumerateEventIds("a", dates[1], "20140101", callback);
+    callback.verify();
+    // a late event on a cold month
+    shardedEventIndex.addEvent(10, "a", dates[1]);
+    shardedEventIndex.addEvent(2, "a", dates[1]);
+    callback = new IdVerificationCallback(new int[] { 0, 1, 2, 3, 10, 4, 5 });
+    shardedEventIndex.enumerateEventIds("a", dates[0], dates[3], callback);
+    callback.verify();
+    shardedEventIndex.close();
+
+    shardedEventIndex = shardedEventIndexProvider.get();
+    Assert.assertTrue(new File(eventIndexDirectory, "201301.cold").exists());
+    Assert.assertFalse(new File(eventIndexDirectory, "201301.seg").exists());
+    Assert.assertFalse(new File(eventIndexDirectory, "20130115.ser").exists());
+    callback = new IdVerificationCallback(new int[] { 0, 1, 2, 3, 10, 4, 5, 6, 7, 8, 9 });
+    shardedEventIndex.enumerateEventIds("a", dates[0], "20140101", callback);
+    callback.verify();
+    shardedEventIndex.close();
+  }
+
+  @Test
+  public void testExpireEvents() throws Exception {
+    String directory = getTempDirectory();
+    ShardedEventIndex shardedEventIndex =
+        getShardedEventIndexProvider(directory, "a:experiment").get();
+    String[] dates = new String[] { "20130101", "20130102", "20130103" };
+    shardedEventIndex.ensureEventType("a");
+    // the last one is a late event on an expiring date
+    String[] eventDates = new String[] { dates[0], dates[0], dates[1], dates[2], dates[1] };
+    for (int eventId = 0; eventId < eventDates.length; eventId++) {
+      shardedEventIndex.addEvent(eventId,
+          newEvent("a", eventDates[eventId], ImmutableMap.of("experiment", "x")));
+    }
+
+    final List<Long> expiredEventIds = Lists.newArrayList();
+    EventIndex.ExpiredCallback callback = new EventIndex.ExpiredCallback() {
+      @Override
+      public void onExpiredEventIds(IdList.Iterator eventIds) {
+        while (eventIds.hasNext()) {
+          expiredEventIds.add(eventIds.next());
+        }
+      }
+    };
+    // the events are hidden by the first run, and deleted by the second one
+    for (int i = 0; i < 2; i++) {
+      shardedEventIndex.expireEvents("a", dates[2], 3);
+      shardedEventIndex.deleteExpiredEvents("a", callback);
+    }
+    Assert.assertEquals(Lists.newArrayList(0L, 1L), expiredEventIds);
+    File eventIndexDirectory = new File(directory, "event_index/a");
+    Assert.assertFalse(new File(eventIndexDirectory, "20130101.ser").exists());
+    Assert.assertTrue(new File(eventIndexDirectory, "20130102.ser").exists());
+    IdVerificationCallback idVerificationCallback = new IdVerificationCallback(new int[] { 4, 3 });
+    shardedEventIndex.enumerateEventIds("a", dates[0], "20140101",
+        Lists.newArrayList(new ExactMatch("experiment", "x")), idVerificationCallback);
+    idVerificationCallback.verify();
+    shardedEventIndex.close();
+
+    // the postings of the expired events are gone
+    Options options = new Options();
+    DB postingsDb = new DB(JniDBFactory.factory.open(
+        new File(directory, "event_index/event_property_postings.db"), options));
+    Assert.assertEquals(2, postingsDb.findByPrefix("0@@", 0).size());
+    postingsDb.close();
+  }
+
+  private Event newEvent(String eventType, String date, Map<String, String> properties) {
+    return new Event.Builder(eventType, "user", date, properties).build();
+  }
+
   private Provider<ShardedEventIndex> getShardedEventIndexProvider() {
+    return getShardedEventIndexProvider(getTempDirectory(), "");
+  }
+
+  private Provider<ShardedEventIndex> getShardedEventIndexProvider(String directory,
+      String indexedProperties) {
+    return getShardedEventIndexProvider(directory, indexedProperties, "0");
+  }
+
+  private Provider<ShardedEventIndex> getShardedEventIndexProvider(String directory,
+      String indexedProperties, String coldSegmentAgeInMonths) {
     Properties prop = new Properties();
-    prop.put("eventhub.directory", getTempDirectory());
+    prop.put("eventhub.directory", directory);
+    prop.put("eventhub.byteOrder", "native");
     prop.put("eventhub.eventindex.initialNumEventIdsPerDay", "1");
+    prop.put("eventhub.eventindex.idListCacheSize", "1");
+    prop.put("eventhub.eventindex.coldSegmentAgeInMonths", coldSegmentAgeInMonths);
+    prop.put("eventhub.eventindex.coldBlockCacheSizeInBytes", "1024");
+    prop.put("eventhub.shardedeventindex.indexedProperties", indexedProperties);
+    prop.put("eventhub.retention.days", "");
 
     Injector injector = createInjectorFor(
         prop, new DmaIdListModule(), new ShardedEventIndexModule());
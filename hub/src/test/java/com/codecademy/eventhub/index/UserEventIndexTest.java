@@ -6,7 +6,9 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import javax.inject.Provider;
+import java.io.File;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Properties;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -56,6 +58,60 @@ public class UserEventIndexTest extends GuiceTestCase {
     callback.verify();
   }
 
+  @Test
+  public void testRestartAfterCrash() throws Exception {
+    String directory = getTempDirectory();
+    UserEventIndex userEventIndex = getDmaUserEventIndexProvider(directory).get();
+    for (int i = 0; i < 6; i++) {
+      userEventIndex.addEvent(i % 2, i);
+    }
+    // no close
+    Assert.assertFalse(new File(directory, "user_event_index/block_factory.ser").exists());
+
+    // the new blocks go past the block files in use before the crash
+    userEventIndex = getDmaUserEventIndexProvider(directory).get();
+    userEventIndex.addEvent(2, 6);
+    userEventIndex.addEvent(3, 7);
+    IdVerificationCallback callback = new IdVerificationCallback(new int[] { 0, 2, 4 });
+    userEventIndex.enumerateEventIds(0, 0, Integer.MAX_VALUE, callback);
+    callback.verify();
+    callback = new IdVerificationCallback(new int[] { 1, 3, 5 });
+    userEventIndex.enumerateEventIds(1, 0, Integer.MAX_VALUE, callback);
+    callback.verify();
+    callback = new IdVerificationCallback(new int[] { 7 });
+    userEventIndex.enumerateEventIds(3, 0, Integer.MAX_VALUE, callback);
+    callback.verify();
+    userEventIndex.close();
+  }
+
+  @Test
+  public void testByteOrderOfBlockFiles() throws Exception {
+    String directory = getTempDirectory();
+    UserEventIndex userEventIndex = getDmaUserEventIndexProvider(directory, "big_endian").get();
+    for (int i = 0; i < 4; i++) {
+      userEventIndex.addEvent(0, i);
+    }
+    userEventIndex.close();
+
+    // the existing block files keep their byte order
+    userEventIndex = getDmaUserEventIndexProvider(directory, "little_endian").get();
+    for (int i = 4; i < 12; i++) {
+      userEventIndex.addEvent(0, i);
+    }
+    IdVerificationCallback callback = new IdVerificationCallback(
+        new int[] { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11 });
+    userEventIndex.enumerateEventIds(0, 0, Integer.MAX_VALUE, callback);
+    callback.verify();
+    Assert.assertEquals(5, userEventIndex.getEventOffset(0, 5));
+    userEventIndex.close();
+
+    int fileSize = 2 * (2 * UserEventIndex.ID_SIZE + UserEventIndex.Block.MetaData.SIZE);
+    Assert.assertEquals(ByteOrder.BIG_ENDIAN, UserEventIndex.Block.Factory.openFile(
+        directory + "/user_event_index/block_0.mem", fileSize, ByteOrder.LITTLE_ENDIAN).order());
+    Assert.assertEquals(ByteOrder.LITTLE_ENDIAN, UserEventIndex.Block.Factory.openFile(
+        directory + "/user_event_index/block_2.mem", fileSize, ByteOrder.BIG_ENDIAN).order());
+  }
+
   private static class IdVerificationCallback implements UserEventIndex.Callback {
     private final int[] expectedIds;
     private int counter;
@@ -176,8 +232,18 @@ public class UserEventIndexTest extends GuiceTestCase {
   }
 
   private Provider<UserEventIndex> getDmaUserEventIndexProvider() {
+    return getDmaUserEventIndexProvider(getTempDirectory());
+  }
+
+  private Provider<UserEventIndex> getDmaUserEventIndexProvider(String directory) {
+    return getDmaUserEventIndexProvider(directory, "native");
+  }
+
+  private Provider<UserEventIndex> getDmaUserEventIndexProvider(String directory,
+      String byteOrder) {
     Properties prop = new Properties();
-    prop.put("eventhub.directory", getTempDirectory());
+    prop.put("eventhub.directory", directory);
+    prop.put("eventhub.byteOrder", byteOrder);
     prop.put("eventhub.usereventindex.numPointersPerIndexEntry", "2");
     prop.put("eventhub.usereventindex.numIndexEntryPerFile", "2");
     prop.put("eventhub.usereventindex.indexEntryFileCacheSize", "2");
@@ -5,10 +5,12 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.primitives.Longs;
 import com.google.inject.Injector;
 import com.google.inject.Key;
 import com.google.inject.name.Names;
 import com.codecademy.eventhub.*;
+import com.codecademy.eventhub.base.Manifest;
 import com.codecademy.eventhub.index.DatedEventIndex;
 import com.codecademy.eventhub.index.DatedEventIndexModule;
 import com.codecademy.eventhub.index.EventIndex;
@@ -21,12 +23,15 @@ import com.codecademy.eventhub.index.UserEventIndexModule;
 import com.codecademy.eventhub.list.DmaIdListModule;
 import com.codecademy.eventhub.model.Event;
 import com.codecademy.eventhub.model.User;
+import com.codecademy.eventhub.storage.BloomFilteredEventStorage;
+import com.codecademy.eventhub.storage.BloomFilteredUserStorage;
 import com.codecademy.eventhub.storage.EventStorage;
 import com.codecademy.eventhub.storage.EventStorageModule;
 import com.codecademy.eventhub.storage.JournalEventStorage;
 import com.codecademy.eventhub.storage.JournalUserStorage;
 import com.codecademy.eventhub.storage.UserStorageModule;
 import com.codecademy.eventhub.storage.UserStorage;
+import com.codecademy.eventhub.storage.filter.And;
 import com.codecademy.eventhub.storage.filter.ExactMatch;
 import com.codecademy.eventhub.storage.filter.Filter;
 import com.codecademy.eventhub.storage.filter.Regex;
@@ -35,6 +40,7 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import javax.inject.Provider;
+import java.io.File;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -173,6 +179,54 @@ public class EventHubTest extends GuiceTestCase {
         Lists.transform(eventHub.findUsers(new ExactMatch("external_user_id", "16")), getExternalUserId));
   }
 
+  @Test
+  public void testFindUsersPaging() throws Exception {
+    Provider<EventHub> eventHubProvider = getEventHubProvider();
+    EventHub eventHub = eventHubProvider.get();
+
+    for (int i = 0; i < 9; i++) {
+      eventHub.addOrUpdateUser(new User.Builder(String.valueOf(i),
+          ImmutableMap.of("parity", i % 2 == 0 ? "even" : "odd")).build());
+    }
+
+    final List<String> externalUserIds = Lists.newArrayList();
+    EventHub.UserCallback collectExternalUserIds = new EventHub.UserCallback() {
+      @Override
+      public void onUser(User user) {
+        externalUserIds.add(user.getExternalId());
+      }
+    };
+    List<Integer> cursors = Lists.newArrayList();
+    int cursor = 0;
+    do {
+      cursor = eventHub.findUsers(new ExactMatch("parity", "even"), cursor, 2,
+          collectExternalUserIds);
+      cursors.add(cursor);
+    } while (cursor != EventHub.NO_MORE_USERS);
+    Assert.assertEquals(Lists.newArrayList("0", "2", "4", "6", "8"), externalUserIds);
+    Assert.assertEquals(Lists.newArrayList(4, 8, EventHub.NO_MORE_USERS), cursors);
+
+    externalUserIds.clear();
+    Assert.assertEquals(6, eventHub.findUsers(TrueFilter.INSTANCE, 3, 3, collectExternalUserIds));
+    Assert.assertEquals(Lists.newArrayList("3", "4", "5"), externalUserIds);
+
+    externalUserIds.clear();
+    Assert.assertEquals(EventHub.NO_MORE_USERS, eventHub.findUsers(
+        new ExactMatch("parity", "none"), 0, 2, collectExternalUserIds));
+    Assert.assertTrue(externalUserIds.isEmpty());
+
+    eventHub.addOrUpdateUser(new User.Builder("4", ImmutableMap.of("parity", "odd")).build());
+    Assert.assertEquals(5, eventHub.findUsers(new ExactMatch("parity", "odd")).size());
+    externalUserIds.clear();
+    eventHub.findUsers(And.of(new ExactMatch("parity", "odd"),
+        new Regex("external_user_id", Pattern.compile("[4-6]"))), 0, 10, collectExternalUserIds);
+    Assert.assertEquals(Lists.newArrayList("4", "5"), externalUserIds);
+    eventHub.close();
+
+    eventHub = eventHubProvider.get();
+    Assert.assertEquals(4, eventHub.findUsers(new ExactMatch("parity", "even")).size());
+  }
+
   @Test
   public void testConcurrentAddEvent() throws Exception {
     Injector injector = getInjector();
@@ -186,7 +240,8 @@ public class EventHubTest extends GuiceTestCase {
     final UserStorage userStorage = injector.getInstance(JournalUserStorage.class);
 
     final EventHub eventHub = new EventHub(directory, shardedEventIndex, datedEventIndex,
-        propertiesIndex, userEventIndex, eventStorage, userStorage);
+        propertiesIndex, userEventIndex, eventStorage, userStorage, 2 /* numUserScanThreads */,
+        2 /* numUsersPerScanChunk */);
 
     final int NUM_EVENTS = 2000;
     final int NUM_THREADS = 20; // NUM_EVENTS needs to be muliple of NUM_THREADS
@@ -266,6 +321,53 @@ public class EventHubTest extends GuiceTestCase {
     }
   }
 
+  @Test
+  public void testQueriesConcurrentWithAddEvent() throws Exception {
+    final EventHub eventHub = getEventHubProvider().get();
+    final int NUM_USERS = 500;
+    final String[] EVENT_TYPES = { "eventType1", "eventType2" };
+    final String DATE = "20130101";
+    final List<Filter> eventFilters = Lists.<Filter>newArrayList(TrueFilter.INSTANCE, TrueFilter.INSTANCE);
+
+    final AtomicInteger numErrors = new AtomicInteger(0);
+    final AtomicInteger isDone = new AtomicInteger(0);
+    Thread reader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        int previousNumFirstStep = 0;
+        while (isDone.get() == 0) {
+          try {
+            int[] funnelCounts = eventHub.getFunnelCounts(DATE, "20130102", EVENT_TYPES,
+                7 /* numDaysToCompleteFunnel */, eventFilters, TrueFilter.INSTANCE);
+            // every user gets the first step before the second one
+            if (funnelCounts[0] < previousNumFirstStep || funnelCounts[1] > funnelCounts[0]
+                || funnelCounts[0] - funnelCounts[1] > 1) {
+              numErrors.incrementAndGet();
+            }
+            previousNumFirstStep = funnelCounts[0];
+          } catch (RuntimeException e) {
+            // e.g. the first event type isn't there yet
+            if (previousNumFirstStep > 0) {
+              numErrors.incrementAndGet();
+            }
+          }
+        }
+      }
+    });
+    reader.start();
+    for (int i = 0; i < NUM_USERS; i++) {
+      addEvent(eventHub, EVENT_TYPES[0], "user" + i, DATE, Maps.<String, String>newHashMap());
+      addEvent(eventHub, EVENT_TYPES[1], "user" + i, DATE, Maps.<String, String>newHashMap());
+    }
+    isDone.set(1);
+    reader.join();
+
+    Assert.assertEquals(0, numErrors.get());
+    Assert.assertArrayEquals(new int[] { NUM_USERS, NUM_USERS },
+        eventHub.getFunnelCounts(DATE, "20130102", EVENT_TYPES, 7 /* numDaysToCompleteFunnel */,
+            eventFilters, TrueFilter.INSTANCE));
+  }
+
   @Test
   public void testFilter() throws Exception {
     Provider<EventHub> eventHubProvider = getEventHubProvider();
@@ -441,6 +543,106 @@ public class EventHubTest extends GuiceTestCase {
     }
   }
 
+  @Test
+  public void testReplayAfterCrash() throws Exception {
+    Injector injector = getInjector();
+    String directory = injector.getInstance(Key.get(String.class, Names.named("eventhub.directory")));
+    final String[] USER_IDS = { "10", "11" };
+    final String[] EVENT_TYPES = { "eventType1", "eventType2" };
+    final String[] DATES = { "20130101", "20130102", "20130103" };
+    final Map<String, String> PROPERTIES = ImmutableMap.of("foo1", "bar1");
+    final List<Filter> EVENT_FILTERS = Lists.<Filter>newArrayList(
+        TrueFilter.INSTANCE, new ExactMatch("foo1", "bar1"));
+
+    EventHub eventHub = injector.getInstance(EventHub.class);
+    for (int i = 0; i < 6; i++) {
+      addEvent(eventHub, EVENT_TYPES[i % 2], USER_IDS[i / 2 % 2], DATES[i / 3], PROPERTIES);
+    }
+    List<Event> firstTimeline = eventHub.getUserEvents(USER_IDS[0], 0, Integer.MAX_VALUE);
+    List<Event> secondTimeline = eventHub.getUserEvents(USER_IDS[1], 0, Integer.MAX_VALUE);
+    int[] funnelCounts = eventHub.getFunnelCounts(DATES[0], DATES[2], EVENT_TYPES,
+        1 /* numDaysToCompleteFunnel */, EVENT_FILTERS, TrueFilter.INSTANCE);
+    eventHub.close();
+
+    // a crash while the next event is indexed, long after the last checkpoint
+    Event event = new Event.Builder(EVENT_TYPES[1], USER_IDS[0], DATES[2], PROPERTIES).build();
+    ShardedEventIndex shardedEventIndex = injector.getInstance(ShardedEventIndex.class);
+    EventStorage eventStorage = injector.getInstance(BloomFilteredEventStorage.class);
+    UserStorage userStorage = injector.getInstance(BloomFilteredUserStorage.class);
+    long eventId = eventStorage.addEvent(event, userStorage.getId(USER_IDS[0]),
+        shardedEventIndex.ensureEventType(event.getEventType()));
+    shardedEventIndex.addEvent(eventId, event);
+    shardedEventIndex.close();
+    eventStorage.close();
+    userStorage.close();
+    Manifest checkpointManifest = Manifest.open(directory + "/checkpoint.manifest");
+    checkpointManifest.rewrite(Lists.newArrayList(Longs.toByteArray(2)));
+    checkpointManifest.close();
+
+    // replayed once, and only once, in every index
+    eventHub = injector.getInstance(EventHub.class);
+    firstTimeline.add(event);
+    Assert.assertEquals(firstTimeline.toString(),
+        eventHub.getUserEvents(USER_IDS[0], 0, Integer.MAX_VALUE).toString());
+    Assert.assertEquals(secondTimeline.toString(),
+        eventHub.getUserEvents(USER_IDS[1], 0, Integer.MAX_VALUE).toString());
+    Assert.assertArrayEquals(funnelCounts, eventHub.getFunnelCounts(DATES[0], DATES[2],
+        EVENT_TYPES, 1 /* numDaysToCompleteFunnel */, EVENT_FILTERS, TrueFilter.INSTANCE));
+    Assert.assertArrayEquals(new int[] { 1 }, eventHub.getFunnelCounts(DATES[2], "20130104",
+        new String[] { EVENT_TYPES[1] }, 1 /* numDaysToCompleteFunnel */,
+        EVENT_FILTERS.subList(1, 2), TrueFilter.INSTANCE));
+    Assert.assertEquals(DATES[2], eventHub.getVarz().split("\n")[0].split(": ")[1]);
+    Assert.assertEquals(eventId + 1, eventHub.addEvent(event));
+    eventHub.close();
+  }
+
+  @Test
+  public void testExpireEvents() throws Exception {
+    Injector injector = getInjector("eventType1:1");
+    String directory = injector.getInstance(Key.get(String.class, Names.named("eventhub.directory")));
+    final String[] USER_IDS = { "10", "11" };
+    final String[] EVENT_TYPES = { "eventType1", "eventType2" };
+    final String[] DATES = { "20130101", "20130102", "20130103" };
+    final Map<String, String> PROPERTIES = ImmutableMap.of("foo1", "bar1");
+    final List<Filter> EVENT_FILTERS = Lists.<Filter>newArrayList(
+        TrueFilter.INSTANCE, TrueFilter.INSTANCE);
+
+    EventHub eventHub = injector.getInstance(EventHub.class);
+    for (int i = 0; i < 12; i++) {
+      addEvent(eventHub, EVENT_TYPES[i % 2], USER_IDS[i / 2 % 2], DATES[i / 4], PROPERTIES);
+    }
+    List<Event> timeline = eventHub.getUserEvents(USER_IDS[0], 0, Integer.MAX_VALUE);
+    Assert.assertEquals(6, timeline.size());
+    Assert.assertArrayEquals(new int[] { 2, 2 }, eventHub.getFunnelCounts(DATES[0], DATES[2],
+        EVENT_TYPES, 1 /* numDaysToCompleteFunnel */, EVENT_FILTERS, TrueFilter.INSTANCE));
+
+    // eventType1 is retained for a day, i.e. from DATES[1] on
+    eventHub.expireEvents(DATES[2]);
+    List<Event> retainedTimeline = Lists.newArrayList(timeline.subList(1, timeline.size()));
+    Assert.assertEquals(retainedTimeline.toString(),
+        eventHub.getUserEvents(USER_IDS[0], 0, Integer.MAX_VALUE).toString());
+    Assert.assertArrayEquals(new int[] { 0, 0 }, eventHub.getFunnelCounts(DATES[0], DATES[1],
+        EVENT_TYPES, 1 /* numDaysToCompleteFunnel */, EVENT_FILTERS, TrueFilter.INSTANCE));
+    Assert.assertArrayEquals(new int[] { 2 }, eventHub.getFunnelCounts(DATES[0], DATES[1],
+        new String[] { EVENT_TYPES[1] }, 1 /* numDaysToCompleteFunnel */,
+        EVENT_FILTERS.subList(0, 1), TrueFilter.INSTANCE));
+    // the lists of the expired events are only deleted on the next run
+    File expiredIdList = new File(directory, "event_index/eventType1/20130101.ser");
+    Assert.assertTrue(expiredIdList.exists());
+    eventHub.expireEvents(DATES[2]);
+    Assert.assertFalse(expiredIdList.exists());
+    Assert.assertFalse(new File(expiredIdList.getPath() + ".expired").exists());
+    Assert.assertTrue(new File(directory, "event_index/eventType2/20130101.ser").exists());
+    eventHub.close();
+
+    eventHub = injector.getInstance(EventHub.class);
+    Assert.assertEquals(retainedTimeline.toString(),
+        eventHub.getUserEvents(USER_IDS[0], 0, Integer.MAX_VALUE).toString());
+    Assert.assertArrayEquals(new int[] { 0, 0 }, eventHub.getFunnelCounts(DATES[0], DATES[1],
+        EVENT_TYPES, 1 /* numDaysToCompleteFunnel */, EVENT_FILTERS, TrueFilter.INSTANCE));
+    eventHub.close();
+  }
+
   private void addEvent(EventHub eventHub, String eventType, String externalUserId, String day,
       Map<String, String> property) {
     eventHub.addEvent(new Event.Builder(eventType, externalUserId, day, property).build());
@@ -451,33 +653,13 @@ public class EventHubTest extends GuiceTestCase {
   }
 
   private Injector getInjector() {
-    Properties prop = new Properties();
-    prop.put("eventhub.directory", getTempDirectory());
-    prop.put("eventhub.eventindex.initialNumEventIdsPerDay", "10");
-    prop.put("eventhub.usereventindex.numPointersPerIndexEntry", "2");
-    prop.put("eventhub.usereventindex.numIndexEntryPerFile", "2");
-    prop.put("eventhub.usereventindex.indexEntryFileCacheSize", "2");
-    prop.put("eventhub.usereventindex.numRecordsPerBlock", "2");
-    prop.put("eventhub.usereventindex.numBlocksPerFile", "2");
-    prop.put("eventhub.usereventindex.blockCacheSize", "2");
-    prop.put("eventhub.journaleventstorage.numMetaDataPerFile", "10");
-    prop.put("eventhub.journaleventstorage.metaDataFileCacheSize", "10");
-    prop.put("eventhub.journaleventstorage.journalFileSize", "1024");
-    prop.put("eventhub.journaleventstorage.journalWriteBatchSize", "1024");
-    prop.put("eventhub.cachedeventstorage.recordCacheSize", "10");
-    prop.put("eventhub.bloomfilteredeventstorage.bloomFilterSize", "64");
-    prop.put("eventhub.bloomfilteredeventstorage.numHashes", "1");
-    prop.put("eventhub.bloomfilteredeventstorage.numMetaDataPerFile", "10");
-    prop.put("eventhub.bloomfilteredeventstorage.metaDataFileCacheSize", "10");
-    prop.put("eventhub.journaluserstorage.numMetaDataPerFile", "10");
-    prop.put("eventhub.journaluserstorage.metaDataFileCacheSize", "10");
-    prop.put("eventhub.journaluserstorage.journalFileSize", "1024");
-    prop.put("eventhub.journaluserstorage.journalWriteBatchSize", "1024");
-    prop.put("eventhub.cacheduserstorage.recordCacheSize", "10");
-    prop.put("eventhub.bloomfiltereduserstorage.numMetaDataPerFile", "10");
-    prop.put("eventhub.bloomfiltereduserstorage.metaDataFileCacheSize", "10");
-    prop.put("eventhub.bloomfiltereduserstorage.bloomFilterSize", "64");
-    prop.put("eventhub.bloomfiltereduserstorage.numHashes", "1");
+    return getInjector("");
+  }
+
+  private Injector getInjector(String retentionDays) {
+    Properties prop = getEventHubProperties(getTempDirectory());
+    prop.put("eventhub.shardedeventindex.indexedProperties", "eventType2:foo1;receive_email:foo1");
+    prop.put("eventhub.retention.days", retentionDays);
 
     return createInjectorFor(new Properties(),
         new EventHubModule(prop),
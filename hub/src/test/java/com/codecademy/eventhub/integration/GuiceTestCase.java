@@ -28,6 +28,58 @@ public class GuiceTestCase {
     }
   }
 
+  /**
+   * The properties of an EventHub in the given directory, sized for small tests.
+   */
+  public static Properties getEventHubProperties(String directory) {
+    Properties prop = new Properties();
+    prop.put("eventhub.directory", directory);
+    prop.put("eventhub.byteOrder", "native");
+    prop.put("eventhub.eventindex.initialNumEventIdsPerDay", "10");
+    prop.put("eventhub.eventindex.idListCacheSize", "2");
+    prop.put("eventhub.eventindex.coldSegmentAgeInMonths", "0");
+    prop.put("eventhub.eventindex.coldBlockCacheSizeInBytes", "1024");
+    prop.put("eventhub.shardedeventindex.indexedProperties", "");
+    prop.put("eventhub.retention.days", "");
+    prop.put("eventhub.usereventindex.numPointersPerIndexEntry", "2");
+    prop.put("eventhub.usereventindex.numIndexEntryPerFile", "2");
+    prop.put("eventhub.usereventindex.indexEntryFileCacheSize", "2");
+    prop.put("eventhub.usereventindex.numRecordsPerBlock", "2");
+    prop.put("eventhub.usereventindex.numBlocksPerFile", "2");
+    prop.put("eventhub.usereventindex.blockCacheSize", "2");
+    prop.put("eventhub.eventstorage.backend", "journal");
+    prop.put("eventhub.journaleventstorage.numMetaDataPerFile", "10");
+    prop.put("eventhub.journaleventstorage.metaDataFileCacheSize", "10");
+    prop.put("eventhub.journaleventstorage.journalFileSize", "1024");
+    prop.put("eventhub.journaleventstorage.journalWriteBatchSize", "1024");
+    prop.put("eventhub.journaleventstorage.syncWrites", "true");
+    prop.put("eventhub.compressedeventstorage.numMetaDataPerFile", "10");
+    prop.put("eventhub.compressedeventstorage.metaDataFileCacheSize", "10");
+    prop.put("eventhub.compressedeventstorage.blockSize", "64");
+    prop.put("eventhub.compressedeventstorage.blockCacheSizeInBytes", "1024");
+    prop.put("eventhub.compressedeventstorage.syncWrites", "true");
+    prop.put("eventhub.cachedeventstorage.cacheSizeInBytes", "10240");
+    prop.put("eventhub.bloomfilteredeventstorage.dataFileSize", "1024");
+    prop.put("eventhub.bloomfilteredeventstorage.dataFileCacheSize", "1");
+    prop.put("eventhub.bloomfilteredeventstorage.bitsPerProperty", "10");
+    prop.put("eventhub.bloomfilteredeventstorage.maxBloomFilterSize", "64");
+    prop.put("eventhub.bloomfilteredeventstorage.numMetaDataPerFile", "10");
+    prop.put("eventhub.bloomfilteredeventstorage.metaDataFileCacheSize", "10");
+    prop.put("eventhub.journaluserstorage.numMetaDataPerFile", "10");
+    prop.put("eventhub.journaluserstorage.metaDataFileCacheSize", "10");
+    prop.put("eventhub.journaluserstorage.journalFileSize", "1024");
+    prop.put("eventhub.journaluserstorage.journalWriteBatchSize", "1024");
+    prop.put("eventhub.journaluserstorage.syncWrites", "true");
+    prop.put("eventhub.cacheduserstorage.cacheSizeInBytes", "10240");
+    prop.put("eventhub.bloomfiltereduserstorage.numMetaDataPerFile", "10");
+    prop.put("eventhub.bloomfiltereduserstorage.metaDataFileCacheSize", "10");
+    prop.put("eventhub.bloomfiltereduserstorage.bloomFilterSize", "64");
+    prop.put("eventhub.bloomfiltereduserstorage.numHashes", "1");
+    prop.put("eventhub.findusers.numThreads", "2");
+    prop.put("eventhub.findusers.numUsersPerChunk", "2");
+    return prop;
+  }
+
   private static class ConfigModule extends AbstractModule {
     private final Properties properties;
 
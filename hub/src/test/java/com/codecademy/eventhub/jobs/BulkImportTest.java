@@ -0,0 +1,87 @@
+package com.codecademy.eventhub.jobs;
+
+import com.codecademy.eventhub.EventHub;
+import com.codecademy.eventhub.model.Event;
+import com.codecademy.eventhub.storage.filter.Filter;
+import com.codecademy.eventhub.storage.filter.TrueFilter;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.StringReader;
+import java.util.List;
+import java.util.Properties;
+
+import static com.codecademy.eventhub.integration.GuiceTestCase.getEventHubProperties;
+
+public class BulkImportTest extends JobTestCase {
+  @Test
+  public void testImport() throws Exception {
+    testImport("journal");
+    // whose pending log isn't synced per event either
+    testImport("compressed");
+  }
+
+  private void testImport(String eventStorageBackend) throws Exception {
+    String directory = folder.newFolder().getCanonicalPath();
+    Properties properties = getEventHubProperties(directory);
+    properties.put("eventhub.eventstorage.backend", eventStorageBackend);
+    File eventsFile = folder.newFile();
+    Files.write(
+        "{\"event_type\":\"signup\",\"external_user_id\":\"u1\",\"date\":\"20130101\",\"foo\":\"a\"}\n" +
+        "{\"event_type\":\"signup\",\"external_user_id\":\"u2\",\"date\":\"20130101\"}\n" +
+        "\n" +
+        "{\"event_type\":\"submit\",\"external_user_id\":\"u1\",\"date\":\"20130102\"}\n" +
+        "{\"event_type\":\"pay\",\"external_user_id\":\"u1\",\"date\":\"20130103\"}\n" +
+        "{\"event_type\":\"submit\",\"external_user_id\":\"u2\",\"date\":\"20130103\"}\n",
+        eventsFile, Charsets.UTF_8);
+
+    Assert.assertEquals(5, BulkImport.run(properties, eventsFile.getCanonicalPath()));
+    Assert.assertEquals("false", properties.get("eventhub.compressedeventstorage.syncWrites"));
+
+    properties.put("eventhub.compressedeventstorage.syncWrites", "true");
+    try (EventHub eventHub = createEventHub(properties)) {
+      List<Filter> filters = Lists.<Filter>newArrayList(
+          TrueFilter.INSTANCE, TrueFilter.INSTANCE, TrueFilter.INSTANCE);
+      Assert.assertArrayEquals(new int[] { 2, 2, 1 }, eventHub.getFunnelCounts(
+          "20130101", "20130104", new String[] { "signup", "submit", "pay" }, 7, filters,
+          TrueFilter.INSTANCE));
+      List<Event> events = eventHub.getUserEvents("u1", 0, 10);
+      Assert.assertEquals(3, events.size());
+      Assert.assertEquals("signup", events.get(0).getEventType());
+      Assert.assertEquals("a", events.get(0).get("foo"));
+      Assert.assertEquals("pay", events.get(2).getEventType());
+
+      // tracking carries on where the import left off
+      Assert.assertEquals(5, eventHub.addEvent(
+          new Event.Builder("pay", "u2", "20130104", Maps.<String, String>newHashMap()).build()));
+    }
+  }
+
+  @Test
+  public void testRejectsUnsortedAndIncompleteEvents() throws Exception {
+    String directory = folder.newFolder().getCanonicalPath();
+    try (EventHub eventHub = createEventHub(getEventHubProperties(directory))) {
+      try {
+        BulkImport.importEvents(eventHub, new BufferedReader(new StringReader(
+            "{\"event_type\":\"signup\",\"external_user_id\":\"u1\",\"date\":\"20130102\"}\n" +
+            "{\"event_type\":\"signup\",\"external_user_id\":\"u2\",\"date\":\"20130101\"}\n")));
+        Assert.fail("events out of order are rejected");
+      } catch (IllegalArgumentException e) {
+        Assert.assertTrue(e.getMessage().startsWith("line 2:"));
+      }
+      try {
+        BulkImport.importEvents(eventHub, new BufferedReader(new StringReader(
+            "{\"event_type\":\"signup\",\"date\":\"20130102\"}\n")));
+        Assert.fail("events without a user are rejected");
+      } catch (IllegalArgumentException e) {
+        Assert.assertTrue(e.getMessage().startsWith("line 1:"));
+      }
+    }
+  }
+}
@@ -0,0 +1,47 @@
+package com.codecademy.eventhub.jobs;
+
+import com.codecademy.eventhub.EventHub;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Properties;
+
+import static com.codecademy.eventhub.integration.GuiceTestCase.getEventHubProperties;
+
+public class ConvertByteOrderTest extends JobTestCase {
+  @Test
+  public void testConvert() throws Exception {
+    final String[] DATES = { "20130101", "20130102", "20130201", "20130202" };
+    String directory = folder.newFolder().getCanonicalPath();
+    Properties properties = getEventHubProperties(directory);
+    properties.put("eventhub.byteOrder", "big_endian");
+
+    try (EventHub eventHub = createEventHub(properties)) {
+      addEvents(eventHub, DATES);
+    }
+    Snapshot expected;
+    // the restart compacts january into a segment
+    try (EventHub eventHub = createEventHub(properties)) {
+      expected = snapshot(eventHub);
+    }
+    Assert.assertTrue(new File(directory, "event_index/signup/201301.seg").exists());
+    Assert.assertTrue(new File(directory, "event_index/signup/20130201.ser").exists());
+
+    // twice, the second run being a no-op
+    properties.put("eventhub.byteOrder", "little_endian");
+    int numFiles = ConvertByteOrder.run(properties);
+    // a segment and 2 lists per event type, and the block files
+    Assert.assertTrue(numFiles > 3 * EVENT_TYPES.length);
+    Assert.assertEquals(0, ConvertByteOrder.run(properties));
+    Assert.assertFalse(new File(directory, "event_index/signup/201301.seg.new").exists());
+
+    // the files are read in their new byte order, whatever the configured one
+    properties.put("eventhub.byteOrder", "big_endian");
+    try (EventHub eventHub = createEventHub(properties)) {
+      assertSameQueries(expected, eventHub);
+      // in the files of either byte order
+      assertTrackingCarriesOn(expected, eventHub, DATES[3]);
+    }
+  }
+}
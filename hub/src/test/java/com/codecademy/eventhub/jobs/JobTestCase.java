@@ -0,0 +1,109 @@
+package com.codecademy.eventhub.jobs;
+
+import com.codecademy.eventhub.EventHub;
+import com.codecademy.eventhub.model.Event;
+import com.codecademy.eventhub.storage.filter.ExactMatch;
+import com.codecademy.eventhub.storage.filter.Filter;
+import com.codecademy.eventhub.storage.filter.TrueFilter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * The fixture of the tests of the jobs which rewrite a stopped event hub: populate one, take a
+ * snapshot of its query results, run the job, and make sure the queries give the same results
+ * and tracking carries on.
+ */
+public class JobTestCase {
+  protected static final String[] EVENT_TYPES = { "signup", "submit", "pay" };
+  protected static final int NUM_EVENTS = 100;
+  protected static final int NUM_USERS = 7;
+  private static final String START_DATE = "20130101";
+  private static final String END_DATE = "20130301";
+  private static final int NUM_DAYS_TO_COMPLETE_FUNNEL = 60;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  protected static EventHub createEventHub(Properties properties) {
+    return BulkImport.createInjector(properties).getInstance(EventHub.class);
+  }
+
+  /**
+   * Adds NUM_EVENTS events of EVENT_TYPES by NUM_USERS users, spread over the given dates in
+   * order, with a plan property.
+   */
+  protected static void addEvents(EventHub eventHub, String[] dates) {
+    for (int i = 0; i < NUM_EVENTS; i++) {
+      Map<String, String> properties = Maps.newHashMap();
+      properties.put("plan", i % 2 == 0 ? "monthly" : "yearly");
+      eventHub.addEvent(new Event.Builder(EVENT_TYPES[(i * 7) % EVENT_TYPES.length],
+          "user" + (i * 3) % NUM_USERS, dates[i * dates.length / NUM_EVENTS], properties).build());
+    }
+  }
+
+  protected static Snapshot snapshot(EventHub eventHub) {
+    List<List<String>> timelines = Lists.newArrayList();
+    for (int i = 0; i < NUM_USERS; i++) {
+      List<String> timeline = Lists.newArrayList();
+      for (Event event : eventHub.getUserEvents("user" + i, 0, Integer.MAX_VALUE)) {
+        timeline.add(event.toString());
+      }
+      timelines.add(timeline);
+    }
+    return new Snapshot(getFunnelCounts(eventHub), getFilteredFunnelCounts(eventHub), timelines);
+  }
+
+  protected static void assertSameQueries(Snapshot expected, EventHub eventHub) {
+    Snapshot actual = snapshot(eventHub);
+    Assert.assertArrayEquals(expected.funnelCounts, actual.funnelCounts);
+    Assert.assertArrayEquals(expected.filteredFunnelCounts, actual.filteredFunnelCounts);
+    Assert.assertEquals(expected.timelines, actual.timelines);
+  }
+
+  /**
+   * Makes sure the next event gets the id after the last one and lands in the timeline of its
+   * user.
+   */
+  protected static void assertTrackingCarriesOn(Snapshot expected, EventHub eventHub,
+      String date) {
+    Assert.assertEquals(NUM_EVENTS, eventHub.addEvent(new Event.Builder(EVENT_TYPES[1], "user0",
+        date, Maps.<String, String>newHashMap()).build()));
+    Assert.assertEquals(expected.timelines.get(0).size() + 1,
+        eventHub.getUserEvents("user0", 0, Integer.MAX_VALUE).size());
+  }
+
+  private static int[] getFunnelCounts(EventHub eventHub) {
+    List<Filter> filters = Lists.newArrayList();
+    for (String ignored : EVENT_TYPES) {
+      filters.add(TrueFilter.INSTANCE);
+    }
+    return eventHub.getFunnelCounts(START_DATE, END_DATE, EVENT_TYPES,
+        NUM_DAYS_TO_COMPLETE_FUNNEL, filters, TrueFilter.INSTANCE);
+  }
+
+  private static int[] getFilteredFunnelCounts(EventHub eventHub) {
+    return eventHub.getFunnelCounts(START_DATE, END_DATE, new String[] { "pay" },
+        NUM_DAYS_TO_COMPLETE_FUNNEL, Lists.<Filter>newArrayList(new ExactMatch("plan", "monthly")),
+        TrueFilter.INSTANCE);
+  }
+
+  protected static class Snapshot {
+    private final int[] funnelCounts;
+    private final int[] filteredFunnelCounts;
+    private final List<List<String>> timelines;
+
+    private Snapshot(int[] funnelCounts, int[] filteredFunnelCounts,
+        List<List<String>> timelines) {
+      this.funnelCounts = funnelCounts;
+      this.filteredFunnelCounts = filteredFunnelCounts;
+      this.timelines = timelines;
+    }
+  }
+}
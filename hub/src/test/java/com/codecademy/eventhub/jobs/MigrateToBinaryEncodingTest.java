@@ -0,0 +1,108 @@
+package com.codecademy.eventhub.jobs;
+
+import com.codecademy.eventhub.base.DB;
+import com.codecademy.eventhub.index.DatedEventIndex;
+import com.codecademy.eventhub.storage.IdMap;
+import com.google.common.primitives.Ints;
+import org.fusesource.leveldbjni.JniDBFactory;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.iq80.leveldb.Options;
+
+import java.io.File;
+
+import static org.fusesource.leveldbjni.JniDBFactory.bytes;
+
+public class MigrateToBinaryEncodingTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testAll() throws Exception {
+    String directory = folder.newFolder().getCanonicalPath();
+    Options options = new Options();
+    options.createIfMissing(true);
+    new File(directory + "/user_storage/").mkdirs();
+    try (org.iq80.leveldb.DB db = JniDBFactory.factory.open(
+        new File(directory + "/user_storage/id_map.db"), options)) {
+      db.put(bytes("foo"), bytes("0"));
+      db.put(bytes("bar"), bytes("1"));
+      db.put(bytes("baz"), bytes("0"));
+      db.put(bytes("__eventtracker__id"), bytes("2"));
+    }
+    try (org.iq80.leveldb.DB db = JniDBFactory.factory.open(
+        new File(directory + "/dated_event_index.db"), options)) {
+      db.put(bytes("d20130101"), bytes(""));
+      db.put(bytes("d20130102"), bytes(""));
+      db.put(bytes("i00000000000000000000"), bytes(""));
+      db.put(bytes("i00000000000000000256"), bytes(""));
+    }
+
+    DB oldDB = openDB(directory + "/dated_event_index.db");
+    try {
+      DatedEventIndex.create(oldDB);
+      Assert.fail("old formats are rejected");
+    } catch (IllegalStateException e) {
+      Assert.assertTrue(e.getMessage().contains("MigrateToBinaryEncoding"));
+    } finally {
+      oldDB.close();
+    }
+
+    // twice, the second run being a no-op
+    MigrateToBinaryEncoding.main(new String[] { directory });
+    MigrateToBinaryEncoding.main(new String[] { directory });
+
+    IdMap idMap = IdMap.create(openDB(directory + "/user_storage/id_map.db"),
+        directory + "/user_storage/id_map/");
+    Assert.assertEquals(2, idMap.getCurrentId());
+    Assert.assertEquals(0, (int) idMap.get("foo"));
+    Assert.assertEquals(1, (int) idMap.get("bar"));
+    Assert.assertEquals(0, (int) idMap.get("baz"));
+    idMap.close();
+
+    DatedEventIndex datedEventIndex = DatedEventIndex.create(
+        openDB(directory + "/dated_event_index.db"));
+    Assert.assertEquals("20130102", datedEventIndex.getCurrentDate());
+    Assert.assertEquals(256, datedEventIndex.findFirstEventIdOnDate(0, 1));
+    datedEventIndex.close();
+  }
+
+  @Test
+  public void testHalfConvertedIdMap() throws Exception {
+    String directory = folder.newFolder().getCanonicalPath();
+    Options options = new Options();
+    options.createIfMissing(true);
+    new File(directory + "/user_storage/").mkdirs();
+    // a run which converted the first batch before it stopped
+    try (org.iq80.leveldb.DB db = JniDBFactory.factory.open(
+        new File(directory + "/user_storage/id_map.db"), options)) {
+      db.put(bytes("__eventtracker__id"), Ints.toByteArray(3));
+      db.put(bytes("bar"), Ints.toByteArray(1));
+      db.put(bytes(MigrateToBinaryEncoding.LAST_CONVERTED_KEY), bytes("bar"));
+      db.put(bytes("baz"), bytes("0"));
+      db.put(bytes("foo"), bytes("2"));
+    }
+    try (org.iq80.leveldb.DB db = JniDBFactory.factory.open(
+        new File(directory + "/dated_event_index.db"), options)) {
+      db.put(bytes("d20130101"), bytes(""));
+    }
+
+    MigrateToBinaryEncoding.main(new String[] { directory });
+    MigrateToBinaryEncoding.main(new String[] { directory });
+
+    DB db = openDB(directory + "/user_storage/id_map.db");
+    Assert.assertNull(db.get(MigrateToBinaryEncoding.LAST_CONVERTED_KEY));
+    IdMap idMap = IdMap.create(db, directory + "/user_storage/id_map/");
+    Assert.assertEquals(3, idMap.getCurrentId());
+    Assert.assertEquals(1, (int) idMap.get("bar"));
+    Assert.assertEquals(0, (int) idMap.get("baz"));
+    Assert.assertEquals(2, (int) idMap.get("foo"));
+    idMap.close();
+  }
+
+  private static DB openDB(String filename) throws Exception {
+    return new DB(JniDBFactory.factory.open(new File(filename), new Options()));
+  }
+}
@@ -0,0 +1,42 @@
+package com.codecademy.eventhub.jobs;
+
+import com.codecademy.eventhub.EventHub;
+import com.google.common.collect.Lists;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Properties;
+
+import static com.codecademy.eventhub.integration.GuiceTestCase.getEventHubProperties;
+
+public class RebuildIndexesTest extends JobTestCase {
+  @Test
+  public void testRebuild() throws Exception {
+    final String[] DATES = { "20130101", "20130102", "20130103", "20130104" };
+    String directory = folder.newFolder().getCanonicalPath();
+    Properties properties = getEventHubProperties(directory);
+    properties.put("eventhub.shardedeventindex.indexedProperties", "pay:plan");
+
+    Snapshot expected;
+    try (EventHub eventHub = createEventHub(properties)) {
+      addEvents(eventHub, DATES);
+      expected = snapshot(eventHub);
+    }
+
+    // a new block layout, and a missing index
+    properties.put("eventhub.usereventindex.numRecordsPerBlock", "3");
+    properties.put("eventhub.usereventindex.numPointersPerIndexEntry", "3");
+    Assert.assertTrue(new File(directory, "event_index/signup/20130101.ser").delete());
+    Assert.assertEquals(NUM_EVENTS, RebuildIndexes.run(properties, 3));
+    Assert.assertFalse(new File(directory, "rebuild").exists());
+
+    try (EventHub eventHub = createEventHub(properties)) {
+      // the postings of pay:plan are backfilled on startup
+      assertSameQueries(expected, eventHub);
+      Assert.assertEquals(Lists.newArrayList(EVENT_TYPES[2], EVENT_TYPES[0], EVENT_TYPES[1]),
+          Lists.newArrayList(eventHub.getEventTypes()));
+      assertTrackingCarriesOn(expected, eventHub, DATES[3]);
+    }
+  }
+}
@@ -0,0 +1,46 @@
+package com.codecademy.eventhub.list;
+
+import com.codecademy.eventhub.integration.GuiceTestCase;
+import com.google.common.collect.Lists;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ColdIdListSegmentTest extends GuiceTestCase {
+  @Test
+  public void testColdIdListSegment() throws Exception {
+    String filename = getTempDirectory() + "/201301.cold";
+    int[] keys = new int[] { 20130101, 20130102, 20130105 };
+    // across several blocks, with larger gaps than a byte
+    long[][] ids = new long[][] { new long[10000], {}, { 1L << 40, (1L << 40) + 1 } };
+    for (int i = 0; i < ids[0].length; i++) {
+      ids[0][i] = i * 1000;
+    }
+    ColdIdListSegment.write(filename, keys, Lists.<IdList.Iterator>newArrayList(
+        new MemIdList(ids[0], ids[0].length).iterator(),
+        new MemIdList(ids[1], ids[1].length).iterator(),
+        new MemIdList(ids[2], ids[2].length).iterator()));
+
+    Assert.assertArrayEquals(keys, ColdIdListSegment.readKeys(filename));
+    // a cache of one block
+    IdListSegment segment = ColdIdListSegment.open(filename, new ColdIdListSegment.BlockCache(
+        4096 * 8));
+    Assert.assertArrayEquals(keys, segment.getKeys());
+    for (int i = 0; i < keys.length; i++) {
+      IdList.Iterator iterator = segment.iterator(keys[i]);
+      for (long id : ids[i]) {
+        Assert.assertTrue(iterator.hasNext());
+        Assert.assertEquals(id, iterator.next());
+      }
+      Assert.assertFalse(iterator.hasNext());
+    }
+    Assert.assertFalse(segment.iterator(20130103).hasNext());
+    Assert.assertEquals(9999000, segment.getLastId(20130101));
+    Assert.assertEquals(-1, segment.getLastId(20130102));
+    Assert.assertEquals((1L << 40) + 1, segment.getLastId(20130105));
+    Assert.assertEquals(10002, segment.getNumIds());
+
+    // a query still reading a segment closed by its eviction reads the blocks it misses
+    segment.close();
+    Assert.assertEquals(0, segment.iterator(20130101).next());
+  }
+}
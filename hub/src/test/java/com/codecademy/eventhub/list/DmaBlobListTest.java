@@ -0,0 +1,53 @@
+package com.codecademy.eventhub.list;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DmaBlobListTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testAll() throws Exception {
+    String directory = folder.newFolder().getCanonicalPath();
+    int dataFileSize = 16;
+    DmaBlobList list = DmaBlobList.build(directory, 2, 1, dataFileSize, 1);
+    byte[][] records = new byte[10][];
+    for (int i = 0; i < records.length; i++) {
+      // 7 bytes at most, hence records would straddle the data files
+      records[i] = new byte[i % 8];
+      for (int j = 0; j < records[i].length; j++) {
+        records[i][j] = (byte) (i + j);
+      }
+    }
+    for (int i = 0; i < records.length / 2; i++) {
+      list.update(i, records[i]);
+    }
+    list.close();
+
+    list = DmaBlobList.build(directory, 2, 1, dataFileSize, 1);
+    for (int i = records.length / 2; i < records.length; i++) {
+      list.update(i, records[i]);
+    }
+    Assert.assertEquals(records.length, list.getMaxId());
+    for (int i = 0; i < records.length; i++) {
+      Assert.assertArrayEquals(records[i], list.get(i));
+      Assert.assertEquals(records[i].length, list.getLength(i));
+      Assert.assertTrue(list.getOffset(i) + list.getLength(i) <= dataFileSize);
+    }
+
+    list.update(3, records[7]);
+    Assert.assertArrayEquals(records[7], list.get(3));
+    Assert.assertArrayEquals(records[4], list.get(4));
+    Assert.assertEquals(records.length, list.getMaxId());
+    list.close();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTooLarge() throws Exception {
+    DmaBlobList list = DmaBlobList.build(folder.newFolder().getCanonicalPath(), 2, 1, 16, 1);
+    list.update(0, new byte[17]);
+  }
+}
@@ -5,6 +5,11 @@ import com.codecademy.eventhub.integration.GuiceTestCase;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.ByteOrder;
 import java.util.Properties;
 
 public class DmaIdListTest extends GuiceTestCase {
@@ -48,6 +53,62 @@ public class DmaIdListTest extends GuiceTestCase {
     Assert.assertFalse(iterator.hasNext());
   }
 
+  @Test
+  public void testByteOrder() throws Exception {
+    DmaIdList.Factory dmaIdListFactory = getDmaIdListFactory();
+    dmaIdListFactory.setDefaultCapacity(2);
+    String directory = getTempDirectory();
+    for (ByteOrder byteOrder : new ByteOrder[] { ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN }) {
+      String filename = directory + "/id_list.ser." + byteOrder;
+      dmaIdListFactory.setByteOrder(byteOrder);
+      DmaIdList idList = dmaIdListFactory.build(filename);
+      idList.add(10);
+      idList.add(20);
+      idList.add(30);
+      idList.close();
+
+      // the list is read in the byte order it was written in
+      dmaIdListFactory.setByteOrder(byteOrder == ByteOrder.BIG_ENDIAN ?
+          ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+      idList = dmaIdListFactory.build(filename);
+      idList.add(40);
+      verify(idList, new long[] { 10, 20, 30, 40 });
+      Assert.assertEquals(2, idList.getStartOffset(25));
+      Assert.assertEquals(40, idList.getLastId());
+    }
+  }
+
+  @Test
+  public void testLegacyDmaIdList() throws Exception {
+    String filename = getTempDirectory() + "/legacy_id_list.ser";
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(filename))) {
+      out.writeInt(2);
+      out.writeLong(10);
+      out.writeLong(20);
+    }
+    DmaIdList.Factory dmaIdListFactory = getDmaIdListFactory();
+    DmaIdList idList = dmaIdListFactory.build(filename);
+    verify(idList, new long[] { 10, 20 });
+    idList.add(30);
+    idList.close();
+
+    idList = dmaIdListFactory.build(filename);
+    verify(idList, new long[] { 10, 20, 30 });
+    Assert.assertEquals(1, idList.getStartOffset(15));
+    try (DataInputStream in = new DataInputStream(new FileInputStream(filename))) {
+      Assert.assertEquals(3, in.readInt());
+    }
+  }
+
+  private static void verify(IdList idList, long[] ids) {
+    IdList.Iterator iterator = idList.iterator();
+    for (long id : ids) {
+      Assert.assertTrue(iterator.hasNext());
+      Assert.assertEquals(id, iterator.next());
+    }
+    Assert.assertFalse(iterator.hasNext());
+  }
+
   private DmaIdList.Factory getDmaIdListFactory() {
     Injector injector = createInjectorFor(
         new Properties(), new DmaIdListModule());
@@ -0,0 +1,67 @@
+package com.codecademy.eventhub.list;
+
+import com.codecademy.eventhub.integration.GuiceTestCase;
+import com.google.common.collect.Lists;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.nio.ByteOrder;
+
+public class IdListSegmentTest extends GuiceTestCase {
+  private static final int[] KEYS = new int[] { 20130101, 20130102, 20130105 };
+  private static final long[][] IDS = new long[][] { { 1, 3, 8 }, {}, { 20, 21 } };
+
+  @Test
+  public void testIdListSegment() throws Exception {
+    String directory = getTempDirectory();
+    for (ByteOrder byteOrder : new ByteOrder[] { ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN }) {
+      String filename = directory + "/201301.seg." + byteOrder;
+      IdListSegment.write(filename, KEYS, Lists.<IdList.Iterator>newArrayList(
+          new MemIdList(IDS[0], IDS[0].length).iterator(),
+          new MemIdList(IDS[1], IDS[1].length).iterator(),
+          new MemIdList(IDS[2], IDS[2].length).iterator()), byteOrder);
+      verify(filename);
+    }
+  }
+
+  @Test
+  public void testLegacySegment() throws Exception {
+    String filename = getTempDirectory() + "/201301.seg";
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(filename))) {
+      out.writeInt(KEYS.length);
+      int endOffset = 0;
+      for (int i = 0; i < KEYS.length; i++) {
+        endOffset += IDS[i].length;
+        out.writeInt(KEYS[i]);
+        out.writeInt(endOffset);
+      }
+      for (long[] ids : IDS) {
+        for (long id : ids) {
+          out.writeLong(id);
+        }
+      }
+    }
+    verify(filename);
+  }
+
+  private void verify(String filename) {
+    Assert.assertArrayEquals(KEYS, IdListSegment.readKeys(filename));
+    IdListSegment segment = IdListSegment.open(filename);
+    Assert.assertArrayEquals(KEYS, segment.getKeys());
+    for (int i = 0; i < KEYS.length; i++) {
+      IdList.Iterator iterator = segment.iterator(KEYS[i]);
+      for (long id : IDS[i]) {
+        Assert.assertTrue(iterator.hasNext());
+        Assert.assertEquals(id, iterator.next());
+      }
+      Assert.assertFalse(iterator.hasNext());
+    }
+    Assert.assertFalse(segment.iterator(20130103).hasNext());
+    Assert.assertEquals(8, segment.getLastId(20130101));
+    Assert.assertEquals(-1, segment.getLastId(20130102));
+    Assert.assertEquals(-1, segment.getLastId(20130103));
+    Assert.assertEquals(21, segment.getLastId(20130105));
+  }
+}
@@ -1,11 +1,21 @@
 package com.codecademy.eventhub.model;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
+import com.codecademy.eventhub.base.KeyDictionary;
 import com.codecademy.eventhub.base.KeyValueCallback;
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
 
 public class EventTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
   @Test
   public void testAll() throws Exception {
     String eventType = "eventType1";
@@ -42,6 +52,45 @@ public class EventTest {
     callback.verify(6);
   }
 
+  @Test
+  public void testInterned() throws Exception {
+    KeyDictionary keyDictionary = KeyDictionary.build(
+        folder.newFolder("junit-test").getCanonicalPath() + "/dictionary.log");
+    Event event = new Event.Builder(
+        "eventType1", "foo", "20131101", Maps.<String, String>newHashMap())
+        .add("key1", "value1")
+        .add("key2", "value2")
+        .build();
+
+    ByteBuffer byteBuffer = event.toInternedByteBuffer(keyDictionary);
+    Assert.assertTrue(byteBuffer.remaining() < event.toByteBuffer().remaining());
+    Assert.assertEquals(KeyDictionary.KEY_NOT_FOUND, keyDictionary.getId("event_type"));
+
+    event = Event.fromInternedByteBuffer("eventType1", byteBuffer, keyDictionary);
+    Assert.assertEquals("eventType1", event.getEventType());
+    Assert.assertEquals("foo", event.getExternalUserId());
+    Assert.assertEquals("20131101", event.getDate());
+    Assert.assertEquals("value1", event.get("key1"));
+    Assert.assertEquals("value2", event.get("key2"));
+    Assert.assertNull(event.get("key_not_exists"));
+    Assert.assertNull(event.get("date_not_exists"));
+
+    final Map<String, String> properties = Maps.newHashMap();
+    event.enumerate(new KeyValueCallback() {
+      @Override
+      public void callback(String key, String value) {
+        properties.put(key, value);
+      }
+    });
+    Assert.assertEquals(ImmutableMap.of("event_type", "eventType1", "date", "20131101",
+        "external_user_id", "foo", "key1", "value1", "key2", "value2"), properties);
+
+    event = Event.fromByteBuffer(event.toByteBuffer());
+    Assert.assertEquals("eventType1", event.getEventType());
+    Assert.assertEquals("value2", event.get("key2"));
+    keyDictionary.close();
+  }
+
   private static class MyCallback implements KeyValueCallback {
     private final String[] expectedKeys;
     private final String[] expectedValues;
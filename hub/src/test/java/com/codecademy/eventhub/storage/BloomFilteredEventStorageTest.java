@@ -2,6 +2,7 @@ package com.codecademy.eventhub.storage;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.inject.Injector;
 import com.codecademy.eventhub.storage.filter.And;
 import com.codecademy.eventhub.storage.filter.ExactMatch;
@@ -12,14 +13,19 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import javax.inject.Provider;
+import java.io.File;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class BloomFilteredEventStorageTest extends GuiceTestCase {
   @Test
   public void testAll() throws Exception {
-    Provider<BloomFilteredEventStorage> bloomFilteredEventStorageProvider = getBloomFilteredEventStorageProvider();
+    String directory = getTempDirectory();
+    Provider<BloomFilteredEventStorage> bloomFilteredEventStorageProvider =
+        getBloomFilteredEventStorageProvider(directory);
     BloomFilteredEventStorage eventStorage = bloomFilteredEventStorageProvider.get();
     String[] eventTypes = new String[] { "a", "b", "c" };
     String[] externalUserIds = new String[] { "x", "y", "z" };
@@ -75,18 +81,66 @@ public class BloomFilteredEventStorageTest extends GuiceTestCase {
       Assert.assertEquals(userIds[i], eventStorage.getUserId(i));
       Assert.assertEquals(eventTypeIds[i], eventStorage.getEventTypeId(i));
     }
+    eventStorage.close();
+
+    // the bloom filters get rebuilt from the events when they are missing
+    Assert.assertTrue(
+        new File(directory + "/event_storage/bloom_filters/pointers/meta_data.mem").delete());
+    eventStorage = bloomFilteredEventStorageProvider.get();
+    for (int i = 0; i < eventTypes.length; i++) {
+      Assert.assertTrue(matchedFilters.get(i).accept(eventStorage.getFilterVisitor(i)));
+      Assert.assertFalse(unmatchedFilters.get(i).accept(eventStorage.getFilterVisitor(i)));
+    }
+  }
+
+  @Test
+  public void testManyProperties() throws Exception {
+    BloomFilteredEventStorage eventStorage =
+        getBloomFilteredEventStorageProvider(getTempDirectory()).get();
+    Map<String, String> properties = Maps.newHashMap();
+    for (int i = 0; i < 40; i++) {
+      properties.put("foo" + i, "bar" + i);
+    }
+    eventStorage.addEvent(new Event.Builder("a", "x", "20130101", properties).build(), 1, 4);
+    eventStorage.addEvent(new Event.Builder("b", "x", "20130101",
+        ImmutableMap.of("foo1", "bar1")).build(), 1, 5);
+
+    for (int i = 0; i < 40; i++) {
+      Assert.assertTrue(new ExactMatch("foo" + i, "bar" + i).accept(eventStorage.getFilterVisitor(0)));
+    }
+    Assert.assertTrue(new ExactMatch("foo1", "bar1").accept(eventStorage.getFilterVisitor(1)));
+    for (int i = 0; i < 100; i++) {
+      Assert.assertFalse(new ExactMatch("foo" + i, "baz" + i).accept(eventStorage.getFilterVisitor(0)));
+    }
+    // the filter of the event with 40 properties isn't saturated
+    Matcher matcher = Pattern.compile("num bloomfilter rejection: (\\d+)")
+        .matcher(eventStorage.getVarz(0));
+    Assert.assertTrue(matcher.find());
+    int numRejections = Integer.parseInt(matcher.group(1));
+    Assert.assertTrue("rejections: " + numRejections, numRejections > 90);
+    eventStorage.close();
   }
 
-  private Provider<BloomFilteredEventStorage> getBloomFilteredEventStorageProvider() {
+  private Provider<BloomFilteredEventStorage> getBloomFilteredEventStorageProvider(
+      String directory) {
     Properties prop = new Properties();
-    prop.put("eventhub.directory", getTempDirectory());
+    prop.put("eventhub.directory", directory);
+    prop.put("eventhub.eventstorage.backend", "journal");
     prop.put("eventhub.journaleventstorage.numMetaDataPerFile", "1");
     prop.put("eventhub.journaleventstorage.metaDataFileCacheSize", "1");
     prop.put("eventhub.journaleventstorage.journalFileSize", "1024");
     prop.put("eventhub.journaleventstorage.journalWriteBatchSize", "1024");
-    prop.put("eventhub.cachedeventstorage.recordCacheSize", "1");
-    prop.put("eventhub.bloomfilteredeventstorage.bloomFilterSize", "64");
-    prop.put("eventhub.bloomfilteredeventstorage.numHashes", "1");
+    prop.put("eventhub.journaleventstorage.syncWrites", "true");
+    prop.put("eventhub.compressedeventstorage.numMetaDataPerFile", "1");
+    prop.put("eventhub.compressedeventstorage.metaDataFileCacheSize", "1");
+    prop.put("eventhub.compressedeventstorage.blockSize", "64");
+    prop.put("eventhub.compressedeventstorage.blockCacheSizeInBytes", "1024");
+    prop.put("eventhub.compressedeventstorage.syncWrites", "true");
+    prop.put("eventhub.cachedeventstorage.cacheSizeInBytes", "1024");
+    prop.put("eventhub.bloomfilteredeventstorage.dataFileSize", "1024");
+    prop.put("eventhub.bloomfilteredeventstorage.dataFileCacheSize", "1");
+    prop.put("eventhub.bloomfilteredeventstorage.bitsPerProperty", "10");
+    prop.put("eventhub.bloomfilteredeventstorage.maxBloomFilterSize", "64");
     prop.put("eventhub.bloomfilteredeventstorage.numMetaDataPerFile", "1");
     prop.put("eventhub.bloomfilteredeventstorage.metaDataFileCacheSize", "1");
 
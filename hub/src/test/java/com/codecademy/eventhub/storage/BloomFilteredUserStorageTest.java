@@ -103,7 +103,8 @@ public class BloomFilteredUserStorageTest extends GuiceTestCase {
     prop.put("eventhub.journaluserstorage.metaDataFileCacheSize", "1");
     prop.put("eventhub.journaluserstorage.journalFileSize", "1024");
     prop.put("eventhub.journaluserstorage.journalWriteBatchSize", "1024");
-    prop.put("eventhub.cacheduserstorage.recordCacheSize", "1");
+    prop.put("eventhub.journaluserstorage.syncWrites", "true");
+    prop.put("eventhub.cacheduserstorage.cacheSizeInBytes", "1024");
     prop.put("eventhub.bloomfiltereduserstorage.bloomFilterSize", "64");
     prop.put("eventhub.bloomfiltereduserstorage.numHashes", "1");
     prop.put("eventhub.bloomfiltereduserstorage.numMetaDataPerFile", "1");
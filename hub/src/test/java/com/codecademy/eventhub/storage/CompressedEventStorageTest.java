@@ -0,0 +1,95 @@
+package com.codecademy.eventhub.storage;
+
+import com.google.common.collect.Maps;
+import com.google.inject.Injector;
+import com.codecademy.eventhub.integration.GuiceTestCase;
+import com.codecademy.eventhub.model.Event;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.inject.Provider;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Properties;
+
+public class CompressedEventStorageTest extends GuiceTestCase {
+  @Test
+  public void testAll() throws Exception {
+    String directory = getTempDirectory();
+    Provider<CompressedEventStorage> eventStorageProvider = getEventStorageProvider(directory);
+    CompressedEventStorage eventStorage = eventStorageProvider.get();
+    int numEvents = 100;
+    for (int i = 0; i < numEvents / 2; i++) {
+      Assert.assertEquals(i, eventStorage.addEvent(buildEvent(i), i % 7, i % 3));
+    }
+    verify(eventStorage, numEvents / 2);
+    eventStorage.close();
+
+    // simulate an event which was logged but didn't make it to the meta data
+    try (RandomAccessFile raf = new RandomAccessFile(new File(directory
+        + "/event_storage/compressed_event_storage/pending_block.log"), "rw")) {
+      raf.seek(raf.length());
+      raf.writeInt(3);
+      raf.write(new byte[] { 1, 2, 3 });
+    }
+
+    eventStorage = eventStorageProvider.get();
+    verify(eventStorage, numEvents / 2);
+    for (int i = numEvents / 2; i < numEvents; i++) {
+      Assert.assertEquals(i, eventStorage.addEvent(buildEvent(i), i % 7, i % 3));
+    }
+    verify(eventStorage, numEvents);
+    eventStorage.close();
+
+    eventStorage = eventStorageProvider.get();
+    verify(eventStorage, numEvents);
+    eventStorage.close();
+  }
+
+  private void verify(EventStorage eventStorage, int numEvents) {
+    // backwards so that the blocks go in and out of the block cache
+    for (int i = numEvents - 1; i >= 0; i--) {
+      Event event = eventStorage.getEvent(i);
+      Assert.assertEquals("eventType" + (i % 3), event.getEventType());
+      Assert.assertEquals("user" + (i % 7), event.getExternalUserId());
+      Assert.assertEquals("20131101", event.getDate());
+      Assert.assertEquals("value" + i, event.get("key"));
+      Assert.assertEquals(i % 7, eventStorage.getUserId(i));
+      Assert.assertEquals(i % 3, eventStorage.getEventTypeId(i));
+    }
+  }
+
+  private Event buildEvent(int i) {
+    return new Event.Builder("eventType" + (i % 3), "user" + (i % 7), "20131101",
+        Maps.<String, String>newHashMap())
+        .add("key", "value" + i)
+        .add("repeated", "the same value over and over again")
+        .build();
+  }
+
+  private Provider<CompressedEventStorage> getEventStorageProvider(String directory) {
+    Properties prop = new Properties();
+    prop.put("eventhub.directory", directory);
+    prop.put("eventhub.eventstorage.backend", "compressed");
+    prop.put("eventhub.journaleventstorage.numMetaDataPerFile", "10");
+    prop.put("eventhub.journaleventstorage.metaDataFileCacheSize", "10");
+    prop.put("eventhub.journaleventstorage.journalFileSize", "1024");
+    prop.put("eventhub.journaleventstorage.journalWriteBatchSize", "1024");
+    prop.put("eventhub.journaleventstorage.syncWrites", "true");
+    prop.put("eventhub.compressedeventstorage.numMetaDataPerFile", "10");
+    prop.put("eventhub.compressedeventstorage.metaDataFileCacheSize", "2");
+    prop.put("eventhub.compressedeventstorage.blockSize", "512");
+    prop.put("eventhub.compressedeventstorage.blockCacheSizeInBytes", "1024");
+    prop.put("eventhub.compressedeventstorage.syncWrites", "true");
+    prop.put("eventhub.cachedeventstorage.cacheSizeInBytes", "1024");
+    prop.put("eventhub.bloomfilteredeventstorage.dataFileSize", "1024");
+    prop.put("eventhub.bloomfilteredeventstorage.dataFileCacheSize", "1");
+    prop.put("eventhub.bloomfilteredeventstorage.bitsPerProperty", "10");
+    prop.put("eventhub.bloomfilteredeventstorage.maxBloomFilterSize", "64");
+    prop.put("eventhub.bloomfilteredeventstorage.numMetaDataPerFile", "1");
+    prop.put("eventhub.bloomfilteredeventstorage.metaDataFileCacheSize", "1");
+
+    Injector injector = createInjectorFor(prop, new EventStorageModule());
+    return injector.getProvider(CompressedEventStorage.class);
+  }
+}
@@ -0,0 +1,42 @@
+package com.codecademy.eventhub.storage;
+
+import com.codecademy.eventhub.base.InternedByteBufferMap;
+import com.codecademy.eventhub.integration.GuiceTestCase;
+import com.codecademy.eventhub.model.Event;
+import com.google.common.collect.ImmutableMap;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+public class EventDictionaryTest extends GuiceTestCase {
+  @Test
+  public void testEncodeWithoutInterning() throws Exception {
+    String directory = getTempDirectory();
+    EventDictionary eventDictionary = EventDictionary.build(directory);
+    Event event = new Event.Builder("signup", "user1", "20130101",
+        ImmutableMap.of("plan", "monthly")).build();
+
+    // an event of the former format is cached as is
+    Event legacyEvent = eventDictionary.decode(event.toByteBuffer(), 0);
+    ByteBuffer cachedBytes = eventDictionary.encodeWithoutInterning(legacyEvent, 0);
+    Assert.assertFalse(InternedByteBufferMap.isInterned(cachedBytes));
+    Event cachedEvent = eventDictionary.decode(cachedBytes, 0);
+    Assert.assertEquals("signup", cachedEvent.getEventType());
+    Assert.assertEquals("monthly", cachedEvent.get("plan"));
+    Assert.assertEquals(0, new File(directory, "key_dictionary.log").length());
+    Assert.assertEquals(0, new File(directory, "event_type_dictionary.log").length());
+
+    // an interned event is cached interned
+    Event internedEvent = eventDictionary.decode(eventDictionary.encode(event, 0), 0);
+    long dictionarySize = new File(directory, "key_dictionary.log").length();
+    cachedBytes = eventDictionary.encodeWithoutInterning(internedEvent, 0);
+    Assert.assertTrue(InternedByteBufferMap.isInterned(cachedBytes));
+    cachedEvent = eventDictionary.decode(cachedBytes, 0);
+    Assert.assertEquals("signup", cachedEvent.getEventType());
+    Assert.assertEquals("monthly", cachedEvent.get("plan"));
+    Assert.assertEquals(dictionarySize, new File(directory, "key_dictionary.log").length());
+    eventDictionary.close();
+  }
+}
@@ -0,0 +1,116 @@
+package com.codecademy.eventhub.storage;
+
+import com.codecademy.eventhub.base.DB;
+import com.codecademy.eventhub.base.HashUtil;
+import com.codecademy.eventhub.base.MappedHashIndex;
+import com.google.common.io.Files;
+import org.fusesource.leveldbjni.JniDBFactory;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.iq80.leveldb.Options;
+
+import java.io.File;
+
+public class IdMapTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testAll() throws Exception {
+    String directory = folder.newFolder().getCanonicalPath();
+    IdMap idMap = createIdMap(directory);
+    int numUsers = 3000;
+    for (int i = 0; i < numUsers; i++) {
+      Assert.assertNull(idMap.get("user" + i));
+      int id = idMap.incrementNextAvailableId();
+      Assert.assertEquals(i, id);
+      idMap.put("user" + i, id);
+    }
+    idMap.put("alias", 7);
+    idMap.close();
+
+    idMap = createIdMap(directory);
+    verify(idMap, numUsers);
+    idMap.close();
+
+    // the index gets rebuilt from leveldb
+    for (File file : new File(directory + "/id_map/index/").listFiles()) {
+      Assert.assertTrue(file.delete());
+    }
+    idMap = createIdMap(directory);
+    verify(idMap, numUsers);
+    idMap.close();
+
+    // so does the next available id
+    Assert.assertTrue(new File(directory + "/id_map/next_available_id.mem").delete());
+    idMap = createIdMap(directory);
+    verify(idMap, numUsers);
+    idMap.close();
+  }
+
+  @Test
+  public void testHitsFromIndex() throws Exception {
+    String directory = folder.newFolder().getCanonicalPath();
+    IdMap idMap = createIdMap(directory);
+    idMap.put("user0", idMap.incrementNextAvailableId());
+    idMap.close();
+
+    // an entry of the index alone, which LevelDB doesn't have
+    MappedHashIndex index = MappedHashIndex.build(directory + "/id_map/index/");
+    index.put(HashUtil.hash("alias0"), IdMap.getFingerprint("alias0"), 0);
+    index.close();
+
+    idMap = createIdMap(directory);
+    Assert.assertEquals(0, (int) idMap.get("user0"));
+    Assert.assertEquals(0, (int) idMap.get("alias0"));
+    Assert.assertNull(idMap.get("user1"));
+    idMap.close();
+  }
+
+  @Test
+  public void testStaleIndexWithAliases() throws Exception {
+    String directory = folder.newFolder().getCanonicalPath();
+    File indexDirectory = new File(directory + "/id_map/index/");
+    File staleIndexDirectory = folder.newFolder();
+    IdMap idMap = createIdMap(directory);
+    idMap.put("user0", idMap.incrementNextAvailableId());
+    idMap.put("alias0", 0);
+    idMap.put("alias1", 0);
+    idMap.close();
+    for (File file : indexDirectory.listFiles()) {
+      Files.copy(file, new File(staleIndexDirectory, file.getName()));
+    }
+
+    idMap = createIdMap(directory);
+    idMap.put("user1", idMap.incrementNextAvailableId());
+    idMap.close();
+
+    // the stale index holds more entries than there are users, and yet misses user1
+    for (File file : staleIndexDirectory.listFiles()) {
+      Files.copy(file, new File(indexDirectory, file.getName()));
+    }
+    idMap = createIdMap(directory);
+    Assert.assertEquals(2, idMap.getCurrentId());
+    Assert.assertEquals(0, (int) idMap.get("alias1"));
+    Assert.assertEquals(1, (int) idMap.get("user1"));
+    idMap.close();
+  }
+
+  private void verify(IdMap idMap, int numUsers) {
+    Assert.assertEquals(numUsers, idMap.getCurrentId());
+    for (int i = 0; i < numUsers; i++) {
+      Assert.assertEquals(i, (int) idMap.get("user" + i));
+    }
+    Assert.assertEquals(7, (int) idMap.get("alias"));
+    Assert.assertNull(idMap.get("user" + numUsers));
+  }
+
+  private IdMap createIdMap(String directory) throws Exception {
+    Options options = new Options();
+    options.createIfMissing(true);
+    return IdMap.create(new DB(JniDBFactory.factory.open(new File(directory + "/id_map.db"),
+        options)), directory + "/id_map/");
+  }
+}
@@ -0,0 +1,250 @@
+package com.codecademy.eventhub.web;
+
+import com.codecademy.eventhub.EventHub;
+import com.codecademy.eventhub.base.ByteBufferMap;
+import com.codecademy.eventhub.model.Event;
+import com.google.common.collect.Lists;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An optional listener for tracking events over persistent connections, for the server side
+ * emitters which would otherwise pay for a form encoded http request per event.
+ *
+ * A client sends frames of (int length, event), where the event is laid out as a ByteBufferMap
+ * with at least event_type, external_user_id and date, and may pipeline as many of them as it
+ * likes. Once the frames which arrived together are added, the server acks them at once with
+ * (int numEvents, long eventId * numEvents), in the order they were sent. A frame which is too
+ * large or malformed, or whose event fails to be added, is answered with a numEvents of -1, after
+ * the ack of the frames before it, and the connection is closed.
+ *
+ * Integers are big-endian. All the connections are served by a single thread, as the events are
+ * added one at a time anyway.
+ */
+public class BinaryIngestionServer implements Runnable, Closeable {
+  public static final int ERROR = -1;
+  private static final Logger LOGGER = Logger.getLogger(BinaryIngestionServer.class.getName());
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+  private final EventHub eventHub;
+  private final int maxFrameSize;
+  private final Selector selector;
+  private final ServerSocketChannel serverChannel;
+  private volatile boolean isClosed;
+  private Thread thread;
+
+  private BinaryIngestionServer(EventHub eventHub, int maxFrameSize,
+      Selector selector, ServerSocketChannel serverChannel) {
+    this.eventHub = eventHub;
+    this.maxFrameSize = maxFrameSize;
+    this.selector = selector;
+    this.serverChannel = serverChannel;
+    this.isClosed = false;
+  }
+
+  public void start() {
+    thread = new Thread(this, "binary-ingestion");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  public int getPort() {
+    return serverChannel.socket().getLocalPort();
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (!isClosed) {
+        selector.select();
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          try {
+            if (!key.isValid()) {
+              continue;
+            }
+            if (key.isAcceptable()) {
+              accept();
+            } else {
+              Connection connection = (Connection) key.attachment();
+              if (key.isReadable()) {
+                connection.read();
+              }
+              if (key.isValid() && key.isWritable()) {
+                connection.write();
+              }
+            }
+          } catch (IOException e) {
+            key.channel().close();
+          }
+        }
+      }
+      for (SelectionKey key : selector.keys()) {
+        key.channel().close();
+      }
+      selector.close();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public void close() {
+    // the channels are closed by the selector thread, which is waited for so that no event is
+    // being added once the event hub gets closed
+    isClosed = true;
+    selector.wakeup();
+    if (thread != null) {
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel = serverChannel.accept();
+    if (channel == null) {
+      return;
+    }
+    channel.configureBlocking(false);
+    channel.socket().setTcpNoDelay(true);
+    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+    key.attach(new Connection(key, channel));
+  }
+
+  private class Connection {
+    private final SelectionKey key;
+    private final SocketChannel channel;
+    private ByteBuffer readBuffer;
+    private ByteBuffer writeBuffer;
+    private boolean isClosing;
+
+    public Connection(SelectionKey key, SocketChannel channel) {
+      this.key = key;
+      this.channel = channel;
+      this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+      this.writeBuffer = ByteBuffer.allocate(0);
+      this.isClosing = false;
+    }
+
+    public void read() throws IOException {
+      if (channel.read(readBuffer) < 0) {
+        channel.close();
+        return;
+      }
+      readBuffer.flip();
+      List<Long> eventIds = Lists.newArrayList();
+      boolean isRejected = false;
+      while (readBuffer.remaining() >= 4) {
+        int length = readBuffer.getInt(readBuffer.position());
+        if (length < 0 || length > maxFrameSize) {
+          isRejected = true;
+          break;
+        }
+        if (readBuffer.remaining() < 4 + length) {
+          break;
+        }
+        readBuffer.getInt();
+        byte[] bytes = new byte[length];
+        readBuffer.get(bytes);
+        Event event = toEvent(ByteBuffer.wrap(bytes));
+        if (event == null) {
+          isRejected = true;
+          break;
+        }
+        try {
+          eventIds.add(eventHub.addEvent(event));
+        } catch (RuntimeException e) {
+          LOGGER.log(Level.WARNING, "failed to add an event from " + channel, e);
+          isRejected = true;
+          break;
+        }
+      }
+      readBuffer.compact();
+      if (readBuffer.remaining() == 0 && !isRejected) {
+        // a frame larger than the buffer, but within maxFrameSize
+        ByteBuffer largerBuffer = ByteBuffer.allocate(readBuffer.capacity() * 2);
+        readBuffer.flip();
+        largerBuffer.put(readBuffer);
+        readBuffer = largerBuffer;
+      }
+
+      if (!eventIds.isEmpty()) {
+        ByteBuffer ack = ByteBuffer.allocate(4 + 8 * eventIds.size());
+        ack.putInt(eventIds.size());
+        for (long eventId : eventIds) {
+          ack.putLong(eventId);
+        }
+        ack.flip();
+        enqueue(ack);
+      }
+      if (isRejected) {
+        ByteBuffer error = ByteBuffer.allocate(4);
+        error.putInt(ERROR).flip();
+        enqueue(error);
+        isClosing = true;
+      }
+      write();
+    }
+
+    public void write() throws IOException {
+      channel.write(writeBuffer);
+      if (writeBuffer.hasRemaining()) {
+        // no more reading until the client takes its acks
+        key.interestOps(SelectionKey.OP_WRITE);
+      } else if (isClosing) {
+        channel.close();
+      } else {
+        key.interestOps(SelectionKey.OP_READ);
+      }
+    }
+
+    private void enqueue(ByteBuffer bytes) {
+      ByteBuffer newWriteBuffer = ByteBuffer.allocate(writeBuffer.remaining() + bytes.remaining());
+      newWriteBuffer.put(writeBuffer).put(bytes).flip();
+      writeBuffer = newWriteBuffer;
+    }
+
+    private Event toEvent(ByteBuffer byteBuffer) {
+      if (!ByteBufferMap.isWellFormed(byteBuffer)) {
+        //noinspection ReturnOfNull
+        return null;
+      }
+      Event event = Event.fromByteBuffer(byteBuffer);
+      if (event.getEventType() == null || event.getExternalUserId() == null
+          || event.getDate() == null) {
+        //noinspection ReturnOfNull
+        return null;
+      }
+      return event;
+    }
+  }
+
+  public static BinaryIngestionServer create(EventHub eventHub, int port, int maxFrameSize) {
+    try {
+      Selector selector = Selector.open();
+      ServerSocketChannel serverChannel = ServerSocketChannel.open();
+      serverChannel.configureBlocking(false);
+      serverChannel.socket().bind(new InetSocketAddress(port));
+      serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+      return new BinaryIngestionServer(eventHub, maxFrameSize, selector, serverChannel);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
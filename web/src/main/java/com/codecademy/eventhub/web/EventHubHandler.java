@@ -41,7 +41,7 @@ import java.util.Properties;
 public class EventHubHandler extends AbstractHandler implements Closeable {
   private final EventHub eventHub;
   private final Map<String, Provider<Command>> commandsMap;
-  private boolean isLogging;
+  private volatile boolean isLogging;
 
   public EventHubHandler(EventHub eventHub, Map<String, Provider<Command>> commandsMaps) {
     this.eventHub = eventHub;
@@ -98,7 +98,15 @@ public class EventHubHandler extends AbstractHandler implements Closeable {
         new UserStorageModule(),
         new EventHubModule(properties)).with(new Module()));
     final EventHubHandler eventHubHandler = injector.getInstance(EventHubHandler.class);
+    LongRunningCommandHandler longRunningCommandHandler =
+        injector.getInstance(LongRunningCommandHandler.class);
     int port = injector.getInstance(Key.get(Integer.class, Names.named("eventhubhandler.port")));
+    int binaryIngestionPort = injector.getInstance(
+        Key.get(Integer.class, Names.named("eventhubhandler.binaryingestion.port")));
+    final BinaryIngestionServer binaryIngestionServer = binaryIngestionPort == 0 ? null :
+        BinaryIngestionServer.create(injector.getInstance(EventHub.class), binaryIngestionPort,
+            injector.getInstance(Key.get(Integer.class,
+                Names.named("eventhubhandler.binaryingestion.maxFrameSize"))));
 
     final Server server = new Server(port);
     @SuppressWarnings("ConstantConditions")
@@ -126,17 +134,23 @@ public class EventHubHandler extends AbstractHandler implements Closeable {
     resourceHandler.setWelcomeFiles(new String[]{"main.html"});
     resourceHandler.setResourceBase(webDir);
     HandlerList handlers = new HandlerList();
-    handlers.setHandlers(new Handler[]{new JsonpCallbackHandler(eventHubHandler), securityHandler});
+    handlers.setHandlers(new Handler[]{longRunningCommandHandler, securityHandler});
 
     server.setHandler(handlers);
     securityHandler.setHandler(resourceHandler);
 
     server.start();
+    if (binaryIngestionServer != null) {
+      binaryIngestionServer.start();
+    }
     Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
       @Override
       public void run() {
         if (server.isStarted()) {
           try {
+            if (binaryIngestionServer != null) {
+              binaryIngestionServer.close();
+            }
             server.stop();
             eventHubHandler.close();
           } catch (Exception e) {
@@ -1,5 +1,6 @@
 package com.codecademy.eventhub.web;
 
+import com.google.common.base.Charsets;
 import org.eclipse.jetty.server.Handler;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
@@ -10,14 +11,15 @@ import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpServletResponseWrapper;
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.util.Map;
 
 // modified from http://jpgmr.wordpress.com/2010/07/28/tutorial-implementing-a-servlet-filter-for-jsonp-callback-with-springs-delegatingfilterproxy/#1
+// The response of the wrapped handler is passed through as it is written rather than buffered,
+// with "callback(" written ahead of its first byte, so that streamed responses stay streamed.
 public class JsonpCallbackHandler extends AbstractHandler {
   private final Handler handler;
 
@@ -30,24 +32,29 @@ public class JsonpCallbackHandler extends AbstractHandler {
     Map<String, String[]> params = httpServletRequest.getParameterMap();
 
     if(params.containsKey("callback")) {
+      String callback = params.get("callback")[0];
+      httpServletResponse.setContentType("text/javascript;charset=UTF-8");
       OutputStream out = httpServletResponse.getOutputStream();
-      GenericResponseWrapper wrapper = new GenericResponseWrapper(httpServletResponse);
+      CallbackServletOutputStream callbackOut = new CallbackServletOutputStream(out, callback);
+      GenericResponseWrapper wrapper = new GenericResponseWrapper(httpServletResponse, callbackOut);
 
       try {
         handler.handle(s, request, httpServletRequest, wrapper);
-        if (httpServletResponse.getStatus() >= 400) {
-          out.write((params.get("callback")[0] + "({error: 'error'});").getBytes());
+        wrapper.flush();
+        if (!callbackOut.hasStarted() && httpServletResponse.getStatus() >= 400) {
+          writeError(out, callback);
         } else {
-          out.write((params.get("callback")[0] + "(").getBytes());
-          out.write(wrapper.getData());
-          out.write(");".getBytes());
+          callbackOut.start();
+          out.write(");".getBytes(Charsets.UTF_8));
         }
-
-        wrapper.setContentType("text/javascript;charset=UTF-8");
         out.close();
       } catch (Exception e) {
-        out.write((params.get("callback")[0] + "({error: 'error'});").getBytes());
-        wrapper.setContentType("text/javascript;charset=UTF-8");
+        wrapper.flush();
+        if (!callbackOut.hasStarted()) {
+          writeError(out, callback);
+        } else {
+          out.write(");".getBytes(Charsets.UTF_8));
+        }
         out.close();
         throw e;
       }
@@ -56,28 +63,62 @@ public class JsonpCallbackHandler extends AbstractHandler {
     }
   }
 
-  private static class FilterServletOutputStream extends ServletOutputStream {
-    private DataOutputStream stream;
+  static void writeError(OutputStream out, String callback) throws IOException {
+    out.write((callback + "({error: 'error'});").getBytes(Charsets.UTF_8));
+  }
+
+  private static class CallbackServletOutputStream extends ServletOutputStream {
+    private final OutputStream stream;
+    private final String callback;
+    private boolean hasStarted;
+
+    public CallbackServletOutputStream(OutputStream stream, String callback) {
+      this.stream = stream;
+      this.callback = callback;
+      this.hasStarted = false;
+    }
+
+    public boolean hasStarted() {
+      return hasStarted;
+    }
 
-    public FilterServletOutputStream(OutputStream output) {
-      stream = new DataOutputStream(output);
+    public void start() throws IOException {
+      if (!hasStarted) {
+        hasStarted = true;
+        stream.write((callback + "(").getBytes(Charsets.UTF_8));
+      }
     }
 
     @Override
     public void write(int b) throws IOException {
+      start();
       stream.write(b);
     }
 
     @Override
     public void write(byte[] b) throws IOException {
-      stream.write(b);
+      write(b, 0, b.length);
     }
 
     @Override
     public void write(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return;
+      }
+      start();
       stream.write(b, off, len);
     }
 
+    @Override
+    public void flush() throws IOException {
+      stream.flush();
+    }
+
+    @Override
+    public void close() {
+      // the enclosing handler closes the underlying stream once the callback is closed
+    }
+
     @Override
     public boolean isReady() {
       return true;
@@ -88,25 +129,38 @@ public class JsonpCallbackHandler extends AbstractHandler {
   }
 
   private static class GenericResponseWrapper extends HttpServletResponseWrapper {
-    private ByteArrayOutputStream output;
+    private final CallbackServletOutputStream output;
+    private PrintWriter writer;
 
-    public GenericResponseWrapper(HttpServletResponse response) {
+    public GenericResponseWrapper(HttpServletResponse response,
+        CallbackServletOutputStream output) {
       super(response);
-      output = new ByteArrayOutputStream();
+      this.output = output;
     }
 
-    public byte[] getData() {
-      return output.toByteArray();
+    public void flush() throws IOException {
+      if (writer != null) {
+        writer.flush();
+      }
+      output.flush();
     }
 
     @Override
     public ServletOutputStream getOutputStream() {
-      return new FilterServletOutputStream(output);
+      return output;
     }
 
     @Override
     public PrintWriter getWriter() {
-      return new PrintWriter(getOutputStream(), true);
+      if (writer == null) {
+        writer = new PrintWriter(new OutputStreamWriter(output, Charsets.UTF_8));
+      }
+      return writer;
+    }
+
+    @Override
+    public void setContentType(String type) {
+      // always javascript
     }
   }
 }
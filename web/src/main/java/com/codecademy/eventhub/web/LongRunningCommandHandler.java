@@ -0,0 +1,173 @@
+package com.codecademy.eventhub.web;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the requests to the long running commands on a bounded executor of its own, through async
+ * request processing, while the other requests, e.g. tracking, go straight through on the request
+ * threads.
+ *
+ * Every long running command has its own limit of concurrent executions, whose permit a request
+ * takes before it is handed to the executor, so that the threads of the executor never wait for
+ * one. A request whose command is at its limit is retried every RETRY_INTERVAL_MS from a timer
+ * thread. A request which can't be admitted, because the queue of the executor is full or because
+ * the command stays at its limit for admissionTimeoutMs, gets a 503, and a command which fails
+ * gets a 500 unless it has already started its response.
+ */
+public class LongRunningCommandHandler extends AbstractHandler {
+  private static final Logger LOGGER = Logger.getLogger(LongRunningCommandHandler.class.getName());
+  private static final long RETRY_INTERVAL_MS = 10;
+
+  private final Handler handler;
+  // from path to the permits of its command
+  private final Map<String, Semaphore> semaphores;
+  private final ThreadPoolExecutor executor;
+  private final ScheduledExecutorService retryExecutor;
+  private final long admissionTimeoutMs;
+
+  public LongRunningCommandHandler(Handler handler, Map<String, Semaphore> semaphores,
+      int numThreads, int queueSize, long admissionTimeoutMs) {
+    this.handler = handler;
+    this.semaphores = semaphores;
+    this.executor = new ThreadPoolExecutor(numThreads, numThreads, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(queueSize),
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("long-running-%d").build());
+    this.retryExecutor = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("long-running-retry-%d").build());
+    this.admissionTimeoutMs = admissionTimeoutMs;
+  }
+
+  @Override
+  public void handle(final String target, final Request baseRequest,
+      final HttpServletRequest request, final HttpServletResponse response)
+      throws IOException, ServletException {
+    Semaphore semaphore = semaphores.get(target);
+    if (semaphore == null) {
+      handler.handle(target, baseRequest, request, response);
+      return;
+    }
+
+    AsyncContext asyncContext = request.startAsync();
+    // the command takes as long as it takes once admitted
+    asyncContext.setTimeout(0);
+    baseRequest.setHandled(true);
+    new Admission(target, baseRequest, request, response, asyncContext, semaphore,
+        System.currentTimeMillis() + admissionTimeoutMs).run();
+  }
+
+  @Override
+  protected void doStop() throws Exception {
+    retryExecutor.shutdown();
+    executor.shutdown();
+    super.doStop();
+  }
+
+  private static void sendError(HttpServletResponse response, Exception e) {
+    if (response.isCommitted()) {
+      return;
+    }
+    try {
+      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.toString());
+    } catch (IOException ioException) {
+      LOGGER.log(Level.WARNING, "failed to send the error", ioException);
+    }
+  }
+
+  private static void sendUnavailable(HttpServletRequest request, HttpServletResponse response) {
+    try {
+      response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      String callback = request.getParameter("callback");
+      if (callback != null) {
+        JsonpCallbackHandler.writeError(response.getOutputStream(), callback);
+      } else {
+        response.getWriter().println("\"too many concurrent requests\"");
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private class Admission implements Runnable {
+    private final String target;
+    private final Request baseRequest;
+    private final HttpServletRequest request;
+    private final HttpServletResponse response;
+    private final AsyncContext asyncContext;
+    private final Semaphore semaphore;
+    private final long deadline;
+
+    public Admission(String target, Request baseRequest, HttpServletRequest request,
+        HttpServletResponse response, AsyncContext asyncContext, Semaphore semaphore,
+        long deadline) {
+      this.target = target;
+      this.baseRequest = baseRequest;
+      this.request = request;
+      this.response = response;
+      this.asyncContext = asyncContext;
+      this.semaphore = semaphore;
+      this.deadline = deadline;
+    }
+
+    @Override
+    public void run() {
+      if (!semaphore.tryAcquire()) {
+        if (System.currentTimeMillis() >= deadline) {
+          reject();
+          return;
+        }
+        try {
+          retryExecutor.schedule(this, RETRY_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+          reject();
+        }
+        return;
+      }
+      try {
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              handler.handle(target, baseRequest, request, response);
+            } catch (Exception e) {
+              LOGGER.log(Level.SEVERE, "failed to handle " + target, e);
+              sendError(response, e);
+            } finally {
+              semaphore.release();
+              asyncContext.complete();
+            }
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        semaphore.release();
+        reject();
+      }
+    }
+
+    private void reject() {
+      try {
+        sendUnavailable(request, response);
+      } finally {
+        asyncContext.complete();
+      }
+    }
+  }
+}
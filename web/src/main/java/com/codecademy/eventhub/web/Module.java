@@ -22,6 +22,7 @@ import com.codecademy.eventhub.model.User;
 import com.codecademy.eventhub.storage.BloomFilteredEventStorage;
 import com.codecademy.eventhub.storage.BloomFilteredUserStorage;
 import com.codecademy.eventhub.web.commands.Command;
+import com.codecademy.eventhub.web.commands.LongRunning;
 import com.codecademy.eventhub.web.commands.Path;
 import org.reflections.Reflections;
 
@@ -30,6 +31,7 @@ import javax.inject.Provider;
 import java.lang.reflect.Type;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Semaphore;
 
 public class Module extends AbstractModule {
   private static final String PACKAGE_NAME = "com.codecademy.eventhub.web.commands";
@@ -55,18 +57,19 @@ public class Module extends AbstractModule {
       PropertiesIndex propertiesIndex,
       UserEventIndex userEventIndex,
       BloomFilteredEventStorage eventStorage,
-      BloomFilteredUserStorage userStorage) {
+      BloomFilteredUserStorage userStorage,
+      @Named("eventhub.findusers.numThreads") int numUserScanThreads,
+      @Named("eventhub.findusers.numUsersPerChunk") int numUsersPerScanChunk) {
     return new EventHub(directory, shardedEventIndex, datedEventIndex, propertiesIndex,
-        userEventIndex, eventStorage, userStorage);
+        userEventIndex, eventStorage, userStorage, numUserScanThreads, numUsersPerScanChunk);
   }
 
   @Provides
+  @Singleton
   private EventHubHandler getEventHubHandler(Injector injector, EventHub eventHub)
       throws ClassNotFoundException {
     Map<String, Provider<Command>> commandsMap = Maps.newHashMap();
-    Reflections reflections = new Reflections(PACKAGE_NAME);
-    Set<Class<? extends Command>> commandClasses = reflections.getSubTypesOf(Command.class);
-    for (Class<? extends Command> commandClass : commandClasses) {
+    for (Class<? extends Command> commandClass : getCommandClasses()) {
       String path = commandClass.getAnnotation(Path.class).value();
       //noinspection unchecked
       commandsMap.put(path, (Provider<Command>) injector.getProvider(commandClass));
@@ -74,6 +77,28 @@ public class Module extends AbstractModule {
     return new EventHubHandler(eventHub, commandsMap);
   }
 
+  @Provides
+  @Singleton
+  private LongRunningCommandHandler getLongRunningCommandHandler(EventHubHandler eventHubHandler,
+      @Named("eventhubhandler.longrunning.numThreads") int numThreads,
+      @Named("eventhubhandler.longrunning.queueSize") int queueSize,
+      @Named("eventhubhandler.longrunning.maxConcurrentPerCommand") int maxConcurrentPerCommand,
+      @Named("eventhubhandler.longrunning.admissionTimeoutMs") long admissionTimeoutMs) {
+    Map<String, Semaphore> semaphores = Maps.newHashMap();
+    for (Class<? extends Command> commandClass : getCommandClasses()) {
+      if (commandClass.isAnnotationPresent(LongRunning.class)) {
+        semaphores.put(commandClass.getAnnotation(Path.class).value(),
+            new Semaphore(maxConcurrentPerCommand));
+      }
+    }
+    return new LongRunningCommandHandler(new JsonpCallbackHandler(eventHubHandler), semaphores,
+        numThreads, queueSize, admissionTimeoutMs);
+  }
+
+  private static Set<Class<? extends Command>> getCommandClasses() {
+    return new Reflections(PACKAGE_NAME).getSubTypesOf(Command.class);
+  }
+
   private static class UserJsonSerializer implements JsonSerializer<User> {
     @Override
     public JsonElement serialize(User user, Type type, JsonSerializationContext jsonSerializationContext) {
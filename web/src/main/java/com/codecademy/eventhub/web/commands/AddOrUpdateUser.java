@@ -4,10 +4,12 @@ import com.codecademy.eventhub.EventHub;
 import com.codecademy.eventhub.model.User;
 
 import javax.inject.Inject;
+import javax.inject.Singleton;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 
+@Singleton
 @Path("/users/add_or_update")
 public class AddOrUpdateUser extends Command {
   private final EventHub eventHub;
@@ -18,7 +20,7 @@ public class AddOrUpdateUser extends Command {
   }
 
   @Override
-  public synchronized void execute(final HttpServletRequest request,
+  public void execute(final HttpServletRequest request,
       final HttpServletResponse response) throws IOException {
     int userId = eventHub.addOrUpdateUser(new User.Builder(
         request.getParameter("external_user_id"),
@@ -3,10 +3,12 @@ package com.codecademy.eventhub.web.commands;
 import com.codecademy.eventhub.EventHub;
 
 import javax.inject.Inject;
+import javax.inject.Singleton;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 
+@Singleton
 @Path("/users/alias")
 public class AliasUser extends Command {
   private final EventHub eventHub;
@@ -17,7 +19,7 @@ public class AliasUser extends Command {
   }
 
   @Override
-  public synchronized void execute(final HttpServletRequest request,
+  public void execute(final HttpServletRequest request,
       final HttpServletResponse response) throws IOException {
     eventHub.aliasUser(
         request.getParameter("from_external_user_id"),
@@ -8,6 +8,7 @@ import com.codecademy.eventhub.base.DateHelper;
 import com.codecademy.eventhub.model.Event;
 
 import javax.inject.Inject;
+import javax.inject.Singleton;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
@@ -15,6 +16,7 @@ import java.io.PrintWriter;
 import java.util.List;
 import java.util.Map;
 
+@Singleton
 @Path("/events/batch_track")
 public class BatchTrackEvent extends Command {
   private final Gson gson;
@@ -29,7 +31,7 @@ public class BatchTrackEvent extends Command {
   }
 
   @Override
-  public synchronized void execute(final HttpServletRequest request,
+  public void execute(final HttpServletRequest request,
       final HttpServletResponse response) throws IOException {
 
     List<Map<String, String>> events = gson.fromJson(
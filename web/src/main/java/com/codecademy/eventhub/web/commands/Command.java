@@ -3,6 +3,7 @@ package com.codecademy.eventhub.web.commands;
 import com.google.common.base.Function;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.gson.stream.JsonWriter;
 import com.codecademy.eventhub.storage.filter.And;
 import com.codecademy.eventhub.storage.filter.ExactMatch;
 import com.codecademy.eventhub.storage.filter.Filter;
@@ -14,6 +15,10 @@ import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 
+/**
+ * Commands are singletons executed concurrently by the request threads, so they must be
+ * stateless: anything specific to a request lives on the stack of execute.
+ */
 public abstract class Command {
   public abstract void execute(final HttpServletRequest request, final HttpServletResponse response) throws IOException;
 
@@ -26,6 +31,16 @@ public abstract class Command {
     });
   }
 
+  /**
+   * A JsonWriter over the response, indented like the pretty printing Gson, for commands which
+   * stream their results instead of serializing them at once.
+   */
+  protected JsonWriter newJsonWriter(HttpServletResponse response) throws IOException {
+    JsonWriter jsonWriter = new JsonWriter(response.getWriter());
+    jsonWriter.setIndent("  ");
+    return jsonWriter;
+  }
+
   protected String[] merge(String[] x, String[] y) {
     if (x == null & y == null) {
       return null;
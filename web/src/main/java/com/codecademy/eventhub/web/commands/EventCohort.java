@@ -5,10 +5,13 @@ import com.google.gson.Gson;
 import com.codecademy.eventhub.storage.filter.Filter;
 
 import javax.inject.Inject;
+import javax.inject.Singleton;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 
+@Singleton
+@LongRunning
 @Path("/events/cohort")
 public class EventCohort extends Command {
   private final Gson gson;
@@ -21,7 +24,7 @@ public class EventCohort extends Command {
   }
 
   @Override
-  public synchronized void execute(final HttpServletRequest request,
+  public void execute(final HttpServletRequest request,
       final HttpServletResponse response) throws IOException {
     Filter rowEventFilter = getFilter(request.getParameterValues("refk[]"),
         request.getParameterValues("refv[]"));
@@ -6,11 +6,14 @@ import com.google.gson.Gson;
 import com.codecademy.eventhub.storage.filter.Filter;
 
 import javax.inject.Inject;
+import javax.inject.Singleton;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.util.List;
 
+@Singleton
+@LongRunning
 @Path("/events/funnel")
 public class EventFunnel extends Command {
   private final Gson gson;
@@ -23,7 +26,7 @@ public class EventFunnel extends Command {
   }
 
   @Override
-  public synchronized void execute(final HttpServletRequest request,
+  public void execute(final HttpServletRequest request,
       final HttpServletResponse response) throws IOException {
     String[] funnelSteps = request.getParameterValues("funnel_steps[]");
     List<Filter> eventFilters = Lists.newArrayList();
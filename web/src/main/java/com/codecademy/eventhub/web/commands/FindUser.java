@@ -1,18 +1,29 @@
 package com.codecademy.eventhub.web.commands;
 
 import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
 import com.codecademy.eventhub.EventHub;
 import com.codecademy.eventhub.model.User;
 import com.codecademy.eventhub.storage.filter.Filter;
 
 import javax.inject.Inject;
+import javax.inject.Singleton;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.util.List;
 
+/**
+ * Streams the matching users as a json array while they are found. Given num_records, a page of
+ * at most that many users is returned as {"users": [...], "next_cursor": ...} instead, where the
+ * cursor, -1 once all the users have been scanned, is passed back as cursor for the next page.
+ */
+@Singleton
+@LongRunning
 @Path("/users/find")
 public class FindUser extends Command {
+  // the number of users written between two flushes of the response
+  private static final int FLUSH_INTERVAL = 100;
+
   private final Gson gson;
   private final EventHub eventHub;
 
@@ -23,12 +34,46 @@ public class FindUser extends Command {
   }
 
   @Override
-  public synchronized void execute(final HttpServletRequest request,
+  public void execute(final HttpServletRequest request,
       final HttpServletResponse response) throws IOException {
     Filter filter = getFilter(
         request.getParameterValues("ufk[]"),
         request.getParameterValues("ufv[]"));
-    List<User> users = eventHub.findUsers(filter);
-    response.getWriter().println(gson.toJson(users));
+    String cursor = request.getParameter("cursor");
+    String numRecords = request.getParameter("num_records");
+    JsonWriter jsonWriter = newJsonWriter(response);
+    if (numRecords == null) {
+      jsonWriter.beginArray();
+      findUsers(filter, 0, Integer.MAX_VALUE, jsonWriter);
+      jsonWriter.endArray();
+    } else {
+      jsonWriter.beginObject();
+      jsonWriter.name("users").beginArray();
+      int nextCursor = findUsers(filter, cursor == null ? 0 : Integer.parseInt(cursor),
+          Integer.parseInt(numRecords), jsonWriter);
+      jsonWriter.endArray();
+      jsonWriter.name("next_cursor").value(nextCursor);
+      jsonWriter.endObject();
+    }
+    jsonWriter.flush();
+  }
+
+  private int findUsers(Filter filter, int fromUserId, int limit, final JsonWriter jsonWriter) {
+    return eventHub.findUsers(filter, fromUserId, limit, new EventHub.UserCallback() {
+      private int numUsers = 0;
+
+      @Override
+      public void onUser(User user) {
+        gson.toJson(user, User.class, jsonWriter);
+        if (++numUsers % FLUSH_INTERVAL != 0) {
+          return;
+        }
+        try {
+          jsonWriter.flush();
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
   }
 }
@@ -4,10 +4,12 @@ import com.codecademy.eventhub.EventHub;
 import com.google.gson.Gson;
 
 import javax.inject.Inject;
+import javax.inject.Singleton;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 
+@Singleton
 @Path("/users/keys")
 public class GetUserKeys extends Command {
   private final Gson gson;
@@ -20,7 +22,7 @@ public class GetUserKeys extends Command {
   }
 
   @Override
-  public synchronized void execute(final HttpServletRequest request,
+  public void execute(final HttpServletRequest request,
       final HttpServletResponse response) throws IOException {
     response.getWriter().println(gson.toJson(eventHub.getUserKeys()));
   }
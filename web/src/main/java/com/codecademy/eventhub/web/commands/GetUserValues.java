@@ -4,11 +4,13 @@ import com.codecademy.eventhub.EventHub;
 import com.google.gson.Gson;
 
 import javax.inject.Inject;
+import javax.inject.Singleton;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.util.List;
 
+@Singleton
 @Path("/users/values")
 public class GetUserValues extends Command {
   private final Gson gson;
@@ -21,7 +23,7 @@ public class GetUserValues extends Command {
   }
 
   @Override
-  public synchronized void execute(final HttpServletRequest request,
+  public void execute(final HttpServletRequest request,
       final HttpServletResponse response) throws IOException {
     String prefix = request.getParameter("prefix");
     prefix = (prefix == null ? "" : prefix);
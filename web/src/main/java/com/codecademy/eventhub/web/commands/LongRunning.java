@@ -0,0 +1,13 @@
+package com.codecademy.eventhub.web.commands;
+
+import java.lang.annotation.ElementType;
+
+/**
+ * Marks the commands which scan a lot of events or users, e.g. funnels or cohorts. They are run
+ * off the request threads by the LongRunningCommandHandler, so that they don't hold up the
+ * tracking requests.
+ */
+@java.lang.annotation.Target({ElementType.TYPE})
+@java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME)
+public @interface LongRunning {
+}
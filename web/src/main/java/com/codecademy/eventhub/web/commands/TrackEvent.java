@@ -5,10 +5,12 @@ import com.codecademy.eventhub.base.DateHelper;
 import com.codecademy.eventhub.model.Event;
 
 import javax.inject.Inject;
+import javax.inject.Singleton;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 
+@Singleton
 @Path("/events/track")
 public class TrackEvent extends Command {
   private final DateHelper dateHelper;
@@ -21,7 +23,7 @@ public class TrackEvent extends Command {
   }
 
   @Override
-  public synchronized void execute(final HttpServletRequest request,
+  public void execute(final HttpServletRequest request,
       final HttpServletResponse response) throws IOException {
     String date = request.getParameter("date");
     if (date == null) {
@@ -1,15 +1,20 @@
 package com.codecademy.eventhub.web.commands;
 
 import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
 import com.codecademy.eventhub.EventHub;
 import com.codecademy.eventhub.model.Event;
 
 import javax.inject.Inject;
+import javax.inject.Singleton;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.util.List;
 
+/**
+ * Streams the events of the user as a json array, one event at a time.
+ */
+@Singleton
 @Path("/users/timeline")
 public class UserTimeline extends Command {
   private final Gson gson;
@@ -22,12 +27,21 @@ public class UserTimeline extends Command {
   }
 
   @Override
-  public synchronized void execute(final HttpServletRequest request,
+  public void execute(final HttpServletRequest request,
       final HttpServletResponse response) throws IOException {
-    List<Event> userEvents = eventHub.getUserEvents(
+    final JsonWriter jsonWriter = newJsonWriter(response);
+    jsonWriter.beginArray();
+    eventHub.getUserEvents(
         request.getParameter("external_user_id"),
         Integer.parseInt(request.getParameter("offset")),
-        Integer.parseInt(request.getParameter("num_records")));
-    response.getWriter().println(gson.toJson(userEvents));
+        Integer.parseInt(request.getParameter("num_records")),
+        new EventHub.EventCallback() {
+          @Override
+          public void onEvent(Event event) {
+            gson.toJson(event, Event.class, jsonWriter);
+          }
+        });
+    jsonWriter.endArray();
+    jsonWriter.flush();
   }
 }
@@ -5,10 +5,12 @@ import com.google.gson.Gson;
 import com.codecademy.eventhub.model.Event;
 
 import javax.inject.Inject;
+import javax.inject.Singleton;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 
+@Singleton
 @Path("/events/view")
 public class ViewEvent extends Command {
   private final Gson gson;
@@ -21,7 +23,7 @@ public class ViewEvent extends Command {
   }
 
   @Override
-  public synchronized void execute(final HttpServletRequest request,
+  public void execute(final HttpServletRequest request,
       final HttpServletResponse response) throws IOException {
     Event event = eventHub.getEvent(Long.parseLong(request.getParameter("event_id")));
     response.getWriter().println(gson.toJson(event));
@@ -0,0 +1,130 @@
+package com.codecademy.eventhub.web;
+
+import com.codecademy.eventhub.EventHub;
+import com.codecademy.eventhub.EventHubModule;
+import com.codecademy.eventhub.index.DatedEventIndexModule;
+import com.codecademy.eventhub.index.PropertiesIndexModule;
+import com.codecademy.eventhub.index.ShardedEventIndexModule;
+import com.codecademy.eventhub.index.UserEventIndexModule;
+import com.codecademy.eventhub.list.DmaIdListModule;
+import com.codecademy.eventhub.model.Event;
+import com.codecademy.eventhub.storage.EventStorageModule;
+import com.codecademy.eventhub.storage.UserStorageModule;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Bytes;
+import com.google.common.primitives.Ints;
+import com.google.inject.Guice;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Properties;
+
+public class BinaryIngestionServerTest {
+  private static final int MAX_FRAME_SIZE = 1024;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private EventHub eventHub;
+  private BinaryIngestionServer server;
+
+  @Before
+  public void setUp() throws Exception {
+    Properties properties = new Properties();
+    properties.load(EventHub.class.getClassLoader().getResourceAsStream("hub.properties"));
+    properties.put("eventhub.directory", folder.newFolder().getCanonicalPath());
+    eventHub = Guice.createInjector(
+        new DmaIdListModule(),
+        new DatedEventIndexModule(),
+        new ShardedEventIndexModule(),
+        new PropertiesIndexModule(),
+        new UserEventIndexModule(),
+        new EventStorageModule(),
+        new UserStorageModule(),
+        new EventHubModule(properties)).getInstance(EventHub.class);
+    server = BinaryIngestionServer.create(eventHub, 0, MAX_FRAME_SIZE);
+    server.start();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    server.close();
+    eventHub.close();
+  }
+
+  @Test
+  public void testFrames() throws Exception {
+    try (Socket socket = new Socket("localhost", server.getPort())) {
+      OutputStream out = socket.getOutputStream();
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+
+      // a frame split across reads is added once it is complete
+      byte[] frame = toFrame(newEvent("user1"));
+      out.write(frame, 0, 3);
+      out.flush();
+      Thread.sleep(50);
+      out.write(frame, 3, frame.length - 3);
+      out.flush();
+      Assert.assertArrayEquals(new long[] { 0 }, readAcks(in, 1));
+
+      // pipelined frames are acked in the order they were sent
+      out.write(Bytes.concat(toFrame(newEvent("user1")), toFrame(newEvent("user2")),
+          toFrame(newEvent("user1"))));
+      out.flush();
+      Assert.assertArrayEquals(new long[] { 1, 2, 3 }, readAcks(in, 3));
+
+      // the frames before a malformed one are acked, then the connection is closed
+      out.write(Bytes.concat(toFrame(newEvent("user2")), Ints.toByteArray(4), new byte[4]));
+      out.flush();
+      Assert.assertArrayEquals(new long[] { 4 }, readAcks(in, 1));
+      Assert.assertEquals(BinaryIngestionServer.ERROR, in.readInt());
+      Assert.assertEquals(-1, in.read());
+    }
+
+    try (Socket socket = new Socket("localhost", server.getPort())) {
+      socket.getOutputStream().write(Ints.toByteArray(MAX_FRAME_SIZE + 1));
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      Assert.assertEquals(BinaryIngestionServer.ERROR, in.readInt());
+      Assert.assertEquals(-1, in.read());
+    }
+
+    Assert.assertEquals(3, eventHub.getUserEvents("user1", 0, Integer.MAX_VALUE).size());
+    Assert.assertEquals(2, eventHub.getUserEvents("user2", 0, Integer.MAX_VALUE).size());
+  }
+
+  private static Event newEvent(String externalUserId) {
+    return new Event.Builder("signup", externalUserId, "20130101",
+        Maps.<String, String>newHashMap()).build();
+  }
+
+  private static byte[] toFrame(Event event) {
+    ByteBuffer byteBuffer = event.toByteBuffer();
+    byte[] bytes = new byte[byteBuffer.remaining()];
+    byteBuffer.get(bytes);
+    return Bytes.concat(Ints.toByteArray(bytes.length), bytes);
+  }
+
+  /**
+   * Reads the acks of the given number of events, which may come in several acks.
+   */
+  private static long[] readAcks(DataInputStream in, int numEvents) throws Exception {
+    long[] eventIds = new long[numEvents];
+    int numAcked = 0;
+    while (numAcked < numEvents) {
+      int numEventsInAck = in.readInt();
+      Assert.assertTrue(numEventsInAck > 0);
+      for (int i = 0; i < numEventsInAck; i++) {
+        eventIds[numAcked++] = in.readLong();
+      }
+    }
+    return eventIds;
+  }
+}
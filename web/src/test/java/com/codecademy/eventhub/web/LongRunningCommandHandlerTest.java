@@ -0,0 +1,150 @@
+package com.codecademy.eventhub.web;
+
+import com.google.common.collect.ImmutableMap;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+public class LongRunningCommandHandlerTest {
+  private final CountDownLatch slowStarted = new CountDownLatch(1);
+  private final CountDownLatch slowReleased = new CountDownLatch(1);
+  private final ExecutorService clients = Executors.newCachedThreadPool();
+  private Server server;
+  private int port;
+
+  @After
+  public void tearDown() throws Exception {
+    slowReleased.countDown();
+    clients.shutdownNow();
+    if (server != null) {
+      server.stop();
+    }
+  }
+
+  @Test
+  public void testAdmissionTimeout() throws Exception {
+    Map<String, Semaphore> semaphores = ImmutableMap.of(
+        "/slow", new Semaphore(1), "/fast", new Semaphore(1));
+    start(semaphores, 2, 10, 200);
+
+    Future<Integer> slowRequest = request("/slow");
+    Assert.assertTrue(slowStarted.await(10, TimeUnit.SECONDS));
+    Future<Integer> waitingRequest = request("/slow");
+    // the request waiting for its command doesn't hold the other thread of the executor
+    Assert.assertEquals(200, (int) request("/fast").get(1, TimeUnit.SECONDS));
+    Assert.assertEquals(503, (int) waitingRequest.get(10, TimeUnit.SECONDS));
+
+    slowReleased.countDown();
+    Assert.assertEquals(200, (int) slowRequest.get(10, TimeUnit.SECONDS));
+    awaitPermits(semaphores.get("/slow"), 1);
+  }
+
+  @Test
+  public void testRejection() throws Exception {
+    Semaphore semaphore = new Semaphore(3);
+    start(ImmutableMap.of("/slow", semaphore), 1, 1, 10000);
+
+    Future<Integer> slowRequest = request("/slow");
+    Assert.assertTrue(slowStarted.await(10, TimeUnit.SECONDS));
+    Future<Integer> queuedRequest = request("/slow");
+    while (semaphore.availablePermits() > 1) {
+      Thread.sleep(10);
+    }
+    // the queue of the executor is full
+    Assert.assertEquals(503, (int) request("/slow").get(10, TimeUnit.SECONDS));
+    Assert.assertEquals(1, semaphore.availablePermits());
+
+    slowReleased.countDown();
+    Assert.assertEquals(200, (int) slowRequest.get(10, TimeUnit.SECONDS));
+    Assert.assertEquals(200, (int) queuedRequest.get(10, TimeUnit.SECONDS));
+    awaitPermits(semaphore, 3);
+  }
+
+  @Test
+  public void testFailure() throws Exception {
+    Semaphore semaphore = new Semaphore(1);
+    start(ImmutableMap.of("/fail", semaphore), 1, 10, 10000);
+
+    Assert.assertEquals(500, (int) request("/fail").get(10, TimeUnit.SECONDS));
+    // the permit of the failed command is released
+    awaitPermits(semaphore, 1);
+    Assert.assertEquals(500, (int) request("/fail").get(10, TimeUnit.SECONDS));
+    awaitPermits(semaphore, 1);
+  }
+
+  private void start(Map<String, Semaphore> semaphores, int numThreads, int queueSize,
+      long admissionTimeoutMs) throws Exception {
+    server = new Server(0);
+    server.setHandler(new LongRunningCommandHandler(new CommandHandler(), semaphores,
+        numThreads, queueSize, admissionTimeoutMs));
+    server.start();
+    port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+  }
+
+  /**
+   * Waits for the permits, which are released once the response has been sent.
+   */
+  private static void awaitPermits(Semaphore semaphore, int numPermits) throws Exception {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (semaphore.availablePermits() != numPermits) {
+      Assert.assertTrue(System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  private Future<Integer> request(final String path) {
+    return clients.submit(new Callable<Integer>() {
+      @Override
+      public Integer call() throws Exception {
+        HttpURLConnection connection =
+            (HttpURLConnection) new URL("http://localhost:" + port + path).openConnection();
+        try {
+          return connection.getResponseCode();
+        } finally {
+          connection.disconnect();
+        }
+      }
+    });
+  }
+
+  private class CommandHandler extends AbstractHandler {
+    @Override
+    public void handle(String target, Request baseRequest, HttpServletRequest request,
+        HttpServletResponse response) throws IOException {
+      switch (target) {
+        case "/slow":
+          slowStarted.countDown();
+          try {
+            slowReleased.await();
+          } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+          break;
+        case "/fail":
+          throw new IllegalStateException("command failed");
+        default:
+          break;
+      }
+      response.getWriter().println("\"ok\"");
+      baseRequest.setHandled(true);
+    }
+  }
+}